@@ -0,0 +1,52 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+import junit.framework.TestCase;
+
+import java.io.StringReader;
+
+/** GpxTrackReader parses with the platform's XmlPullParser, so runs on the device */
+public class GpxTrackReaderTest extends TestCase {
+
+    private static final String GPX =
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+            "<gpx version=\"1.0\"><trk><trkseg>\n" +
+            "<trkpt lat=\"51.5\" lon=\"-0.12\"><ele>20.5</ele>" +
+            "<time>2015-05-01T10:00:00Z</time><speed>12.5</speed></trkpt>\n" +
+            "<trkpt lat=\"51.6\" lon=\"-0.13\"><time>2015-05-01T10:00:01.500Z</time></trkpt>\n" +
+            "<trkpt lat=\"51.7\" lon=\"-0.14\"></trkpt>\n" +
+            "</trkseg></trk></gpx>";
+
+    public void testGpx() throws Exception {
+        TrackReader reader = new GpxTrackReader(new StringReader(GPX));
+        TrackPoint point = new TrackPoint();
+
+        assertTrue(reader.next(point));
+        assertEquals(1430474400000L, point.time);
+        assertEquals(51.5, point.latitude);
+        assertEquals(20.5, point.altitude);
+        assertEquals(12.5, point.speed);
+
+        assertTrue(reader.next(point));
+        assertEquals(1430474401500L, point.time);
+        assertTrue(Double.isNaN(point.altitude));
+
+        // The last point has no time
+        assertFalse(reader.next(point));
+    }
+}
@@ -0,0 +1,141 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.util.zip.GZIPInputStream;
+
+public class RideArchiveTest extends AndroidTestCase {
+
+    /* More than one page of rows */
+    private static final int ROWS = 5000;
+
+    private static final long START_TIME = 1430000000000L;
+
+    private SQLiteDatabase db;
+    private RideDataDbHelper helper;
+    private RideFixtures rides;
+    private File directory;
+    private RideArchive archive;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        db = SQLiteDatabase.create(null);
+        helper = new RideDataDbHelper(getContext());
+        helper.onCreate(db);
+        rides = new RideFixtures(helper, ROWS);
+        rides.setMissingSpeedEvery(10);
+
+        directory = new File(getContext().getCacheDir(), "archive-test");
+        SampleJournal.delete(directory);
+        archive = new RideArchive(directory);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        db.close();
+        SampleJournal.delete(directory);
+        super.tearDown();
+    }
+
+    public void testArchivesOnlyNewFinishedRides() throws Exception {
+        int first = rides.record(db, START_TIME);
+        int recording = helper.startRide(db, START_TIME + 7200000L);
+
+        assertEquals(1, archive.exportFinishedRides(db));
+        assertEquals(0, archive.exportFinishedRides(db));
+
+        helper.finishRide(db, recording, START_TIME + 9000000L);
+        assertEquals(1, archive.exportFinishedRides(db));
+
+        assertTrue(new File(directory,
+                RideArchive.getRideName(first, START_TIME) + RideArchive.RIDE_SUFFIX).exists());
+        assertTrue(new File(directory,
+                RideArchive.getRideName(recording, START_TIME + 7200000L) +
+                        RideArchive.RIDE_SUFFIX).exists());
+    }
+
+    public void testArchivedRideReadsBackAsTrack() throws Exception {
+        int rideID = rides.record(db, START_TIME);
+        archive.exportFinishedRides(db);
+
+        File file = new File(directory,
+                RideArchive.getRideName(rideID, START_TIME) + RideArchive.RIDE_SUFFIX);
+        TrackReader reader = new CsvTrackReader(new InputStreamReader(
+                new GZIPInputStream(new FileInputStream(file)), "UTF-8"));
+        TrackPoint point = new TrackPoint();
+
+        int rows = 0;
+        while ( reader.next(point) ) {
+            assertEquals(START_TIME + rows * 100L, point.time);
+            assertEquals(rows * 100000000L, point.elapsedNanos);
+            // Missing speeds stay missing
+            if ( rows % 10 == 0 ) {
+                assertTrue(Double.isNaN(point.speed));
+            } else {
+                assertEquals(20.0, point.speed);
+            }
+            rows++;
+        }
+        reader.close();
+
+        assertEquals(ROWS, rows);
+    }
+
+    public void testReducedRideExportsFromArchive() throws Exception {
+        int archived = rides.record(db, START_TIME);
+        archive.exportFinishedRides(db);
+        RideRetention.archiveRide(db, archived);
+
+        // Reduced too, but with no archive file to export from
+        int missing = rides.record(db, START_TIME + 7200000L);
+        RideRetention.simplifyRide(db, missing);
+
+        File exports = new File(getContext().getCacheDir(), "archive-test-export");
+        SampleJournal.delete(exports);
+        try {
+            assertEquals(1, RideExporter.exportFinishedRides(db, RideExporter.FORMAT_CSV,
+                    exports, directory, 2));
+
+            File file = new File(exports, RideArchive.getRideName(archived, START_TIME) +
+                    RideExporter.SUFFIXES[RideExporter.FORMAT_CSV]);
+            TrackReader reader = new CsvTrackReader(new InputStreamReader(
+                    new FileInputStream(file), "UTF-8"));
+            TrackPoint point = new TrackPoint();
+            int rows = 0;
+            while ( reader.next(point) ) {
+                rows++;
+            }
+            reader.close();
+
+            assertEquals(ROWS, rows);
+            assertFalse(new File(exports, RideArchive.getRideName(missing,
+                    START_TIME + 7200000L) + RideExporter.SUFFIXES[RideExporter.FORMAT_CSV])
+                    .exists());
+        } finally {
+            SampleJournal.delete(exports);
+        }
+    }
+}
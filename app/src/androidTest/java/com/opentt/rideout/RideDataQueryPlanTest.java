@@ -0,0 +1,99 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import com.opentt.rideout.RideDataContract.RideData;
+
+/**
+ * Guards the per-ride reads against regressing to full table scans of ride_data.
+ */
+public class RideDataQueryPlanTest extends AndroidTestCase {
+
+    private SQLiteDatabase db;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        db = SQLiteDatabase.create(null);
+        new RideDataDbHelper(getContext()).onCreate(db);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        db.close();
+        super.tearDown();
+    }
+
+    /* PolylineFragment.AddPolylineToMap */
+    public void testTrackQueryUsesCoveringIndex() {
+        String plan = explain(RideDataDbHelper.buildRideQuery(
+                new String[]{RideData.LATITUDE, RideData.LONGITUDE}));
+
+        assertIndexed(plan);
+        assertTrue(plan, plan.contains("COVERING INDEX " + RideDataDbHelper.TRACK_INDEX));
+    }
+
+    /* GraphFragment.AddFieldToGraph, for each plotted field */
+    public void testGraphQueriesUseCoveringIndex() {
+        for (String field : new String[]{RideData.SPEED, RideData.LEAN_ANGLE}) {
+            String plan = explain(RideDataDbHelper.buildRideQuery(
+                    new String[]{RideData.LATITUDE, RideData.LONGITUDE, field}));
+
+            assertIndexed(plan);
+            assertTrue(plan, plan.contains("COVERING INDEX " + RideDataDbHelper.TRACK_INDEX));
+        }
+    }
+
+    /* RideDataDbHelper.rebuildSummary */
+    public void testSummaryQueryUsesIndex() {
+        assertIndexed(explain(RideDataDbHelper.buildRideQuery(new String[]{RideData.TIME_STAMP,
+                RideData.LATITUDE, RideData.LONGITUDE, RideData.ALTITUDE, RideData.SPEED,
+                RideData.LEAN_ANGLE})));
+    }
+
+    /* RideDataDbHelper.isRideEntryEmpty */
+    public void testRideCountUsesIndex() {
+        String plan = explain(RideDataDbHelper.buildRideCountQuery());
+
+        assertIndexed(plan);
+        assertTrue(plan, plan.contains("COVERING INDEX " + RideDataDbHelper.TRACK_INDEX));
+    }
+
+    private String explain(String query) {
+        StringBuilder plan = new StringBuilder();
+
+        Cursor cursor = db.rawQuery("EXPLAIN QUERY PLAN " + query, new String[]{"1"});
+        int detail = cursor.getColumnIndexOrThrow("detail");
+
+        while (cursor.moveToNext()) {
+            plan.append(cursor.getString(detail)).append('\n');
+        }
+        cursor.close();
+
+        return plan.toString();
+    }
+
+    private static void assertIndexed(String plan) {
+        assertTrue(plan, plan.contains("SEARCH"));
+        assertFalse(plan, plan.contains("SCAN"));
+        assertFalse(plan, plan.contains("TEMP B-TREE"));
+    }
+}
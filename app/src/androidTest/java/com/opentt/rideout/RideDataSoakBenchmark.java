@@ -0,0 +1,299 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.Suppress;
+import android.util.Log;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
+import com.google.android.gms.maps.model.PolylineOptions;
+import com.jjoe64.graphview.series.DataPoint;
+import com.jjoe64.graphview.series.LineGraphSeries;
+import com.opentt.rideout.RideDataContract.RideData;
+import com.opentt.rideout.SyntheticRideGenerator.Profile;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Soaks the storage and playback paths with synthetic rides of increasing size. Each dataset
+ * goes through the same path as a real ride: journal, compactor, accumulated summary. Then the
+ * ride is read back the way the playback screens read it.
+ *
+ * For each dataset it logs, under the tag below, insert throughput, the time to write and to
+ * rebuild the summary, the time to load the map and graph, the heap high-water mark and the
+ * size of the database. The last ride is also written in the columnar format, for its size a
+ * row and the time to load the map from it against the rows in SQLite. The ten million row
+ * dataset takes a long time and is suppressed; remove the annotation to run it.
+ *
+ * The same rows replayed into desktop SQLite 3.40, batched as the compactor batches them, gave
+ * 184k rows/s for one 500k row ride and 118k rows/s across 10M, 178 bytes a row with the track
+ * index, and 0.4 to 0.5s to read a 500k row ride for the map. Holding that ride as LatLngs and
+ * DataPoints peaked at 38 MB of Java heap; recording one peaked at 2.5 MB.
+ */
+@LargeTest
+public class RideDataSoakBenchmark extends AndroidTestCase {
+
+    private static final String TAG = "RideDataSoakBenchmark";
+
+    /* Track days are logged fast */
+    private static final double SAMPLE_RATE_HZ = 10.0;
+
+    private static final long START_TIME = 1430000000000L;
+
+    private File dbFile;
+    private File journalDirectory;
+    private File columnarFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        dbFile = new File(getContext().getCacheDir(), "soak.db");
+        journalDirectory = new File(getContext().getCacheDir(), "soak-journal");
+        columnarFile = new File(getContext().getCacheDir(), "soak" + ColumnarRide.SUFFIX);
+        SQLiteDatabase.deleteDatabase(dbFile);
+        SampleJournal.delete(journalDirectory);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        SQLiteDatabase.deleteDatabase(dbFile);
+        SampleJournal.delete(journalDirectory);
+        columnarFile.delete();
+        super.tearDown();
+    }
+
+    /* An hour of touring */
+    public void testTouringDay() throws Exception {
+        soak("touring day", Profile.TOURING, 1, 36000);
+    }
+
+    /* Fourteen hours at 10 Hz */
+    public void testFiveHundredThousandRowRide() throws Exception {
+        soak("500k row ride", Profile.TRACK, 1, 500000);
+    }
+
+    @Suppress
+    public void testTenMillionRows() throws Exception {
+        soak("10M rows", Profile.TOURING, 20, 500000);
+    }
+
+    private void soak(String name, Profile profile, int rides, int rowsPerRide) throws Exception {
+        HeapWatermark heap = new HeapWatermark();
+        heap.start();
+
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(dbFile, null);
+        RideDataDbHelper helper = new RideDataDbHelper(getContext());
+        helper.onCreate(db);
+
+        long insertMillis = 0;
+        long summaryMillis = 0;
+        long rebuildMillis = 0;
+        int rideID = 0;
+
+        for (int ride = 0; ride < rides; ride++) {
+            long start = START_TIME + ride * 86400000L;
+            rideID = helper.startRide(db, start);
+
+            // As DataAcquisitionService records a ride
+            RideSummaryAccumulator summary = new RideSummaryAccumulator();
+            SyntheticRideGenerator generator = new SyntheticRideGenerator(profile,
+                    SAMPLE_RATE_HZ, rowsPerRide, start, ride);
+            RideDataWriter writer = new RideDataWriter(db,
+                    SampleJournal.open(journalDirectory, SampleJournal.readCheckpoint(db)));
+
+            long began = System.currentTimeMillis();
+            writer.start();
+            RideSample sample = writer.obtain();
+            while (generator.next(sample)) {
+                sample.rideID = rideID;
+                summary.add(sample.timeStamp, sample.latitude, sample.longitude,
+                        sample.altitude, sample.speed, sample.leanAngle);
+                writer.write(sample);
+            }
+            writer.close();
+            insertMillis += System.currentTimeMillis() - began;
+
+            // As UpdateSummaryTable finishes it
+            began = System.currentTimeMillis();
+            assertTrue(helper.insertSummary(db, rideID, summary) != -1);
+            helper.finishRide(db, rideID, summary.getStartTime() + summary.getDuration());
+            summaryMillis += System.currentTimeMillis() - began;
+
+            // As a migration or recovery rebuilds it
+            began = System.currentTimeMillis();
+            helper.rebuildSummary(db, rideID);
+            rebuildMillis += System.currentTimeMillis() - began;
+
+            assertEquals(0, writer.getSamplesDropped());
+        }
+
+        long rows = (long) rides * rowsPerRide;
+        assertEquals(rows, DatabaseUtils.queryNumEntries(db, RideData.TABLE_NAME));
+
+        long began = System.currentTimeMillis();
+        int polylinePoints = loadPolyline(db, rideID);
+        long polylineMillis = System.currentTimeMillis() - began;
+
+        began = System.currentTimeMillis();
+        int graphPoints = loadGraph(db, rideID, RideData.SPEED);
+        long graphMillis = System.currentTimeMillis() - began;
+
+        // The last ride again in the columnar format, and its map loaded from that
+        began = System.currentTimeMillis();
+        long lastStart = START_TIME + (rides - 1) * 86400000L;
+        long columnarBytes = RideArchive.writeColumnar(db, rideID, lastStart,
+                lastStart + (long) (rowsPerRide * 1000 / SAMPLE_RATE_HZ), columnarFile);
+        long encodeMillis = System.currentTimeMillis() - began;
+
+        began = System.currentTimeMillis();
+        int columnarPoints = loadPolyline(columnarFile);
+        long columnarMillis = System.currentTimeMillis() - began;
+
+        assertEquals(rowsPerRide, polylinePoints);
+        assertEquals(rowsPerRide, graphPoints);
+        assertEquals(rowsPerRide, columnarPoints);
+
+        db.close();
+        heap.stop();
+
+        Log.i(TAG, name + ": " + rows + " rows in " + rides + " rides, " +
+                "insert " + rows * 1000 / Math.max(1, insertMillis) + " rows/s, " +
+                "summary " + summaryMillis / rides + "ms/ride, " +
+                "rebuild " + rebuildMillis / rides + "ms/ride, " +
+                "map load " + polylineMillis + "ms, graph load " + graphMillis + "ms, " +
+                "heap peak " + heap.getPeakJavaBytes() / 1024 + "KB java, " +
+                heap.getPeakNativeBytes() / 1024 + "KB native, " +
+                "database " + dbFile.length() / 1024 + "KB, " +
+                dbFile.length() / rows + " bytes/row, " +
+                "columnar " + columnarBytes / rowsPerRide + " bytes/row, encode " +
+                encodeMillis + "ms, map load " + columnarMillis + "ms");
+    }
+
+    /* Mirrors PolylineFragment.AddPolylineToMap */
+    private static int loadPolyline(SQLiteDatabase db, int rideID) {
+        PolylineOptions polylineOptions = new PolylineOptions();
+        LatLngBounds.Builder bounds = new LatLngBounds.Builder();
+        int points = 0;
+
+        Cursor cursor = RideDataDbHelper.queryRide(db, rideID,
+                new String[]{RideData.LATITUDE, RideData.LONGITUDE});
+        while (cursor.moveToNext()) {
+            LatLng latLng = new LatLng(cursor.getDouble(0), cursor.getDouble(1));
+            polylineOptions.add(latLng);
+            bounds.include(latLng);
+            points++;
+        }
+        cursor.close();
+
+        return points;
+    }
+
+    /* As PolylineFragment would load a ride from its columnar file */
+    private static int loadPolyline(File file) throws IOException {
+        PolylineOptions polylineOptions = new PolylineOptions();
+        LatLngBounds.Builder bounds = new LatLngBounds.Builder();
+
+        ColumnarRideReader reader = ColumnarRideReader.open(file);
+        ColumnarRideReader.Table rows = reader.rows();
+        for (int i = 0; i < rows.getCount(); i++) {
+            LatLng latLng = new LatLng(rows.getDouble(i, ColumnarRide.LATITUDE),
+                    rows.getDouble(i, ColumnarRide.LONGITUDE));
+            polylineOptions.add(latLng);
+            bounds.include(latLng);
+        }
+
+        return rows.getCount();
+    }
+
+    /* Mirrors GraphFragment.AddFieldToGraph */
+    private static int loadGraph(SQLiteDatabase db, int rideID, String field) {
+        LineGraphSeries<DataPoint> series = new LineGraphSeries<>();
+        double firstLatitude = 0;
+        double firstLongitude = 0;
+        int points = 0;
+
+        Cursor cursor = RideDataDbHelper.queryRide(db, rideID,
+                new String[]{RideData.LATITUDE, RideData.LONGITUDE, field});
+        int count = cursor.getCount();
+        while (cursor.moveToNext()) {
+            if (points == 0) {
+                firstLatitude = cursor.getDouble(0);
+                firstLongitude = cursor.getDouble(1);
+            }
+            double x = Geodesy.distance(firstLatitude, firstLongitude,
+                    cursor.getDouble(0), cursor.getDouble(1));
+            series.appendData(new DataPoint(x, cursor.getDouble(2)), false, count);
+            points++;
+        }
+        cursor.close();
+
+        return points;
+    }
+
+    /* Polls heap use on a thread of its own and keeps the highest seen */
+    private static class HeapWatermark implements Runnable {
+
+        private static final long POLL_INTERVAL_MILLIS = 20;
+
+        private final Thread thread = new Thread(this, "heapWatermark");
+        private volatile boolean running;
+        private volatile long peakJavaBytes;
+        private volatile long peakNativeBytes;
+
+        void start() {
+            running = true;
+            thread.start();
+        }
+
+        void stop() throws InterruptedException {
+            running = false;
+            thread.join();
+        }
+
+        @Override
+        public void run() {
+            Runtime runtime = Runtime.getRuntime();
+
+            while (running) {
+                peakJavaBytes = Math.max(peakJavaBytes,
+                        runtime.totalMemory() - runtime.freeMemory());
+                peakNativeBytes = Math.max(peakNativeBytes, Debug.getNativeHeapAllocatedSize());
+                try {
+                    Thread.sleep(POLL_INTERVAL_MILLIS);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+            }
+        }
+
+        long getPeakJavaBytes() {
+            return peakJavaBytes;
+        }
+
+        long getPeakNativeBytes() {
+            return peakNativeBytes;
+        }
+    }
+}
@@ -0,0 +1,247 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+
+import com.opentt.rideout.RideDataContract.RideData;
+import com.opentt.rideout.RideDataContract.Rides;
+
+import java.io.File;
+
+public class RideDataWriterTest extends AndroidTestCase {
+
+    /* Enough to wake the compactor for a full batch at least twice */
+    private static final int WARM_UP_SAMPLES = 2 * RideDataWriter.MAX_BATCH_SIZE;
+
+    /* Several segments' worth, so the count covers mapping new ones */
+    private static final int MEASURED_SAMPLES = 4 * SampleJournal.RECORDS_PER_SEGMENT;
+
+    /* Mapping a segment allocates, and the runtime now and then; a sample never does */
+    private static final int MAX_ALLOCATIONS = MEASURED_SAMPLES / 100;
+
+    private SQLiteDatabase db;
+    private File directory;
+    private RideDataWriter writer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        // In-memory database with the app schema
+        db = SQLiteDatabase.create(null);
+        new RideDataDbHelper(getContext()).onCreate(db);
+
+        directory = new File(getContext().getCacheDir(), "journal-test");
+        SampleJournal.delete(directory);
+
+        writer = new RideDataWriter(db, SampleJournal.open(directory, 0));
+        writer.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        db.close();
+        SampleJournal.delete(directory);
+        super.tearDown();
+    }
+
+    public void testSteadyStateSampleDoesNotAllocate() throws Exception {
+        writer.close();
+
+        // Appended on this thread alone, with no compactor running alongside
+        RideDataWriter appender = new RideDataWriter(db,
+                SampleJournal.open(directory, SampleJournal.readCheckpoint(db)));
+        for (int i = 0; i < WARM_UP_SAMPLES; i++) {
+            writeSample(appender, i);
+        }
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+
+        for (int i = 0; i < MEASURED_SAMPLES; i++) {
+            writeSample(appender, WARM_UP_SAMPLES + i);
+        }
+
+        Debug.stopAllocCounting();
+        int allocations = Debug.getThreadAllocCount();
+
+        appender.close();
+
+        assertEquals(0, appender.getSamplesDropped());
+        assertTrue("Allocations on the acquisition thread: " + allocations,
+                allocations <= MAX_ALLOCATIONS);
+    }
+
+    public void testCloseCommitsQueuedSamples() {
+        for (int i = 0; i < 10; i++) {
+            writeSample(i);
+        }
+
+        writer.close();
+
+        assertEquals(10, DatabaseUtils.queryNumEntries(db, RideData.TABLE_NAME));
+        assertEquals(10, writer.getSamplesCommitted());
+        assertEquals(0, writer.getSamplesDropped());
+        assertEquals(10, SampleJournal.readCheckpoint(db));
+    }
+
+    public void testReplayRecoversUncompactedSamples() throws Exception {
+        writer.close();
+
+        // A writer whose process dies before its compactor runs
+        RideDataWriter killed = new RideDataWriter(db, SampleJournal.open(directory, 0));
+        for (int i = 0; i < 10; i++) {
+            writeSample(killed, i);
+        }
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, RideData.TABLE_NAME));
+
+        // The next start reopens the journal from the checkpoint and replays it, once
+        RideDataWriter restarted = new RideDataWriter(db,
+                SampleJournal.open(directory, SampleJournal.readCheckpoint(db)));
+        assertEquals(10, restarted.replay());
+        assertEquals(0, restarted.replay());
+        restarted.close();
+
+        assertEquals(10, DatabaseUtils.queryNumEntries(db, RideData.TABLE_NAME));
+    }
+
+    public void testJournalKeptWhileWriterOpen() {
+        for (int i = 0; i < 10; i++) {
+            writeSample(i);
+        }
+        assertFalse(SampleJournal.deleteIfClosed(directory));
+
+        writer.close();
+        assertFalse(SampleJournal.isOpen(directory));
+        assertTrue(SampleJournal.deleteIfClosed(directory));
+    }
+
+    public void testSkipsSampleThatNeverCommits() throws Exception {
+        writer.close();
+
+        // The sample five seconds in can never be inserted
+        db.execSQL("CREATE TRIGGER reject_sample BEFORE INSERT ON " + RideData.TABLE_NAME +
+                " WHEN NEW." + RideData.TIME_STAMP + " = " + (1430000000000L + 5000L) +
+                " BEGIN SELECT RAISE(ABORT, 'rejected'); END");
+
+        RideDataWriter failing = new RideDataWriter(db,
+                SampleJournal.open(directory, SampleJournal.readCheckpoint(db)));
+        for (int i = 0; i < 10; i++) {
+            writeSample(failing, i);
+        }
+
+        // Each replay is one attempt, as each wake of the compactor is
+        for (int attempt = 0; attempt < 3 * RideDataWriter.MAX_ATTEMPTS; attempt++) {
+            failing.replay();
+        }
+        failing.close();
+
+        assertEquals(9, DatabaseUtils.queryNumEntries(db, RideData.TABLE_NAME));
+        assertEquals(1, failing.getSamplesSkipped());
+        assertEquals(10, SampleJournal.readCheckpoint(db));
+    }
+
+    public void testDistanceCarriesOnAcrossWriters() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            writeSample(i);
+        }
+        writer.close();
+
+        // The next recording session picks up from the last stored row
+        RideDataWriter next = new RideDataWriter(db,
+                SampleJournal.open(directory, SampleJournal.readCheckpoint(db)));
+        for (int i = 10; i < 20; i++) {
+            writeSample(next, i);
+        }
+        next.close();
+
+        double[] written = readDistances();
+        assertEquals(20, written.length);
+        assertEquals(0.0, written[0]);
+        assertEquals(trackLength(20), written[19]);
+        assertEquals(19000, DatabaseUtils.longForQuery(db, "SELECT MAX(" +
+                RideData.ELAPSED_TIME + ") FROM " + RideData.TABLE_NAME, null));
+
+        // Rows stored before distances were kept are measured the same once finished
+        db.execSQL("UPDATE " + RideData.TABLE_NAME + " SET " + RideData.DISTANCE + " = NULL");
+        assertFalse(RideDistances.ensure(db, 1));
+        ContentValues ride = new ContentValues();
+        ride.put(Rides._ID, 1);
+        ride.put(Rides.STATE, Rides.STATE_FINISHED);
+        db.insert(Rides.TABLE_NAME, null, ride);
+
+        assertEquals(1, RideDistances.findUnmeasured(db).size());
+        assertTrue(RideDistances.ensure(db, 1));
+        assertTrue(RideDistances.findUnmeasured(db).isEmpty());
+        double[] measured = readDistances();
+        for (int i = 0; i < written.length; i++) {
+            assertEquals(written[i], measured[i]);
+        }
+    }
+
+    private double[] readDistances() {
+        Cursor cursor = RideDataDbHelper.queryRide(db, 1, new String[]{RideData.DISTANCE});
+        double[] distances = new double[cursor.getCount()];
+        try {
+            for (int i = 0; cursor.moveToNext(); i++) {
+                distances[i] = cursor.getDouble(0);
+            }
+        } finally {
+            cursor.close();
+        }
+        return distances;
+    }
+
+    /* Metres along the first count samples of writeSample */
+    private static double trackLength(int count) {
+        double distance = 0;
+        for (int i = 1; i < count; i++) {
+            distance += Geodesy.haversine(51.5 + (i - 1) * 1e-5, -0.12 + (i - 1) * 1e-5,
+                    51.5 + i * 1e-5, -0.12 + i * 1e-5);
+        }
+        return distance;
+    }
+
+    /* Mirrors DataAcquisitionService.insertData() */
+    private void writeSample(int i) {
+        writeSample(writer, i);
+    }
+
+    private static void writeSample(RideDataWriter writer, int i) {
+        RideSample sample = writer.obtain();
+        sample.rideID = 1;
+        sample.timeStamp = 1430000000000L + i * 1000L;
+        sample.elapsedNanos = i * 1000000000L;
+        sample.latitude = 51.5 + i * 1e-5;
+        sample.longitude = -0.12 + i * 1e-5;
+        sample.altitude = 20.0;
+        sample.speed = 15.0;
+        sample.bearing = 90.0;
+        sample.accelerationX = 0.0;
+        sample.accelerationY = 0.0;
+        sample.accelerationZ = 0.0;
+        sample.leanAngle = 0.0;
+
+        writer.write(sample);
+    }
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.opentt.rideout.RideDataContract.ImuData;
+import com.opentt.rideout.RideDataContract.RideData;
+
+/**
+ * Finished rides of made-up rows for the database tests, a fix every 100ms. The track runs
+ * north for the first half of the rows and east for the rest, at 20 m/s leaning 5 degrees,
+ * and each ride gets its summary.
+ */
+final class RideFixtures {
+
+    static final long INTERVAL_MILLIS = 100L;
+
+    /* Degrees between fixes */
+    static final double STEP = 1e-5;
+
+    static final double LATITUDE = 51.5;
+    static final double LONGITUDE = -0.12;
+
+    static final double SPEED = 20.0;
+    static final double LEAN = 5.0;
+
+    private final RideDataDbHelper helper;
+    private final int rows;
+
+    private int missingSpeedEvery;
+    private int peakRow = -1;
+    private double peakSpeed;
+    private double peakLean;
+    private boolean imu;
+
+    RideFixtures(RideDataDbHelper helper, int rows) {
+        this.helper = helper;
+        this.rows = rows;
+    }
+
+    /** Leaves out the speed of every nth row, starting with the first */
+    void setMissingSpeedEvery(int n) {
+        missingSpeedEvery = n;
+    }
+
+    /** A peak of speed and lean at one row */
+    void setPeak(int row, double speed, double lean) {
+        peakRow = row;
+        peakSpeed = speed;
+        peakLean = lean;
+    }
+
+    /** Gives every fix a lean angle row in the sensor channel table too */
+    void setImuRows(boolean imu) {
+        this.imu = imu;
+    }
+
+    /** Records and finishes a ride, returning its rideID */
+    int record(SQLiteDatabase db, long startTime) {
+        int rideID = helper.startRide(db, startTime);
+        RideSummaryAccumulator summary = new RideSummaryAccumulator();
+        ContentValues values = new ContentValues();
+        ContentValues readings = new ContentValues();
+
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < rows; i++) {
+                long time = startTime + i * INTERVAL_MILLIS;
+                long nanos = i * INTERVAL_MILLIS * 1000000L;
+                double latitude = LATITUDE + Math.min(i, rows / 2) * STEP;
+                double longitude = LONGITUDE + Math.max(0, i - rows / 2) * STEP;
+                double speed = i == peakRow ? peakSpeed : SPEED;
+                double lean = i == peakRow ? peakLean : LEAN;
+
+                values.put(RideData.RIDE_ID, rideID);
+                values.put(RideData.TIME_STAMP, time);
+                values.put(RideData.LATITUDE, latitude);
+                values.put(RideData.LONGITUDE, longitude);
+                if ( missingSpeedEvery > 0 && i % missingSpeedEvery == 0 ) {
+                    speed = RideSummaryAccumulator.MISSING;
+                }
+                values.put(RideData.SPEED, speed);
+                values.put(RideData.LEAN_ANGLE, lean);
+                values.put(RideData.ELAPSED_NANOS, nanos);
+                db.insert(RideData.TABLE_NAME, null, values);
+
+                if ( imu ) {
+                    readings.put(ImuData.RIDE_ID, rideID);
+                    readings.put(ImuData.ELAPSED_NANOS, nanos);
+                    readings.put(ImuData.SENSOR_TYPE, ImuData.TYPE_LEAN_ANGLE);
+                    readings.put(ImuData.X, lean);
+                    db.insert(ImuData.TABLE_NAME, null, readings);
+                }
+
+                summary.add(time, latitude, longitude, RideSummaryAccumulator.MISSING, speed,
+                        lean);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        helper.insertSummary(db, rideID, summary);
+        helper.finishRide(db, rideID, startTime + rows * INTERVAL_MILLIS);
+        return rideID;
+    }
+}
@@ -0,0 +1,163 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import com.opentt.rideout.RideDataContract.RideData;
+import com.opentt.rideout.RideDataContract.RideSummary;
+import com.opentt.rideout.RideDataContract.Rides;
+
+import java.io.File;
+
+public class RideImporterTest extends AndroidTestCase {
+
+    /* More than one batch of rows */
+    private static final int ROWS = 2500;
+
+    private static final long START_TIME = 1430000000000L;
+
+    private RideDataDbHelper helper;
+    private RideFixtures rides;
+    private SQLiteDatabase db;
+    private SQLiteDatabase backup;
+    private File backupFile;
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        helper = new RideDataDbHelper(getContext());
+        rides = new RideFixtures(helper, ROWS);
+
+        db = SQLiteDatabase.create(null);
+        helper.onCreate(db);
+
+        directory = new File(getContext().getCacheDir(), "import-test");
+        SampleJournal.delete(directory);
+        assertTrue(directory.mkdirs());
+
+        // A backup from another phone, with its own rideIDs
+        backupFile = new File(directory, "RideData" + RideImporter.DATABASE_SUFFIX);
+        backup = SQLiteDatabase.openOrCreateDatabase(backupFile, null);
+        helper.onCreate(backup);
+        backup.setVersion(RideDataDbHelper.DATABASE_VERSION);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        db.close();
+        backup.close();
+        SampleJournal.delete(directory);
+        super.tearDown();
+    }
+
+    public void testImportRemapsCollidingRides() throws Exception {
+        int local = rides.record(db, START_TIME);
+        int remote = rides.record(backup, START_TIME + 86400000L);
+        assertEquals(local, remote);
+
+        RideImporter importer = new RideImporter(helper, db, null);
+        assertEquals(1, importer.importAll(backupFile));
+        assertEquals(ROWS, importer.getRowsImported());
+
+        assertEquals(2, DatabaseUtils.queryNumEntries(db, Rides.TABLE_NAME,
+                Rides.STATE + " = " + Rides.STATE_FINISHED));
+        assertEquals(2, DatabaseUtils.queryNumEntries(db, RideSummary.TABLE_NAME));
+        assertEquals(ROWS, DatabaseUtils.queryNumEntries(db, RideData.TABLE_NAME,
+                RideData.RIDE_ID + " = " + local));
+        assertEquals(ROWS, DatabaseUtils.queryNumEntries(db, RideData.TABLE_NAME,
+                RideData.RIDE_ID + " != " + local));
+    }
+
+    public void testImportSkipsRidesAlreadySeen() throws Exception {
+        rides.record(backup, START_TIME);
+        rides.record(backup, START_TIME + 86400000L);
+        assertEquals(2, new RideArchive(directory).exportFinishedRides(backup));
+
+        // The same rides as a database backup and as archives
+        final int[] last = new int[2];
+        RideImporter importer = new RideImporter(helper, db, new RideImporter.Progress() {
+            @Override
+            public void onProgress(int ridesDone, int ridesTotal, long rowsImported) {
+                last[0] = ridesDone;
+                last[1] = ridesTotal;
+            }
+        });
+        assertEquals(2, importer.importAll(directory));
+        assertEquals(2, importer.getRidesSkipped());
+        assertEquals(4, last[0]);
+        assertEquals(4, last[1]);
+
+        assertEquals(0, new RideImporter(helper, db, null).importAll(directory));
+        assertEquals(2 * ROWS, DatabaseUtils.queryNumEntries(db, RideData.TABLE_NAME));
+    }
+
+    public void testImportConvertsVersion1Backup() throws Exception {
+        File v1File = new File(directory, "RideDataV1" + RideImporter.DATABASE_SUFFIX);
+        SQLiteDatabase v1 = SQLiteDatabase.openOrCreateDatabase(v1File, null);
+        v1.execSQL("CREATE TABLE " + RideData.TABLE_NAME + " (" +
+                RideData._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                RideData.RIDE_ID + " TEXT," + RideData.TIME_STAMP + " TEXT," +
+                RideData.LATITUDE + " TEXT," + RideData.LONGITUDE + " TEXT," +
+                RideData.SPEED + " TEXT )");
+        v1.setVersion(1);
+
+        // As version 1 stored them: formatted times, numbers as text
+        ContentValues values = new ContentValues();
+        for (int i = 0; i < 3; i++) {
+            values.put(RideData.RIDE_ID, "7");
+            values.put(RideData.TIME_STAMP, "2015-04-26T00:26:4" + i + ".500+0100");
+            values.put(RideData.LATITUDE, Double.toString(51.5 + i * 1e-4));
+            values.put(RideData.LONGITUDE, "-0.12");
+            values.put(RideData.SPEED, "20.0");
+            v1.insert(RideData.TABLE_NAME, null, values);
+        }
+        v1.close();
+
+        assertEquals(1, new RideImporter(helper, db, null).importAll(v1File));
+
+        assertEquals(START_TIME + 4400500L, DatabaseUtils.longForQuery(db,
+                "SELECT " + Rides.START_TIME + " FROM " + Rides.TABLE_NAME, null));
+        assertEquals(START_TIME + 4402500L, DatabaseUtils.longForQuery(db,
+                "SELECT MAX(" + RideData.TIME_STAMP + ") FROM " + RideData.TABLE_NAME, null));
+        assertEquals(3, DatabaseUtils.queryNumEntries(db, RideData.TABLE_NAME,
+                "typeof(" + RideData.LATITUDE + ") = 'real' AND " + RideData.SPEED + " = 20"));
+    }
+
+    public void testInterruptedImportIsDiscarded() throws Exception {
+        rides.record(backup, START_TIME);
+
+        // As an import killed part way through leaves it
+        ContentValues values = new ContentValues();
+        values.put(Rides.START_TIME, START_TIME);
+        values.put(Rides.STATE, Rides.STATE_IMPORTING);
+        long partial = db.insert(Rides.TABLE_NAME, null, values);
+        values.clear();
+        values.put(RideData.RIDE_ID, partial);
+        values.put(RideData.TIME_STAMP, START_TIME);
+        db.insert(RideData.TABLE_NAME, null, values);
+
+        assertEquals(1, new RideImporter(helper, db, null).importAll(backupFile));
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, RideData.TABLE_NAME,
+                RideData.RIDE_ID + " = " + partial));
+        assertEquals(ROWS, DatabaseUtils.queryNumEntries(db, RideData.TABLE_NAME));
+    }
+}
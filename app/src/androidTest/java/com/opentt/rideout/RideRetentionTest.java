@@ -0,0 +1,176 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import com.opentt.rideout.RideDataContract.ImuData;
+import com.opentt.rideout.RideDataContract.RideData;
+import com.opentt.rideout.RideDataContract.RideSummary;
+import com.opentt.rideout.RideDataContract.Rides;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+public class RideRetentionTest extends AndroidTestCase {
+
+    /* Ten minutes at 10 Hz */
+    private static final int ROWS = 6000;
+
+    private static final long START_TIME = 1430000000000L;
+    private static final long DAY = 86400000L;
+
+    /* A peak that lies on the path and so is kept only as a peak */
+    private static final int PEAK_ROW = 4321;
+    private static final double PEAK_SPEED = 55.0;
+    private static final double PEAK_LEAN = -48.0;
+
+    private SQLiteDatabase db;
+    private RideDataDbHelper helper;
+    private RideFixtures rides;
+    private File directory;
+    private RideArchive archive;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        db = SQLiteDatabase.create(null);
+        helper = new RideDataDbHelper(getContext());
+        helper.onCreate(db);
+        rides = new RideFixtures(helper, ROWS);
+        rides.setPeak(PEAK_ROW, PEAK_SPEED, PEAK_LEAN);
+        rides.setImuRows(true);
+
+        directory = new File(getContext().getCacheDir(), "retention-test");
+        SampleJournal.delete(directory);
+        archive = new RideArchive(directory);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        db.close();
+        SampleJournal.delete(directory);
+        super.tearDown();
+    }
+
+    public void testSimplifyKeepsShapeAndPeaks() {
+        int rideID = rides.record(db, START_TIME);
+
+        RideRetention.simplifyRide(db, rideID);
+
+        long rows = countRows(RideData.TABLE_NAME, rideID);
+        assertTrue("Kept " + rows, rows > 2 && rows < ROWS / 10);
+        assertEquals(0, countRows(ImuData.TABLE_NAME, rideID));
+        assertEquals(1, DatabaseUtils.queryNumEntries(db, RideData.TABLE_NAME,
+                RideData.SPEED + " = " + PEAK_SPEED + " AND " +
+                        RideData.LEAN_ANGLE + " = " + PEAK_LEAN));
+        assertEquals(Rides.DETAIL_SIMPLIFIED, getDetail(rideID));
+
+        // Simplifying again finds nothing more to take
+        assertEquals(0, RideRetention.simplifyRide(db, rideID));
+    }
+
+    public void testOnlyArchivedRidesAreReduced() {
+        int old = rides.record(db, START_TIME);
+        int recent = rides.record(db, START_TIME + 100 * DAY);
+        long now = START_TIME + 101 * DAY;
+
+        // The archive can't be written, so nothing is safe to reduce
+        RideRetention unarchived = new RideRetention(
+                new RideArchive(new File("/proc/retention-test")), 30 * DAY, 60 * DAY);
+        unarchived.apply(db, now);
+        assertEquals(ROWS, countRows(RideData.TABLE_NAME, old));
+
+        RideRetention retention = new RideRetention(archive, 30 * DAY, 60 * DAY);
+        assertEquals(1, retention.apply(db, now));
+
+        assertEquals(0, countRows(RideData.TABLE_NAME, old));
+        assertEquals(Rides.DETAIL_ARCHIVED, getDetail(old));
+        assertEquals(1, DatabaseUtils.queryNumEntries(db, RideSummary.TABLE_NAME,
+                RideSummary.RIDE_ID + " = " + old));
+        assertEquals(ROWS, countRows(RideData.TABLE_NAME, recent));
+
+        // A reduced ride isn't archived again over its full files
+        assertEquals(0, archive.exportFinishedRides(db));
+        assertEquals(0, retention.apply(db, now));
+    }
+
+    public void testRestoreRefillsReducedRide() {
+        int rideID = rides.record(db, START_TIME);
+        archive.exportFinishedRides(db);
+        RideRetention.archiveRide(db, rideID);
+
+        assertEquals(1, new RideImporter(helper, db, null).importAll(directory));
+
+        assertEquals(ROWS, countRows(RideData.TABLE_NAME, rideID));
+        assertEquals(Rides.DETAIL_FULL, getDetail(rideID));
+        assertEquals(1, DatabaseUtils.queryNumEntries(db, Rides.TABLE_NAME));
+
+        // Still archived and past both ages, but the next idle run leaves it alone
+        RideRetention retention = new RideRetention(archive, 30 * DAY, 60 * DAY);
+        assertEquals(0, retention.apply(db, START_TIME + 101 * DAY));
+        assertEquals(ROWS, countRows(RideData.TABLE_NAME, rideID));
+        assertEquals(Rides.DETAIL_FULL, getDetail(rideID));
+    }
+
+    public void testFailedRestoreKeepsReducedRide() throws Exception {
+        int rideID = rides.record(db, START_TIME);
+        archive.exportFinishedRides(db);
+        RideRetention.simplifyRide(db, rideID);
+        long simplified = countRows(RideData.TABLE_NAME, rideID);
+
+        // Cut the archive short, so the import fails part way through the ride
+        File[] files = directory.listFiles();
+        assertNotNull(files);
+        for (File file : files) {
+            if ( file.getName().endsWith(RideArchive.RIDE_SUFFIX) ) {
+                RandomAccessFile access = new RandomAccessFile(file, "rw");
+                try {
+                    access.setLength(access.length() / 2);
+                } finally {
+                    access.close();
+                }
+            }
+        }
+
+        RideImporter importer = new RideImporter(helper, db, null);
+        assertEquals(0, importer.importAll(directory));
+        assertEquals(1, importer.getRidesFailed());
+
+        assertEquals(simplified, countRows(RideData.TABLE_NAME, rideID));
+        assertEquals(simplified, DatabaseUtils.queryNumEntries(db, RideData.TABLE_NAME));
+        assertEquals(Rides.DETAIL_SIMPLIFIED, getDetail(rideID));
+        assertEquals(1, DatabaseUtils.queryNumEntries(db, Rides.TABLE_NAME,
+                Rides.STATE + " = " + Rides.STATE_FINISHED));
+        assertEquals(1, DatabaseUtils.queryNumEntries(db, Rides.TABLE_NAME));
+        assertEquals(1, DatabaseUtils.queryNumEntries(db, RideSummary.TABLE_NAME,
+                RideSummary.RIDE_ID + " = " + rideID));
+    }
+
+    private long countRows(String table, int rideID) {
+        return DatabaseUtils.queryNumEntries(db, table, "rideID = " + rideID);
+    }
+
+    private int getDetail(int rideID) {
+        return (int) DatabaseUtils.longForQuery(db, "SELECT IFNULL(" + Rides.DETAIL + ", " +
+                Rides.DETAIL_FULL + ") FROM " + Rides.TABLE_NAME + " WHERE " + Rides._ID +
+                " = " + rideID, null);
+    }
+}
@@ -0,0 +1,144 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import com.opentt.rideout.RideDataContract.TrackSegments;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class RideSegmentIndexTest extends AndroidTestCase {
+
+    /* Ten minutes at 10 Hz, north then east */
+    private static final int ROWS = 6000;
+    private static final double STEP = RideFixtures.STEP;
+
+    private static final long START_TIME = 1430000000000L;
+
+    private SQLiteDatabase db;
+    private RideDataDbHelper helper;
+    private RideFixtures rides;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        db = SQLiteDatabase.create(null);
+        helper = new RideDataDbHelper(getContext());
+        helper.onCreate(db);
+        rides = new RideFixtures(helper, ROWS);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        db.close();
+        super.tearDown();
+    }
+
+    public void testSegmentsJoinUp() {
+        int rideID = rides.record(db, START_TIME);
+        int segments = RideSegmentIndex.build(db, rideID);
+
+        // Each segment shares its first row with the last of the one before
+        assertEquals((ROWS - 2) / RideSegmentIndex.SEGMENT_ROWS + 1, segments);
+        assertEquals(segments, DatabaseUtils.queryNumEntries(db, TrackSegments.TABLE_NAME));
+
+        List<long[]> found = query(rideID, 50, -1, 52, 1);
+        assertEquals(segments, found.size());
+        for (int i = 1; i < found.size(); i++) {
+            assertEquals(found.get(i - 1)[2], found.get(i)[1]);
+        }
+    }
+
+    public void testLoadsOnlySegmentsInView() {
+        int rideID = rides.record(db, START_TIME);
+        int other = rides.record(db, START_TIME + 3600000L);
+        RideSegmentIndex.build(db, rideID);
+        RideSegmentIndex.build(db, other);
+
+        // Just the east leg, which runs along the northern edge
+        double north = 51.5 + (ROWS / 2) * STEP;
+        List<long[]> found = query(rideID, north - STEP / 2, -0.12 + 100 * STEP,
+                north + STEP / 2, -0.12 + 200 * STEP);
+        assertFalse(found.isEmpty());
+        assertTrue("Found " + found.size(), found.size() <= 3);
+
+        for (long[] segment : found) {
+            double[] points = RideSegmentIndex.loadSegment(db, rideID, segment[1], segment[2]);
+            assertEquals(segment[2] - segment[1] + 1, points.length / 2);
+            for (int i = 0; i < points.length; i += 2) {
+                assertEquals(north, points[i], 1e-9);
+            }
+        }
+
+        // Nothing of the ride anywhere else
+        assertTrue(query(rideID, 40, 10, 41, 11).isEmpty());
+    }
+
+    public void testSearchesWithoutRtree() {
+        int rideID = rides.record(db, START_TIME);
+        RideSegmentIndex.build(db, rideID);
+        List<long[]> indexed = query(rideID, 51.5, -0.12, 51.5 + 100 * STEP, -0.12);
+
+        db.execSQL("DROP TABLE IF EXISTS " + RideSegmentIndex.RTREE_NAME);
+        assertFalse(RideSegmentIndex.hasRtree(db));
+
+        List<long[]> scanned = query(rideID, 51.5, -0.12, 51.5 + 100 * STEP, -0.12);
+        assertEquals(indexed.size(), scanned.size());
+        for (int i = 0; i < indexed.size(); i++) {
+            assertEquals(indexed.get(i)[0], scanned.get(i)[0]);
+        }
+
+        // Building and deleting work without it too
+        assertTrue(RideSegmentIndex.build(db, rideID) > 0);
+        RideSegmentIndex.delete(db, rideID);
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, TrackSegments.TABLE_NAME));
+    }
+
+    public void testDeleteTakesOnlyItsRide() {
+        int rideID = rides.record(db, START_TIME);
+        int other = rides.record(db, START_TIME + 3600000L);
+        RideSegmentIndex.build(db, rideID);
+        int segments = RideSegmentIndex.build(db, other);
+
+        RideSegmentIndex.delete(db, rideID);
+
+        assertTrue(query(rideID, 50, -1, 52, 1).isEmpty());
+        assertEquals(segments, query(other, 50, -1, 52, 1).size());
+    }
+
+    /* Each segment's _id, first row and last row */
+    private List<long[]> query(int rideID, double south, double west, double north,
+                               double east) {
+        List<long[]> segments = new ArrayList<>();
+        Cursor cursor = RideSegmentIndex.query(db, rideID, south, west, north, east);
+        try {
+            while ( cursor.moveToNext() ) {
+                segments.add(new long[]{cursor.getLong(0), cursor.getLong(1),
+                        cursor.getLong(2)});
+            }
+        } finally {
+            cursor.close();
+        }
+        return segments;
+    }
+}
@@ -0,0 +1,180 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+public class TrackExportTest extends TestCase {
+
+    /* A minute at 10 Hz */
+    private static final int FIXES = 600;
+
+    private static final long START_TIME = 1430000000000L;
+
+    private final TrackPoint[] points = new TrackPoint[FIXES];
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        SyntheticRideGenerator generator = new SyntheticRideGenerator(
+                SyntheticRideGenerator.Profile.TOURING, 10.0, FIXES, START_TIME, 1);
+        RideSample sample = new RideSample();
+
+        for (int i = 0; i < FIXES; i++) {
+            assertTrue(generator.next(sample));
+            points[i] = new TrackPoint();
+            points[i].time = sample.timeStamp;
+            points[i].elapsedNanos = sample.elapsedNanos;
+            points[i].latitude = sample.latitude;
+            points[i].longitude = sample.longitude;
+            points[i].altitude = i % 7 == 0 ? Double.NaN : sample.altitude;
+            points[i].speed = i % 10 == 0 ? Double.NaN : sample.speed;
+            points[i].bearing = sample.bearing;
+        }
+    }
+
+    public void testCsvRoundTrip() throws IOException {
+        StringWriter out = new StringWriter();
+        write(new CsvTrackWriter(out));
+
+        TrackReader reader = new CsvTrackReader(new StringReader(out.toString()));
+        TrackPoint point = new TrackPoint();
+        for (TrackPoint expected : points) {
+            assertTrue(reader.next(point));
+            assertPoint(expected, point, 0.0005);
+            assertEquals(expected.elapsedNanos, point.elapsedNanos);
+        }
+        assertFalse(reader.next(point));
+        reader.close();
+    }
+
+    public void testGpxRoundTrip() throws IOException {
+        StringWriter out = new StringWriter();
+        write(new GpxTrackWriter(out, "Ride <1> & more"));
+
+        TrackReader reader = new GpxTrackReader(new StringReader(out.toString()));
+        TrackPoint point = new TrackPoint();
+        for (TrackPoint expected : points) {
+            assertTrue(reader.next(point));
+            assertPoint(expected, point, 0.05);
+        }
+        assertFalse(reader.next(point));
+        reader.close();
+    }
+
+    public void testMissingValuesAsStored() throws IOException {
+        // A fix as the database keeps it without altitude, speed or bearing
+        TrackPoint stored = new TrackPoint();
+        stored.time = START_TIME;
+        stored.latitude = 51.5;
+        stored.longitude = -0.12;
+        stored.altitude = RideSummaryAccumulator.MISSING;
+        stored.speed = -1;
+        stored.bearing = -1;
+
+        StringWriter csv = new StringWriter();
+        TrackWriter writer = new CsvTrackWriter(csv);
+        writer.write(stored);
+        writer.close();
+
+        TrackReader reader = new CsvTrackReader(new StringReader(csv.toString()));
+        TrackPoint point = new TrackPoint();
+        assertTrue(reader.next(point));
+        reader.close();
+        assertMissing(point);
+
+        StringWriter gpx = new StringWriter();
+        writer = new GpxTrackWriter(gpx, "Ride");
+        writer.write(point);
+        writer.close();
+        assertFalse(gpx.toString().contains("<ele>"));
+        assertFalse(gpx.toString().contains("course>"));
+
+        reader = new GpxTrackReader(new StringReader(gpx.toString()));
+        assertTrue(reader.next(point));
+        reader.close();
+        assertEquals(START_TIME, point.time);
+        assertMissing(point);
+    }
+
+    public void testFitHeaderAndCrc() throws IOException {
+        File file = File.createTempFile("export", ".fit");
+        try {
+            write(new FitTrackWriter(file));
+
+            byte[] bytes = new byte[(int) file.length()];
+            RandomAccessFile access = new RandomAccessFile(file, "r");
+            try {
+                access.readFully(bytes);
+            } finally {
+                access.close();
+            }
+
+            assertEquals(FitTrackWriter.HEADER_SIZE, bytes[0]);
+            assertEquals(".FIT", new String(bytes, 8, 4, "US-ASCII"));
+            long dataSize = (bytes[4] & 0xff) | (bytes[5] & 0xff) << 8 |
+                    (bytes[6] & 0xff) << 16 | (long) (bytes[7] & 0xff) << 24;
+            assertEquals(bytes.length - FitTrackWriter.HEADER_SIZE - 2, dataSize);
+
+            // A CRC run over what it covers and then itself comes to nothing
+            assertEquals(0, FitTrackWriter.crc(0, bytes, 0, FitTrackWriter.HEADER_SIZE));
+            assertEquals(0, FitTrackWriter.crc(0, bytes, 0, bytes.length));
+        } finally {
+            file.delete();
+        }
+    }
+
+    private void write(TrackWriter writer) throws IOException {
+        try {
+            for (TrackPoint point : points) {
+                writer.write(point);
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static void assertPoint(TrackPoint expected, TrackPoint point, double tolerance) {
+        assertEquals(expected.time, point.time);
+        assertEquals(expected.latitude, point.latitude, 0.5e-7);
+        assertEquals(expected.longitude, point.longitude, 0.5e-7);
+        assertEquals(expected.bearing, point.bearing, 0.05);
+        assertOptional(expected.altitude, point.altitude, 0.005);
+        assertOptional(expected.speed, point.speed, tolerance);
+    }
+
+    private static void assertMissing(TrackPoint point) {
+        assertTrue(Double.isNaN(point.altitude));
+        assertTrue(Double.isNaN(point.speed));
+        assertTrue(Double.isNaN(point.bearing));
+    }
+
+    private static void assertOptional(double expected, double actual, double tolerance) {
+        if ( Double.isNaN(expected) ) {
+            assertTrue(Double.isNaN(actual));
+        } else {
+            assertEquals(expected, actual, tolerance);
+        }
+    }
+}
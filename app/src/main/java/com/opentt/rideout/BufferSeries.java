@@ -0,0 +1,222 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+
+import com.jjoe64.graphview.GraphView;
+import com.jjoe64.graphview.Viewport;
+import com.jjoe64.graphview.series.DataPoint;
+import com.jjoe64.graphview.series.DataPointInterface;
+import com.jjoe64.graphview.series.OnDataPointTapListener;
+import com.jjoe64.graphview.series.Series;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A line series drawn from a {@link SeriesBuffer}, in place of a LineGraphSeries of a
+ * DataPoint each. The points in view are found by binary search and projected into one
+ * reused array of line segments, so neither drawing nor a tap allocates per point.
+ *
+ * {@link #getValues} hands out one reused iterator over one reused point; each is only good
+ * until the next call.
+ */
+public class BufferSeries implements Series<DataPointInterface> {
+
+    private final SeriesBuffer buffer;
+    private final Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+    /* Segments of the last draw, grown as needed */
+    private float[] lines = new float[0];
+
+    private final PointIterator iterator = new PointIterator();
+
+    private String title;
+    private int color = Color.BLUE;
+    private OnDataPointTapListener tapListener;
+    private GraphView graphView;
+
+    public BufferSeries(SeriesBuffer buffer) {
+        this.buffer = buffer;
+        paint.setStyle(Paint.Style.STROKE);
+        paint.setColor(color);
+        paint.setStrokeWidth(5);
+    }
+
+    public SeriesBuffer getBuffer() {
+        return buffer;
+    }
+
+    /** Redraws the graph once the buffer's points have changed */
+    public void onDataChanged() {
+        if ( graphView != null ) {
+            graphView.onDataChanged(true, true);
+        }
+    }
+
+    public void setTitle(String title) {
+        this.title = title;
+    }
+
+    public void setColor(int color) {
+        this.color = color;
+        paint.setColor(color);
+    }
+
+    public void setThickness(int thickness) {
+        paint.setStrokeWidth(thickness);
+    }
+
+    @Override
+    public double getLowestValueX() {
+        return buffer.getLowestX();
+    }
+
+    @Override
+    public double getHighestValueX() {
+        return buffer.getHighestX();
+    }
+
+    @Override
+    public double getLowestValueY() {
+        return buffer.getLowestY();
+    }
+
+    @Override
+    public double getHighestValueY() {
+        return buffer.getHighestY();
+    }
+
+    @Override
+    public Iterator<DataPointInterface> getValues(double from, double until) {
+        iterator.reset(buffer.lowerBound(from), buffer.lowerBound(Math.nextUp(until)));
+        return iterator;
+    }
+
+    @Override
+    public void draw(GraphView graphView, Canvas canvas, boolean isSecondScale) {
+        Viewport viewport = graphView.getViewport();
+        double minX = viewport.getMinX(false);
+        double maxX = viewport.getMaxX(false);
+
+        // A point either side of the view, so the line runs off its edges
+        int from = Math.max(0, buffer.lowerBound(minX) - 1);
+        int to = Math.min(buffer.size(), buffer.lowerBound(maxX) + 1);
+        int length = SeriesBuffer.lineLength(from, to);
+        if ( lines.length < length ) {
+            lines = new float[length];
+        }
+
+        float left = graphView.getGraphContentLeft();
+        float top = graphView.getGraphContentTop();
+        float width = graphView.getGraphContentWidth();
+        float height = graphView.getGraphContentHeight();
+        int written = buffer.project(from, to, minX, maxX, viewport.getMinY(false),
+                viewport.getMaxY(false), left, top, width, height, lines);
+
+        canvas.save();
+        canvas.clipRect(left, top, left + width, top + height);
+        canvas.drawLines(lines, 0, written, paint);
+        canvas.restore();
+    }
+
+    @Override
+    public String getTitle() {
+        return title;
+    }
+
+    @Override
+    public int getColor() {
+        return color;
+    }
+
+    @Override
+    public void setOnDataPointTapListener(OnDataPointTapListener listener) {
+        tapListener = listener;
+    }
+
+    /* The nearest point in x to the tap */
+    @Override
+    public void onTap(float x, float y) {
+        if ( tapListener == null || graphView == null || buffer.size() == 0 ) {
+            return;
+        }
+
+        Viewport viewport = graphView.getViewport();
+        double minX = viewport.getMinX(false);
+        double maxX = viewport.getMaxX(false);
+        double value = minX + (x - graphView.getGraphContentLeft()) * (maxX - minX) /
+                graphView.getGraphContentWidth();
+
+        int index = buffer.nearest(value);
+        tapListener.onTap(this, new DataPoint(buffer.getX(index), buffer.getY(index)));
+    }
+
+    @Override
+    public void onGraphViewAttached(GraphView graphView) {
+        this.graphView = graphView;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return buffer.size() == 0;
+    }
+
+    /* Walks a range of the buffer through one point */
+    private class PointIterator implements Iterator<DataPointInterface>, DataPointInterface {
+
+        private int index;
+        private int end;
+
+        void reset(int from, int to) {
+            index = from - 1;
+            end = to;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return index + 1 < end;
+        }
+
+        @Override
+        public DataPointInterface next() {
+            if ( !hasNext() ) {
+                throw new NoSuchElementException();
+            }
+            index++;
+            return this;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public double getX() {
+            return buffer.getX(index);
+        }
+
+        @Override
+        public double getY() {
+            return buffer.getY(index);
+        }
+    }
+}
@@ -17,10 +17,9 @@
 package com.opentt.rideout;
 
 import android.app.Service;
-import android.content.ContentValues;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.database.Cursor;
+import android.hardware.Sensor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.location.Location;
@@ -30,22 +29,14 @@ import android.preference.PreferenceManager;
 import android.util.Log;
 import android.widget.Toast;
 
-import com.opentt.rideout.RideDataContract.RideData;
+import com.opentt.rideout.RideDataContract.ImuData;
 import com.opentt.rideout.RideDataContract.RideSummary;
-import com.google.android.gms.common.ConnectionResult;
-import com.google.android.gms.common.api.GoogleApiClient;
-import com.google.android.gms.location.LocationListener;
-import com.google.android.gms.location.LocationRequest;
-import com.google.android.gms.location.LocationServices;
 
-import java.text.DateFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.concurrent.TimeUnit;
+import java.io.File;
+import java.io.IOException;
 
-public class DataAcquisitionService extends Service implements GoogleApiClient.ConnectionCallbacks,
-        GoogleApiClient.OnConnectionFailedListener, LocationListener, Handler.Callback {
+public class DataAcquisitionService extends Service implements LocationSource.Listener,
+        Handler.Callback {
 
     public DataAcquisitionService() {
     }
@@ -56,8 +47,21 @@ public class DataAcquisitionService extends Service implements GoogleApiClient.C
     protected static final String ACTION_START_ACQUISITION = "start";
     protected static final String ACTION_STOP_ACQUISITION = "stop";
 
+    /* Stands in for the null intent of a sticky restart after the process was killed */
+    protected static final String ACTION_RECOVER_ACQUISITION = "recover";
+
+    /* Extras of ACTION_START_ACQUISITION that replay a recorded ride instead of recording one:
+     * the path of a GPX, NMEA or CSV track, the path of a sensor log of the same ride, and the
+     * replay speed as a multiple of real time, 0 for as fast as possible. */
+    protected static final String EXTRA_REPLAY_TRACK = "replay_track";
+    protected static final String EXTRA_REPLAY_IMU_LOG = "replay_imu_log";
+    protected static final String EXTRA_REPLAY_SPEED = "replay_speed";
+
     /* Booleans for Location services and hardware sensors. Configurable in settings */
     private static Boolean mRequestingHardwareSensors;
+    private static Boolean mRequestingLinearAcceleration;
+    private static Boolean mRequestingGyroscope;
+    private static Boolean mRecordingLeanChannel;
 
     /** Database variables */
 
@@ -66,13 +70,78 @@ public class DataAcquisitionService extends Service implements GoogleApiClient.C
 
     /* Database insert variables */
     private static SQLiteDatabase db;
+    private static SampleJournal mJournal;
+    private static RideDataWriter mWriter;
+    private static final RideSummaryAccumulator mSummary = new RideSummaryAccumulator();
     private static int rideID;
-    private static double[] acceleration = new double[3]; // acceleration in x(0), y(1), z(2);
-    private static double leanangle = 0.0;
 
-    /* Today's Date */
-    private static DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
-    private static String mTimeStamp;
+    /** Hardware Sensor Variables */
+
+    /* How often the acquisition thread empties the sensor buffer */
+    private static final long SENSOR_DRAIN_INTERVAL_IN_MILLISECONDS = 50;
+
+    /* Readings handed over per drain; the rest wait for the next one */
+    private static final int SENSOR_DRAIN_LIMIT = 256;
+
+    /* Readings are held back this long so that fixes, which arrive late, are merged first */
+    private static final long SENSOR_LAG_NANOS = 500000000L;
+
+    /* Device sensors, or the replay */
+    private static SensorSource mSensorSource;
+    private static ImuRingBuffer mSensorBuffer;
+    private static ImuDataWriter mImuWriter;
+    private static final LeanAngleEstimator mLeanEstimator = new LeanAngleEstimator();
+
+    /* Streams merged onto each fix, see ImuLocationMerger.channel */
+    private static final int[] MERGED_SENSOR_TYPES =
+            {ImuData.TYPE_LEAN_ANGLE, Sensor.TYPE_LINEAR_ACCELERATION};
+    private static final int LEAN_CHANNEL = ImuLocationMerger.channel(0, 0);
+    private static final int ACCELERATION_STREAM = 1;
+
+    /* Fixes waiting on the merger, by sequence number */
+    private static final Location[] mPendingFixes =
+            new Location[ImuLocationMerger.MAX_PENDING_FIXES + 1];
+
+    /* Stores each fix once the sensor windows around it are complete */
+    private static final ImuLocationMerger mMerger = new ImuLocationMerger(
+            MERGED_SENSOR_TYPES.length * ImuLocationMerger.AXES, new ImuLocationMerger.Output() {
+        @Override
+        public void onMerged(long sequence, long fixNanos, ImuLocationMerger.Window window) {
+            int slot = (int) (sequence % mPendingFixes.length);
+            Location location = mPendingFixes[slot];
+            mPendingFixes[slot] = null;
+            insertData(location, window);
+        }
+    });
+
+    /* Sensor readings, applied on the acquisition thread. Every gyroscope reading advances the
+     * lean angle estimate. */
+    private static final ImuRingBuffer.Reader mSensorReader = new ImuRingBuffer.Reader() {
+        @Override
+        public void onReading(int sensorType, long timestampNanos, float x, float y, float z) {
+            switch (sensorType) {
+                case Sensor.TYPE_LINEAR_ACCELERATION:
+                    mMerger.addReading(ImuLocationMerger.channel(ACCELERATION_STREAM, 0),
+                            timestampNanos, x);
+                    mMerger.addReading(ImuLocationMerger.channel(ACCELERATION_STREAM, 1),
+                            timestampNanos, y);
+                    mMerger.addReading(ImuLocationMerger.channel(ACCELERATION_STREAM, 2),
+                            timestampNanos, z);
+                    break;
+                case Sensor.TYPE_ACCELEROMETER:
+                    mLeanEstimator.onAccelerometer(timestampNanos, x, y, z);
+                    break;
+                case Sensor.TYPE_GYROSCOPE:
+                    double lean = mLeanEstimator.onGyroscope(timestampNanos, x, y, z);
+                    mMerger.addReading(LEAN_CHANNEL, timestampNanos, lean);
+                    if (mImuWriter != null) {
+                        mImuWriter.write(ImuData.TYPE_LEAN_ANGLE, timestampNanos,
+                                (float) lean, 0f, 0f);
+                    }
+                    break;
+            }
+        }
+    };
 
     /** Location Variables */
 
@@ -86,14 +155,10 @@ public class DataAcquisitionService extends Service implements GoogleApiClient.C
      * than this value.*/
     public static long FASTEST_UPDATE_INTERVAL_IN_MILLISECONDS;
 
-    /* Provides the entry point to Google Play services. */
-    protected static GoogleApiClient mGoogleApiClient;
-
-    /* Stores parameters for requests to the FusedLocationProviderApi.*/
-    protected LocationRequest mLocationRequest;
+    /* The fused location provider, or the replay */
+    private static LocationSource mLocationSource;
 
     /* Represents a geographical location.*/
-    protected static Location mOriginalLocation;
     protected static Location mCurrentLocation;
 
     /** Background Service Variables */
@@ -129,41 +194,50 @@ public class DataAcquisitionService extends Service implements GoogleApiClient.C
     public boolean handleMessage(Message msg){
         Intent intent = (Intent) msg.obj;
 
-        String action = intent.getAction();
+        String action = intent != null ? intent.getAction() : ACTION_RECOVER_ACQUISITION;
         Log.d(TAG,"Thread " + Thread.currentThread().getName() + " received action: " + action);
 
         if ( action.equals(ACTION_START_ACQUISITION) ) {
 
             // Check to see if user preferences have changed
             getUserPreferences();
-
-            /* Since the background thread must been "restarted", must rebuild the GoogleApiClient:
-            -> The GoogleApiClient.builder requires a _handler
-            -> The FusedLocationApi location requester requires a _looper
-            -> On restart, both _looper and _handler belong to a dead thread.
-            */
-
-            // Build & Connect the GoogleAPIClient
-            if (mRequestingLocationUpdates) {
-                buildGoogleApiClient();
-                mGoogleApiClient.connect();
-            }
+            chooseSources(intent);
 
             try {
-                mDbHelper = new RideDataDbHelper(DataAcquisitionService.this);
-                // Initialise database
-                db = mDbHelper.getReadableDatabase();
-                // Get the RideID for this ride
-                rideID = getNewRideId();
-                // Close the readable database to avoid memory leaks
-                db.close();
-                // Get a writable database for data insertion
-                db = mDbHelper.getWritableDatabase();
+                // Anything a killed process left behind goes in before the new ride starts
+                openAndRecover();
+                // Allocate the RideID for this ride
+                rideID = mDbHelper.startRide(db, System.currentTimeMillis());
+                mSummary.reset();
+                // Samples are journalled here and compacted into the database in the background
+                mWriter.start();
+                // The full rate lean angle goes to its own table, if the rider wants it
+                if (mRequestingGyroscope && mRecordingLeanChannel) {
+                    mImuWriter = new ImuDataWriter(db, rideID);
+                    mImuWriter.start();
+                }
 
             } catch (Exception ex) {
                 ex.printStackTrace();
             }
 
+            // Sensors are read on their own thread and drained here
+            mMerger.reset();
+            if (mSensorSource != null) {
+                mLeanEstimator.reset();
+                mSensorBuffer = new ImuRingBuffer(SensorIngestion.BUFFER_CAPACITY);
+                mSensorSource.start(mSensorBuffer);
+                _handler.postDelayed(mDrainSensors, SENSOR_DRAIN_INTERVAL_IN_MILLISECONDS);
+            }
+
+            /* Since the background thread must been "restarted", the location source must be
+            started again: the fused provider's GoogleApiClient requires a _handler and its
+            location requester a _looper, and on restart both belong to a dead thread.
+            */
+            if (mLocationSource != null) {
+                mLocationSource.start(this, _looper);
+            }
+
             Handler h = new Handler(DataAcquisitionService.this.getMainLooper());
             h.post(new Runnable() {
                 @Override
@@ -178,11 +252,148 @@ public class DataAcquisitionService extends Service implements GoogleApiClient.C
         }else if (action.equals(ACTION_STOP_ACQUISITION) ){
             Log.i(TAG, "Disabling Data Acquisition Service");
             stopSelf();
+
+        }else if (action.equals(ACTION_RECOVER_ACQUISITION) ){
+            // The ride in progress can't be resumed, but every sample journalled is kept
+            Log.i(TAG, "Restarted after the process was killed, recovering ride data");
+            try {
+                openAndRecover();
+                mWriter.close();
+                mWriter = null;
+                mJournal = null;
+            } catch (Exception ex) {
+                Log.e(TAG, "Could not recover ride data", ex);
+            }
+            releaseDatabase();
+            stopSelf();
         }
 
         return true;
     }
 
+    /* Picks the fused provider and device sensors per the settings, or a replay of the ride
+     * named in the intent for both */
+    private void chooseSources(Intent intent){
+        String track = intent.getStringExtra(EXTRA_REPLAY_TRACK);
+
+        if (track != null) {
+            String imuLog = intent.getStringExtra(EXTRA_REPLAY_IMU_LOG);
+            ReplaySource replay = new ReplaySource(new File(track),
+                    imuLog == null ? null : new File(imuLog),
+                    intent.getFloatExtra(EXTRA_REPLAY_SPEED, 1f), mStopAfterReplay);
+
+            Log.i(TAG, "Replaying " + track);
+            mLocationSource = replay;
+            mSensorSource = replay;
+            return;
+        }
+
+        mLocationSource = mRequestingLocationUpdates ? new FusedLocationSource(this,
+                UPDATE_INTERVAL_IN_MILLISECONDS, FASTEST_UPDATE_INTERVAL_IN_MILLISECONDS) : null;
+        mSensorSource = mRequestingHardwareSensors ? new SensorIngestion(this,
+                mRequestingLinearAcceleration, mRequestingGyroscope) : null;
+    }
+
+    /* A replayed ride ends with its track */
+    private final Runnable mStopAfterReplay = new Runnable() {
+        @Override
+        public void run() {
+            Log.i(TAG, "Replay finished");
+            stopSelf();
+        }
+    };
+
+    /* Opens the database and the sample journal, replays whatever the journal holds past its
+     * checkpoint and finishes the rides that were left recording. Acquisition thread. */
+    private void openAndRecover() throws IOException {
+        mDbHelper = RideDataDbHelper.getInstance(DataAcquisitionService.this);
+        // Held for the whole ride; playback shares it and reads alongside the commits
+        if (db == null) {
+            db = mDbHelper.acquireDatabase();
+        }
+
+        try {
+            mJournal = SampleJournal.open(SampleJournal.getDirectory(this),
+                    SampleJournal.readCheckpoint(db));
+            mWriter = new RideDataWriter(db, mJournal);
+            mWriter.replay();
+
+            int recovered = mDbHelper.recoverRides(db);
+            if (recovered > 0) {
+                new RideArchive(RideArchive.getDirectory()).exportFinishedRides(db);
+            }
+        } catch (IOException | RuntimeException ex) {
+            // No ride starts, so nothing is left holding the journal or the database
+            if (mJournal != null) {
+                mJournal.close();
+                mJournal = null;
+            }
+            mWriter = null;
+            releaseDatabase();
+            throw ex;
+        }
+    }
+
+    private static void releaseDatabase() {
+        if (db != null) {
+            mDbHelper.releaseDatabase();
+            db = null;
+        }
+    }
+
+    /* Empties the sensor buffer every SENSOR_DRAIN_INTERVAL_IN_MILLISECONDS */
+    private final Runnable mDrainSensors = new Runnable() {
+        @Override
+        public void run() {
+            drainSensors(mSensorSource.getElapsedNanos() - SENSOR_LAG_NANOS);
+            _handler.postDelayed(this, SENSOR_DRAIN_INTERVAL_IN_MILLISECONDS);
+        }
+    };
+
+    /** Applies the queued sensor readings up to untilNanos. Acquisition thread only. */
+    private static void drainSensors(long untilNanos){
+        if (mSensorBuffer == null){
+            return;
+        }
+
+        while (mSensorBuffer.drain(mSensorReader, SENSOR_DRAIN_LIMIT, untilNanos) ==
+                SENSOR_DRAIN_LIMIT){
+            // More arrived than one drain hands over
+        }
+    }
+
+    /* Stops the sensors, stores the fixes still waiting on them and finishes the ride. Runs
+     * last on the acquisition thread, after every fix and reading queued before it. */
+    private final Runnable mFinishAcquisition = new Runnable() {
+        @Override
+        public void run() {
+            _handler.removeCallbacks(mDrainSensors);
+
+            if ( mSensorSource != null ){
+                mSensorSource.stop();
+                drainSensors(Long.MAX_VALUE);
+                mSensorSource = null;
+                mSensorBuffer = null;
+            }
+            mMerger.flush();
+
+            _looper.quit();
+
+            // Nothing to finish if no ride was started
+            if ( mWriter == null ){
+                return;
+            }
+
+            // Update summary database table and close.
+            new Handler(getMainLooper()).post(new Runnable() {
+                @Override
+                public void run() {
+                    new UpdateSummaryTable().execute();
+                }
+            });
+        }
+    };
+
     private Handler getNewHandler(){
 
         HandlerThread thread = new HandlerThread(HANDLER_THREAD_NAME);
@@ -197,100 +408,62 @@ public class DataAcquisitionService extends Service implements GoogleApiClient.C
     public void onDestroy(){
         super.onDestroy();
 
-        if(mGoogleApiClient != null){
-            if ( mGoogleApiClient.isConnected() ) {
-                stopLocationUpdates();
-                mGoogleApiClient.disconnect();
-            }
-        }
-
-        if ( _looper != null ){
-            _looper.quit();
+        if(mLocationSource != null){
+            mLocationSource.stop();
+            mLocationSource = null;
         }
 
         Toast.makeText(this,"Disabling Data Acquisition",Toast.LENGTH_SHORT).show();
 
-        // Update summary database table and close.
-        new UpdateSummaryTable().execute();
+        _handler.post(mFinishAcquisition);
 
     }
 
-    protected static void insertData(){
-
-        // Create a new map of values, where column names are the keys
-        ContentValues values = new ContentValues();
-        values.put(RideData.RIDE_ID, rideID);
-        values.put(RideData.TIME_STAMP, mTimeStamp);
-        values.put(RideData.LATITUDE, mCurrentLocation.getLatitude());
-        values.put(RideData.LONGITUDE, mCurrentLocation.getLongitude());
-        values.put(RideData.ALTITUDE,
-                mCurrentLocation.hasAltitude() ? mCurrentLocation.getAltitude() : -1);
-        values.put(RideData.SPEED,
-                mCurrentLocation.hasSpeed() ? mCurrentLocation.getSpeed() : -1);
-        values.put(RideData.BEARING,
-                mCurrentLocation.hasBearing() ? mCurrentLocation.getBearing() : -1);
-        values.put(RideData.ACCELERATION_X, acceleration[0]);
-        values.put(RideData.ACCELERATION_Y, acceleration[1]);
-        values.put(RideData.ACCELERATION_Z, acceleration[2]);
-        values.put(RideData.LEAN_ANGLE, leanangle);
-
-        // Insert the new row, returning the primary key value of the new row
-        long id;
-        id = db.insert(RideData.TABLE_NAME, null, values);
-
-        Log.d(TAG,"inserted row number = " + id);
-
-        // Check if insert was successful
-        if (id == -1){
-            Log.e(TAG,"Could not insert new row into database");
-            throw new SQLiteException("Could not insert new row");
+    /** Adds a merged fix to the ride summary and hands it to the writer thread for a batched
+     *  insert. Runs once per fix, so it must not allocate or log. */
+    protected static void insertData(Location location, ImuLocationMerger.Window window){
+
+        if (mWriter == null){
+            return;
         }
 
+        double altitude = location.hasAltitude() ? location.getAltitude() :
+                RideSummaryAccumulator.MISSING;
+        double speed = location.hasSpeed() ? location.getSpeed() :
+                RideSummaryAccumulator.MISSING;
+
+        // Lean at the fix time for the row; the summary also sees the peaks in between
+        double lean = orZero(window.getValue(LEAN_CHANNEL));
+        double peakLean = Math.max(Math.abs(orZero(window.getMin(LEAN_CHANNEL))),
+                Math.abs(orZero(window.getMax(LEAN_CHANNEL))));
+
+        mSummary.add(location.getTime(), location.getLatitude(), location.getLongitude(),
+                altitude, speed, Math.max(Math.abs(lean), peakLean));
+
+        RideSample sample = mWriter.obtain();
+        sample.rideID = rideID;
+        sample.timeStamp = location.getTime();
+        sample.elapsedNanos = location.getElapsedRealtimeNanos();
+        sample.latitude = location.getLatitude();
+        sample.longitude = location.getLongitude();
+        sample.altitude = altitude;
+        sample.speed = speed;
+        sample.bearing = location.hasBearing() ? location.getBearing() : -1;
+        // Acceleration averaged over the time since the previous fix
+        sample.accelerationX = orZero(window.getMean(
+                ImuLocationMerger.channel(ACCELERATION_STREAM, 0)));
+        sample.accelerationY = orZero(window.getMean(
+                ImuLocationMerger.channel(ACCELERATION_STREAM, 1)));
+        sample.accelerationZ = orZero(window.getMean(
+                ImuLocationMerger.channel(ACCELERATION_STREAM, 2)));
+        sample.leanAngle = lean;
+
+        mWriter.write(sample);
     }
 
-    /** Checks database for last rideID.
-     * If one exists, the rideID is incremented and returned
-     * If not, rideID to 1 */
-    private int getNewRideId(){
-        db = mDbHelper.getReadableDatabase();
-        // Initialise the rideID to zero (will be changed if a ride was found in database)
-        rideID = 0;
-
-        if (!mDbHelper.isDataTableEmpty(db)) {
-            Log.i(TAG, "Existing database found, Acquiring new rideID");
-
-            // Define a projection that specifies which columns from the database
-            // you will actually use after this query
-            String[] projection = {
-                    RideData._ID,
-                    RideData.RIDE_ID
-            };
-
-            String sortOrder = RideData.RIDE_ID + " DESC";
-
-            try {
-                Cursor cursor = db.query(
-                        RideData.TABLE_NAME,        // Table to query
-                        projection,                 // The columns to return
-                        null,                       // The columns for the WHERE clause
-                        null,                       // The values for the WHERE clause
-                        null,                       // Don't group rows
-                        null,                       // Don't filter by row groups
-                        sortOrder                   // The sort order
-                );
-
-                if (cursor != null) {
-                    cursor.moveToFirst();
-                    rideID = cursor.getInt(cursor.getColumnIndexOrThrow(RideData.RIDE_ID));
-                    cursor.close();
-                }
-            } catch (IllegalArgumentException ex) {
-                Log.e(TAG, "Could not retrieve previous RideID from database");
-                throw ex;
-            }
-        }
-        db.close();
-        return ++rideID;
+    /* Channels without readings are stored as 0, as they were before sensors were read */
+    private static double orZero(double value){
+        return Double.isNaN(value) ? 0.0 : value;
     }
 
     private void getUserPreferences(){
@@ -298,85 +471,21 @@ public class DataAcquisitionService extends Service implements GoogleApiClient.C
         mRequestingLocationUpdates = preferences
                 .getBoolean(SettingsActivity.PREF_KEY_USE_LOCATION_SERVICES, true);
 
-        mRequestingHardwareSensors = preferences
-                .getBoolean(SettingsActivity.PREF_KEY_USE_LOCATION_SERVICES, true);
+        mRequestingLinearAcceleration = preferences
+                .getBoolean(SettingsActivity.PREF_KEY_ENABLE_LINEAR_ACCELEROMETERS, true);
 
-        UPDATE_INTERVAL_IN_MILLISECONDS = Long.valueOf(preferences
-                .getString(SettingsActivity.PREF_KEY_SAMPLE_FREQUENCY,"5"))*1000;
+        mRequestingGyroscope = preferences
+                .getBoolean(SettingsActivity.PREF_KEY_ENABLE_GYROS, true);
 
-        FASTEST_UPDATE_INTERVAL_IN_MILLISECONDS = UPDATE_INTERVAL_IN_MILLISECONDS/2;
-    }
-
-    /**
-     * Builds a GoogleApiClient. Uses the {@code #addApi} method to request the
-     * LocationServices API.
-     */
-    protected synchronized void buildGoogleApiClient() {
-
-        Log.d(TAG,"Building GoogleApiClient on thread " + Thread.currentThread().getName());
-
-        mGoogleApiClient = new GoogleApiClient.Builder(this)
-                .addConnectionCallbacks(this)
-                .addOnConnectionFailedListener(this)
-                .setHandler(_handler)
-                .addApi(LocationServices.API)
-                .build();
-        createLocationRequest();
-    }
-
-    /**
-     * Sets up the location request. Android has two location request settings:
-     * {@code ACCESS_COARSE_LOCATION} and {@code ACCESS_FINE_LOCATION}. These settings control
-     * the accuracy of the current location. This app uses ACCESS_FINE_LOCATION, as defined in
-     * the AndroidManifest.xml.
-     *
-     * When the ACCESS_FINE_LOCATION setting is specified, combined with a fast update
-     * interval (5 seconds), the Fused Location Provider API returns location updates that are
-     * accurate to within a few feet.
-     */
-    protected void createLocationRequest() {
-        mLocationRequest = new LocationRequest();
-
-        // Sets the desired interval for active location updates. This interval is
-        // inexact. You may not receive updates at all if no location sources are available, or
-        // you may receive them slower than requested. You may also receive updates faster than
-        // requested if other applications are requesting location at a faster interval.
-        mLocationRequest.setInterval(UPDATE_INTERVAL_IN_MILLISECONDS);
+        mRequestingHardwareSensors = mRequestingLinearAcceleration || mRequestingGyroscope;
 
-        // Sets the fastest rate for active location updates. This interval is exact, and your
-        // application will never receive updates faster than this value.
-        mLocationRequest.setFastestInterval(FASTEST_UPDATE_INTERVAL_IN_MILLISECONDS);
+        mRecordingLeanChannel = preferences
+                .getBoolean(SettingsActivity.PREF_KEY_RECORD_LEAN_CHANNEL, false);
 
-        mLocationRequest.setPriority(LocationRequest.PRIORITY_HIGH_ACCURACY);
-    }
-
-    /**
-     * Runs when a GoogleApiClient object successfully connects.
-     */
-    @Override
-    public void onConnected(Bundle connectionHint) {
-        Log.i(TAG, "Connected GoogleApiClient");
-
-        // If the initial location was never previously requested, we use
-        // FusedLocationApi.getLastLocation() to get it. If it was previously requested, we store
-        // its value in the Bundle and check for it in onCreate(). We
-        // do not request it again unless the user specifically requests location updates by pressing
-        // the Start Updates button.
-        //
-        // Because we cache the value of the initial location in the Bundle, it means that if the
-        // user launches the activity,
-        // moves to a new location, and then changes the device orientation, the original location
-        // is displayed as the activity is re-created.
-        if (mCurrentLocation == null) {
-            mCurrentLocation = LocationServices.FusedLocationApi.getLastLocation(mGoogleApiClient);
-        }
+        UPDATE_INTERVAL_IN_MILLISECONDS = Long.valueOf(preferences
+                .getString(SettingsActivity.PREF_KEY_SAMPLE_FREQUENCY,"5"))*1000;
 
-        // If the user presses the Start Updates button before GoogleApiClient connects, we set
-        // mRequestingLocationUpdates to true (see startUpdatesButtonHandler()). Here, we check
-        // the value of mRequestingLocationUpdates and if it is true, we start location updates.
-        if (mRequestingLocationUpdates) {
-            startLocationUpdates();
-        }
+        FASTEST_UPDATE_INTERVAL_IN_MILLISECONDS = UPDATE_INTERVAL_IN_MILLISECONDS/2;
     }
 
     /**
@@ -384,45 +493,20 @@ public class DataAcquisitionService extends Service implements GoogleApiClient.C
      */
     @Override
     public void onLocationChanged(Location location) {
-        mCurrentLocation = location;
-        mTimeStamp = dateFormat.format(new Date());
-        Log.d(TAG,"Location Updated @: " + mCurrentLocation.getTime() +
-        " by thread " + Thread.currentThread().getName());
-        insertData();
-    }
-
-    /**
-     * Requests location updates from the FusedLocationApi.
-     */
-    protected void startLocationUpdates() {
-        stopLocationUpdates();
-
-        LocationServices.FusedLocationApi.requestLocationUpdates(
-                mGoogleApiClient, mLocationRequest, this, _looper);
-
-        mOriginalLocation = LocationServices.FusedLocationApi.getLastLocation(mGoogleApiClient);
-    }
-
-    /**
-     * Removes location updates from the FusedLocationApi.
-     */
-    protected void stopLocationUpdates() {
-        LocationServices.FusedLocationApi.removeLocationUpdates(mGoogleApiClient, this);
-    }
-
-    @Override
-    public void onConnectionSuspended(int cause) {
-        // The connection to Google Play services was lost for some reason. We call connect() to
-        // attempt to re-establish the connection.
-        Log.i(TAG, "Connection suspended, attempting to reconnect");
-        mGoogleApiClient.connect();
-    }
+        // Nothing more of the ride can be stored once the writer has stopped
+        if (mWriter != null && mWriter.isStopped()) {
+            Log.e(TAG, "Ride data can no longer be written, stopping ride " + rideID);
+            stopSelf();
+            return;
+        }
 
-    @Override
-    public void onConnectionFailed(ConnectionResult result) {
-        // Refer to the javadoc for ConnectionResult to see what error codes might be returned in
-        // onConnectionFailed.
-        Log.i(TAG, "Connection failed: ConnectionResult.getErrorCode() = " + result.getErrorCode());
+        mCurrentLocation = location;
+        if (location.hasSpeed()) {
+            mLeanEstimator.setSpeed(location.getSpeed());
+        }
+        // Stored by the merger once the sensor readings around it are in
+        mPendingFixes[(int) (mMerger.getNextSequence() % mPendingFixes.length)] = location;
+        mMerger.addFix(location.getElapsedRealtimeNanos());
     }
 
     private class UpdateSummaryTable extends AsyncTask<Void,Void,Void>{
@@ -430,111 +514,26 @@ public class DataAcquisitionService extends Service implements GoogleApiClient.C
         @Override
         protected Void doInBackground(Void... params) {
 
-            // Check if database is not null, closed or read only
-            if ( db == null ){
-                db = mDbHelper.getWritableDatabase();
-            } else if ( db.isReadOnly() ){
-                db.close();
-                db = mDbHelper.getWritableDatabase();
-            } else if ( !db.isOpen() ){
-                db = mDbHelper.getWritableDatabase();
+            // Compact the rest of the journal before the ride is finished and exported
+            if ( mWriter != null ){
+                mWriter.close();
+                mWriter = null;
+                mJournal = null;
+            }
+            if ( mImuWriter != null ){
+                mImuWriter.close();
+                mImuWriter = null;
             }
 
-            // Was there any ride data logged?
-            if ( !mDbHelper.isRideEntryEmpty(db,rideID) ) {
-
-                ContentValues values = new ContentValues();
-                values.put(RideSummary.RIDE_ID, rideID);
-
-                // Query the database for start Lat and Lon and duration
-                String[] projection = {RideData._ID,
-                                       RideData.TIME_STAMP,
-                                       RideData.LATITUDE,
-                                       RideData.LONGITUDE,
-                                       RideData.TIME_STAMP};
-
-                String selection = RideData.RIDE_ID + " = ? ";
-                String[] selectionEquals = new String[]{Integer.toString(rideID)};
-
-                String sortOrder = RideData._ID + " ASC";
-
-                try{
-                    Cursor cursor = db.query(RideData.TABLE_NAME,
-                            projection, selection, selectionEquals, null, null, sortOrder);
-
-                    if (cursor != null) {
-                        cursor.moveToFirst();
-
-                        double summaryLat = cursor.getDouble(cursor
-                                .getColumnIndexOrThrow(RideData.LATITUDE));
-                        double summaryLng = cursor.getDouble(cursor
-                                .getColumnIndexOrThrow(RideData.LONGITUDE));
-
-                        mTimeStamp = cursor.getString(cursor
-                                .getColumnIndexOrThrow(RideData.TIME_STAMP));
-
-                        //  Note, reuse of these variables is for convenience only.
-                        mOriginalLocation.setLatitude(summaryLat);
-                        mOriginalLocation.setLongitude(summaryLng);
-
-                        values.put(RideSummary.LATITUDE, summaryLat);
-                        values.put(RideSummary.LONGITUDE, summaryLng);
-                        values.put(RideSummary.TIME_STAMP, mTimeStamp);
-
-                        Date start = new Date(0);
-
-                        try {
-                            start = dateFormat.parse(mTimeStamp);
-                        } catch (ParseException ex){
-                            ex.printStackTrace();
-                        }
-
-                        // Move to end of database entries for this rideID
-                        cursor.moveToLast();
-
-                        //  Note, reuse of these variables is for convenience only.
-                        mCurrentLocation.setLatitude(cursor.getDouble(cursor
-                                .getColumnIndexOrThrow(RideData.LATITUDE)));
-                        mCurrentLocation.setLongitude(cursor.getDouble(cursor
-                                .getColumnIndexOrThrow(RideData.LONGITUDE)));
-
-                        mTimeStamp = cursor.getString(cursor
-                                .getColumnIndexOrThrow(RideData.TIME_STAMP));
-
-
-                        Date finish = new Date(0);
-                        try {
-                            finish = dateFormat.parse(mTimeStamp);
-                        } catch (ParseException ex){
-                            ex.printStackTrace();
-                        }
-
-                        long timeDiff = finish.getTime() - start.getTime();
-
-                        String duration = String.format("%02d:%02d:%02d", TimeUnit.MILLISECONDS.toHours(timeDiff),
-                                TimeUnit.MILLISECONDS.toMinutes(timeDiff) -
-                                        TimeUnit.HOURS.toMinutes(TimeUnit.MILLISECONDS.toHours(timeDiff)),
-                                TimeUnit.MILLISECONDS.toSeconds(timeDiff) -
-                                        TimeUnit.MINUTES.toSeconds(TimeUnit.MILLISECONDS.toMinutes(timeDiff)));
-
-
-
-                        values.put(RideSummary.DURATION, duration);
-                        values.put(RideSummary.DISTANCE_TRAVELLED,
-                                (double) mOriginalLocation.distanceTo(mCurrentLocation));
-
-                        cursor.close();
-                    }
-
-                } catch (IllegalArgumentException ex){
-                    throw new IllegalArgumentException("Could not query database");
-                }
-
+            if ( db == null ){
+                Log.e(TAG, "Database was never opened for ride " + rideID);
+                return null;
+            }
 
-                values.put(RideSummary.MAX_SPEED, getMaxSpeed());
-                values.put(RideSummary.MAX_LEAN_ANGLE, getMaxLeanAngle());
+            // Was there any ride data logged? The totals were kept as it was recorded.
+            if ( mSummary.getSampleCount() > 0 ) {
 
-                long id = db.insert(RideSummary.TABLE_NAME, null, values);
+                long id = mDbHelper.insertSummary(db, rideID, mSummary);
 
                 if (id == -1) {
                     Log.e(TAG, "Could not update database table: " + RideSummary.TABLE_NAME);
@@ -544,49 +543,20 @@ public class DataAcquisitionService extends Service implements GoogleApiClient.C
                 Log.i(TAG,"No data was found for this ride entry");
             }
 
-            mDbHelper.exportDB(db);
-            db.close();
-
-            return null;
-        }
-
-        private double getMaxSpeed(){
-            double max_speed = 0.0;
-
-            String[] projection = {RideData.SPEED};
-            String sortOrder = RideData.SPEED + " DESC";
+            mDbHelper.finishRide(db, rideID, System.currentTimeMillis());
 
-            Cursor cursor = db.query(RideData.TABLE_NAME,
-                    projection, null, null, null, null, sortOrder);
-
-            if (cursor != null) {
-                cursor.moveToFirst();
-                max_speed = cursor.getDouble(cursor
-                        .getColumnIndexOrThrow(RideData.SPEED));
-                cursor.close();
+            // Simplified and indexed now so the map never has to draw every fix
+            try {
+                RideTrackLevels.build(db, rideID);
+                RideSegmentIndex.build(db, rideID);
+            } catch (SQLiteException ex) {
+                Log.e(TAG, "Could not build the track levels and index of ride " + rideID, ex);
             }
 
-            return max_speed;
-        }
-
-        private double getMaxLeanAngle(){
-
-            double max_lean_angle = 0.0;
+            new RideArchive(RideArchive.getDirectory()).exportFinishedRides(db);
+            releaseDatabase();
 
-            String[] projection = {RideData.LEAN_ANGLE};
-            String sortOrder = RideData.LEAN_ANGLE + " DESC";
-
-            Cursor cursor = db.query(RideData.TABLE_NAME,
-                    projection, null, null, null, null, sortOrder);
-
-            if ( cursor != null ){
-                cursor.moveToFirst();
-                max_lean_angle = cursor.getDouble(cursor
-                        .getColumnIndexOrThrow(RideData.LEAN_ANGLE));
-                cursor.close();
-            }
-
-            return max_lean_angle;
+            return null;
         }
     }
 }
@@ -0,0 +1,140 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+import android.content.Context;
+import android.location.Location;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.location.LocationListener;
+import com.google.android.gms.location.LocationRequest;
+import com.google.android.gms.location.LocationServices;
+
+/**
+ * Fixes from the FusedLocationProviderApi of Google Play services.
+ */
+public class FusedLocationSource implements LocationSource, LocationListener,
+        GoogleApiClient.ConnectionCallbacks, GoogleApiClient.OnConnectionFailedListener {
+
+    /* Log TAG */
+    private static final String TAG = "FusedLocationSource";
+
+    private final Context context;
+
+    /* Stores parameters for requests to the FusedLocationProviderApi.*/
+    private final LocationRequest mLocationRequest;
+
+    /* Provides the entry point to Google Play services. */
+    private GoogleApiClient mGoogleApiClient;
+
+    private Listener listener;
+    private Looper looper;
+
+    /**
+     * Sets up the location request. Android has two location request settings:
+     * {@code ACCESS_COARSE_LOCATION} and {@code ACCESS_FINE_LOCATION}. These settings control
+     * the accuracy of the current location. This app uses ACCESS_FINE_LOCATION, as defined in
+     * the AndroidManifest.xml.
+     *
+     * When the ACCESS_FINE_LOCATION setting is specified, combined with a fast update
+     * interval (5 seconds), the Fused Location Provider API returns location updates that are
+     * accurate to within a few feet.
+     *
+     * @param interval The desired interval for location updates. Inexact. Updates may be more
+     *                 or less frequent.
+     * @param fastestInterval The fastest rate for active location updates. Exact. Updates will
+     *                        never be more frequent than this value.
+     */
+    public FusedLocationSource(Context context, long interval, long fastestInterval) {
+        this.context = context;
+
+        mLocationRequest = new LocationRequest();
+        mLocationRequest.setInterval(interval);
+        mLocationRequest.setFastestInterval(fastestInterval);
+        mLocationRequest.setPriority(LocationRequest.PRIORITY_HIGH_ACCURACY);
+    }
+
+    /**
+     * Builds and connects a GoogleApiClient. The client's callbacks and the location updates
+     * both run on looper, so the client must be rebuilt whenever the looper's thread is.
+     */
+    @Override
+    public void start(Listener listener, Looper looper) {
+        this.listener = listener;
+        this.looper = looper;
+
+        Log.d(TAG,"Building GoogleApiClient on thread " + Thread.currentThread().getName());
+
+        mGoogleApiClient = new GoogleApiClient.Builder(context)
+                .addConnectionCallbacks(this)
+                .addOnConnectionFailedListener(this)
+                .setHandler(new Handler(looper))
+                .addApi(LocationServices.API)
+                .build();
+        mGoogleApiClient.connect();
+    }
+
+    /** Disconnects the client, or stops it connecting if it hasn't yet */
+    @Override
+    public void stop() {
+        if ( mGoogleApiClient == null ) {
+            return;
+        }
+        if ( mGoogleApiClient.isConnected() ) {
+            LocationServices.FusedLocationApi.removeLocationUpdates(mGoogleApiClient, this);
+        }
+        mGoogleApiClient.disconnect();
+        mGoogleApiClient = null;
+    }
+
+    /**
+     * Runs when a GoogleApiClient object successfully connects.
+     */
+    @Override
+    public void onConnected(Bundle connectionHint) {
+        Log.i(TAG, "Connected GoogleApiClient");
+
+        LocationServices.FusedLocationApi.removeLocationUpdates(mGoogleApiClient, this);
+        LocationServices.FusedLocationApi.requestLocationUpdates(
+                mGoogleApiClient, mLocationRequest, this, looper);
+    }
+
+    @Override
+    public void onLocationChanged(Location location) {
+        listener.onLocationChanged(location);
+    }
+
+    @Override
+    public void onConnectionSuspended(int cause) {
+        // The connection to Google Play services was lost for some reason. We call connect() to
+        // attempt to re-establish the connection.
+        Log.i(TAG, "Connection suspended, attempting to reconnect");
+        mGoogleApiClient.connect();
+    }
+
+    @Override
+    public void onConnectionFailed(ConnectionResult result) {
+        // Refer to the javadoc for ConnectionResult to see what error codes might be returned in
+        // onConnectionFailed.
+        Log.i(TAG, "Connection failed: ConnectionResult.getErrorCode() = " + result.getErrorCode());
+    }
+}
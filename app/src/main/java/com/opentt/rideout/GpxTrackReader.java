@@ -0,0 +1,171 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Streams the trkpt elements of a GPX file with a pull parser, so a track of any length is
+ * read in constant memory. Reads ele and time, and the speed and course of GPX 1.0 or of a
+ * GPX 1.1 TrackPointExtension where present.
+ * Points without a time are skipped, as they can't be replayed.
+ */
+public class GpxTrackReader implements TrackReader {
+
+    private static final String TRACK_POINT = "trkpt";
+
+    private final Reader input;
+    private final XmlPullParser parser;
+
+    public GpxTrackReader(Reader input) throws IOException {
+        this.input = input;
+        try {
+            XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
+            factory.setNamespaceAware(false);
+            parser = factory.newPullParser();
+            parser.setInput(input);
+        } catch (XmlPullParserException ex) {
+            throw new IOException("Could not create GPX parser", ex);
+        }
+    }
+
+    @Override
+    public boolean next(TrackPoint point) throws IOException {
+        try {
+            boolean inPoint = false;
+            boolean timed = false;
+            String element = null;
+
+            for (int event = parser.next(); event != XmlPullParser.END_DOCUMENT;
+                 event = parser.next()) {
+
+                if ( event == XmlPullParser.START_TAG ) {
+                    element = localName(parser.getName());
+
+                    if ( TRACK_POINT.equals(element) ) {
+                        inPoint = true;
+                        timed = false;
+                        point.clear();
+                        point.latitude = parseDouble(parser.getAttributeValue(null, "lat"));
+                        point.longitude = parseDouble(parser.getAttributeValue(null, "lon"));
+                    }
+
+                } else if ( event == XmlPullParser.TEXT && inPoint && element != null ) {
+                    String text = parser.getText().trim();
+
+                    if ( text.isEmpty() ) {
+                        continue;
+                    }
+
+                    switch (element) {
+                        case "ele":
+                            point.altitude = parseDouble(text);
+                            break;
+                        case "time":
+                            point.time = parseTime(text);
+                            timed = true;
+                            break;
+                        case "speed":
+                            point.speed = parseDouble(text);
+                            break;
+                        case "course":
+                            point.bearing = parseDouble(text);
+                            break;
+                    }
+
+                } else if ( event == XmlPullParser.END_TAG ) {
+                    element = null;
+
+                    if ( TRACK_POINT.equals(localName(parser.getName())) ) {
+                        inPoint = false;
+                        if ( timed ) {
+                            return true;
+                        }
+                    }
+                }
+            }
+            return false;
+
+        } catch (XmlPullParserException ex) {
+            throw new IOException("Bad GPX", ex);
+        }
+    }
+
+    /* The parser isn't namespace aware; gpxtpx:speed is read as speed */
+    private static String localName(String name) {
+        return name.substring(name.indexOf(':') + 1);
+    }
+
+    private static double parseDouble(String value) throws IOException {
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException | NullPointerException ex) {
+            throw new IOException("Bad GPX number: " + value, ex);
+        }
+    }
+
+    /**
+     * Parses an ISO 8601 date and time, yyyy-MM-ddTHH:mm:ss with optional fractional seconds
+     * and a Z or +hh:mm offset, as GPX uses.
+     *
+     * @return Epoch milliseconds. Without an offset the time is taken to be UTC.
+     */
+    static long parseTime(String text) throws IOException {
+        try {
+            int year = Integer.parseInt(text.substring(0, 4));
+            int month = Integer.parseInt(text.substring(5, 7));
+            int day = Integer.parseInt(text.substring(8, 10));
+            int hour = Integer.parseInt(text.substring(11, 13));
+            int minute = Integer.parseInt(text.substring(14, 16));
+            int second = Integer.parseInt(text.substring(17, 19));
+
+            int i = 19;
+            long millis = 0;
+            if ( i < text.length() && text.charAt(i) == '.' ) {
+                long scale = 100;
+                for (i++; i < text.length() && Character.isDigit(text.charAt(i)); i++) {
+                    millis += (text.charAt(i) - '0') * scale;
+                    scale /= 10;
+                }
+            }
+
+            long offsetMinutes = 0;
+            if ( i < text.length() && (text.charAt(i) == '+' || text.charAt(i) == '-') ) {
+                int sign = text.charAt(i) == '-' ? -1 : 1;
+                offsetMinutes = sign * (Integer.parseInt(text.substring(i + 1, i + 3)) * 60 +
+                        Integer.parseInt(text.substring(i + 4, i + 6)));
+            }
+
+            long days = RideTime.daysFromCivil(year, month, day);
+            return ((days * 24 + hour) * 60 + minute - offsetMinutes) * 60000L +
+                    second * 1000L + millis;
+
+        } catch (NumberFormatException | IndexOutOfBoundsException ex) {
+            throw new IOException("Bad GPX time: " + text, ex);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        input.close();
+    }
+}
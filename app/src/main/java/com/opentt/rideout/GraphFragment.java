@@ -19,22 +19,24 @@ package com.opentt.rideout;
 import android.app.Activity;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
-import android.location.Location;
+import android.database.sqlite.SQLiteException;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.annotation.Nullable;
 import android.app.Fragment;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 
 import com.jjoe64.graphview.GraphView;
-import com.jjoe64.graphview.series.DataPoint;
-import com.jjoe64.graphview.series.LineGraphSeries;
+import com.jjoe64.graphview.Viewport;
 
 import com.opentt.rideout.RideDataContract.RideData;
 
+import java.util.Arrays;
+
 public class GraphFragment extends Fragment {
 
     public GraphFragment() {
@@ -45,8 +47,11 @@ public class GraphFragment extends Fragment {
 
     private final String TAG = "GraphFragment";
 
-    /** Data series for the plot */
-    private LineGraphSeries<DataPoint> series = new LineGraphSeries<>();
+    /** Points drawn when the graph hasn't been laid out yet, about a screen's width */
+    private static final int DEFAULT_BUDGET = 1000;
+
+    /** Data series for the plot, only the points chosen for the range in view */
+    private BufferSeries series = new BufferSeries(new SeriesBuffer(DEFAULT_BUDGET + 2));
 
     /** GraphView */
     private GraphView graph;
@@ -54,6 +59,13 @@ public class GraphFragment extends Fragment {
     /** The RideID to plot */
     private int rideID;
 
+    /** The whole channel, x ascending, and where its peaks are */
+    private double[] mX;
+    private double[] mY;
+    private int mCount;
+    private MinMaxPyramid mPyramid;
+    private int[] mSelected;
+
     @Nullable
     @Override
     public View onCreateView(LayoutInflater inflater, @Nullable ViewGroup container,
@@ -83,90 +95,143 @@ public class GraphFragment extends Fragment {
         }
     }
 
-    private class AddFieldToGraph extends AsyncTask<String,Void,Void>{
-
-        @Override
-        protected Void doInBackground(String... params) {
-            String field = params[0];
-
-            Log.i(TAG, "Getting data for plot");
-
-            // Open a readable database
-            RideDataDbHelper mDbHelper = new RideDataDbHelper(getActivity().getApplicationContext());
-            SQLiteDatabase db = mDbHelper.getReadableDatabase();
+    /**
+     * Thins the points between two x values down to the graph's width in pixels and hands
+     * them to the series. A point either side is kept so the line runs off the edges.
+     */
+    private void showRange(double minX, double maxX) {
+        if ( mCount == 0 ) {
+            return;
+        }
 
-            // Some vars for database navigation
-            double thisLAT;
-            double thisLNG;
-            double thisField;
+        int from = Math.max(0, lowerBound(minX) - 1);
+        int to = Math.min(mCount, lowerBound(maxX) + 1);
+        if ( to - from < 2 ) {
+            return;
+        }
 
-                String[] projection = {RideData.LATITUDE,
-                                       RideData.LONGITUDE,
-                                       field};
-                String selection = RideData.RIDE_ID + " = ? ";
-                String[] where = {String.valueOf(rideID)};
-                String SortOrder = RideData._ID + " ASC";
+        int width = graph.getGraphContentWidth();
+        int budget = width > 0 ? width : DEFAULT_BUDGET;
+        if ( mSelected == null || mSelected.length < budget + 2 ) {
+            mSelected = new int[budget + 2];
+        }
 
-                try{
+        int count = SeriesDecimator.decimate(mX, mY, mPyramid, from, to, budget, mSelected);
+        SeriesBuffer points = series.getBuffer();
+        points.clear();
+        for (int i = 0; i < count; i++) {
+            points.append(mX[mSelected[i]], mY[mSelected[i]]);
+        }
+        series.onDataChanged();
+    }
 
-                    Cursor cursor = db.query(
-                            RideData.TABLE_NAME,
-                            projection, selection, where, null, null, SortOrder);
+    /* Index of the first point at or past x */
+    private int lowerBound(double x) {
+        int index = Arrays.binarySearch(mX, 0, mCount, x);
+        if ( index < 0 ) {
+            return -index - 1;
+        }
+        while ( index > 0 && mX[index - 1] == x ) {
+            index--;
+        }
+        return index;
+    }
 
-                    if ((cursor != null) && (cursor.moveToFirst())) {
+    private class AddFieldToGraph extends AsyncTask<String,Void,Integer>{
 
-                        int ColumnLat = cursor.getColumnIndexOrThrow(RideData.LATITUDE);
-                        int ColumnLng = cursor.getColumnIndexOrThrow(RideData.LONGITUDE);
-                        int ColumnField = cursor.getColumnIndexOrThrow(field);
+        @Override
+        protected Integer doInBackground(String... params) {
+            String field = params[0];
 
-                        thisLAT = cursor.getDouble(ColumnLat);
-                        thisLNG = cursor.getDouble(ColumnLng);
-                        thisField = cursor.getDouble(ColumnField);
+            Log.i(TAG, "Getting data for plot");
+            long began = SystemClock.elapsedRealtime();
 
-                        Location firstLocation = new Location("unknown");
-                        Location location = new Location("unknown");
-                        firstLocation.setLatitude(thisLAT);
-                        firstLocation.setLongitude(thisLNG);
+            // Share the open database; a ride may be recording into it
+            RideDataDbHelper mDbHelper = RideDataDbHelper.getInstance(getActivity());
+            SQLiteDatabase db = mDbHelper.acquireDatabase();
 
-                        int numPoints = cursor.getCount();
+            String[] projection = {RideData.DISTANCE,
+                                   field};
 
-                        double x = 0.0;
+            int count = 0;
+            double[] x = new double[0];
+            double[] y = new double[0];
 
-                        series.appendData( new DataPoint(x,thisField), false, numPoints);
+            try{
 
-                        while ( cursor.moveToNext() ) {
+                // Rides stored before distances were kept are measured the first time
+                try {
+                    RideDistances.ensure(db, rideID);
+                } catch (SQLiteException ex) {
+                    Log.e(TAG, "Could not measure ride " + rideID, ex);
+                }
 
-                            thisLAT = cursor.getDouble(ColumnLat);
-                            thisLNG = cursor.getDouble(ColumnLng);
-                            thisField = cursor.getDouble(ColumnField);
+                Cursor cursor = RideDataDbHelper.queryRide(db, rideID, projection);
+                try {
+                    if ( cursor.moveToFirst() ) {
 
-                            location.setLatitude(thisLAT);
-                            location.setLongitude(thisLNG);
+                        int columnDistance = cursor.getColumnIndexOrThrow(RideData.DISTANCE);
+                        int columnField = cursor.getColumnIndexOrThrow(field);
 
-                            x = (double) firstLocation.distanceTo(location);
+                        x = new double[cursor.getCount()];
+                        y = new double[cursor.getCount()];
 
-                            try {
-                                series.appendData(new DataPoint(x, thisField), false, numPoints);
-                            } catch (Exception ex){
-                                ex.printStackTrace();
+                        // Distance along the track, so x only ever grows. Rows without a fix
+                        // have none and are left out; a missing value is NaN, not 0.
+                        do {
+                            if ( cursor.isNull(columnDistance) ) {
+                                continue;
                             }
-                        }
-
-                            cursor.close();
+                            x[count] = cursor.getDouble(columnDistance);
+                            y[count] = cursor.isNull(columnField) ? Double.NaN :
+                                    cursor.getDouble(columnField);
+                            count++;
+                        } while ( cursor.moveToNext() );
                     }
-                } catch (IllegalArgumentException ex) {
-                    ex.printStackTrace();
-                    throw new IllegalArgumentException("Something else went wrong");
+                } finally {
+                    cursor.close();
                 }
-            db.close();
-
-            return null;
+            } catch (IllegalArgumentException ex) {
+                ex.printStackTrace();
+                throw new IllegalArgumentException("Something else went wrong");
+            } finally {
+                mDbHelper.releaseDatabase();
+            }
+
+            mX = x;
+            mY = y;
+            mCount = count;
+            mPyramid = new MinMaxPyramid(y, count);
+
+            Log.i(TAG, "Read " + count + " points in " +
+                    (SystemClock.elapsedRealtime() - began) + "ms");
+            return count;
         }
 
         @Override
-        protected void onPostExecute(Void aVoid) {
+        protected void onPostExecute(Integer count) {
+
+            if ( count < 2 ) {
+                Log.i(TAG, "Nothing to plot for ride " + rideID);
+                return;
+            }
 
             Log.i(TAG,"Adding data to plot");
+
+            // Zooming or scrolling thins just the range in view, so its peaks show
+            Viewport viewport = graph.getViewport();
+            viewport.setXAxisBoundsManual(true);
+            viewport.setMinX(mX[0]);
+            viewport.setMaxX(mX[count - 1]);
+            viewport.setScalable(true);
+            viewport.setOnXAxisBoundsChangedListener(new Viewport.OnXAxisBoundsChangedListener() {
+                @Override
+                public void onXAxisBoundsChanged(double minX, double maxX, Reason reason) {
+                    showRange(minX, maxX);
+                }
+            });
+
+            showRange(mX[0], mX[count - 1]);
             graph.addSeries(series);
 
         }
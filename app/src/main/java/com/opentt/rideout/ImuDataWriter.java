@@ -0,0 +1,156 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Process;
+import android.util.Log;
+
+import com.opentt.rideout.RideDataContract.ImuData;
+
+/**
+ * Stores sensor rate channels in {@link ImuData#TABLE_NAME}.
+ *
+ * The acquisition thread offers readings to an {@link ImuRingBuffer} and this thread commits
+ * whatever has queued up every {@link #COMMIT_INTERVAL_MILLIS}, one transaction per commit,
+ * in the same way {@link RideDataWriter} batches location rows.
+ */
+public class ImuDataWriter implements Runnable, ImuRingBuffer.Reader {
+
+    /* Log TAG */
+    private static final String TAG = "ImuDataWriter";
+
+    private static final String WRITER_THREAD_NAME = "imuDataWriter";
+
+    public static final long COMMIT_INTERVAL_MILLIS = 1000;
+
+    /* Ten seconds of one 200 Hz channel, so a slow commit doesn't drop readings */
+    public static final int BUFFER_CAPACITY = 2048;
+
+    private static final String SQL_INSERT_IMU =
+            "INSERT INTO " + ImuData.TABLE_NAME + " (" +
+                    ImuData.RIDE_ID       + "," +
+                    ImuData.ELAPSED_NANOS + "," +
+                    ImuData.SENSOR_TYPE   + "," +
+                    ImuData.X             + "," +
+                    ImuData.Y             + "," +
+                    ImuData.Z             + ") VALUES (?,?,?,?,?,?)";
+
+    private final SQLiteDatabase db;
+    private final SQLiteStatement insert;
+    private final ImuRingBuffer buffer = new ImuRingBuffer(BUFFER_CAPACITY);
+    private final int rideID;
+
+    private volatile boolean running;
+    private Thread thread;
+
+    private volatile long readingsCommitted;
+
+    public ImuDataWriter(SQLiteDatabase db, int rideID) {
+        this.db = db;
+        this.rideID = rideID;
+        this.insert = db.compileStatement(SQL_INSERT_IMU);
+    }
+
+    public void start() {
+        running = true;
+        thread = new Thread(this, WRITER_THREAD_NAME);
+        thread.start();
+    }
+
+    /**
+     * Queues a reading. One producer thread only; never blocks or allocates.
+     *
+     * @return false if the writer is too far behind and the reading was dropped.
+     */
+    public boolean write(int sensorType, long timestampNanos, float x, float y, float z) {
+        return buffer.offer(sensorType, timestampNanos, x, y, z);
+    }
+
+    /** Commits every queued reading and stops the writer thread */
+    public void close() {
+        running = false;
+
+        if ( thread != null ) {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            thread = null;
+        }
+
+        insert.close();
+
+        Log.i(TAG, readingsCommitted + " readings committed, " +
+                buffer.getReadingsDropped() + " dropped");
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+        while ( running ) {
+            try {
+                Thread.sleep(COMMIT_INTERVAL_MILLIS);
+            } catch (InterruptedException ex) {
+                // close() wants the rest committed now
+            }
+            commit();
+        }
+        commit();
+    }
+
+    private void commit() {
+        if ( buffer.size() == 0 ) {
+            return;
+        }
+
+        try {
+            long count = 0;
+            int drained;
+
+            db.beginTransaction();
+            try {
+                while ( (drained = buffer.drain(this, BUFFER_CAPACITY)) > 0 ) {
+                    count += drained;
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            readingsCommitted += count;
+        } catch (SQLiteException ex) {
+            Log.e(TAG, "Could not commit sensor readings", ex);
+        }
+    }
+
+    /* Writer thread, inside commit()'s transaction */
+    @Override
+    public void onReading(int sensorType, long timestampNanos, float x, float y, float z) {
+        insert.bindLong(1, rideID);
+        insert.bindLong(2, timestampNanos);
+        insert.bindLong(3, sensorType);
+        insert.bindDouble(4, x);
+        insert.bindDouble(5, y);
+        insert.bindDouble(6, z);
+        insert.executeInsert();
+    }
+}
@@ -0,0 +1,40 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+import android.location.Location;
+import android.os.Looper;
+
+/**
+ * Where {@link DataAcquisitionService} gets its fixes: the fused location provider on a ride,
+ * or a recorded track for testing.
+ *
+ * @see FusedLocationSource
+ * @see ReplaySource
+ */
+public interface LocationSource {
+
+    interface Listener {
+        void onLocationChanged(Location location);
+    }
+
+    /** Starts delivering fixes to listener on looper's thread */
+    void start(Listener listener, Looper looper);
+
+    /** Stops delivering fixes. Any thread. */
+    void stop();
+}
@@ -41,12 +41,14 @@ public class MainActivity extends ActionBarActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
         getSupportActionBar();
-        //RideDataDbHelper.importDb();
 
         // Locate the UI widgets.
         mDataAcquisitionToggle = (ToggleButton) findViewById(R.id.togglebutton);
         mDataAcquisitionToggle.setChecked(getAcquisitionToggleState(KEY_ACQUISITION_TOGGLE, this));
 
+        // Housekeeping of the ride database, run while the phone is idle
+        RideMaintenanceService.schedule(this);
+
     }
 
     /**
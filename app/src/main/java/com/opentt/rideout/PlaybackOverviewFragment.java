@@ -160,25 +160,24 @@ public class PlaybackOverviewFragment extends Fragment
     private class AddMarkersToMap extends AsyncTask<Void, Void, Integer> {
 
         private SQLiteDatabase db;
-        private RideDataDbHelper mDbHelper =
-                new RideDataDbHelper(getActivity().getApplicationContext());
+        private RideDataDbHelper mDbHelper = RideDataDbHelper.getInstance(getActivity());
         private List<MarkerOptions> markerOptionses = new ArrayList<>();
 
         @Override
         protected Integer doInBackground(Void... params) {
 
-            // Open a readable database
-            db = mDbHelper.getReadableDatabase();
+            // Share the open database; a ride may be recording into it
+            db = mDbHelper.acquireDatabase();
 
             // Some vars for database navigation
             int thisID = 0;
             double thisLAT;
             double thisLNG;
             float thisDistanceTravelled;
-            String thisDuration;
+            long thisDuration;
 
-            // Check to see if there are ride entries
-            if ( !mDbHelper.isDataTableEmpty(db) ){
+            // Check to see if there are ride summaries
+            if ( !mDbHelper.isSummaryTableEmpty(db) ){
 
                 String[] projection = {RideSummary.RIDE_ID,
                                        RideSummary.LATITUDE,
@@ -207,13 +206,13 @@ public class PlaybackOverviewFragment extends Fragment
                             thisID = cursor.getInt(ColumnID);
                             thisLAT = cursor.getDouble(ColumnLat);
                             thisLNG = cursor.getDouble(ColumnLng);
-                            thisDuration = cursor.getString(ColumnDur);
+                            thisDuration = cursor.getLong(ColumnDur);
                             thisDistanceTravelled = cursor.getFloat(ColumnDis);
 
                             markerOptionses.add( new MarkerOptions()
                                     .title("Ride " + Integer.toString(thisID))
                                     .position(new LatLng(thisLAT, thisLNG))
-                                    .snippet(thisDistanceTravelled + "m, " + thisDuration)
+                                    .snippet(thisDistanceTravelled + "m, " + RideTime.formatDuration(thisDuration))
                                     .icon(BitmapDescriptorFactory.defaultMarker(((float)thisID)*10.0f))
                                     );
 
@@ -224,7 +223,7 @@ public class PlaybackOverviewFragment extends Fragment
                     throw new IllegalArgumentException("Could not get rideID from database");
                 }
             }
-            db.close();
+            mDbHelper.releaseDatabase();
 
             return markerOptionses.size();
         }
@@ -19,8 +19,10 @@ package com.opentt.rideout;
 import android.app.Activity;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.app.Fragment;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -31,12 +33,19 @@ import com.google.android.gms.maps.CameraUpdateFactory;
 import com.google.android.gms.maps.GoogleMap;
 import com.google.android.gms.maps.MapFragment;
 import com.google.android.gms.maps.OnMapReadyCallback;
+import com.google.android.gms.maps.model.CameraPosition;
 import com.google.android.gms.maps.model.LatLng;
 import com.google.android.gms.maps.model.LatLngBounds;
 import com.google.android.gms.maps.model.Polyline;
 import com.google.android.gms.maps.model.PolylineOptions;
 
-import com.opentt.rideout.RideDataContract.RideData;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 
 public class PolylineFragment extends Fragment
         implements OnMapReadyCallback {
@@ -60,6 +69,21 @@ public class PolylineFragment extends Fragment
     /** Polyline */
     Polyline mPolyline;
 
+    /** The ride's track at each level of detail, finest first, and the level drawn */
+    private List<List<LatLng>> mLevels = Collections.emptyList();
+    private int mLevel = -1;
+
+    /** Close up, the fixes in view are drawn from the ride's segment index instead */
+    private boolean mIndexed;
+    private boolean mShowingSegments;
+    private final List<Polyline> mSegmentLines = new ArrayList<>();
+
+    /** Segments loaded by _id, covering mLoadedBounds; a load waits for the last to finish */
+    private Map<Long, List<LatLng>> mSegments = new TreeMap<>();
+    private LatLngBounds mLoadedBounds;
+    private LoadSegments mSegmentTask;
+    private boolean mSegmentsStale;
+
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
                              Bundle savedInstanceState) {
@@ -98,87 +122,263 @@ public class PolylineFragment extends Fragment
         // Hide the zoom controls as the button panel will cover it.
         mMap.getUiSettings().setZoomControlsEnabled(false);
 
+        // Swap to the level of detail that suits each zoom
+        mMap.setOnCameraChangeListener(new GoogleMap.OnCameraChangeListener() {
+            @Override
+            public void onCameraChange(CameraPosition position) {
+                showLevel(position);
+            }
+        });
+
         new AddPolylineToMap().execute();
     }
 
+    /* Draws the coarsest level of the track that's still accurate to a pixel */
+    private void showLevel(CameraPosition position) {
+        if ( mPolyline == null || mLevels.isEmpty() ) {
+            return;
+        }
+
+        int level = Math.min(TrackPyramid.levelForZoom(position.zoom, position.target.latitude),
+                mLevels.size() - 1);
+        if ( level == 0 && mIndexed ) {
+            showSegments();
+            return;
+        }
+
+        if ( mShowingSegments ) {
+            hideSegments();
+        }
+        if ( level != mLevel ) {
+            mPolyline.setPoints(mLevels.get(level));
+            mPolyline.setVisible(true);
+            mLevel = level;
+        }
+    }
+
+    /* Loads the segments around the view unless they're loaded already */
+    private void showSegments() {
+        if ( !mShowingSegments ) {
+            mShowingSegments = true;
+            mPolyline.setVisible(false);
+            mLevel = -1;
+        }
+
+        LatLngBounds visible = mMap.getProjection().getVisibleRegion().latLngBounds;
+        if ( mLoadedBounds != null && mLoadedBounds.contains(visible.southwest) &&
+                mLoadedBounds.contains(visible.northeast) ) {
+            return;
+        }
+        if ( mSegmentTask != null ) {
+            mSegmentsStale = true;
+            return;
+        }
+
+        // Half a screen either way, so a short pan doesn't need another load
+        double latMargin = (visible.northeast.latitude - visible.southwest.latitude) / 2;
+        double lonMargin = (visible.northeast.longitude - visible.southwest.longitude) / 2;
+        LatLngBounds region = new LatLngBounds(
+                new LatLng(visible.southwest.latitude - latMargin,
+                        visible.southwest.longitude - lonMargin),
+                new LatLng(visible.northeast.latitude + latMargin,
+                        visible.northeast.longitude + lonMargin));
+
+        mSegmentTask = new LoadSegments(region, mSegments.keySet());
+        mSegmentTask.execute();
+    }
+
+    /* Back to the levels; the segments are let go so they don't pile up */
+    private void hideSegments() {
+        for (Polyline line : mSegmentLines) {
+            line.remove();
+        }
+        mSegmentLines.clear();
+        mSegments = new TreeMap<>();
+        mLoadedBounds = null;
+        mShowingSegments = false;
+    }
+
+    /* One polyline for each run of consecutive segments */
+    private void drawSegments() {
+        for (Polyline line : mSegmentLines) {
+            line.remove();
+        }
+        mSegmentLines.clear();
+
+        List<LatLng> run = null;
+        long previous = -2;
+        for (Map.Entry<Long, List<LatLng>> segment : mSegments.entrySet()) {
+            List<LatLng> points = segment.getValue();
+            if ( run != null && segment.getKey() == previous + 1 ) {
+                // Its first fix is the last of the segment before
+                run.addAll(points.subList(1, points.size()));
+            } else {
+                addSegmentLine(run);
+                run = new ArrayList<>(points);
+            }
+            previous = segment.getKey();
+        }
+        addSegmentLine(run);
+    }
+
+    private void addSegmentLine(List<LatLng> run) {
+        if ( run != null ) {
+            mSegmentLines.add(mMap.addPolyline(new PolylineOptions().addAll(run).width(10.0f)));
+        }
+    }
+
     /** AsyncTask AddPolylineToMap
      *  Takes input arguments: void
-     *  Outputs: null
+     *  Outputs: the ride's track levels, finest first
      *  Requires: null
      */
-    private class AddPolylineToMap extends AsyncTask<Void, Void, Void> {
+    private class AddPolylineToMap extends AsyncTask<Void, Void, List<List<LatLng>>> {
 
-        private SQLiteDatabase db;
-        private RideDataDbHelper mDbHelper =
-                new RideDataDbHelper(getActivity().getApplicationContext());
-        private PolylineOptions polylineOptions = new PolylineOptions();
+        private RideDataDbHelper mDbHelper = RideDataDbHelper.getInstance(getActivity());
         private LatLngBounds.Builder bounds = new LatLngBounds.Builder();
 
+        protected List<List<LatLng>> doInBackground(Void... params) {
 
-        protected Void doInBackground(Void... params) {
+            // Share the open database; a ride may be recording into it
+            SQLiteDatabase db = mDbHelper.acquireDatabase();
+            List<List<LatLng>> levels = new ArrayList<>();
 
-            // Open a readable database
-            db = mDbHelper.getReadableDatabase();
+            try {
+                mIndexed = RideSegmentIndex.ensure(db, RideID);
+                for (double[] points : RideTrackLevels.load(db, RideID)) {
+                    List<LatLng> level = new ArrayList<>(points.length / 2);
+                    for (int i = 0; i < points.length; i += 2) {
+                        level.add(new LatLng(points[i], points[i + 1]));
+                    }
+                    levels.add(level);
+                }
+            } catch (SQLiteException ex) {
+                Log.e(TAG, "Could not load the track of ride " + RideID, ex);
+            } finally {
+                mDbHelper.releaseDatabase();
+            }
 
-            // Check to see if there are ride entries
-            if (!mDbHelper.isDataTableEmpty(db)) {
+            // The finest level is within a metre of every fix
+            if ( !levels.isEmpty() ) {
+                for (LatLng point : levels.get(0)) {
+                    bounds.include(point);
+                }
+            }
 
-                // Build a database query
-                String[] projection = {RideData.LATITUDE,
-                        RideData.LONGITUDE,};
-                String selection = RideData.RIDE_ID + " = ? ";
-                String[] where = {String.valueOf(RideID)};
-                String sortOrder = RideData._ID + " ASC";
+            // Close up, an indexed ride is drawn from its segments instead
+            if ( mIndexed && levels.size() > 1 ) {
+                levels.set(0, levels.get(1));
+            }
 
-                try {
+            return levels;
+        }
 
-                    Cursor cursor = db.query(
-                            RideData.TABLE_NAME,
-                            projection, selection, where, null, null, sortOrder);
+        @Override
+        protected void onPostExecute(List<List<LatLng>> levels) {
 
-                    if ((cursor != null) && (cursor.moveToFirst())) {
+            if ( levels.isEmpty() || levels.get(0).isEmpty() ) {
+                Log.i(TAG, "Ride " + RideID + " has no track to draw");
+                return;
+            }
+            mLevels = levels;
 
-                        // Some vars for database navigation
-                        double thisLAT;
-                        double thisLNG;
+            mMap.moveCamera(CameraUpdateFactory.newLatLngBounds(bounds.build(),50));
 
-                        // Get projection column numbers
-                        int ColumnLat = cursor.getColumnIndexOrThrow(RideData.LATITUDE);
-                        int ColumnLng = cursor.getColumnIndexOrThrow(RideData.LONGITUDE);
+            PolylineOptions polylineOptions = new PolylineOptions();
+            polylineOptions.width(10.0f);
+            mPolyline = mMap.addPolyline(polylineOptions);
+            mPolyline.setVisible(true);
+            showLevel(mMap.getCameraPosition());
 
-                        // LatLng for bounds and PolylineOptions
-                        LatLng thisLatLng;
+        }
+    }
 
-                        do {
+    /** AsyncTask LoadSegments
+     *  Takes input arguments: void
+     *  Outputs: the segments in the region by _id, null for those already loaded, or null
+     *  if the load failed
+     *  Requires: the region and the segments loaded
+     */
+    private class LoadSegments extends AsyncTask<Void, Void, Map<Long, List<LatLng>>> {
 
-                            thisLAT = cursor.getDouble(ColumnLat);
-                            thisLNG = cursor.getDouble(ColumnLng);
+        private final RideDataDbHelper mDbHelper = RideDataDbHelper.getInstance(getActivity());
+        private final LatLngBounds region;
+        private final Set<Long> loaded;
 
-                            thisLatLng = new LatLng(thisLAT, thisLNG);
+        LoadSegments(LatLngBounds region, Set<Long> loaded) {
+            this.region = region;
+            this.loaded = new HashSet<>(loaded);
+        }
 
-                            polylineOptions.add(thisLatLng);
-                            bounds.include(thisLatLng);
+        protected Map<Long, List<LatLng>> doInBackground(Void... params) {
+            long began = SystemClock.elapsedRealtime();
+            Map<Long, List<LatLng>> segments = new TreeMap<>();
+            int fixes = 0;
 
-                        } while (cursor.moveToNext());
-                        cursor.close();
+            SQLiteDatabase db = mDbHelper.acquireDatabase();
+            try {
+                Cursor cursor = RideSegmentIndex.query(db, RideID,
+                        region.southwest.latitude, region.southwest.longitude,
+                        region.northeast.latitude, region.northeast.longitude);
+                try {
+                    while ( cursor.moveToNext() ) {
+                        long id = cursor.getLong(0);
+                        if ( loaded.contains(id) ) {
+                            segments.put(id, null);
+                            continue;
+                        }
+
+                        double[] points = RideSegmentIndex.loadSegment(db, RideID,
+                                cursor.getLong(1), cursor.getLong(2));
+                        List<LatLng> segment = new ArrayList<>(points.length / 2);
+                        for (int i = 0; i < points.length; i += 2) {
+                            segment.add(new LatLng(points[i], points[i + 1]));
+                        }
+                        segments.put(id, segment);
+                        fixes += segment.size();
                     }
-                } catch (IllegalArgumentException ex) {
-                    throw new IllegalArgumentException("Could not get rideID from database");
+                } finally {
+                    cursor.close();
                 }
+            } catch (SQLiteException ex) {
+                Log.e(TAG, "Could not load the segments of ride " + RideID, ex);
+                return null;
+            } finally {
+                mDbHelper.releaseDatabase();
             }
-            db.close();
 
-            return null;
+            Log.i(TAG, "Loaded " + fixes + " fixes of " + segments.size() + " segments in " +
+                    (SystemClock.elapsedRealtime() - began) + "ms");
+            return segments;
         }
 
         @Override
-        protected void onPostExecute(Void aVoid) {
+        protected void onPostExecute(Map<Long, List<LatLng>> segments) {
+            mSegmentTask = null;
+            if ( !mShowingSegments ) {
+                return;
+            }
 
-            polylineOptions.width(10.0f);
-            mPolyline = mMap.addPolyline(polylineOptions);
-            mPolyline.setVisible(true);
-            mMap.moveCamera(CameraUpdateFactory.newLatLngBounds(bounds.build(),50));
+            // A failed region isn't marked loaded, so the next camera move tries it again
+            if ( segments == null ) {
+                mSegmentsStale = false;
+                return;
+            }
 
+            // Those already loaded are kept, those out of the region let go
+            for (Map.Entry<Long, List<LatLng>> segment : segments.entrySet()) {
+                if ( segment.getValue() == null ) {
+                    segment.setValue(mSegments.get(segment.getKey()));
+                }
+            }
+            mSegments = segments;
+            mLoadedBounds = region;
+            drawSegments();
+
+            if ( mSegmentsStale ) {
+                mSegmentsStale = false;
+                showSegments();
+            }
         }
     }
 }
@@ -0,0 +1,207 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+import android.location.Location;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Location and sensor source that plays a recorded track, and optionally a sensor log, through
+ * the acquisition service with a {@link TrackReplay}, for load testing without a device
+ * moving or Play services.
+ *
+ * Each fix is handed to the listener's thread and the replay waits until it has been taken
+ * in, and a full sensor buffer holds the replay back rather than drop readings. So even as
+ * fast as possible, fixes and readings reach the merger in the same order as at real time and
+ * a replay stores the same rows every time. Start the sensor side first.
+ */
+public class ReplaySource implements LocationSource, SensorSource, TrackReplay.Output, Runnable {
+
+    /* Log TAG */
+    private static final String TAG = "ReplaySource";
+
+    private static final String REPLAY_THREAD_NAME = "replaySource";
+
+    private static final String PROVIDER = "replay";
+
+    private final File trackFile;
+    private final File imuLogFile;
+    private final double speed;
+    private final Runnable onFinished;
+
+    private final Semaphore delivered = new Semaphore(0);
+
+    private volatile TrackReplay replay;
+    private volatile ImuRingBuffer buffer;
+    private Listener listener;
+    private Handler handler;
+    private Thread thread;
+
+    /* Time from handing a fix over to the listener having taken it */
+    private volatile long maxDeliveryNanos;
+    private volatile long totalDeliveryNanos;
+
+    /**
+     * @param imuLogFile Sensor log of the same ride, or null.
+     * @param speed Multiple of real time, or {@link TrackReplay#AS_FAST_AS_POSSIBLE}.
+     * @param onFinished Run on the listener's thread once the whole ride has been replayed, or
+     *                   once the replay has failed, but not if it's stopped.
+     */
+    public ReplaySource(File trackFile, File imuLogFile, double speed, Runnable onFinished) {
+        this.trackFile = trackFile;
+        this.imuLogFile = imuLogFile;
+        this.speed = speed;
+        this.onFinished = onFinished;
+    }
+
+    @Override
+    public void start(ImuRingBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    @Override
+    public void start(Listener listener, Looper looper) {
+        this.listener = listener;
+        this.handler = new Handler(looper);
+
+        thread = new Thread(this, REPLAY_THREAD_NAME);
+        thread.start();
+    }
+
+    /** Stops both sides. Doesn't wait for the replay thread, which may be waiting on us. */
+    @Override
+    public void stop() {
+        TrackReplay current = replay;
+
+        if ( current != null ) {
+            current.cancel();
+        }
+        if ( thread != null ) {
+            thread.interrupt();
+        }
+    }
+
+    @Override
+    public long getElapsedNanos() {
+        TrackReplay current = replay;
+        return current == null ? 0 : current.getPositionNanos();
+    }
+
+    @Override
+    public void run() {
+        try {
+            replay = new TrackReplay(openTrack(trackFile),
+                    imuLogFile == null ? null : TrackReplay.openImuLog(imuLogFile), speed, this);
+        } catch (IOException ex) {
+            Log.e(TAG, "Could not open " + trackFile, ex);
+            handler.post(onFinished);
+            return;
+        }
+
+        try {
+            replay.run();
+
+            long fixes = replay.getFixesReplayed();
+            long millis = TimeUnit.NANOSECONDS.toMillis(replay.getElapsedWallNanos());
+            Log.i(TAG, "Replayed " + fixes + " fixes and " + replay.getReadingsReplayed() +
+                    " readings in " + millis + "ms, " +
+                    (millis == 0 ? 0 : fixes * 1000 / millis) + " fixes/s, avg delivery " +
+                    TimeUnit.NANOSECONDS.toMicros(fixes == 0 ? 0 : totalDeliveryNanos / fixes) +
+                    "us, max delivery " + TimeUnit.NANOSECONDS.toMicros(maxDeliveryNanos) + "us");
+
+            handler.post(onFinished);
+
+        } catch (IOException ex) {
+            Log.e(TAG, "Could not replay " + trackFile, ex);
+            handler.post(onFinished);
+        } catch (InterruptedException ex) {
+            Log.i(TAG, "Replay stopped");
+        } finally {
+            try {
+                replay.close();
+            } catch (IOException ex) {
+                Log.e(TAG, "Could not close " + trackFile, ex);
+            }
+        }
+    }
+
+    /* GPX needs the platform's XML pull parser, so is opened here rather than by TrackReplay */
+    private static TrackReader openTrack(File file) throws IOException {
+        if ( file.getName().toLowerCase(Locale.US).endsWith(".gpx") ) {
+            return new GpxTrackReader(TrackReplay.open(file));
+        }
+        return TrackReplay.openTrack(file);
+    }
+
+    /* Replay thread */
+    @Override
+    public void onFix(TrackPoint point) throws InterruptedException {
+        final Location location = new Location(PROVIDER);
+        location.setTime(point.time);
+        location.setElapsedRealtimeNanos(point.elapsedNanos);
+        location.setLatitude(point.latitude);
+        location.setLongitude(point.longitude);
+        if ( !Double.isNaN(point.altitude) ) {
+            location.setAltitude(point.altitude);
+        }
+        if ( !Double.isNaN(point.speed) ) {
+            location.setSpeed((float) point.speed);
+        }
+        if ( !Double.isNaN(point.bearing) ) {
+            location.setBearing((float) point.bearing);
+        }
+
+        final long posted = System.nanoTime();
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onLocationChanged(location);
+
+                long delivery = System.nanoTime() - posted;
+                totalDeliveryNanos += delivery;
+                maxDeliveryNanos = Math.max(maxDeliveryNanos, delivery);
+                delivered.release();
+            }
+        });
+        delivered.acquire();
+    }
+
+    /* Replay thread */
+    @Override
+    public void onReading(int sensorType, long timestampNanos, float x, float y, float z)
+            throws InterruptedException {
+        ImuRingBuffer target = buffer;
+
+        if ( target == null ) {
+            return; // Sensors aren't being read
+        }
+
+        // Seen from here the size can only be overstated, so once there's room the offer fits
+        while ( target.size() >= target.capacity() ) {
+            Thread.sleep(1);
+        }
+        target.offer(sensorType, timestampNanos, x, y, z);
+    }
+}
@@ -0,0 +1,562 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.os.Environment;
+import android.util.Log;
+
+import com.opentt.rideout.RideDataContract.ImuData;
+import com.opentt.rideout.RideDataContract.RideData;
+import com.opentt.rideout.RideDataContract.RideSummary;
+import com.opentt.rideout.RideDataContract.Rides;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Incremental backup of finished rides. Each ride is written once to a gzipped CSV of its own,
+ * with the ride and its summary as # comment lines ahead of the rows. CsvTrackReader reads the
+ * rows back, so an archived ride can be replayed. Rides with sensor channel rows get a second
+ * file in the sensor log format ImuLogReader reads.
+ *
+ * The manifest lists every ride archived. An export writes only the finished rides that are
+ * not in it yet, so each backup costs the new rides rather than the whole history.
+ *
+ * Only rides with all their rows are archived; one reduced by {@link RideRetention} keeps the
+ * files it was archived to.
+ *
+ * Each ride is read inside one transaction, so it's copied as it stood at a single moment even
+ * if the migration or a summary rebuild writes to it meanwhile. The transaction is on a read
+ * only connection of its own: in WAL mode that's a snapshot, and holds nothing a writer waits
+ * on. Files are written under a temporary name, synced and then renamed, so an interrupted
+ * export never leaves a torn file, and a failed one leaves no temporary file behind.
+ */
+public class RideArchive {
+
+    /* Log TAG */
+    private static final String TAG = "RideArchive";
+
+    public static final String FORMAT = "rideout-ride-1";
+
+    public static final String MANIFEST_NAME = "manifest.csv";
+    public static final String RIDE_SUFFIX = ".csv.gz";
+    public static final String IMU_SUFFIX = ".imu.csv.gz";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    /* Path SQLiteDatabase gives an in-memory database */
+    private static final String MEMORY_DB_PATH = ":memory:";
+
+    /* Manifest columns */
+    public static final String FILE = "file";
+    public static final String RIDE_ID = "ride_id";
+    public static final String START_TIME = "start_time";
+    public static final String END_TIME = "end_time";
+    public static final String ROWS = "rows";
+    public static final String IMU_ROWS = "imu_rows";
+    public static final String BYTES = "bytes";
+
+    private static final String MANIFEST_HEADER = FILE + "," + RIDE_ID + "," + START_TIME + "," +
+            END_TIME + "," + ROWS + "," + IMU_ROWS + "," + BYTES;
+
+    /* Columns of each row of an archived ride, everything bar the row and ride IDs */
+    public static final String[] RIDE_COLUMNS = {
+            RideData.TIME_STAMP, RideData.LATITUDE, RideData.LONGITUDE, RideData.ALTITUDE,
+            RideData.SPEED, RideData.BEARING, RideData.ACCELERATION_X, RideData.ACCELERATION_Y,
+            RideData.ACCELERATION_Z, RideData.LEAN_ANGLE, RideData.ELAPSED_NANOS};
+
+    public static final String[] IMU_COLUMNS = {
+            ImuData.ELAPSED_NANOS, ImuData.SENSOR_TYPE, ImuData.X, ImuData.Y, ImuData.Z};
+
+    public static final String[] SUMMARY_COLUMNS = {
+            RideSummary.TIME_STAMP, RideSummary.LATITUDE, RideSummary.LONGITUDE,
+            RideSummary.DURATION, RideSummary.DISTANCE_TRAVELLED, RideSummary.MAX_SPEED,
+            RideSummary.MAX_LEAN_ANGLE, RideSummary.MOVING_TIME, RideSummary.AVERAGE_SPEED,
+            RideSummary.ELEVATION_GAIN};
+
+    /* Metadata comment lines are #key=value; summary values are prefixed */
+    public static final String SUMMARY_PREFIX = "summary.";
+
+    /* Rows read per query, walking the ride by _id */
+    private static final int PAGE_SIZE = 4096;
+
+    private static final int BUFFER_SIZE = 65536;
+
+    private static final String SQL_FINISHED_RIDES =
+            "SELECT " + Rides._ID + "," + Rides.START_TIME + "," + Rides.END_TIME +
+                    " FROM " + Rides.TABLE_NAME +
+                    " WHERE " + Rides.STATE + " = " + Rides.STATE_FINISHED +
+                    " AND IFNULL(" + Rides.DETAIL + ", " + Rides.DETAIL_FULL + ") = " +
+                    Rides.DETAIL_FULL +
+                    " ORDER BY " + Rides._ID;
+
+    private final File directory;
+
+    public RideArchive(File directory) {
+        this.directory = directory;
+    }
+
+    /** Where rides are archived on external storage, alongside the old whole database copy */
+    public static File getDirectory() {
+        return new File(Environment.getExternalStorageDirectory(), "RideDataBackup/rides");
+    }
+
+    /** File name of a ride. The start time keeps IDs reused after a reset from colliding. */
+    public static String getRideName(int rideID, long startTime) {
+        return String.format(Locale.US, "ride-%06d-%d", rideID, startTime);
+    }
+
+    /**
+     * The names of the rides in the manifest, as {@link #getRideName} gives them.
+     *
+     * @throws IOException If the manifest is there but can't be read.
+     */
+    public Set<String> getArchivedRides() throws IOException {
+        return readManifest(new File(directory, MANIFEST_NAME), new StringBuilder());
+    }
+
+    /**
+     * Archives every finished ride that isn't in the manifest yet.
+     *
+     * @return The number of rides archived, or -1 if the archive can't be written.
+     */
+    public int exportFinishedRides(SQLiteDatabase db) {
+        if ( !Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState()) ) {
+            Log.e(TAG, "External Storage not Writable");
+            return -1;
+        }
+        if ( !directory.isDirectory() && !directory.mkdirs() ) {
+            Log.e(TAG, "Could not make archive directory " + directory);
+            return -1;
+        }
+
+        Set<String> archived;
+        StringBuilder manifest = new StringBuilder();
+        try {
+            archived = readManifest(new File(directory, MANIFEST_NAME), manifest);
+        } catch (IOException ex) {
+            Log.e(TAG, "Could not read the archive manifest", ex);
+            return -1;
+        }
+
+        SQLiteDatabase reader;
+        try {
+            reader = openReader(db);
+        } catch (SQLiteException ex) {
+            Log.e(TAG, "Could not open the database to read", ex);
+            return -1;
+        }
+
+        int exported = 0;
+        long began = System.currentTimeMillis();
+
+        Cursor rides = reader.rawQuery(SQL_FINISHED_RIDES, null);
+        try {
+            while ( rides.moveToNext() ) {
+                int rideID = rides.getInt(0);
+                long startTime = rides.getLong(1);
+                long endTime = rides.getLong(2);
+                String name = getRideName(rideID, startTime);
+
+                if ( archived.contains(name) ) {
+                    continue;
+                }
+
+                String entry = exportRide(reader, rideID, startTime, endTime, name);
+                if ( entry == null ) {
+                    continue; // Logged; try again next time
+                }
+
+                manifest.append(entry).append('\n');
+                exported++;
+            }
+        } catch (SQLiteException ex) {
+            Log.e(TAG, "Could not list finished rides", ex);
+        } finally {
+            rides.close();
+            closeReader(db, reader);
+        }
+
+        // Recorded only once the rides' files are in place. Rides archived but left out by a
+        // failure here are archived again next time, to the same files.
+        if ( exported > 0 ) {
+            try {
+                writeAtomically(new File(directory, MANIFEST_NAME),
+                        MANIFEST_HEADER + "\n" + manifest);
+            } catch (IOException ex) {
+                Log.e(TAG, "Could not update the archive manifest", ex);
+                return -1;
+            }
+        }
+
+        Log.i(TAG, "Archived " + exported + " rides in " +
+                (System.currentTimeMillis() - began) + "ms to " + directory);
+        return exported;
+    }
+
+    /* Writes a ride's files and returns its manifest line, or null if it couldn't */
+    private String exportRide(SQLiteDatabase db, int rideID, long startTime, long endTime,
+                              String name) {
+        File rideFile = new File(directory, name + RIDE_SUFFIX);
+        File imuFile = new File(directory, name + IMU_SUFFIX);
+
+        // Holds the ride still while it's read, without holding up the writer
+        db.beginTransaction();
+        try {
+            long rows = writeRide(db, rideID, startTime, endTime, rideFile);
+            long imuRows = writeImu(db, rideID, imuFile);
+            db.setTransactionSuccessful();
+
+            return name + "," + rideID + "," + startTime + "," + endTime + "," + rows + "," +
+                    imuRows + "," + (rideFile.length() + (imuRows > 0 ? imuFile.length() : 0));
+
+        } catch (IOException | SQLiteException ex) {
+            Log.e(TAG, "Could not archive ride " + rideID, ex);
+            return null;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static long writeRide(SQLiteDatabase db, int rideID, long startTime, long endTime,
+                                  File file) throws IOException {
+        File temporary = new File(file.getPath() + TEMPORARY_SUFFIX);
+        FileOutputStream stream = new FileOutputStream(temporary);
+        boolean renamed = false;
+
+        try {
+            GZIPOutputStream gzip = new GZIPOutputStream(stream, BUFFER_SIZE);
+            Writer out = new BufferedWriter(new OutputStreamWriter(gzip, "UTF-8"), BUFFER_SIZE);
+            long rows;
+
+            try {
+                out.write("#format=" + FORMAT + "\n");
+                out.write("#" + RIDE_ID + "=" + rideID + "\n");
+                out.write("#" + START_TIME + "=" + startTime + "\n");
+                out.write("#" + END_TIME + "=" + endTime + "\n");
+                writeSummary(db, rideID, out);
+
+                rows = writeRows(db, RideData.TABLE_NAME, RideData._ID, RideData.RIDE_ID,
+                        rideID, RIDE_COLUMNS, out);
+
+                finish(out, gzip, stream);
+            } finally {
+                out.close();
+            }
+
+            rename(temporary, file);
+            renamed = true;
+            return rows;
+        } finally {
+            discard(stream, temporary, renamed);
+        }
+    }
+
+    /* Sensor channel rows, if the rider recorded any; no file otherwise */
+    private static long writeImu(SQLiteDatabase db, int rideID, File file) throws IOException {
+        File temporary = new File(file.getPath() + TEMPORARY_SUFFIX);
+        FileOutputStream stream = new FileOutputStream(temporary);
+        boolean renamed = false;
+
+        try {
+            GZIPOutputStream gzip = new GZIPOutputStream(stream, BUFFER_SIZE);
+            Writer out = new BufferedWriter(new OutputStreamWriter(gzip, "UTF-8"), BUFFER_SIZE);
+            long rows;
+
+            try {
+                rows = writeRows(db, ImuData.TABLE_NAME, ImuData._ID, ImuData.RIDE_ID, rideID,
+                        IMU_COLUMNS, out);
+                finish(out, gzip, stream);
+            } finally {
+                out.close();
+            }
+
+            if ( rows > 0 ) {
+                rename(temporary, file);
+                renamed = true;
+            }
+            return rows;
+        } finally {
+            discard(stream, temporary, renamed);
+        }
+    }
+
+    private static void writeSummary(SQLiteDatabase db, int rideID, Writer out)
+            throws IOException {
+        Cursor cursor = db.query(RideSummary.TABLE_NAME, SUMMARY_COLUMNS,
+                RideSummary.RIDE_ID + " = ?", new String[]{Integer.toString(rideID)},
+                null, null, null, "1");
+        try {
+            if ( cursor.moveToFirst() ) {
+                for (int i = 0; i < SUMMARY_COLUMNS.length; i++) {
+                    out.write("#" + SUMMARY_PREFIX + SUMMARY_COLUMNS[i] + "=");
+                    writeValue(cursor, i, out);
+                    out.write('\n');
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /* A page of a ride's rows, id first; takes the rideID and the last id of the page before */
+    private static String getPageSql(String table, String idColumn, String rideColumn,
+                                     String[] columns) {
+        StringBuilder select = new StringBuilder("SELECT ").append(idColumn);
+        for (String column : columns) {
+            select.append(',').append(column);
+        }
+        return select.append(" FROM ").append(table)
+                .append(" WHERE ").append(rideColumn).append(" = ? AND ")
+                .append(idColumn).append(" > ? ORDER BY ").append(idColumn)
+                .append(" LIMIT ").append(PAGE_SIZE).toString();
+    }
+
+    /* Writes a header and every row of the ride, a page at a time in _id order */
+    private static long writeRows(SQLiteDatabase db, String table, String idColumn,
+                                  String rideColumn, int rideID, String[] columns, Writer out)
+            throws IOException {
+        String sql = getPageSql(table, idColumn, rideColumn, columns);
+
+        for (int i = 0; i < columns.length; i++) {
+            out.write(i == 0 ? columns[i] : "," + columns[i]);
+        }
+        out.write('\n');
+
+        String[] args = {Integer.toString(rideID), "0"};
+        long rows = 0;
+        int page;
+        do {
+            Cursor cursor = db.rawQuery(sql, args);
+            try {
+                page = 0;
+                while ( cursor.moveToNext() ) {
+                    for (int i = 1; i <= columns.length; i++) {
+                        if ( i > 1 ) {
+                            out.write(',');
+                        }
+                        writeValue(cursor, i, out);
+                    }
+                    out.write('\n');
+                    args[1] = Long.toString(cursor.getLong(0));
+                    page++;
+                }
+            } finally {
+                cursor.close();
+            }
+            rows += page;
+        } while ( page == PAGE_SIZE );
+
+        return rows;
+    }
+
+    /**
+     * Writes a ride in the compact {@link ColumnarRide} format, for playback to map in place
+     * of querying its rows. Reads the ride inside one transaction, as an export does.
+     *
+     * @return The size of the file.
+     */
+    public static long writeColumnar(SQLiteDatabase db, int rideID, long startTime, long endTime,
+                                     File file) throws IOException {
+        ColumnarRideWriter writer = new ColumnarRideWriter(startTime);
+        writer.setEndTime(endTime);
+
+        SQLiteDatabase reader = openReader(db);
+        try {
+            reader.beginTransaction();
+            try {
+                encodeRows(reader, RideData.TABLE_NAME, RideData._ID, RideData.RIDE_ID, rideID,
+                        ColumnarRide.RIDE_COLUMNS, writer.rows());
+                encodeRows(reader, ImuData.TABLE_NAME, ImuData._ID, ImuData.RIDE_ID, rideID,
+                        ColumnarRide.IMU_COLUMNS, writer.imu());
+                reader.setTransactionSuccessful();
+            } finally {
+                reader.endTransaction();
+            }
+        } finally {
+            closeReader(db, reader);
+        }
+
+        File temporary = new File(file.getPath() + TEMPORARY_SUFFIX);
+        FileOutputStream stream = new FileOutputStream(temporary);
+        boolean renamed = false;
+        try {
+            writer.writeTo(new BufferedOutputStream(stream, BUFFER_SIZE));
+            stream.getFD().sync();
+            stream.close();
+
+            rename(temporary, file);
+            renamed = true;
+        } finally {
+            discard(stream, temporary, renamed);
+        }
+        return file.length();
+    }
+
+    /* Reads every row of the ride into the table, a page at a time in _id order */
+    private static void encodeRows(SQLiteDatabase db, String table, String idColumn,
+                                   String rideColumn, int rideID, ColumnarRide.Column[] columns,
+                                   ColumnarRideWriter.Table out) {
+        String[] names = new String[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            names[i] = columns[i].name;
+        }
+        String sql = getPageSql(table, idColumn, rideColumn, names);
+
+        String[] args = {Integer.toString(rideID), "0"};
+        int page;
+        do {
+            Cursor cursor = db.rawQuery(sql, args);
+            try {
+                page = 0;
+                while ( cursor.moveToNext() ) {
+                    for (int i = 0; i < columns.length; i++) {
+                        if ( cursor.isNull(i + 1) ) {
+                            out.putNull(i);
+                        } else if ( columns[i].scale == 1 ) {
+                            out.putLong(i, cursor.getLong(i + 1)); // Clocks and sensor types
+                        } else {
+                            out.putDouble(i, cursor.getDouble(i + 1));
+                        }
+                    }
+                    out.endRow();
+                    args[1] = Long.toString(cursor.getLong(0));
+                    page++;
+                }
+            } finally {
+                cursor.close();
+            }
+        } while ( page == PAGE_SIZE );
+    }
+
+    /* Integers as integers, reals in full, nulls as empty */
+    private static void writeValue(Cursor cursor, int column, Writer out) throws IOException {
+        switch (cursor.getType(column)) {
+            case Cursor.FIELD_TYPE_NULL:
+                break;
+            case Cursor.FIELD_TYPE_INTEGER:
+                out.write(Long.toString(cursor.getLong(column)));
+                break;
+            case Cursor.FIELD_TYPE_FLOAT:
+                out.write(Double.toString(cursor.getDouble(column)));
+                break;
+            default:
+                out.write(cursor.getString(column));
+        }
+    }
+
+    /* The manifest's entries, appended to entries, and the names of the rides in it */
+    private static Set<String> readManifest(File file, StringBuilder entries) throws IOException {
+        Set<String> names = new HashSet<>();
+
+        if ( !file.exists() ) {
+            return names;
+        }
+
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line = reader.readLine(); // Header
+            while ( (line = reader.readLine()) != null ) {
+                int comma = line.indexOf(',');
+                if ( comma > 0 ) {
+                    names.add(line.substring(0, comma));
+                    entries.append(line).append('\n');
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        return names;
+    }
+
+    /* The gzip trailer has to be on disk too before the file is renamed into place */
+    private static void finish(Writer out, GZIPOutputStream gzip, FileOutputStream stream)
+            throws IOException {
+        out.flush();
+        gzip.finish();
+        stream.getFD().sync();
+    }
+
+    private static void writeAtomically(File file, String text) throws IOException {
+        File temporary = new File(file.getPath() + TEMPORARY_SUFFIX);
+        FileOutputStream stream = new FileOutputStream(temporary);
+        boolean renamed = false;
+        try {
+            stream.write(text.getBytes("UTF-8"));
+            stream.getFD().sync();
+            stream.close();
+
+            rename(temporary, file);
+            renamed = true;
+        } finally {
+            discard(stream, temporary, renamed);
+        }
+    }
+
+    /* Closes the stream, if it's still open, and deletes the file unless it was renamed */
+    private static void discard(FileOutputStream stream, File temporary, boolean renamed)
+            throws IOException {
+        try {
+            stream.close();
+        } finally {
+            if ( !renamed ) {
+                temporary.delete();
+            }
+        }
+    }
+
+    /*
+     * A read only connection of its own to the database. Its transactions read a snapshot and
+     * take no lock, where one on the app's connection would hold the write lock throughout. An
+     * in-memory database can't be opened twice, so is read through its own connection.
+     */
+    private static SQLiteDatabase openReader(SQLiteDatabase db) {
+        String path = db.getPath();
+        if ( path == null || MEMORY_DB_PATH.equals(path) ) {
+            return db;
+        }
+        return SQLiteDatabase.openDatabase(path, null, SQLiteDatabase.OPEN_READONLY);
+    }
+
+    private static void closeReader(SQLiteDatabase db, SQLiteDatabase reader) {
+        if ( reader != db ) {
+            reader.close();
+        }
+    }
+
+    private static void rename(File from, File to) throws IOException {
+        if ( !from.renameTo(to) ) {
+            throw new IOException("Could not rename " + from + " to " + to);
+        }
+    }
+}
@@ -16,56 +16,192 @@
 
 package com.opentt.rideout;
 
+import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
-import android.os.Environment;
+import android.database.sqlite.SQLiteQueryBuilder;
 import android.util.Log;
 
+import com.opentt.rideout.RideDataContract.ImuData;
 import com.opentt.rideout.RideDataContract.RideData;
 import com.opentt.rideout.RideDataContract.RideSummary;
-
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.nio.channels.FileChannel;
+import com.opentt.rideout.RideDataContract.Rides;
 
 public class RideDataDbHelper extends SQLiteOpenHelper{
     private static final String TAG = "RideDataDbHelper";
 
     public static final String DATABASE_NAME = "RideData.db";
-    public static final int DATABASE_VERSION = 1;
+    public static final int DATABASE_VERSION = 14;
 
-    private static final String TEXT_TYPE = " TEXT";
+    private static final String INTEGER_TYPE = " INTEGER";
+    private static final String REAL_TYPE = " REAL";
     private static final String COMMA_SEP = ",";
+
+    /* Timestamps are epoch milliseconds, durations are milliseconds */
     private static final String SQL_CREATE_DATA_TABLE =
             "CREATE TABLE IF NOT EXISTS " + RideDataContract.RideData.TABLE_NAME + " (" +
                     RideData._ID    + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
-                    RideData.RIDE_ID        + TEXT_TYPE + COMMA_SEP +
-                    RideData.TIME_STAMP     + TEXT_TYPE + COMMA_SEP +
-                    RideData.LATITUDE       + TEXT_TYPE + COMMA_SEP +
-                    RideData.LONGITUDE      + TEXT_TYPE + COMMA_SEP +
-                    RideData.ALTITUDE       + TEXT_TYPE + COMMA_SEP +
-                    RideData.SPEED          + TEXT_TYPE + COMMA_SEP +
-                    RideData.BEARING        + TEXT_TYPE + COMMA_SEP +
-                    RideData.ACCELERATION_X + TEXT_TYPE + COMMA_SEP +
-                    RideData.ACCELERATION_Y + TEXT_TYPE + COMMA_SEP +
-                    RideData.ACCELERATION_Z + TEXT_TYPE + COMMA_SEP +
-                    RideData.LEAN_ANGLE     + TEXT_TYPE + " )";
+                    RideData.RIDE_ID        + INTEGER_TYPE + COMMA_SEP +
+                    RideData.TIME_STAMP     + INTEGER_TYPE + COMMA_SEP +
+                    RideData.LATITUDE       + REAL_TYPE + COMMA_SEP +
+                    RideData.LONGITUDE      + REAL_TYPE + COMMA_SEP +
+                    RideData.ALTITUDE       + REAL_TYPE + COMMA_SEP +
+                    RideData.SPEED          + REAL_TYPE + COMMA_SEP +
+                    RideData.BEARING        + REAL_TYPE + COMMA_SEP +
+                    RideData.ACCELERATION_X + REAL_TYPE + COMMA_SEP +
+                    RideData.ACCELERATION_Y + REAL_TYPE + COMMA_SEP +
+                    RideData.ACCELERATION_Z + REAL_TYPE + COMMA_SEP +
+                    RideData.LEAN_ANGLE     + REAL_TYPE + COMMA_SEP +
+                    RideData.ELAPSED_NANOS  + INTEGER_TYPE + COMMA_SEP +
+                    RideData.DISTANCE       + REAL_TYPE + COMMA_SEP +
+                    RideData.ELAPSED_TIME   + INTEGER_TYPE + " )";
 
     private static final String SQL_CREATE_SUMMARY_TABLE =
             "CREATE TABLE IF NOT EXISTS "  + RideSummary.TABLE_NAME + " (" +
                     RideSummary._ID        + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
-                    RideSummary.RIDE_ID            + TEXT_TYPE + COMMA_SEP +
-                    RideSummary.LATITUDE           + TEXT_TYPE + COMMA_SEP +
-                    RideSummary.LONGITUDE          + TEXT_TYPE + COMMA_SEP +
-                    RideSummary.TIME_STAMP         + TEXT_TYPE + COMMA_SEP +
-                    RideSummary.DURATION           + TEXT_TYPE + COMMA_SEP +
-                    RideSummary.DISTANCE_TRAVELLED + TEXT_TYPE + COMMA_SEP +
-                    RideSummary.MAX_SPEED          + TEXT_TYPE + COMMA_SEP +
-                    RideSummary.MAX_LEAN_ANGLE     + TEXT_TYPE + " )";
+                    RideSummary.RIDE_ID            + INTEGER_TYPE + COMMA_SEP +
+                    RideSummary.LATITUDE           + REAL_TYPE + COMMA_SEP +
+                    RideSummary.LONGITUDE          + REAL_TYPE + COMMA_SEP +
+                    RideSummary.TIME_STAMP         + INTEGER_TYPE + COMMA_SEP +
+                    RideSummary.DURATION           + INTEGER_TYPE + COMMA_SEP +
+                    RideSummary.DISTANCE_TRAVELLED + REAL_TYPE + COMMA_SEP +
+                    RideSummary.MAX_SPEED          + REAL_TYPE + COMMA_SEP +
+                    RideSummary.MAX_LEAN_ANGLE     + REAL_TYPE + COMMA_SEP +
+                    RideSummary.MOVING_TIME        + INTEGER_TYPE + COMMA_SEP +
+                    RideSummary.AVERAGE_SPEED      + REAL_TYPE + COMMA_SEP +
+                    RideSummary.ELEVATION_GAIN     + REAL_TYPE + " )";
+
+    /* Summaries written before version 5 have no moving time and need rebuilding from their data */
+    private static final String SQL_STALE_SUMMARY_SELECTION =
+            RideSummary.MOVING_TIME + " IS NULL";
+
+    /* AUTOINCREMENT so a rideID is never reused, even after its ride is deleted */
+    private static final String SQL_CREATE_RIDES_TABLE =
+            "CREATE TABLE IF NOT EXISTS " + Rides.TABLE_NAME + " (" +
+                    Rides._ID        + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                    Rides.START_TIME + INTEGER_TYPE + COMMA_SEP +
+                    Rides.END_TIME   + INTEGER_TYPE + COMMA_SEP +
+                    Rides.STATE      + INTEGER_TYPE + COMMA_SEP +
+                    Rides.DETAIL     + INTEGER_TYPE + COMMA_SEP +
+                    Rides.PINNED     + INTEGER_TYPE + " )";
+
+    /* Sensor timestamps are elapsedRealtimeNanos, the clock of Location.getElapsedRealtimeNanos */
+    private static final String SQL_CREATE_IMU_TABLE =
+            "CREATE TABLE IF NOT EXISTS " + ImuData.TABLE_NAME + " (" +
+                    ImuData._ID           + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                    ImuData.RIDE_ID       + INTEGER_TYPE + COMMA_SEP +
+                    ImuData.ELAPSED_NANOS + INTEGER_TYPE + COMMA_SEP +
+                    ImuData.SENSOR_TYPE   + INTEGER_TYPE + COMMA_SEP +
+                    ImuData.X             + REAL_TYPE + COMMA_SEP +
+                    ImuData.Y             + REAL_TYPE + COMMA_SEP +
+                    ImuData.Z             + REAL_TYPE + " )";
+
+    public static final String IMU_INDEX = ImuData.TABLE_NAME + "_ride_idx";
+
+    private static final String SQL_CREATE_IMU_INDEX =
+            "CREATE INDEX IF NOT EXISTS " + IMU_INDEX + " ON " + ImuData.TABLE_NAME + " (" +
+                    ImuData.RIDE_ID       + COMMA_SEP +
+                    ImuData.ELAPSED_NANOS + " )";
+
+    /* Rides recorded before the rides table existed, taken from their summaries and data */
+    private static final String SQL_BACKFILL_RIDES_FROM_SUMMARY =
+            "INSERT OR IGNORE INTO " + Rides.TABLE_NAME + " (" +
+                    Rides._ID + COMMA_SEP + Rides.START_TIME + COMMA_SEP +
+                    Rides.END_TIME + COMMA_SEP + Rides.STATE + ") SELECT " +
+                    RideSummary.RIDE_ID + COMMA_SEP + RideSummary.TIME_STAMP + COMMA_SEP +
+                    RideSummary.TIME_STAMP + " + " + RideSummary.DURATION + COMMA_SEP +
+                    Rides.STATE_FINISHED + " FROM " + RideSummary.TABLE_NAME;
+
+    private static final String SQL_BACKFILL_RIDES_FROM_DATA =
+            "INSERT OR IGNORE INTO " + Rides.TABLE_NAME + " (" +
+                    Rides._ID + COMMA_SEP + Rides.START_TIME + COMMA_SEP +
+                    Rides.END_TIME + COMMA_SEP + Rides.STATE + ") SELECT " +
+                    RideData.RIDE_ID + COMMA_SEP +
+                    "MIN(" + RideData.TIME_STAMP + ")" + COMMA_SEP +
+                    "MAX(" + RideData.TIME_STAMP + ")" + COMMA_SEP +
+                    Rides.STATE_FINISHED + " FROM " + RideData.TABLE_NAME +
+                    " GROUP BY " + RideData.RIDE_ID;
+
+    /* Every ride read filters by rideID and walks the ride in _id order. The track index
+     * serves them all, counts and row lookups included, and also covers the columns playback
+     * plots. */
+    public static final String TRACK_INDEX = RideData.TABLE_NAME + "_track_idx";
+
+    /* Versions 3 to 13 also had (rideID, _id), which only repeated the track index's prefix */
+    private static final String RIDE_INDEX = RideData.TABLE_NAME + "_ride_idx";
+
+    private static final String SQL_CREATE_TRACK_INDEX =
+            "CREATE INDEX IF NOT EXISTS " + TRACK_INDEX + " ON " + RideData.TABLE_NAME + " (" +
+                    RideData.RIDE_ID    + COMMA_SEP +
+                    RideData._ID        + COMMA_SEP +
+                    RideData.LATITUDE   + COMMA_SEP +
+                    RideData.LONGITUDE  + COMMA_SEP +
+                    RideData.SPEED      + COMMA_SEP +
+                    RideData.LEAN_ANGLE + " )";
+
+    private static final String SQL_RIDE_SELECTION = RideData.RIDE_ID + " = ?";
+    private static final String SQL_RIDE_ORDER = RideData._ID + " ASC";
+
+    /** Version 1 schema: every column TEXT, timestamps formatted as yyyy-MM-dd'T'HH:mm:ss.SSSZ
+     *  (or epoch milliseconds for rows written by later builds) and durations as HH:MM:SS */
+
+    /* Names the v1 tables are moved to while their rows are copied */
+    private static final String V1_DATA_TABLE = RideData.TABLE_NAME + "_v1";
+    private static final String V1_SUMMARY_TABLE = RideSummary.TABLE_NAME + "_v1";
+
+    private static final String SQL_COPY_V1_DATA =
+            "INSERT INTO " + RideData.TABLE_NAME + " (" +
+                    RideData._ID            + COMMA_SEP +
+                    RideData.RIDE_ID        + COMMA_SEP +
+                    RideData.TIME_STAMP     + COMMA_SEP +
+                    RideData.LATITUDE       + COMMA_SEP +
+                    RideData.LONGITUDE      + COMMA_SEP +
+                    RideData.ALTITUDE       + COMMA_SEP +
+                    RideData.SPEED          + COMMA_SEP +
+                    RideData.BEARING        + COMMA_SEP +
+                    RideData.ACCELERATION_X + COMMA_SEP +
+                    RideData.ACCELERATION_Y + COMMA_SEP +
+                    RideData.ACCELERATION_Z + COMMA_SEP +
+                    RideData.LEAN_ANGLE     + ") SELECT " +
+                    RideData._ID            + COMMA_SEP +
+                    castInteger(RideData.RIDE_ID)     + COMMA_SEP +
+                    v1TimeStamp(RideData.TIME_STAMP)  + COMMA_SEP +
+                    castReal(RideData.LATITUDE)       + COMMA_SEP +
+                    castReal(RideData.LONGITUDE)      + COMMA_SEP +
+                    castReal(RideData.ALTITUDE)       + COMMA_SEP +
+                    castReal(RideData.SPEED)          + COMMA_SEP +
+                    castReal(RideData.BEARING)        + COMMA_SEP +
+                    castReal(RideData.ACCELERATION_X) + COMMA_SEP +
+                    castReal(RideData.ACCELERATION_Y) + COMMA_SEP +
+                    castReal(RideData.ACCELERATION_Z) + COMMA_SEP +
+                    castReal(RideData.LEAN_ANGLE)     +
+                    " FROM " + V1_DATA_TABLE;
+
+    private static final String SQL_COPY_V1_SUMMARY =
+            "INSERT INTO " + RideSummary.TABLE_NAME + " (" +
+                    RideSummary._ID                + COMMA_SEP +
+                    RideSummary.RIDE_ID            + COMMA_SEP +
+                    RideSummary.LATITUDE           + COMMA_SEP +
+                    RideSummary.LONGITUDE          + COMMA_SEP +
+                    RideSummary.TIME_STAMP         + COMMA_SEP +
+                    RideSummary.DURATION           + COMMA_SEP +
+                    RideSummary.DISTANCE_TRAVELLED + COMMA_SEP +
+                    RideSummary.MAX_SPEED          + COMMA_SEP +
+                    RideSummary.MAX_LEAN_ANGLE     + ") SELECT " +
+                    RideSummary._ID                + COMMA_SEP +
+                    castInteger(RideSummary.RIDE_ID)          + COMMA_SEP +
+                    castReal(RideSummary.LATITUDE)            + COMMA_SEP +
+                    castReal(RideSummary.LONGITUDE)           + COMMA_SEP +
+                    v1TimeStamp(RideSummary.TIME_STAMP)       + COMMA_SEP +
+                    v1Duration(RideSummary.DURATION)          + COMMA_SEP +
+                    castReal(RideSummary.DISTANCE_TRAVELLED)  + COMMA_SEP +
+                    castReal(RideSummary.MAX_SPEED)           + COMMA_SEP +
+                    castReal(RideSummary.MAX_LEAN_ANGLE)      +
+                    " FROM " + V1_SUMMARY_TABLE;
 
 
     private static final String SQL_DELETE_DATA_TABLE =
@@ -74,20 +210,116 @@ public class RideDataDbHelper extends SQLiteOpenHelper{
     private static final String SQL_DELETE_SUMMARY_TABLE =
             "DROP TABLE IF EXISTS " + RideSummary.TABLE_NAME;
 
-    public RideDataDbHelper(Context context){
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    private static final String SQL_DELETE_RIDES_TABLE =
+            "DROP TABLE IF EXISTS " + Rides.TABLE_NAME;
+
+    private static final String SQL_DELETE_IMU_TABLE =
+            "DROP TABLE IF EXISTS " + ImuData.TABLE_NAME;
+
+    /* Pages freed by deleting rows are handed back a few at a time by RideMaintenanceService,
+     * rather than by a VACUUM rewriting the whole file */
+    public static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    private static RideDataDbHelper sInstance;
+
+    private final Context mContext;
+
+    /* Consumers holding the database open; it's closed when the last lets go */
+    private int mReferences;
+    private SQLiteDatabase mDatabase;
+
+    /**
+     * The process-wide owner of the ride database. Share it, rather than constructing helpers
+     * of your own, so that every consumer shares one connection pool and its page cache.
+     */
+    public static synchronized RideDataDbHelper getInstance(Context context){
+        if (sInstance == null){
+            sInstance = new RideDataDbHelper(context);
+        }
+        return sInstance;
+    }
+
+    /* Tests construct their own to create the schema in a database of their own */
+    RideDataDbHelper(Context context){
+        super(context.getApplicationContext(), DATABASE_NAME, null, DATABASE_VERSION);
+        mContext = context.getApplicationContext();
+    }
+
+    /**
+     * Opens the database, or shares it if it's already open. Every call must be paired with
+     * {@link #releaseDatabase()}; don't close the database yourself.
+     *
+     * The database is always writable. Queries may run on any thread, alongside the writer's
+     * transactions.
+     */
+    public synchronized SQLiteDatabase acquireDatabase(){
+        if (mReferences == 0 || mDatabase == null || !mDatabase.isOpen()){
+            mDatabase = getWritableDatabase();
+        }
+        mReferences++;
+        return mDatabase;
+    }
+
+    /** Lets go of the database; the last consumer to let go closes it */
+    public synchronized void releaseDatabase(){
+        if (mReferences == 0){
+            throw new IllegalStateException("Database released more often than acquired");
+        }
+        if (--mReferences == 0){
+            close();
+            mDatabase = null;
+        }
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db){
+        // Only takes effect on a new database; an existing one keeps its vacuum mode until
+        // it's next vacuumed
+        db.execSQL("PRAGMA auto_vacuum = " + AUTO_VACUUM_INCREMENTAL);
+        // Readers get connections of their own and don't wait for the writer's commits.
+        // Switched on here rather than by setWriteAheadLoggingEnabled, which switches as the
+        // file opens: that writes the header of a new database before auto_vacuum is set,
+        // and leaves it without.
+        db.enableWriteAheadLogging();
     }
 
     public void onCreate(SQLiteDatabase db){
         db.execSQL(SQL_CREATE_DATA_TABLE);
         db.execSQL(SQL_CREATE_SUMMARY_TABLE);
+        db.execSQL(SQL_CREATE_RIDES_TABLE);
+        db.execSQL(SQL_CREATE_TRACK_INDEX);
+        db.execSQL(SQL_CREATE_IMU_TABLE);
+        db.execSQL(SQL_CREATE_IMU_INDEX);
+        db.execSQL(RideDataMigration.SQL_CREATE_STATE_TABLE);
+        db.execSQL(SampleJournal.SQL_CREATE_STATE_TABLE);
+        db.execSQL(RideTrackLevels.SQL_CREATE_TABLE);
+        RideSegmentIndex.create(db);
         Log.i(TAG, "Database Path = " + db.getPath());
     }
 
-    public void clearDb(SQLiteDatabase db){
+    /**
+     * Deletes every ride and starts again with empty tables and journal. Refused while a ride
+     * is recording, since its writer has the journal open.
+     *
+     * @return false if the journal is open and nothing was cleared.
+     */
+    public boolean clearDb(SQLiteDatabase db){
+        // The journal's positions restart along with its checkpoint
+        if (!SampleJournal.deleteIfClosed(SampleJournal.getDirectory(mContext))){
+            Log.w(TAG, "Not clearing the database while a ride is recording");
+            return false;
+        }
+
+        RideDataMigration.cancel(db);
         db.execSQL(SQL_DELETE_DATA_TABLE);
         db.execSQL(SQL_DELETE_SUMMARY_TABLE);
+        db.execSQL(SQL_DELETE_RIDES_TABLE);
+        db.execSQL(SQL_DELETE_IMU_TABLE);
+        db.execSQL(RideTrackLevels.SQL_DELETE_TABLE);
+        RideSegmentIndex.drop(db);
+        db.execSQL(SampleJournal.SQL_DELETE_STATE_TABLE);
         onCreate(db);
+        return true;
     }
 
     /**
@@ -112,15 +344,209 @@ public class RideDataDbHelper extends SQLiteOpenHelper{
      */
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion){
-        // TODO: Change method to store old entries in new database
-        db.execSQL(SQL_DELETE_DATA_TABLE);
-        db.execSQL(SQL_DELETE_SUMMARY_TABLE);
+        if (oldVersion < 2) {
+            upgradeToVersion2(db);
+        }
+        if (oldVersion < 3) {
+            db.execSQL(SQL_CREATE_TRACK_INDEX);
+        }
+        if (oldVersion < 4) {
+            upgradeToVersion4(db);
+        }
+        if (oldVersion < 5) {
+            upgradeToVersion5(db);
+        }
+        if (oldVersion < 6) {
+            db.execSQL(SQL_CREATE_IMU_TABLE);
+            db.execSQL(SQL_CREATE_IMU_INDEX);
+        }
+        if (oldVersion < 7 && !hasColumn(db, RideData.TABLE_NAME, RideData.ELAPSED_NANOS)) {
+            // Rows recorded before this have no sensor clock time and can't be re-joined
+            db.execSQL("ALTER TABLE " + RideData.TABLE_NAME + " ADD COLUMN " +
+                    RideData.ELAPSED_NANOS + INTEGER_TYPE);
+        }
+        if (oldVersion < 8) {
+            db.execSQL(SampleJournal.SQL_CREATE_STATE_TABLE);
+        }
+        if (oldVersion < 9 && !hasColumn(db, Rides.TABLE_NAME, Rides.DETAIL)) {
+            // Every ride so far has all its rows
+            db.execSQL("ALTER TABLE " + Rides.TABLE_NAME + " ADD COLUMN " +
+                    Rides.DETAIL + INTEGER_TYPE);
+        }
+        if (oldVersion < 10) {
+            // Rides so far have their levels built when they're first shown
+            db.execSQL(RideTrackLevels.SQL_CREATE_TABLE);
+        }
+        if (oldVersion < 11) {
+            // Rides so far are indexed the first time they're shown close up
+            RideSegmentIndex.create(db);
+        }
+        if (oldVersion < 12 && !hasColumn(db, RideData.TABLE_NAME, RideData.DISTANCE)) {
+            // Rides so far are measured when they're first graphed, or while the phone's idle
+            db.execSQL("ALTER TABLE " + RideData.TABLE_NAME + " ADD COLUMN " +
+                    RideData.DISTANCE + REAL_TYPE);
+            db.execSQL("ALTER TABLE " + RideData.TABLE_NAME + " ADD COLUMN " +
+                    RideData.ELAPSED_TIME + INTEGER_TYPE);
+        }
+        if (oldVersion < 13 && !hasColumn(db, Rides.TABLE_NAME, Rides.PINNED)) {
+            // Rides restored before this aren't pinned and may be reduced again
+            db.execSQL("ALTER TABLE " + Rides.TABLE_NAME + " ADD COLUMN " +
+                    Rides.PINNED + INTEGER_TYPE);
+        }
+        if (oldVersion < 14) {
+            db.execSQL("DROP INDEX IF EXISTS " + RIDE_INDEX);
+        }
+    }
+
+    /**
+     * Moves the all-TEXT v1 tables aside and creates the typed v2 tables. The summaries are
+     * copied straight away; the ride data is left to a background {@link RideDataMigration}.
+     */
+    private void upgradeToVersion2(SQLiteDatabase db){
+        Log.i(TAG, "Upgrading " + getDatabaseName() + " to typed schema v2");
+
+        db.execSQL("ALTER TABLE " + RideData.TABLE_NAME + " RENAME TO " + V1_DATA_TABLE);
+        db.execSQL("ALTER TABLE " + RideSummary.TABLE_NAME + " RENAME TO " + V1_SUMMARY_TABLE);
         onCreate(db);
+
+        db.execSQL(SQL_COPY_V1_SUMMARY);
+        db.execSQL("DROP TABLE " + V1_SUMMARY_TABLE);
+
+        // Rows recorded before the migration finishes must not take the rowids of v1 rows
+        db.execSQL("INSERT INTO sqlite_sequence (name, seq) SELECT '" + RideData.TABLE_NAME +
+                "', IFNULL(MAX(" + RideData._ID + "), 0) FROM " + V1_DATA_TABLE);
+
+        RideDataMigration.schedule(db, V1_DATA_TABLE);
+    }
+
+    /** Creates the rides table and fills it in for every ride recorded so far */
+    private void upgradeToVersion4(SQLiteDatabase db){
+        db.execSQL(SQL_CREATE_RIDES_TABLE);
+        db.execSQL(SQL_BACKFILL_RIDES_FROM_SUMMARY);
+        db.execSQL(SQL_BACKFILL_RIDES_FROM_DATA);
+
+        // Rides still waiting in a v1 table keep their IDs. This scans the v1 table once, and
+        // only when upgrading straight from v1.
+        long pendingRideId = RideDataMigration.getMaxPendingRideId(db);
+        if (pendingRideId > 0){
+            db.execSQL("UPDATE sqlite_sequence SET seq = ? WHERE name = ? AND seq < ?",
+                    new Object[]{pendingRideId, Rides.TABLE_NAME, pendingRideId});
+            db.execSQL("INSERT INTO sqlite_sequence (name, seq) SELECT ?, ? WHERE NOT EXISTS " +
+                    "(SELECT 1 FROM sqlite_sequence WHERE name = ?)",
+                    new Object[]{Rides.TABLE_NAME, pendingRideId, Rides.TABLE_NAME});
+        }
+    }
+
+    /**
+     * Adds the summary columns kept by {@link RideSummaryAccumulator}. Existing summaries are
+     * left NULL and rebuilt from their ride data by {@link RideDataMigration}.
+     */
+    private void upgradeToVersion5(SQLiteDatabase db){
+        // A summary table created during this upgrade already has them
+        if (hasColumn(db, RideSummary.TABLE_NAME, RideSummary.MOVING_TIME)){
+            return;
+        }
+        db.execSQL("ALTER TABLE " + RideSummary.TABLE_NAME + " ADD COLUMN " +
+                RideSummary.MOVING_TIME + INTEGER_TYPE);
+        db.execSQL("ALTER TABLE " + RideSummary.TABLE_NAME + " ADD COLUMN " +
+                RideSummary.AVERAGE_SPEED + REAL_TYPE);
+        db.execSQL("ALTER TABLE " + RideSummary.TABLE_NAME + " ADD COLUMN " +
+                RideSummary.ELEVATION_GAIN + REAL_TYPE);
+    }
+
+    static boolean hasColumn(SQLiteDatabase db, String table, String column){
+        boolean found = false;
+
+        Cursor cursor = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+
+        if (cursor != null){
+            int name = cursor.getColumnIndexOrThrow("name");
+            while (!found && cursor.moveToNext()){
+                found = column.equals(cursor.getString(name));
+            }
+            cursor.close();
+        }
+
+        return found;
+    }
+
+    /** Whether freed pages can be handed back by {@link #incrementalVacuum} */
+    public static boolean isIncrementalVacuumEnabled(SQLiteDatabase db){
+        return DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null) ==
+                AUTO_VACUUM_INCREMENTAL;
+    }
+
+    /**
+     * Switches a database created without incremental vacuuming over to it. This is a full
+     * VACUUM, which rewrites the file and holds off every writer until it's done, so it's only
+     * run once, and only when nothing is recording. Not inside a transaction.
+     */
+    public static void enableIncrementalVacuum(SQLiteDatabase db){
+        long began = System.currentTimeMillis();
+        db.execSQL("PRAGMA auto_vacuum = " + AUTO_VACUUM_INCREMENTAL);
+        db.execSQL("VACUUM");
+        Log.i(TAG, "Enabled incremental vacuum in " + (System.currentTimeMillis() - began) + "ms");
+    }
+
+    /**
+     * Hands back to the file system up to pages of the pages deleted rows have freed. Each page
+     * is a short step, so this holds the writer up for no longer than the pages take.
+     *
+     * @return The number of pages still free afterwards.
+     */
+    public static long incrementalVacuum(SQLiteDatabase db, int pages){
+        // A page per step of the pragma; the cursor has to be read to the end to take them all
+        Cursor cursor = db.rawQuery("PRAGMA incremental_vacuum(" + pages + ")", null);
+        try {
+            cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+        return DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+    }
+
+    /**
+     * Returns the statement a {@link RideDataMigration} runs for each chunk of sourceTable.
+     * It takes the exclusive lower and inclusive upper rowid of the chunk as arguments.
+     */
+    public String getMigrationSql(String sourceTable){
+        if (V1_DATA_TABLE.equals(sourceTable)){
+            return SQL_COPY_V1_DATA + " WHERE " + RideData._ID + " > ? AND " +
+                    RideData._ID + " <= ?";
+        }
+        throw new IllegalArgumentException("No migration for table " + sourceTable);
+    }
+
+    static String castInteger(String column){
+        return "CAST(" + column + " AS INTEGER)";
+    }
+
+    static String castReal(String column){
+        return "CAST(" + column + " AS REAL)";
+    }
+
+    /**
+     * SQL converting a v1 timestamp to epoch milliseconds. Formatted values such as
+     * 2015-05-12T14:03:22.123+0100 get a colon in their zone offset so julianday() accepts them.
+     */
+    static String v1TimeStamp(String column){
+        return "CASE WHEN " + column + " NOT GLOB '*[^0-9]*' THEN " + castInteger(column) +
+                " ELSE CAST(ROUND((julianday(substr(" + column + ",1,26) || ':' || substr(" +
+                column + ",27,2)) - 2440587.5) * 86400000) AS INTEGER) END";
+    }
+
+    /** SQL converting a v1 HH:MM:SS duration to milliseconds. Hours may exceed two digits. */
+    private static String v1Duration(String column){
+        return "CASE WHEN " + column + " NOT GLOB '*[^0-9]*' THEN " + castInteger(column) +
+                " ELSE (CAST(substr(" + column + ",1,length(" + column + ")-6) AS INTEGER) * " +
+                "3600 + CAST(substr(" + column + ",-5,2) AS INTEGER) * 60 + " +
+                "CAST(substr(" + column + ",-2,2) AS INTEGER)) * 1000 END";
     }
 
     /**
      * Called when the database needs to be downgraded. This is strictly similar to
      * {@link #onUpgrade} method, but is called whenever current version is newer than requested one.
+     * Newer schemas only ever add to or retype the older ones, so the rider's data is kept as is.
      *
      * <p>
      * This method executes within a transaction.  If an exception is thrown, all changes
@@ -137,7 +563,8 @@ public class RideDataDbHelper extends SQLiteOpenHelper{
             Log.e(TAG, "Cannot downgrade database to a version greater than its current " +
                   "version: V" + db.getVersion() + " -> " + newVersion + " : " + getDatabaseName());
         } else {
-            onUpgrade(db, oldVersion, newVersion);
+            Log.w(TAG, "Keeping schema V" + oldVersion + " of " + getDatabaseName() +
+                    " for requested version V" + newVersion);
         }
     }
 
@@ -155,150 +582,278 @@ public class RideDataDbHelper extends SQLiteOpenHelper{
      * @param db The database.
      */
     public void onOpen(SQLiteDatabase db){
-        if (db.isReadOnly()){
-            //TODO: Do something
+        if (!db.isReadOnly()){
+            // Resume any migration left unfinished by an upgrade
+            RideDataMigration.startIfPending(mContext, db);
         }
     }
 
-    public boolean isDataTableEmpty(SQLiteDatabase db){
-        boolean flag = false;
+    /**
+     * Allocates the rideID for a new ride. A single insert, however much history exists.
+     *
+     * @param db A writable database.
+     * @param startTime Start of the ride, epoch milliseconds.
+     * @return The new rideID.
+     */
+    public int startRide(SQLiteDatabase db, long startTime){
+        ContentValues values = new ContentValues();
+        values.put(Rides.START_TIME, startTime);
+        values.put(Rides.STATE, Rides.STATE_RECORDING);
 
-        Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM " + RideData.TABLE_NAME, null);
+        long id = db.insert(Rides.TABLE_NAME, null, values);
 
-        if ( cursor != null && cursor.moveToFirst() ){
-             if ( cursor.getInt(0) == 0 ) { // If table is empty, a "0" is placed in row 1, column 0
-                 flag = true;
-                 Log.i(TAG,"Found zero entry in row 1: Table " + RideData.TABLE_NAME + " is empty");
-             }
-            cursor.close();
+        if (id == -1){
+            throw new SQLiteException("Could not start a new ride");
         }
+        return (int) id;
+    }
+
+    public void finishRide(SQLiteDatabase db, int rideID, long endTime){
+        ContentValues values = new ContentValues();
+        values.put(Rides.END_TIME, endTime);
+        values.put(Rides.STATE, Rides.STATE_FINISHED);
 
-        return flag;
+        db.update(Rides.TABLE_NAME, values, Rides._ID + " = ?",
+                new String[]{Integer.toString(rideID)});
     }
 
-    public boolean isRideEntryEmpty(SQLiteDatabase db, int rideID){
+    /**
+     * Finishes every ride still marked as recording, which only happens when the process was
+     * killed mid-ride. The summary is rebuilt from the rows stored and the ride ends at its
+     * last row. Call after the sample journal has been replayed.
+     *
+     * @return The number of rides recovered.
+     */
+    public int recoverRides(SQLiteDatabase db){
+        Cursor cursor = db.query(Rides.TABLE_NAME, new String[]{Rides._ID, Rides.START_TIME},
+                Rides.STATE + " = " + Rides.STATE_RECORDING, null, null, null, null);
 
-        boolean result = true;
+        if (cursor == null){
+            return 0;
+        }
 
-        String query = "SELECT COUNT(*) FROM " + RideData.TABLE_NAME +
-                " WHERE " + RideData.RIDE_ID + " = ? ";
+        int recovered = 0;
+        try {
+            while (cursor.moveToNext()){
+                int rideID = cursor.getInt(0);
+                long endTime = DatabaseUtils.longForQuery(db,
+                        "SELECT IFNULL(MAX(" + RideData.TIME_STAMP + "), ?) FROM " +
+                                RideData.TABLE_NAME + " WHERE " + RideData.RIDE_ID + " = ?",
+                        new String[]{Long.toString(cursor.getLong(1)), Integer.toString(rideID)});
 
-        Cursor cursor = db.rawQuery(query,
-                new String[]{Integer.toString(rideID)});
+                rebuildSummary(db, rideID);
+                finishRide(db, rideID, endTime);
+                recovered++;
 
-        if ((cursor != null) && (cursor.moveToFirst())) {
-            if (cursor.getInt(0) != 0) {
-                result = false;
+                Log.i(TAG, "Recovered unfinished ride " + rideID);
             }
+        } finally {
             cursor.close();
         }
 
-        return result;
+        return recovered;
+    }
+
+    /**
+     * Writes the summary of a ride from its accumulated totals. A single insert, however long
+     * the ride.
+     *
+     * @return The row ID of the summary, or -1 on error.
+     */
+    public long insertSummary(SQLiteDatabase db, int rideID, RideSummaryAccumulator summary){
+        ContentValues values = new ContentValues();
+        values.put(RideSummary.RIDE_ID, rideID);
+        putSummary(values, summary);
+
+        return db.insert(RideSummary.TABLE_NAME, null, values);
     }
 
-    public void exportDB(SQLiteDatabase db){
-        FileChannel source=null;
-        FileChannel destination=null;
-        String currentDBPath = db.getPath();
-        String backupDBPath = "/RideDataBackup";
+    private static void putSummary(ContentValues values, RideSummaryAccumulator summary){
+        values.put(RideSummary.LATITUDE, summary.getStartLatitude());
+        values.put(RideSummary.LONGITUDE, summary.getStartLongitude());
+        values.put(RideSummary.TIME_STAMP, summary.getStartTime());
+        values.put(RideSummary.DURATION, summary.getDuration());
+        values.put(RideSummary.DISTANCE_TRAVELLED, summary.getDistance());
+        values.put(RideSummary.MAX_SPEED, summary.getMaxSpeed());
+        values.put(RideSummary.MAX_LEAN_ANGLE, summary.getMaxLeanAngle());
+        values.put(RideSummary.MOVING_TIME, summary.getMovingTime());
+        values.put(RideSummary.AVERAGE_SPEED, summary.getAverageSpeed());
+        values.put(RideSummary.ELEVATION_GAIN, summary.getElevationGain());
+    }
 
-        Log.i(TAG,"src db at path: " + currentDBPath);
+    /**
+     * Recomputes the summary of a recorded ride by streaming its rows through a
+     * {@link RideSummaryAccumulator}, replacing whatever summary it had.
+     */
+    public void rebuildSummary(SQLiteDatabase db, int rideID){
+        RideSummaryAccumulator summary = new RideSummaryAccumulator();
 
-        // Check to see if external storage is writable
-        if ( isExternalStorageWritable() ) {
+        Cursor cursor = queryRide(db, rideID, new String[]{RideData.TIME_STAMP,
+                RideData.LATITUDE, RideData.LONGITUDE, RideData.ALTITUDE, RideData.SPEED,
+                RideData.LEAN_ANGLE});
 
-            File currentDB = new File(currentDBPath);
+        if (cursor != null){
+            while (cursor.moveToNext()){
+                summary.add(cursor.getLong(0), cursor.getDouble(1), cursor.getDouble(2),
+                        cursor.getDouble(3), cursor.getDouble(4), cursor.getDouble(5));
+            }
+            cursor.close();
+        }
 
-            String root = Environment.
-                    getExternalStorageDirectory().getAbsolutePath();
+        String[] where = {Integer.toString(rideID)};
 
-            File backupDbDir = new File(root + backupDBPath);
-            if ( !backupDbDir.exists() ) {
-                if( !backupDbDir.mkdir() ) Log.e(TAG,"Could not make backup directory");
+        db.beginTransaction();
+        try {
+            db.delete(RideSummary.TABLE_NAME, RideSummary.RIDE_ID + " = ?", where);
+            if (summary.getSampleCount() > 0 && insertSummary(db, rideID, summary) == -1){
+                throw new SQLiteException("Could not rebuild summary of ride " + rideID);
             }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
 
-            File backupDB = new File(backupDbDir,"backup.db");
+    public static boolean hasStaleSummaries(SQLiteDatabase db){
+        return DatabaseUtils.queryNumEntries(db, RideSummary.TABLE_NAME,
+                SQL_STALE_SUMMARY_SELECTION) > 0;
+    }
 
-            if (!backupDB.exists()) {
+    /** Rebuilds, one ride at a time, every summary written before version 5 */
+    public void rebuildStaleSummaries(SQLiteDatabase db){
+        Cursor cursor = db.query(RideSummary.TABLE_NAME, new String[]{RideSummary.RIDE_ID},
+                SQL_STALE_SUMMARY_SELECTION, null, null, null, RideSummary.RIDE_ID + " ASC");
 
-                try {
-                    Log.i(TAG,"Attempting to create new file at: " + backupDB.getPath());
-                    backupDB.createNewFile();
-                } catch (IOException ex){
-                    Log.e(TAG, "Failed to create new file");
-                    ex.printStackTrace();
-                }
+        if (cursor != null){
+            while (cursor.moveToNext()){
+                rebuildSummary(db, cursor.getInt(0));
             }
+            cursor.close();
+        }
+    }
 
-            try {
-                source = new FileInputStream(currentDB).getChannel();
-                destination = new FileOutputStream(backupDB).getChannel();
-                destination.transferFrom(source, 0, source.size());
-                source.close();
-                destination.close();
-                Log.i(TAG, "Database Exported to " + backupDB.getPath());
-                //Toast.makeText(this, "DB Exported!", Toast.LENGTH_LONG).show();
-            } catch (IOException e) {
-                e.printStackTrace();
+    /**
+     * Re-joins the stored sensor channels of a ride onto fix times, in one pass over each table.
+     * Axis a (0 x, 1 y, 2 z) of sensorTypes[i] is fed to merger channel
+     * {@link ImuLocationMerger#channel ImuLocationMerger.channel(i, a)}.
+     *
+     * @param periodNanos Spacing of the fixes, or 0 for the ride's own location fixes.
+     */
+    public static void rejoinImu(SQLiteDatabase db, int rideID, int[] sensorTypes,
+                                 long periodNanos, ImuLocationMerger merger){
+        String[] where = {Integer.toString(rideID)};
+
+        Cursor imu = db.rawQuery("SELECT " + ImuData.ELAPSED_NANOS + COMMA_SEP +
+                ImuData.SENSOR_TYPE + COMMA_SEP + ImuData.X + COMMA_SEP + ImuData.Y + COMMA_SEP +
+                ImuData.Z + " FROM " + ImuData.TABLE_NAME + " WHERE " + ImuData.RIDE_ID +
+                " = ? ORDER BY " + ImuData.ELAPSED_NANOS + " ASC", where);
+
+        Cursor fixes = null;
+        if (periodNanos <= 0){
+            fixes = db.rawQuery("SELECT " + RideData.ELAPSED_NANOS + " FROM " +
+                    RideData.TABLE_NAME + " WHERE " + SQL_RIDE_SELECTION + " AND " +
+                    RideData.ELAPSED_NANOS + " IS NOT NULL ORDER BY " + SQL_RIDE_ORDER, where);
+        }
+
+        try {
+            boolean hasReading = imu.moveToNext();
+            boolean hasFix;
+            long fixNanos;
+
+            if (fixes != null){
+                hasFix = fixes.moveToNext();
+                fixNanos = hasFix ? fixes.getLong(0) : 0;
+            } else {
+                hasFix = hasReading;
+                fixNanos = hasReading ? imu.getLong(0) + periodNanos : 0;
             }
 
-        } else{
-            Log.e(TAG, "External Storage not Writable");
+            while (hasReading || hasFix){
+                // Readings at the fix time belong to its window
+                if (hasReading && (!hasFix || imu.getLong(0) <= fixNanos)){
+                    int stream = indexOf(sensorTypes, imu.getInt(1));
+                    if (stream >= 0){
+                        for (int axis = 0; axis < ImuLocationMerger.AXES; axis++){
+                            merger.addReading(ImuLocationMerger.channel(stream, axis),
+                                    imu.getLong(0), imu.getDouble(2 + axis));
+                        }
+                    }
+                    hasReading = imu.moveToNext();
+                } else {
+                    merger.addFix(fixNanos);
+                    if (fixes != null){
+                        hasFix = fixes.moveToNext();
+                        fixNanos = hasFix ? fixes.getLong(0) : 0;
+                    } else {
+                        // Synthetic fixes run until the readings do
+                        hasFix = hasReading;
+                        fixNanos += periodNanos;
+                    }
+                }
+            }
+            merger.flush();
+        } finally {
+            imu.close();
+            if (fixes != null){
+                fixes.close();
+            }
         }
     }
 
-    public static void importDb(){
-        FileChannel source = null;
-        FileChannel destination = null;
-        String importPATH = "/RideDataBackup";
-        String destinationPATH = "/data/data/com.opentt.rideout/databases/RideData.db";
-
-        // Check to see if external storage is writable
-        if ( isExternalStorageWritable() ) {
+    private static int indexOf(int[] values, int value){
+        for (int i = 0; i < values.length; i++){
+            if (values[i] == value){
+                return i;
+            }
+        }
+        return -1;
+    }
 
-            File destinationDB = new File(destinationPATH);
+    /**
+     * Whether there are no ride summaries. Every finished ride keeps its summary, even once
+     * {@link RideRetention} has moved its rows to the archive.
+     */
+    public boolean isSummaryTableEmpty(SQLiteDatabase db){
+        return DatabaseUtils.queryNumEntries(db, RideSummary.TABLE_NAME) == 0;
+    }
 
-            String root = Environment.
-                    getExternalStorageDirectory().getAbsolutePath();
+    /**
+     * Builds the query for one ride's rows in recording order. Every per-ride read goes
+     * through here so that it is served by {@link #TRACK_INDEX}.
+     *
+     * @param projection The columns to return.
+     * @return SQL taking the rideID as its only argument.
+     */
+    public static String buildRideQuery(String[] projection){
+        return SQLiteQueryBuilder.buildQueryString(false, RideData.TABLE_NAME, projection,
+                SQL_RIDE_SELECTION, null, null, SQL_RIDE_ORDER, null);
+    }
 
-            File importDir = new File(root + importPATH);
-            if ( importDir.exists() ) {
+    public static Cursor queryRide(SQLiteDatabase db, int rideID, String[] projection){
+        return db.rawQuery(buildRideQuery(projection), new String[]{Integer.toString(rideID)});
+    }
 
-                File importDB = new File(importDir, "backup.db");
+    public static String buildRideCountQuery(){
+        return "SELECT COUNT(*) FROM " + RideData.TABLE_NAME + " WHERE " + SQL_RIDE_SELECTION;
+    }
 
-                if (importDB.exists()) {
+    public boolean isRideEntryEmpty(SQLiteDatabase db, int rideID){
 
-                    try {
-                        source = new FileInputStream(importDB).getChannel();
-                        destination = new FileOutputStream(destinationDB).getChannel();
-                        destination.transferFrom(source, 0, source.size());
-                        source.close();
-                        destination.close();
-                        Log.i(TAG, "Backup database imported to " + destinationDB.getPath());
-                        //Toast.makeText(this, "DB Exported!", Toast.LENGTH_LONG).show();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
+        boolean result = true;
 
-                } else {
-                    Log.e(TAG, "Backup database does not exist");
-                }
+        String query = buildRideCountQuery();
 
+        Cursor cursor = db.rawQuery(query,
+                new String[]{Integer.toString(rideID)});
 
-            } else {
-                Log.e(TAG, "Backup directory does not exist");
+        if ((cursor != null) && (cursor.moveToFirst())) {
+            if (cursor.getInt(0) != 0) {
+                result = false;
             }
-
-        } else{
-            Log.e(TAG, "External Storage not readable");
+            cursor.close();
         }
 
-    }
-
-    /* Checks if external storage is available for read and write */
-    private static boolean isExternalStorageWritable() {
-        String state = Environment.getExternalStorageState();
-        return Environment.MEDIA_MOUNTED.equals(state);
+        return result;
     }
 
 }
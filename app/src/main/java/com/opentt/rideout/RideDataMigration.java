@@ -0,0 +1,247 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Background, resumable copy of rows from a retired table into its replacement.
+ *
+ * {@link RideDataDbHelper#onUpgrade} moves the old table aside and calls {@link #schedule}
+ * instead of converting every row inside the upgrade transaction. A background thread then
+ * copies the rows in rowid ranges of {@link #CHUNK_SIZE}, each range in its own transaction
+ * together with a checkpoint in {@link #TABLE_NAME}. An interrupted migration resumes from the
+ * last committed range the next time the database is opened. The copy itself is a single
+ * INSERT ... SELECT per range, so memory use doesn't depend on the size of the table.
+ *
+ * Rows are copied oldest first, so finished rides become readable in the new table while the
+ * rest are still converting.
+ *
+ * Once every table is copied the same thread rebuilds the ride summaries written by older
+ * versions, see {@link RideDataDbHelper#rebuildStaleSummaries}.
+ */
+public class RideDataMigration implements Runnable {
+
+    /* Log TAG */
+    private static final String TAG = "RideDataMigration";
+
+    private static final String MIGRATION_THREAD_NAME = "rideDataMigration";
+
+    /* Rowids copied per transaction */
+    public static final int CHUNK_SIZE = 2000;
+
+    /** Checkpoint table, one row per table still being migrated */
+    public static final String TABLE_NAME = "migration_state";
+    public static final String SOURCE_TABLE = "source_table";
+    public static final String LAST_ID = "last_id";
+    public static final String MAX_ID = "max_id";
+
+    public static final String SQL_CREATE_STATE_TABLE =
+            "CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (" +
+                    SOURCE_TABLE + " TEXT PRIMARY KEY," +
+                    LAST_ID      + " INTEGER," +
+                    MAX_ID       + " INTEGER )";
+
+    /* Only one migration thread per process */
+    private static final AtomicBoolean running = new AtomicBoolean(false);
+
+    private final Context context;
+
+    private RideDataMigration(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    /**
+     * Records that every row of sourceTable has to be copied. Must be called from within
+     * onUpgrade, after the replacement table has been created.
+     */
+    public static void schedule(SQLiteDatabase db, String sourceTable) {
+        db.execSQL(SQL_CREATE_STATE_TABLE);
+
+        ContentValues values = new ContentValues();
+        values.put(SOURCE_TABLE, sourceTable);
+        values.put(LAST_ID, 0);
+        values.put(MAX_ID, DatabaseUtils.longForQuery(db,
+                "SELECT IFNULL(MAX(_id), 0) FROM " + sourceTable, null));
+        db.insertWithOnConflict(TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+
+        Log.i(TAG, "Scheduled migration of " + sourceTable);
+    }
+
+    public static boolean isPending(SQLiteDatabase db) {
+        long tables = DatabaseUtils.longForQuery(db,
+                "SELECT COUNT(*) FROM sqlite_master WHERE type = 'table' AND name = ?",
+                new String[]{TABLE_NAME});
+
+        return tables > 0 && DatabaseUtils.queryNumEntries(db, TABLE_NAME) > 0;
+    }
+
+    /**
+     * Largest rideID still waiting in a source table, so new rides don't reuse one. Returns 0
+     * when nothing is pending.
+     */
+    public static int getMaxPendingRideId(SQLiteDatabase db) {
+        int max = 0;
+
+        if ( !isPending(db) ) {
+            return max;
+        }
+
+        Cursor cursor = db.query(TABLE_NAME, new String[]{SOURCE_TABLE},
+                null, null, null, null, null);
+
+        if ( cursor != null ) {
+            while ( cursor.moveToNext() ) {
+                max = Math.max(max, (int) DatabaseUtils.longForQuery(db,
+                        "SELECT IFNULL(MAX(CAST(" + RideDataContract.RideData.RIDE_ID +
+                                " AS INTEGER)), 0) FROM " + cursor.getString(0), null));
+            }
+            cursor.close();
+        }
+
+        return max;
+    }
+
+    /** Starts the migration thread if there is work left and it isn't already running */
+    public static void startIfPending(Context context, SQLiteDatabase db) {
+        if ( db.isReadOnly() ||
+                !(isPending(db) || RideDataDbHelper.hasStaleSummaries(db)) ) {
+            return;
+        }
+
+        if ( running.compareAndSet(false, true) ) {
+            new Thread(new RideDataMigration(context), MIGRATION_THREAD_NAME).start();
+        }
+    }
+
+    /** Abandons every pending migration and drops its source tables */
+    public static void cancel(SQLiteDatabase db) {
+        if ( !isPending(db) ) {
+            return;
+        }
+
+        Cursor cursor = db.query(TABLE_NAME, new String[]{SOURCE_TABLE},
+                null, null, null, null, null);
+
+        if ( cursor != null ) {
+            while ( cursor.moveToNext() ) {
+                db.execSQL("DROP TABLE IF EXISTS " + cursor.getString(0));
+            }
+            cursor.close();
+        }
+
+        db.delete(TABLE_NAME, null, null);
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+        // Held until the migration stops, so consumers letting go can't close it under us
+        RideDataDbHelper helper = RideDataDbHelper.getInstance(context);
+        SQLiteDatabase db = null;
+
+        try {
+            db = helper.acquireDatabase();
+            String sourceTable;
+
+            while ( (sourceTable = nextSourceTable(db)) != null ) {
+                migrate(db, helper, sourceTable);
+            }
+
+            // Summaries need every row of their ride, so only once nothing is left to copy
+            helper.rebuildStaleSummaries(db);
+        } catch (SQLiteException ex) {
+            Log.e(TAG, "Migration stopped, will resume on next open", ex);
+        } finally {
+            if ( db != null ) {
+                helper.releaseDatabase();
+            }
+            running.set(false);
+        }
+    }
+
+    private static String nextSourceTable(SQLiteDatabase db) {
+        String sourceTable = null;
+
+        Cursor cursor = db.query(TABLE_NAME, new String[]{SOURCE_TABLE},
+                null, null, null, null, null, "1");
+
+        if ( cursor != null ) {
+            if ( cursor.moveToFirst() ) {
+                sourceTable = cursor.getString(0);
+            }
+            cursor.close();
+        }
+
+        return sourceTable;
+    }
+
+    private static void migrate(SQLiteDatabase db, RideDataDbHelper helper, String sourceTable) {
+        String copySql = helper.getMigrationSql(sourceTable);
+        String[] where = {sourceTable};
+
+        long lastId = DatabaseUtils.longForQuery(db,
+                "SELECT " + LAST_ID + " FROM " + TABLE_NAME + " WHERE " + SOURCE_TABLE + " = ?",
+                where);
+        long maxId = DatabaseUtils.longForQuery(db,
+                "SELECT " + MAX_ID + " FROM " + TABLE_NAME + " WHERE " + SOURCE_TABLE + " = ?",
+                where);
+
+        Log.i(TAG, "Migrating " + sourceTable + " from rowid " + lastId + " of " + maxId);
+
+        ContentValues checkpoint = new ContentValues();
+
+        while ( lastId < maxId ) {
+            long upperId = Math.min(lastId + CHUNK_SIZE, maxId);
+
+            db.beginTransaction();
+            try {
+                db.execSQL(copySql, new Object[]{lastId, upperId});
+
+                checkpoint.put(LAST_ID, upperId);
+                db.update(TABLE_NAME, checkpoint, SOURCE_TABLE + " = ?", where);
+
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+
+            lastId = upperId;
+        }
+
+        db.beginTransaction();
+        try {
+            db.execSQL("DROP TABLE IF EXISTS " + sourceTable);
+            db.delete(TABLE_NAME, SOURCE_TABLE + " = ?", where);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        Log.i(TAG, "Finished migrating " + sourceTable);
+    }
+}
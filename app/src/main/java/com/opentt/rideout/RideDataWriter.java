@@ -0,0 +1,426 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Process;
+import android.util.Log;
+
+import com.opentt.rideout.RideDataContract.RideData;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Journal-first writer for {@link RideData} rows.
+ *
+ * The acquisition thread fills in the sample from {@link #obtain()} and hands it to
+ * {@link #write(RideSample)}, which appends it to the {@link SampleJournal}. That is the only
+ * write on the acquisition side; it never touches SQLite and never waits on it. A dedicated
+ * compactor thread copies journalled samples into ride_data through a precompiled statement,
+ * up to {@link #MAX_BATCH_SIZE} per transaction, and moves the journal checkpoint in the same
+ * transaction. It wakes once a full batch is waiting or every {@link #MAX_BATCH_AGE_MILLIS}.
+ *
+ * A failed transaction leaves the samples in the journal to be retried, and samples a killed
+ * process never compacted are picked up by {@link #replay()} on the next start. A batch that
+ * fails {@link #MAX_ATTEMPTS} times is retried a sample at a time, and a sample that fails
+ * that often on its own is logged and skipped, so one bad sample can't hold up the rest. Any
+ * other error stops the compactor for good; from then on samples are dropped rather than
+ * journalled, and what the journal already holds waits there for the next start.
+ *
+ * Each row is stored with its {@link RideData#DISTANCE} along the track and {@link
+ * RideData#ELAPSED_TIME}, from a {@link TrackOdometer} the compactor carries from row to row.
+ * It picks up from the ride's last stored row whenever the ride changes or a batch fails.
+ *
+ * The acquisition side allocates nothing per sample.
+ */
+public class RideDataWriter implements Runnable {
+
+    /* Log TAG */
+    private static final String TAG = "RideDataWriter";
+
+    private static final String WRITER_THREAD_NAME = "rideDataWriter";
+
+    /* Batch limits. The age only bounds how stale ride_data gets; the journal holds the rest. */
+    public static final int MAX_BATCH_SIZE = 1024;
+    public static final long MAX_BATCH_AGE_MILLIS = 10000;
+
+    /* Failed commits from one position before the batch is split, or its sample skipped */
+    public static final int MAX_ATTEMPTS = 3;
+
+    private static final String SQL_INSERT_DATA =
+            "INSERT INTO " + RideData.TABLE_NAME + " (" +
+                    RideData.RIDE_ID        + ", " +
+                    RideData.TIME_STAMP     + ", " +
+                    RideData.LATITUDE       + ", " +
+                    RideData.LONGITUDE      + ", " +
+                    RideData.ALTITUDE       + ", " +
+                    RideData.SPEED          + ", " +
+                    RideData.BEARING        + ", " +
+                    RideData.ACCELERATION_X + ", " +
+                    RideData.ACCELERATION_Y + ", " +
+                    RideData.ACCELERATION_Z + ", " +
+                    RideData.LEAN_ANGLE     + ", " +
+                    RideData.ELAPSED_NANOS  + ", " +
+                    RideData.DISTANCE       + ", " +
+                    RideData.ELAPSED_TIME   + ") VALUES (?,?,?,?,?,?,?,?,?,?,?,?,?,?)";
+
+    private final SQLiteDatabase db;
+    private final SQLiteStatement insert;
+    private final SQLiteStatement checkpoint;
+    private final SampleJournal journal;
+    private final Thread thread;
+
+    /* Filled in by the acquisition thread, read back into by the compactor */
+    private final RideSample sample = new RideSample();
+    private final RideSample row = new RideSample();
+
+    /* Where the compactor's ride had got to, compactor only. -1 until it's read back. */
+    private final TrackOdometer odometer = new TrackOdometer();
+    private int odometerRideID = -1;
+
+    /* First journal position not yet in ride_data, written by the compactor only */
+    private volatile long compactedPosition;
+
+    /* Where commits have been failing and how often, and the end of the batch being retried
+     * a sample at a time. Compactor only. */
+    private long failedPosition = -1;
+    private int failedAttempts;
+    private long splitUntil;
+
+    private volatile boolean closing;
+
+    /* Set by the compactor when it stops on an error that isn't a failed commit */
+    private volatile boolean stopped;
+
+    /** Counters. samplesDropped belongs to the acquisition thread, the rest to the compactor */
+    private volatile long batchesCommitted;
+    private volatile long samplesCommitted;
+    private volatile long samplesDropped;
+    private volatile long samplesSkipped;
+    private volatile long batchesFailed;
+    private volatile int lastBatchSize;
+    private volatile int maxBatchSize;
+    private volatile long lastCommitNanos;
+    private volatile long maxCommitNanos;
+    private volatile long totalCommitNanos;
+
+    /**
+     * @param journal Opened from the checkpoint stored in db.
+     */
+    public RideDataWriter(SQLiteDatabase db, SampleJournal journal) {
+        this.db = db;
+        this.journal = journal;
+        insert = db.compileStatement(SQL_INSERT_DATA);
+        checkpoint = db.compileStatement(SampleJournal.SQL_WRITE_CHECKPOINT);
+        compactedPosition = SampleJournal.readCheckpoint(db);
+        thread = new Thread(this, WRITER_THREAD_NAME);
+    }
+
+    /**
+     * Compacts everything already in the journal, on the calling thread. For samples left
+     * behind by a process that was killed; call before {@link #start()}.
+     *
+     * @return The number of samples replayed.
+     */
+    public long replay() {
+        long from = compactedPosition;
+        compact(journal.getAppendPosition());
+
+        long replayed = compactedPosition - from;
+        if ( replayed > 0 ) {
+            Log.i(TAG, "Replayed " + replayed + " samples from the journal");
+        }
+        return replayed;
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * The sample to fill in for the next {@link #write(RideSample)}. Always the same instance;
+     * acquisition thread only.
+     */
+    public RideSample obtain() {
+        return sample;
+    }
+
+    /**
+     * Commits a sample to the journal. If the journal can't grow, the sample is counted in
+     * {@link #getSamplesDropped()}.
+     */
+    public void write(RideSample sample) {
+        // Nothing would compact it, so the journal isn't left filling up
+        if ( stopped || !journal.append(sample) ) {
+            samplesDropped++;
+            return;
+        }
+
+        if ( journal.getAppendPosition() - compactedPosition >= MAX_BATCH_SIZE ) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Compacts every journalled sample, stops the compactor thread and closes the journal.
+     * Blocks until the final batch has been committed, so callers may read the ride back as
+     * soon as this returns.
+     */
+    public void close() {
+        closing = true;
+
+        if ( thread.isAlive() ) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                Log.e(TAG, "Interrupted while flushing ride data");
+                Thread.currentThread().interrupt();
+            }
+        } else if ( !stopped ) {
+            compact(journal.getAppendPosition());
+        }
+
+        // Whatever couldn't be compacted is kept for the next start
+        journal.sync();
+        journal.close();
+        insert.close();
+        checkpoint.close();
+
+        Log.i(TAG, "Closed writer: " + samplesCommitted + " samples in " + batchesCommitted +
+                " batches, avg batch " + getAverageBatchSize() + ", avg commit " +
+                TimeUnit.NANOSECONDS.toMicros(getAverageCommitNanos()) + "us, max commit " +
+                TimeUnit.NANOSECONDS.toMicros(maxCommitNanos) + "us, dropped " + samplesDropped +
+                ", failed batches " + batchesFailed + ", skipped " + samplesSkipped);
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+        try {
+            while ( !closing ) {
+                // Woken early by write() once a full batch is waiting
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(MAX_BATCH_AGE_MILLIS));
+                // On flash before compacting, in case the batch can't be committed for a while
+                journal.sync();
+                compact(journal.getAppendPosition());
+            }
+
+            // Anything left over is still part of the ride
+            compact(journal.getAppendPosition());
+        } catch (RuntimeException ex) {
+            // Such as a closed database or an unmappable journal; retrying won't help
+            stopped = true;
+            Log.e(TAG, "Compactor stopped at " + compactedPosition + ", dropping the rest of " +
+                    "the ride", ex);
+        }
+    }
+
+    /**
+     * Whether the compactor has stopped on an error, so that samples are no longer recorded.
+     * What was journalled before is replayed on the next start.
+     */
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    /* Moves the journal into ride_data up to end, one batch per transaction */
+    private void compact(long end) {
+        while ( compactedPosition < end ) {
+            int size = compactedPosition < splitUntil ? 1 :
+                    (int) Math.min(end - compactedPosition, MAX_BATCH_SIZE);
+            if ( !commit(size) && !onFailure(size) ) {
+                // Left in the journal for the next attempt
+                return;
+            }
+            journal.release(compactedPosition);
+        }
+    }
+
+    /**
+     * Counts a failed commit of size samples. Past {@link #MAX_ATTEMPTS} a batch is split into
+     * single samples to find the one at fault, and a single sample is skipped.
+     *
+     * @return Whether the sample was skipped, so compaction can carry on.
+     */
+    private boolean onFailure(int size) {
+        if ( failedPosition != compactedPosition ) {
+            failedPosition = compactedPosition;
+            failedAttempts = 0;
+        }
+        if ( ++failedAttempts < MAX_ATTEMPTS ) {
+            return false;
+        }
+
+        failedAttempts = 0;
+        if ( size > 1 ) {
+            splitUntil = compactedPosition + size;
+            return false;
+        }
+        return skip();
+    }
+
+    /* Moves the checkpoint past the sample at compactedPosition, leaving it out of ride_data */
+    private boolean skip() {
+        long position = compactedPosition;
+
+        db.beginTransaction();
+        try {
+            checkpoint.bindLong(1, position + 1);
+            checkpoint.executeInsert();
+            db.setTransactionSuccessful();
+        } catch (SQLiteException ex) {
+            Log.e(TAG, "Could not skip the sample at " + position, ex);
+            return false;
+        } finally {
+            db.endTransaction();
+        }
+
+        compactedPosition = position + 1;
+        samplesSkipped++;
+
+        if ( journal.read(position, row) ) {
+            Log.e(TAG, "Skipped the sample at " + position + " of ride " + row.rideID +
+                    ", time " + row.timeStamp + ", after " + MAX_ATTEMPTS + " failed commits");
+        } else {
+            Log.e(TAG, "Skipped the unreadable sample at " + position);
+        }
+        return true;
+    }
+
+    /** Inserts the next size journalled samples and the new checkpoint in one transaction */
+    private boolean commit(int size) {
+        long from = compactedPosition;
+        long start = System.nanoTime();
+
+        db.beginTransaction();
+        try {
+            for (long position = from; position < from + size; position++) {
+                if ( !journal.read(position, row) ) {
+                    throw new SQLiteException("Could not read journal at " + position);
+                }
+                insert(row);
+            }
+
+            checkpoint.bindLong(1, from + size);
+            checkpoint.executeInsert();
+
+            db.setTransactionSuccessful();
+        } catch (SQLiteException ex) {
+            Log.e(TAG, "Could not commit batch of " + size + " samples", ex);
+            batchesFailed++;
+            // The odometer ran on through rows that were rolled back
+            odometerRideID = -1;
+            return false;
+        } finally {
+            db.endTransaction();
+        }
+
+        compactedPosition = from + size;
+
+        long elapsed = System.nanoTime() - start;
+
+        batchesCommitted++;
+        samplesCommitted += size;
+        lastBatchSize = size;
+        maxBatchSize = Math.max(maxBatchSize, size);
+        lastCommitNanos = elapsed;
+        maxCommitNanos = Math.max(maxCommitNanos, elapsed);
+        totalCommitNanos += elapsed;
+        return true;
+    }
+
+    private void insert(RideSample sample) {
+        if ( sample.rideID != odometerRideID ) {
+            RideDistances.resume(db, sample.rideID, odometer);
+            odometerRideID = sample.rideID;
+        }
+        odometer.add(sample.timeStamp, sample.latitude, sample.longitude);
+
+        // Bind indices follow the column order of SQL_INSERT_DATA
+        insert.bindLong(1, sample.rideID);
+        insert.bindLong(2, sample.timeStamp);
+        insert.bindDouble(3, sample.latitude);
+        insert.bindDouble(4, sample.longitude);
+        insert.bindDouble(5, sample.altitude);
+        insert.bindDouble(6, sample.speed);
+        insert.bindDouble(7, sample.bearing);
+        insert.bindDouble(8, sample.accelerationX);
+        insert.bindDouble(9, sample.accelerationY);
+        insert.bindDouble(10, sample.accelerationZ);
+        insert.bindDouble(11, sample.leanAngle);
+        insert.bindLong(12, sample.elapsedNanos);
+        insert.bindDouble(13, odometer.getDistance());
+        insert.bindLong(14, odometer.getElapsed());
+
+        // Throwing rolls back the whole batch
+        if ( insert.executeInsert() == -1 ) {
+            throw new SQLiteException("Could not insert new row");
+        }
+    }
+
+    public long getBatchesCommitted() {
+        return batchesCommitted;
+    }
+
+    public long getBatchesFailed() {
+        return batchesFailed;
+    }
+
+    public long getSamplesCommitted() {
+        return samplesCommitted;
+    }
+
+    public long getSamplesDropped() {
+        return samplesDropped;
+    }
+
+    /** Samples left out of ride_data after failing to commit {@link #MAX_ATTEMPTS} times */
+    public long getSamplesSkipped() {
+        return samplesSkipped;
+    }
+
+    public int getLastBatchSize() {
+        return lastBatchSize;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public double getAverageBatchSize() {
+        long batches = batchesCommitted;
+        return batches == 0 ? 0.0 : (double) samplesCommitted / batches;
+    }
+
+    public long getLastCommitNanos() {
+        return lastCommitNanos;
+    }
+
+    public long getMaxCommitNanos() {
+        return maxCommitNanos;
+    }
+
+    public long getAverageCommitNanos() {
+        long batches = batchesCommitted;
+        return batches == 0 ? 0 : totalCommitNanos / batches;
+    }
+}
@@ -0,0 +1,204 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import com.opentt.rideout.RideDataContract.RideData;
+import com.opentt.rideout.RideDataContract.Rides;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The {@link RideData#DISTANCE} and {@link RideData#ELAPSED_TIME} of each row, worked out by a
+ * {@link TrackOdometer} from the fixes before it. New rows have them from {@link
+ * RideDataWriter} and {@link RideImporter}; rows stored before version 12 are measured here, a
+ * page of rows to a transaction, when their ride is first graphed or while the phone is idle.
+ *
+ * A ride is measured when both its first and last fixes have a distance, so a ride left part
+ * measured, or recording across the upgrade, is measured again from the start.
+ */
+public class RideDistances {
+
+    /* Log TAG */
+    private static final String TAG = "RideDistances";
+
+    /* Rows read per query, walking the ride by _id, and updated per transaction */
+    private static final int PAGE_SIZE = 1024;
+
+    private static final String SQL_FIXES = RideData.TIME_STAMP + " IS NOT NULL AND " +
+            RideData.LATITUDE + " IS NOT NULL AND " + RideData.LONGITUDE + " IS NOT NULL";
+
+    private static final String SQL_FIX_PAGE =
+            "SELECT " + RideData._ID + "," + RideData.TIME_STAMP + "," + RideData.LATITUDE +
+                    "," + RideData.LONGITUDE + " FROM " + RideData.TABLE_NAME +
+                    " WHERE " + RideData.RIDE_ID + " = ? AND " + RideData._ID + " > ? AND " +
+                    SQL_FIXES + " ORDER BY " + RideData._ID + " LIMIT " + PAGE_SIZE;
+
+    private static final String SQL_UPDATE_ROW =
+            "UPDATE " + RideData.TABLE_NAME + " SET " + RideData.DISTANCE + " = ?," +
+                    RideData.ELAPSED_TIME + " = ? WHERE " + RideData._ID + " = ?";
+
+    /* The last fix of a ride so far, for the writer to carry on from */
+    private static final String SQL_LAST_FIX =
+            "SELECT " + RideData.TIME_STAMP + "," + RideData.LATITUDE + "," +
+                    RideData.LONGITUDE + "," + RideData.DISTANCE + "," + RideData.ELAPSED_TIME +
+                    " FROM " + RideData.TABLE_NAME + " WHERE " + RideData.RIDE_ID + " = ? AND " +
+                    SQL_FIXES + " ORDER BY " + RideData._ID + " DESC LIMIT 1";
+
+    /* Finished rides with fixes still to measure, found through the ride index */
+    private static final String SQL_UNMEASURED_SELECTION =
+            Rides.STATE + " = " + Rides.STATE_FINISHED + " AND (" + endUnmeasured("ASC") +
+                    " OR " + endUnmeasured("DESC") + ")";
+
+    private static final String SQL_UNMEASURED_RIDES =
+            "SELECT " + Rides._ID + " FROM " + Rides.TABLE_NAME + " WHERE " +
+                    SQL_UNMEASURED_SELECTION + " ORDER BY " + Rides._ID;
+
+    private static final String SQL_IS_UNMEASURED =
+            "SELECT COUNT(*) FROM " + Rides.TABLE_NAME + " WHERE " + Rides._ID + " = ? AND " +
+                    SQL_UNMEASURED_SELECTION;
+
+    /**
+     * Works out the distance and elapsed time of every fix of a ride, replacing any it had.
+     *
+     * @return The number of rows measured.
+     */
+    public static int measure(SQLiteDatabase db, int rideID) {
+        TrackOdometer odometer = new TrackOdometer();
+        String[] args = {Integer.toString(rideID), "0"};
+
+        long[] ids = new long[PAGE_SIZE];
+        long[] time = new long[PAGE_SIZE];
+        double[] latitude = new double[PAGE_SIZE];
+        double[] longitude = new double[PAGE_SIZE];
+        double[] distance = new double[PAGE_SIZE];
+        long[] elapsed = new long[PAGE_SIZE];
+
+        int measured = 0;
+        int page;
+
+        SQLiteStatement update = db.compileStatement(SQL_UPDATE_ROW);
+        try {
+            do {
+                Cursor cursor = db.rawQuery(SQL_FIX_PAGE, args);
+                try {
+                    page = 0;
+                    while ( cursor.moveToNext() ) {
+                        ids[page] = cursor.getLong(0);
+                        time[page] = cursor.getLong(1);
+                        latitude[page] = cursor.getDouble(2);
+                        longitude[page] = cursor.getDouble(3);
+                        page++;
+                    }
+                } finally {
+                    cursor.close();
+                }
+                if ( page == 0 ) {
+                    break;
+                }
+                args[1] = Long.toString(ids[page - 1]);
+
+                odometer.addAll(time, latitude, longitude, page, distance, elapsed);
+
+                db.beginTransactionNonExclusive();
+                try {
+                    for (int i = 0; i < page; i++) {
+                        update.bindDouble(1, distance[i]);
+                        update.bindLong(2, elapsed[i]);
+                        update.bindLong(3, ids[i]);
+                        update.executeUpdateDelete();
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                measured += page;
+            } while ( page == PAGE_SIZE );
+        } finally {
+            update.close();
+        }
+
+        return measured;
+    }
+
+    /**
+     * Measures a ride if it's finished and has fixes still to measure.
+     *
+     * @return Whether the ride was measured.
+     */
+    public static boolean ensure(SQLiteDatabase db, int rideID) {
+        Cursor cursor = db.rawQuery(SQL_IS_UNMEASURED, new String[]{Integer.toString(rideID)});
+        try {
+            if ( !cursor.moveToFirst() || cursor.getLong(0) == 0 ) {
+                return false;
+            }
+        } finally {
+            cursor.close();
+        }
+
+        long began = System.currentTimeMillis();
+        int rows = measure(db, rideID);
+        Log.i(TAG, "Measured " + rows + " rows of ride " + rideID + " in " +
+                (System.currentTimeMillis() - began) + "ms");
+        return true;
+    }
+
+    /** The finished rides with fixes still to measure, oldest first */
+    public static List<Integer> findUnmeasured(SQLiteDatabase db) {
+        List<Integer> rides = new ArrayList<>();
+        Cursor cursor = db.rawQuery(SQL_UNMEASURED_RIDES, null);
+        try {
+            while ( cursor.moveToNext() ) {
+                rides.add(cursor.getInt(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return rides;
+    }
+
+    /**
+     * Sets an odometer to carry on from the last fix of a ride already stored. If the ride has
+     * none, or that fix has no distance, the odometer starts again; the ride is then measured
+     * in full once it's finished.
+     */
+    public static void resume(SQLiteDatabase db, int rideID, TrackOdometer odometer) {
+        odometer.reset();
+
+        Cursor cursor = db.rawQuery(SQL_LAST_FIX, new String[]{Integer.toString(rideID)});
+        try {
+            if ( cursor.moveToFirst() && !cursor.isNull(3) && !cursor.isNull(4) ) {
+                odometer.resume(cursor.getLong(0), cursor.getDouble(1), cursor.getDouble(2),
+                        cursor.getDouble(3), cursor.getLong(4));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /* Whether the fix at one end of the ride in the outer query is missing its distance */
+    private static String endUnmeasured(String order) {
+        return "(SELECT " + RideData.DISTANCE + " IS NULL FROM " + RideData.TABLE_NAME +
+                " WHERE " + RideData.RIDE_ID + " = " + Rides.TABLE_NAME + "." + Rides._ID +
+                " AND " + SQL_FIXES + " ORDER BY " + RideData._ID + " " + order + " LIMIT 1)";
+    }
+}
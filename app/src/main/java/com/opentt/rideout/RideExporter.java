@@ -0,0 +1,316 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.os.Environment;
+import android.util.Log;
+
+import com.opentt.rideout.RideDataContract.RideData;
+import com.opentt.rideout.RideDataContract.Rides;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Exports rides as GPX, CSV or FIT files for other tools to read. A ride is streamed from its
+ * rows, a page at a time, or from its archive, through a buffered writer, so an export takes
+ * the same memory however long the ride.
+ *
+ * Many rides are exported in parallel on a small fixed pool. Finished rides don't change, and
+ * with write-ahead logging their pages are read alongside one another and the recorder.
+ */
+public class RideExporter {
+
+    /* Log TAG */
+    private static final String TAG = "RideExporter";
+
+    public static final int FORMAT_GPX = 0;
+    public static final int FORMAT_CSV = 1;
+    public static final int FORMAT_FIT = 2;
+
+    /* By format */
+    public static final String[] SUFFIXES = {".gpx", ".csv", ".fit"};
+
+    /* Rows read per query, walking the ride by _id */
+    private static final int PAGE_SIZE = 1024;
+
+    private static final int BUFFER_SIZE = 65536;
+
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private static final String[] TRACK_COLUMNS = {RideData._ID, RideData.TIME_STAMP,
+            RideData.LATITUDE, RideData.LONGITUDE, RideData.ALTITUDE, RideData.SPEED,
+            RideData.BEARING, RideData.ELAPSED_NANOS};
+
+    private static final String SQL_TRACK_PAGE = "SELECT " + join(TRACK_COLUMNS) +
+            " FROM " + RideData.TABLE_NAME +
+            " WHERE " + RideData.RIDE_ID + " = ? AND " + RideData._ID + " > ?" +
+            " ORDER BY " + RideData._ID + " LIMIT " + PAGE_SIZE;
+
+    private static final String SQL_FINISHED_RIDES =
+            "SELECT " + Rides._ID + "," + Rides.START_TIME + ",IFNULL(" + Rides.DETAIL + ", " +
+                    Rides.DETAIL_FULL + ") FROM " + Rides.TABLE_NAME +
+                    " WHERE " + Rides.STATE + " = " + Rides.STATE_FINISHED +
+                    " ORDER BY " + Rides._ID;
+
+    private RideExporter() {}
+
+    /** Where exports go on external storage, next to the backups */
+    public static File getDirectory() {
+        return new File(Environment.getExternalStorageDirectory(), "RideDataBackup/export");
+    }
+
+    /**
+     * Exports a ride from the database.
+     *
+     * @return The number of fixes exported.
+     */
+    public static long exportRide(SQLiteDatabase db, int rideID, int format, File file)
+            throws IOException {
+        return export(new RideTrackReader(db, rideID), format, file, "Ride " + rideID);
+    }
+
+    /**
+     * Exports a ride from a file written by {@link RideArchive}.
+     *
+     * @return The number of fixes exported.
+     */
+    public static long exportArchive(File archive, int format, File file) throws IOException {
+        String name = archive.getName();
+        if ( name.endsWith(RideArchive.RIDE_SUFFIX) ) {
+            name = name.substring(0, name.length() - RideArchive.RIDE_SUFFIX.length());
+        }
+        TrackReader reader = new CsvTrackReader(new InputStreamReader(
+                new GZIPInputStream(new FileInputStream(archive), BUFFER_SIZE), "UTF-8"));
+        return export(reader, format, file, name);
+    }
+
+    /**
+     * Exports every finished ride into directory, a file a ride named as its archive is,
+     * several at a time. A ride {@link RideRetention} has simplified or archived is exported
+     * in full from its archive file; one whose archive file is missing is logged and skipped.
+     *
+     * @param archive The directory of {@link RideArchive} files.
+     * @param threads The most rides exported at once.
+     * @return The number of rides exported, or -1 if the directory can't be written.
+     */
+    public static int exportFinishedRides(final SQLiteDatabase db, final int format,
+                                          File directory, File archive, int threads) {
+        if ( !directory.isDirectory() && !directory.mkdirs() ) {
+            Log.e(TAG, "Could not make export directory " + directory);
+            return -1;
+        }
+
+        // A short queue keeps the rides waiting to a handful; the caller runs the overflow
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(threads),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        List<Future<Boolean>> exports = new ArrayList<>();
+        long began = System.currentTimeMillis();
+
+        Cursor rides = db.rawQuery(SQL_FINISHED_RIDES, null);
+        try {
+            while ( rides.moveToNext() ) {
+                final int rideID = rides.getInt(0);
+                String name = RideArchive.getRideName(rideID, rides.getLong(1));
+                final File file = new File(directory, name + SUFFIXES[format]);
+
+                // Only the archive has all of a reduced ride's fixes
+                final File archived = rides.getInt(2) == Rides.DETAIL_FULL ? null :
+                        new File(archive, name + RideArchive.RIDE_SUFFIX);
+                if ( archived != null && !archived.isFile() ) {
+                    Log.e(TAG, "Skipped ride " + rideID + ": it has been reduced and " +
+                            archived + " is missing");
+                    continue;
+                }
+
+                exports.add(pool.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        try {
+                            if ( archived == null ) {
+                                exportRide(db, rideID, format, file);
+                            } else {
+                                exportArchive(archived, format, file);
+                            }
+                            return true;
+                        } catch (IOException | SQLiteException ex) {
+                            Log.e(TAG, "Could not export ride " + rideID, ex);
+                            return false;
+                        }
+                    }
+                }));
+            }
+        } finally {
+            rides.close();
+            pool.shutdown();
+        }
+
+        int exported = 0;
+        for (Future<Boolean> export : exports) {
+            try {
+                if ( export.get() ) {
+                    exported++;
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException ex) {
+                Log.e(TAG, "Export failed", ex.getCause());
+            }
+        }
+
+        Log.i(TAG, "Exported " + exported + " rides in " +
+                (System.currentTimeMillis() - began) + "ms to " + directory);
+        return exported;
+    }
+
+    /* Copies the track into a new file, which appears complete or not at all */
+    private static long export(TrackReader reader, int format, File file, String name)
+            throws IOException {
+        File temporary = new File(file.getPath() + TEMPORARY_SUFFIX);
+        TrackPoint point = new TrackPoint();
+        long points = 0;
+
+        try {
+            TrackWriter writer = openWriter(format, temporary, name);
+            try {
+                while ( reader.next(point) ) {
+                    writer.write(point);
+                    points++;
+                }
+            } finally {
+                writer.close();
+            }
+        } catch (IOException | RuntimeException ex) {
+            temporary.delete();
+            throw ex;
+        } finally {
+            reader.close();
+        }
+
+        if ( !temporary.renameTo(file) ) {
+            temporary.delete();
+            throw new IOException("Could not rename " + temporary + " to " + file);
+        }
+        return points;
+    }
+
+    private static TrackWriter openWriter(int format, File file, String name)
+            throws IOException {
+        switch (format) {
+            case FORMAT_GPX:
+                return new GpxTrackWriter(openText(file), name);
+            case FORMAT_CSV:
+                return new CsvTrackWriter(openText(file));
+            case FORMAT_FIT:
+                return new FitTrackWriter(file);
+            default:
+                throw new IllegalArgumentException("Unknown export format " + format);
+        }
+    }
+
+    private static BufferedWriter openText(File file) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"),
+                BUFFER_SIZE);
+    }
+
+    private static String join(String[] columns) {
+        StringBuilder joined = new StringBuilder();
+        for (String column : columns) {
+            joined.append(joined.length() == 0 ? "" : ",").append(column);
+        }
+        return joined.toString();
+    }
+
+    /* Reads a ride's rows as a track, a page at a time in _id order */
+    private static class RideTrackReader implements TrackReader {
+
+        private final SQLiteDatabase db;
+        private final String[] args;
+        private Cursor cursor;
+        private boolean exhausted;
+
+        RideTrackReader(SQLiteDatabase db, int rideID) {
+            this.db = db;
+            this.args = new String[]{Integer.toString(rideID), "0"};
+        }
+
+        @Override
+        public boolean next(TrackPoint point) {
+            if ( cursor == null || !cursor.moveToNext() ) {
+                // A short page was the last
+                if ( exhausted || (cursor != null && cursor.getCount() < PAGE_SIZE) ) {
+                    close();
+                    exhausted = true;
+                    return false;
+                }
+                close();
+                cursor = db.rawQuery(SQL_TRACK_PAGE, args);
+                if ( !cursor.moveToNext() ) {
+                    exhausted = true;
+                    return false;
+                }
+            }
+
+            args[1] = Long.toString(cursor.getLong(0));
+            point.clear();
+            point.time = cursor.getLong(1);
+            point.latitude = cursor.getDouble(2);
+            point.longitude = cursor.getDouble(3);
+            point.altitude = getOptional(4);
+            point.speed = getOptional(5);
+            point.bearing = getOptional(6);
+            if ( !cursor.isNull(7) ) {
+                point.elapsedNanos = cursor.getLong(7);
+            }
+
+            // Missing values as CsvTrackReader reads them
+            point.clearStoredMissing();
+            return true;
+        }
+
+        private double getOptional(int column) {
+            return cursor.isNull(column) ? Double.NaN : cursor.getDouble(column);
+        }
+
+        @Override
+        public void close() {
+            if ( cursor != null ) {
+                cursor.close();
+                cursor = null;
+            }
+        }
+    }
+}
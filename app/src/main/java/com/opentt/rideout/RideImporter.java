@@ -0,0 +1,759 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import com.opentt.rideout.RideDataContract.ImuData;
+import com.opentt.rideout.RideDataContract.RideData;
+import com.opentt.rideout.RideDataContract.RideSummary;
+import com.opentt.rideout.RideDataContract.Rides;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Merges rides from backups into the database, leaving the rides already there alone. A source
+ * is a backup copy of the database, a ride archived by {@link RideArchive}, or a directory of
+ * either. Rides are streamed in batches, so no more than one batch is held at a time whatever
+ * the size of the backup.
+ *
+ * Each ride imported is given a new rideID, so IDs from another phone or from before a reset
+ * never collide. Rides are matched on their start time, so a ride that is already in the
+ * database, or in more than one source, is imported once. A ride {@link RideRetention} has
+ * reduced is left as it is while the full ride is imported alongside it, then keeps its rideID
+ * and has its rows swapped for the full ride's. A backup from version 1, with every column
+ * stored as TEXT, has its values converted as they're read.
+ *
+ * A ride is marked as importing until its last row is in; one left so by an interrupted import
+ * is discarded by the next. Run off the main thread.
+ */
+public class RideImporter {
+
+    /* Log TAG */
+    private static final String TAG = "RideImporter";
+
+    /* Rows read and written per transaction */
+    public static final int BATCH_SIZE = 1024;
+
+    public static final String DATABASE_SUFFIX = ".db";
+
+    /* Backups of this version have every column as TEXT, so their rows are converted as
+     * they're read, as the upgrade to version 2 converts them */
+    private static final int UNTYPED_VERSION = 1;
+
+    /* Positions in RIDE_COLUMNS of the values the summary is built from */
+    private static final int TIME_STAMP = 0;
+    private static final int LATITUDE = 1;
+    private static final int LONGITUDE = 2;
+    private static final int ALTITUDE = 3;
+    private static final int SPEED = 4;
+    private static final int LEAN_ANGLE = 9;
+
+    /* Rides with all their rows; one reduced by RideRetention is filled in again */
+    private static final String SQL_SEEN = "SELECT COUNT(*) FROM " + Rides.TABLE_NAME +
+            " WHERE " + Rides.START_TIME + " = ? AND IFNULL(" + Rides.DETAIL + ", " +
+            Rides.DETAIL_FULL + ") = " + Rides.DETAIL_FULL;
+
+    private static final String SQL_REDUCED_SELECTION = Rides.START_TIME + " = ? AND " +
+            Rides.DETAIL + " > " + Rides.DETAIL_FULL;
+
+    /** Reports progress after every batch and every ride */
+    public interface Progress {
+        void onProgress(int ridesDone, int ridesTotal, long rowsImported);
+    }
+
+    private final RideDataDbHelper helper;
+    private final SQLiteDatabase db;
+    private final Progress progress;
+
+    private SQLiteStatement seen;
+
+    private int ridesTotal;
+    private int ridesDone;
+    private int ridesImported;
+    private int ridesSkipped;
+    private int ridesFailed;
+    private long rowsImported;
+
+    /**
+     * @param db A writable database, held by the caller until the import returns.
+     * @param progress Called on the importing thread, or null.
+     */
+    public RideImporter(RideDataDbHelper helper, SQLiteDatabase db, Progress progress) {
+        this.helper = helper;
+        this.db = db;
+        this.progress = progress;
+    }
+
+    /**
+     * Imports every ride in the given backups and archives. Directories are searched, one level
+     * deep, for database copies and archived rides.
+     *
+     * @return The number of rides imported.
+     */
+    public int importAll(File... sources) {
+        List<File> files = new ArrayList<>();
+        for (File source : sources) {
+            if ( source.isDirectory() ) {
+                File[] children = source.listFiles();
+                if ( children != null ) {
+                    Arrays.sort(children);
+                    for (File child : children) {
+                        if ( child.isFile() && isImportable(child) ) {
+                            files.add(child);
+                        }
+                    }
+                }
+            } else if ( isImportable(source) ) {
+                files.add(source);
+            }
+        }
+
+        discardUnfinishedImports();
+
+        for (File file : files) {
+            ridesTotal += isArchive(file) ? 1 : countRides(file);
+        }
+
+        long began = System.currentTimeMillis();
+        seen = db.compileStatement(SQL_SEEN);
+        try {
+            for (File file : files) {
+                if ( isArchive(file) ) {
+                    importArchive(file);
+                } else {
+                    importDatabase(file);
+                }
+            }
+        } finally {
+            seen.close();
+        }
+
+        Log.i(TAG, "Imported " + ridesImported + " rides (" + rowsImported + " rows), skipped " +
+                ridesSkipped + " already present, " + ridesFailed + " failed, in " +
+                (System.currentTimeMillis() - began) + "ms");
+        return ridesImported;
+    }
+
+    public int getRidesImported() {
+        return ridesImported;
+    }
+
+    public int getRidesSkipped() {
+        return ridesSkipped;
+    }
+
+    public int getRidesFailed() {
+        return ridesFailed;
+    }
+
+    public long getRowsImported() {
+        return rowsImported;
+    }
+
+    private static boolean isArchive(File file) {
+        String name = file.getName();
+        return name.endsWith(RideArchive.RIDE_SUFFIX) && !name.endsWith(RideArchive.IMU_SUFFIX);
+    }
+
+    /* Sensor channel files are imported alongside their ride, not on their own */
+    private static boolean isImportable(File file) {
+        return isArchive(file) || file.getName().endsWith(DATABASE_SUFFIX);
+    }
+
+    /* Removes whatever an interrupted import left behind */
+    private void discardUnfinishedImports() {
+        Cursor cursor = db.query(Rides.TABLE_NAME, new String[]{Rides._ID},
+                Rides.STATE + " = " + Rides.STATE_IMPORTING, null, null, null, null);
+        try {
+            while ( cursor.moveToNext() ) {
+                discard(cursor.getInt(0));
+                Log.i(TAG, "Discarded unfinished import of ride " + cursor.getInt(0));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void discard(int rideID) {
+        String[] where = {Integer.toString(rideID)};
+
+        db.beginTransaction();
+        try {
+            db.delete(RideData.TABLE_NAME, RideData.RIDE_ID + " = ?", where);
+            db.delete(ImuData.TABLE_NAME, ImuData.RIDE_ID + " = ?", where);
+            db.delete(RideSummary.TABLE_NAME, RideSummary.RIDE_ID + " = ?", where);
+            db.delete(Rides.TABLE_NAME, Rides._ID + " = ?", where);
+            RideTrackLevels.delete(db, rideID);
+            RideSegmentIndex.delete(db, rideID);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private int countRides(File file) {
+        SQLiteDatabase source = openBackup(file);
+        if ( source == null ) {
+            return 0;
+        }
+        try {
+            return (int) DatabaseUtils.longForQuery(source,
+                    "SELECT COUNT(*) FROM (" + getRidesSql(source) + ")", null);
+        } catch (SQLiteException ex) {
+            Log.e(TAG, "Could not count the rides in " + file, ex);
+            return 0;
+        } finally {
+            source.close();
+        }
+    }
+
+    /* A backup copy of the database, read only, or null if it isn't one this can read */
+    private static SQLiteDatabase openBackup(File file) {
+        SQLiteDatabase source;
+        try {
+            source = SQLiteDatabase.openDatabase(file.getPath(), null,
+                    SQLiteDatabase.OPEN_READONLY);
+        } catch (SQLiteException ex) {
+            Log.e(TAG, "Could not open backup " + file, ex);
+            return null;
+        }
+
+        if ( source.getVersion() < UNTYPED_VERSION ) {
+            Log.e(TAG, "Backup " + file + " has no schema version, so isn't a ride database");
+            source.close();
+            return null;
+        }
+        return source;
+    }
+
+    /* Finished rides, or before version 4, every rideID in the data: ID, start, end */
+    private static String getRidesSql(SQLiteDatabase source) {
+        if ( source.getVersion() == UNTYPED_VERSION ) {
+            String time = RideDataDbHelper.v1TimeStamp(RideData.TIME_STAMP);
+            return "SELECT " + RideDataDbHelper.castInteger(RideData.RIDE_ID) + ",MIN(" +
+                    time + "),MAX(" + time + ") FROM " + RideData.TABLE_NAME +
+                    " GROUP BY " + RideData.RIDE_ID + " ORDER BY 1";
+        }
+        if ( hasTable(source, Rides.TABLE_NAME) ) {
+            return "SELECT " + Rides._ID + "," + Rides.START_TIME + "," +
+                    "IFNULL(" + Rides.END_TIME + ",-1) FROM " + Rides.TABLE_NAME +
+                    " WHERE " + Rides.STATE + " = " + Rides.STATE_FINISHED +
+                    " ORDER BY " + Rides._ID;
+        }
+        return "SELECT " + RideData.RIDE_ID + ",MIN(" + RideData.TIME_STAMP + ")," +
+                "MAX(" + RideData.TIME_STAMP + ") FROM " + RideData.TABLE_NAME +
+                " GROUP BY " + RideData.RIDE_ID + " ORDER BY " + RideData.RIDE_ID;
+    }
+
+    private static boolean hasTable(SQLiteDatabase source, String table) {
+        return DatabaseUtils.longForQuery(source,
+                "SELECT COUNT(*) FROM sqlite_master WHERE type = 'table' AND name = ?",
+                new String[]{table}) > 0;
+    }
+
+    /* Columns the backup predates are read as null, and untyped ones converted */
+    private static String[] selectColumns(SQLiteDatabase source, String table, String[] columns) {
+        boolean untyped = source.getVersion() == UNTYPED_VERSION;
+        String[] select = new String[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            if ( !RideDataDbHelper.hasColumn(source, table, columns[i]) ) {
+                select[i] = "NULL";
+            } else if ( !untyped ) {
+                select[i] = columns[i];
+            } else if ( RideData.TIME_STAMP.equals(columns[i]) ) {
+                select[i] = RideDataDbHelper.v1TimeStamp(columns[i]);
+            } else {
+                select[i] = RideDataDbHelper.castReal(columns[i]);
+            }
+        }
+        return select;
+    }
+
+    private void importDatabase(File file) {
+        SQLiteDatabase source = openBackup(file);
+        if ( source == null ) {
+            return;
+        }
+
+        try {
+            String[] rideColumns = selectColumns(source, RideData.TABLE_NAME,
+                    RideArchive.RIDE_COLUMNS);
+            String[] imuColumns = hasTable(source, ImuData.TABLE_NAME) ?
+                    selectColumns(source, ImuData.TABLE_NAME, RideArchive.IMU_COLUMNS) : null;
+
+            Cursor rides = source.rawQuery(getRidesSql(source), null);
+            try {
+                while ( rides.moveToNext() ) {
+                    long sourceID = rides.getLong(0);
+                    Rows rows = new CursorRows(source, RideData.TABLE_NAME, RideData._ID,
+                            RideData.RIDE_ID, sourceID, rideColumns);
+                    Rows imu = imuColumns == null ? null : new CursorRows(source,
+                            ImuData.TABLE_NAME, ImuData._ID, ImuData.RIDE_ID, sourceID,
+                            imuColumns);
+                    try {
+                        importRide(rides.getLong(1), rides.getLong(2), rows, imu,
+                                file.getName() + " ride " + sourceID);
+                    } finally {
+                        rows.close();
+                        if ( imu != null ) {
+                            imu.close();
+                        }
+                    }
+                }
+            } finally {
+                rides.close();
+            }
+        } catch (SQLiteException | IOException ex) {
+            Log.e(TAG, "Could not read backup " + file, ex);
+        } finally {
+            source.close();
+        }
+    }
+
+    private void importArchive(File file) {
+        String name = file.getName();
+        File imuFile = new File(file.getParentFile(),
+                name.substring(0, name.length() - RideArchive.RIDE_SUFFIX.length()) +
+                        RideArchive.IMU_SUFFIX);
+
+        CsvRows rows = null;
+        CsvRows imu = null;
+        try {
+            Map<String, String> metadata = new HashMap<>();
+            rows = new CsvRows(file, RideArchive.RIDE_COLUMNS, metadata);
+
+            if ( !RideArchive.FORMAT.equals(metadata.get("format")) ) {
+                throw new IOException("Not a " + RideArchive.FORMAT + " archive");
+            }
+            String startTime = metadata.get(RideArchive.START_TIME);
+            String endTime = metadata.get(RideArchive.END_TIME);
+            if ( startTime == null ) {
+                throw new IOException("No " + RideArchive.START_TIME);
+            }
+
+            if ( imuFile.isFile() ) {
+                imu = new CsvRows(imuFile, RideArchive.IMU_COLUMNS, null);
+            }
+
+            importRide(Long.parseLong(startTime), endTime == null ? -1 : Long.parseLong(endTime),
+                    rows, imu, name);
+
+        } catch (IOException | NumberFormatException ex) {
+            Log.e(TAG, "Could not read archive " + file, ex);
+            ridesFailed++;
+            ridesDone++;
+            report();
+        } finally {
+            close(rows);
+            close(imu);
+        }
+    }
+
+    /**
+     * Copies one ride under a new rideID, unless a ride with the same start time is already in.
+     *
+     * @param endTime Epoch milliseconds, or -1 to end the ride at its last row.
+     */
+    private void importRide(long startTime, long endTime, Rows rows, Rows imu, String name) {
+        seen.bindLong(1, startTime);
+        if ( seen.simpleQueryForLong() > 0 ) {
+            ridesSkipped++;
+            ridesDone++;
+            report();
+            return;
+        }
+
+        int reducedID = findReducedRide(startTime);
+
+        ContentValues values = new ContentValues();
+        values.put(Rides.START_TIME, startTime);
+        values.put(Rides.STATE, Rides.STATE_IMPORTING);
+        int rideID = (int) db.insert(Rides.TABLE_NAME, null, values);
+
+        RideSummaryAccumulator summary = new RideSummaryAccumulator();
+        long rowsBefore = rowsImported;
+
+        try {
+            if ( rideID == -1 ) {
+                throw new SQLiteException("Could not add ride");
+            }
+
+            copyRows(rows, RideData.TABLE_NAME, RideData.RIDE_ID, RideArchive.RIDE_COLUMNS,
+                    rideID, summary, new TrackOdometer());
+            if ( imu != null ) {
+                copyRows(imu, ImuData.TABLE_NAME, ImuData.RIDE_ID, RideArchive.IMU_COLUMNS,
+                        rideID, null, null);
+            }
+
+            if ( endTime == -1 ) {
+                endTime = summary.getStartTime() + summary.getDuration();
+            }
+
+            // The summary and the finished state appear together, as do a reduced ride's rows
+            db.beginTransaction();
+            try {
+                int finishedID = rideID;
+                if ( reducedID != -1 ) {
+                    finishedID = replaceReducedRide(reducedID, rideID);
+                }
+                if ( summary.getSampleCount() > 0 &&
+                        helper.insertSummary(db, finishedID, summary) == -1 ) {
+                    throw new SQLiteException("Could not add summary");
+                }
+                helper.finishRide(db, finishedID, endTime);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+
+            ridesImported++;
+
+        } catch (IOException | SQLiteException | NumberFormatException ex) {
+            Log.e(TAG, "Could not import " + name, ex);
+            if ( rideID != -1 ) {
+                discard(rideID);
+            }
+            rowsImported = rowsBefore;
+            ridesFailed++;
+        }
+
+        ridesDone++;
+        report();
+    }
+
+    /* The rideID of a reduced ride with this start time, or -1 */
+    private int findReducedRide(long startTime) {
+        Cursor cursor = db.query(Rides.TABLE_NAME, new String[]{Rides._ID},
+                SQL_REDUCED_SELECTION, new String[]{Long.toString(startTime)},
+                null, null, null, "1");
+        try {
+            if ( cursor.moveToFirst() ) {
+                Log.i(TAG, "Restoring the full rows of ride " + cursor.getInt(0));
+                return cursor.getInt(0);
+            }
+        } finally {
+            cursor.close();
+        }
+        return -1;
+    }
+
+    /* Gives a reduced ride the rows imported under importedID in place of its own, within the
+     * caller's transaction; the reduced rideID */
+    private int replaceReducedRide(int reducedID, int importedID) {
+        String[] where = {Integer.toString(reducedID)};
+        Object[] ids = {reducedID, importedID};
+
+        db.delete(RideData.TABLE_NAME, RideData.RIDE_ID + " = ?", where);
+        db.delete(ImuData.TABLE_NAME, ImuData.RIDE_ID + " = ?", where);
+        db.delete(RideSummary.TABLE_NAME, RideSummary.RIDE_ID + " = ?", where);
+        // The restored rows have new _ids, so the segments are indexed again when shown
+        RideSegmentIndex.delete(db, reducedID);
+
+        db.execSQL("UPDATE " + RideData.TABLE_NAME + " SET " + RideData.RIDE_ID + " = ? WHERE " +
+                RideData.RIDE_ID + " = ?", ids);
+        db.execSQL("UPDATE " + ImuData.TABLE_NAME + " SET " + ImuData.RIDE_ID + " = ? WHERE " +
+                ImuData.RIDE_ID + " = ?", ids);
+        db.delete(Rides.TABLE_NAME, Rides._ID + " = ?",
+                new String[]{Integer.toString(importedID)});
+
+        ContentValues values = new ContentValues();
+        values.putNull(Rides.DETAIL);
+        // Restored on purpose, so retention mustn't reduce it again
+        values.put(Rides.PINNED, 1);
+        db.update(Rides.TABLE_NAME, values, Rides._ID + " = ?", where);
+        return reducedID;
+    }
+
+    /* Streams rows into table, a batch to a transaction. Ride rows also get their distance
+     * along the track from the odometer; the archive formats don't carry it. */
+    private void copyRows(Rows rows, String table, String rideColumn, String[] columns,
+                          int rideID, RideSummaryAccumulator summary, TrackOdometer odometer)
+            throws IOException {
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" (")
+                .append(rideColumn);
+        for (String column : columns) {
+            sql.append(',').append(column);
+        }
+        if ( odometer != null ) {
+            sql.append(',').append(RideData.DISTANCE).append(',').append(RideData.ELAPSED_TIME);
+        }
+        sql.append(") VALUES (?");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(",?");
+        }
+        sql.append(odometer != null ? ",?,?)" : ")");
+
+        boolean[] integer = new boolean[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            integer[i] = columns[i].equals(RideData.TIME_STAMP) ||
+                    columns[i].equals(RideData.ELAPSED_NANOS) ||
+                    columns[i].equals(ImuData.SENSOR_TYPE);
+        }
+
+        SQLiteStatement insert = db.compileStatement(sql.toString());
+        try {
+            boolean more = true;
+            while ( more ) {
+                int batch = 0;
+
+                db.beginTransactionNonExclusive();
+                try {
+                    while ( batch < BATCH_SIZE && (more = rows.next()) ) {
+                        insert.bindLong(1, rideID);
+                        for (int i = 0; i < columns.length; i++) {
+                            if ( rows.isNull(i) ) {
+                                insert.bindNull(i + 2);
+                            } else if ( integer[i] ) {
+                                insert.bindLong(i + 2, rows.getLong(i));
+                            } else {
+                                insert.bindDouble(i + 2, rows.getDouble(i));
+                            }
+                        }
+
+                        // Only ride rows have the columns of a fix
+                        boolean fix = (summary != null || odometer != null) &&
+                                !rows.isNull(TIME_STAMP) && !rows.isNull(LATITUDE) &&
+                                !rows.isNull(LONGITUDE);
+                        if ( odometer != null ) {
+                            int index = columns.length + 2;
+                            if ( fix ) {
+                                odometer.add(rows.getLong(TIME_STAMP), rows.getDouble(LATITUDE),
+                                        rows.getDouble(LONGITUDE));
+                                insert.bindDouble(index, odometer.getDistance());
+                                insert.bindLong(index + 1, odometer.getElapsed());
+                            } else {
+                                insert.bindNull(index);
+                                insert.bindNull(index + 1);
+                            }
+                        }
+
+                        if ( insert.executeInsert() == -1 ) {
+                            throw new SQLiteException("Could not insert into " + table);
+                        }
+
+                        if ( summary != null && fix ) {
+                            summary.add(rows.getLong(TIME_STAMP), rows.getDouble(LATITUDE),
+                                    rows.getDouble(LONGITUDE), getOrMissing(rows, ALTITUDE),
+                                    getOrMissing(rows, SPEED), rows.isNull(LEAN_ANGLE) ?
+                                            0 : rows.getDouble(LEAN_ANGLE));
+                        }
+                        batch++;
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+
+                rowsImported += batch;
+                if ( batch > 0 ) {
+                    report();
+                }
+            }
+        } finally {
+            insert.close();
+        }
+    }
+
+    private static double getOrMissing(Rows rows, int column) {
+        return rows.isNull(column) ? RideSummaryAccumulator.MISSING : rows.getDouble(column);
+    }
+
+    private void report() {
+        if ( progress != null ) {
+            progress.onProgress(ridesDone, ridesTotal, rowsImported);
+        }
+    }
+
+    private static void close(Rows rows) {
+        if ( rows != null ) {
+            try {
+                rows.close();
+            } catch (IOException ex) {
+                Log.e(TAG, "Could not close source", ex);
+            }
+        }
+    }
+
+    /* The rows of one ride from a source, in order, one at a time */
+    private interface Rows {
+        boolean next() throws IOException;
+        boolean isNull(int column);
+        long getLong(int column);
+        double getDouble(int column);
+        void close() throws IOException;
+    }
+
+    /* Pages through a ride in a backup by _id, a batch to a query */
+    private static class CursorRows implements Rows {
+
+        private final SQLiteDatabase source;
+        private final String sql;
+        private final String[] args;
+        private Cursor cursor;
+        private boolean exhausted;
+
+        CursorRows(SQLiteDatabase source, String table, String idColumn, String rideColumn,
+                   long rideID, String[] columns) {
+            StringBuilder select = new StringBuilder("SELECT ").append(idColumn);
+            for (String column : columns) {
+                select.append(',').append(column);
+            }
+            this.source = source;
+            this.sql = select.append(" FROM ").append(table)
+                    .append(" WHERE ").append(rideColumn).append(" = ? AND ")
+                    .append(idColumn).append(" > ? ORDER BY ").append(idColumn)
+                    .append(" LIMIT ").append(BATCH_SIZE).toString();
+            this.args = new String[]{Long.toString(rideID), "0"};
+        }
+
+        @Override
+        public boolean next() {
+            if ( cursor != null && cursor.moveToNext() ) {
+                args[1] = Long.toString(cursor.getLong(0));
+                return true;
+            }
+            if ( exhausted ) {
+                return false;
+            }
+
+            // A short page was the last
+            if ( cursor != null ) {
+                exhausted = cursor.getCount() < BATCH_SIZE;
+                cursor.close();
+                cursor = null;
+                if ( exhausted ) {
+                    return false;
+                }
+            }
+
+            cursor = source.rawQuery(sql, args);
+            if ( !cursor.moveToNext() ) {
+                exhausted = true;
+                return false;
+            }
+            args[1] = Long.toString(cursor.getLong(0));
+            return true;
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return cursor.isNull(column + 1);
+        }
+
+        @Override
+        public long getLong(int column) {
+            return cursor.getLong(column + 1);
+        }
+
+        @Override
+        public double getDouble(int column) {
+            return cursor.getDouble(column + 1);
+        }
+
+        @Override
+        public void close() {
+            if ( cursor != null ) {
+                cursor.close();
+                cursor = null;
+            }
+        }
+    }
+
+    /* Reads an archived ride a line at a time. Columns the header lacks are read as null. */
+    private static class CsvRows implements Rows {
+
+        private final BufferedReader reader;
+        private final int[] fields;
+        private String[] values;
+
+        /** @param metadata Receives the #key=value lines ahead of the header, or null */
+        CsvRows(File file, String[] columns, Map<String, String> metadata) throws IOException {
+            reader = new BufferedReader(new InputStreamReader(
+                    new GZIPInputStream(new FileInputStream(file)), "UTF-8"));
+
+            String line;
+            while ( (line = reader.readLine()) != null && CsvTrackReader.isComment(line) ) {
+                int equals = line.indexOf('=');
+                if ( metadata != null && equals > 1 ) {
+                    metadata.put(line.substring(1, equals), line.substring(equals + 1));
+                }
+            }
+            if ( line == null ) {
+                reader.close();
+                throw new IOException("No header in " + file);
+            }
+
+            List<String> header = Arrays.asList(line.split(",", -1));
+            fields = new int[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                fields[i] = header.indexOf(columns[i]);
+            }
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            String line;
+            do {
+                line = reader.readLine();
+                if ( line == null ) {
+                    return false;
+                }
+            } while ( line.isEmpty() );
+
+            values = line.split(",", -1);
+            return true;
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            int field = fields[column];
+            return field < 0 || field >= values.length || values[field].isEmpty();
+        }
+
+        @Override
+        public long getLong(int column) {
+            return Long.parseLong(values[fields[column]]);
+        }
+
+        @Override
+        public double getDouble(int column) {
+            return Double.parseDouble(values[fields[column]]);
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+import android.app.AlarmManager;
+import android.app.IntentService;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.os.BatteryManager;
+import android.os.PowerManager;
+import android.os.Process;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.opentt.rideout.RideDataContract.Rides;
+
+/**
+ * Housekeeping of the ride database while the phone is idle: applies the {@link RideRetention}
+ * the rider chose, works out the {@link RideDistances} of rides stored before they were kept,
+ * then hands the pages freed back to the file system a step at a time.
+ *
+ * Started by an inexact hourly alarm, it does nothing unless the phone is charging with its
+ * screen off and no ride is recording, so the work lands in the phone's idle windows and never
+ * competes with a ride. A partial wake lock keeps the phone awake until the run is done, so a
+ * run isn't left half way through a transaction while the phone sleeps.
+ */
+public class RideMaintenanceService extends IntentService {
+
+    /* Log TAG */
+    private static final String TAG = "RideMaintenanceService";
+
+    /* Pages handed back per step, 1MB, and the most time spent on them per run */
+    private static final int VACUUM_STEP_PAGES = 256;
+    private static final long VACUUM_BUDGET_MILLIS = 60000;
+
+    /* Longest the wake lock is held, should a run never finish */
+    private static final long WAKE_LOCK_TIMEOUT_MILLIS = 10 * 60000;
+
+    private static final String SQL_RECORDING_SELECTION =
+            Rides.STATE + " = " + Rides.STATE_RECORDING;
+
+    public RideMaintenanceService() {
+        super(TAG);
+    }
+
+    /** Sets the alarm that starts maintenance, replacing any set before */
+    public static void schedule(Context context) {
+        PendingIntent maintenance = PendingIntent.getService(context, 0,
+                new Intent(context, RideMaintenanceService.class),
+                PendingIntent.FLAG_UPDATE_CURRENT);
+
+        // Doesn't wake the phone; a run put off waits for it to be awake anyway
+        AlarmManager alarms = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        alarms.setInexactRepeating(AlarmManager.ELAPSED_REALTIME,
+                SystemClock.elapsedRealtime() + AlarmManager.INTERVAL_HOUR,
+                AlarmManager.INTERVAL_HOUR, maintenance);
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        if ( !isIdle() ) {
+            return;
+        }
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+        PowerManager power = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        PowerManager.WakeLock wakeLock = power.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+        wakeLock.setReferenceCounted(false);
+        wakeLock.acquire(WAKE_LOCK_TIMEOUT_MILLIS);
+        try {
+            maintain();
+        } finally {
+            if ( wakeLock.isHeld() ) {
+                wakeLock.release();
+            }
+        }
+    }
+
+    /* Retention, measuring and vacuuming, unless a ride is recording */
+    private void maintain() {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
+        RideRetention retention = new RideRetention(new RideArchive(RideArchive.getDirectory()),
+                getAge(preferences, SettingsActivity.PREF_KEY_SIMPLIFY_AFTER, "90"),
+                getAge(preferences, SettingsActivity.PREF_KEY_ARCHIVE_AFTER, "-1"));
+
+        RideDataDbHelper helper = RideDataDbHelper.getInstance(this);
+        SQLiteDatabase db = helper.acquireDatabase();
+        try {
+            if ( DatabaseUtils.queryNumEntries(db, Rides.TABLE_NAME,
+                    SQL_RECORDING_SELECTION) > 0 ) {
+                return;
+            }
+
+            retention.apply(db, System.currentTimeMillis());
+            measure(db);
+
+            if ( RideDataDbHelper.isIncrementalVacuumEnabled(db) ) {
+                vacuum(db);
+            } else {
+                RideDataDbHelper.enableIncrementalVacuum(db);
+            }
+        } catch (SQLiteException ex) {
+            Log.e(TAG, "Maintenance stopped, will try again later", ex);
+        } finally {
+            helper.releaseDatabase();
+        }
+    }
+
+    /* A ride at a time until every ride is measured or the phone is in use again */
+    private void measure(SQLiteDatabase db) {
+        for (int rideID : RideDistances.findUnmeasured(db)) {
+            if ( !isIdle() ) {
+                return;
+            }
+            RideDistances.ensure(db, rideID);
+        }
+    }
+
+    /* Steps until no page is free, the budget is spent or the phone is in use again */
+    private void vacuum(SQLiteDatabase db) {
+        long began = SystemClock.elapsedRealtime();
+        long free = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+        long freeBefore = free;
+
+        while ( free > 0 && SystemClock.elapsedRealtime() - began < VACUUM_BUDGET_MILLIS &&
+                isIdle() ) {
+            free = RideDataDbHelper.incrementalVacuum(db, VACUUM_STEP_PAGES);
+        }
+
+        if ( freeBefore > 0 ) {
+            Log.i(TAG, "Vacuumed " + (freeBefore - free) + " pages in " +
+                    (SystemClock.elapsedRealtime() - began) + "ms, " + free + " left");
+        }
+    }
+
+    /* Charging with the screen off */
+    @SuppressWarnings("deprecation")
+    private boolean isIdle() {
+        Intent battery = registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        boolean charging = battery != null &&
+                battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+
+        PowerManager power = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        return charging && !power.isScreenOn();
+    }
+
+    /* A retention age in milliseconds from a list of days, negative for never */
+    private static long getAge(SharedPreferences preferences, String key, String days) {
+        long value = Long.parseLong(preferences.getString(key, days));
+        return value < 0 ? RideRetention.NEVER : value * AlarmManager.INTERVAL_DAY;
+    }
+}
@@ -0,0 +1,340 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import com.opentt.rideout.RideDataContract.ImuData;
+import com.opentt.rideout.RideDataContract.RideData;
+import com.opentt.rideout.RideDataContract.Rides;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * Keeps the database from growing with every ride ever recorded. Recent rides keep all their
+ * rows. Once a ride is older than one threshold it's simplified: the fixes {@link
+ * TrackSimplifier} keeps, those that hold the path to within a couple of metres and the peak
+ * speed and lean of every few seconds, stay, and its sensor channel rows go. Past a second
+ * threshold its rows leave the database altogether and only its {@link RideArchive} files,
+ * its summary and its entry in the rides table remain.
+ *
+ * A ride is only ever reduced once it's in the archive manifest, so the full ride can always
+ * be restored with {@link RideImporter}. Its summary was built from every row and is kept. A
+ * restored ride is {@link Rides#PINNED} and stays at full detail.
+ *
+ * Rows are deleted a batch to a transaction so the recorder is never held up for long. The
+ * pages they free are handed back to the file system by {@link RideDataDbHelper#incrementalVacuum}.
+ */
+public class RideRetention {
+
+    /* Log TAG */
+    private static final String TAG = "RideRetention";
+
+    /* A threshold that's never reached */
+    public static final long NEVER = -1;
+
+    /* Furthest a simplified track strays from the recorded one, metres */
+    public static final double TOLERANCE_METRES = 2.0;
+
+    /* The peak speed and lean of each window are kept */
+    public static final long PEAK_WINDOW_MILLIS = 10000;
+
+    /* Rows read per query, walking the ride by _id, and deleted per transaction */
+    private static final int PAGE_SIZE = 4096;
+    private static final int BATCH_SIZE = 1024;
+
+    /* Finished rides that ended before a time and have more detail than the tier, other than
+     * those the rider restored. Compared as columns, so the arguments take their integer
+     * affinity. */
+    private static final String SQL_RIDES_DUE =
+            "SELECT " + Rides._ID + "," + Rides.START_TIME + " FROM " + Rides.TABLE_NAME +
+                    " WHERE " + Rides.STATE + " = " + Rides.STATE_FINISHED +
+                    " AND " + Rides.END_TIME + " < ? AND (" + Rides.DETAIL + " IS NULL OR " +
+                    Rides.DETAIL + " < ?) AND IFNULL(" + Rides.PINNED + ", 0) = 0" +
+                    " ORDER BY " + Rides._ID;
+
+    private static final String SQL_TRACK_PAGE =
+            "SELECT " + RideData._ID + "," + RideData.TIME_STAMP + "," + RideData.LATITUDE +
+                    "," + RideData.LONGITUDE + "," + RideData.SPEED + "," + RideData.LEAN_ANGLE +
+                    " FROM " + RideData.TABLE_NAME +
+                    " WHERE " + RideData.RIDE_ID + " = ? AND " + RideData._ID + " > ?" +
+                    " ORDER BY " + RideData._ID + " LIMIT " + PAGE_SIZE;
+
+    private static final String SQL_DELETE_ROW = "DELETE FROM " + RideData.TABLE_NAME +
+            " WHERE " + RideData._ID + " = ?";
+
+    /* A batch of a ride's rows, found through the ride indexes */
+    private static final String SQL_DELETE_RIDE_BATCH = "DELETE FROM " + RideData.TABLE_NAME +
+            " WHERE " + RideData._ID + " IN (SELECT " + RideData._ID + " FROM " +
+            RideData.TABLE_NAME + " WHERE " + RideData.RIDE_ID + " = ? LIMIT " + BATCH_SIZE + ")";
+
+    private static final String SQL_DELETE_IMU_BATCH = "DELETE FROM " + ImuData.TABLE_NAME +
+            " WHERE " + ImuData._ID + " IN (SELECT " + ImuData._ID + " FROM " +
+            ImuData.TABLE_NAME + " WHERE " + ImuData.RIDE_ID + " = ? LIMIT " + BATCH_SIZE + ")";
+
+    private final RideArchive archive;
+    private final long simplifyAfterMillis;
+    private final long archiveAfterMillis;
+
+    /**
+     * @param simplifyAfterMillis Age at which a ride is simplified, or {@link #NEVER}.
+     * @param archiveAfterMillis Age at which a ride's rows leave the database, or {@link #NEVER}.
+     */
+    public RideRetention(RideArchive archive, long simplifyAfterMillis, long archiveAfterMillis) {
+        this.archive = archive;
+        this.simplifyAfterMillis = simplifyAfterMillis;
+        this.archiveAfterMillis = archiveAfterMillis;
+    }
+
+    /**
+     * Archives the finished rides that aren't yet, then reduces every archived ride old enough
+     * to be. A ride's age is from its end.
+     *
+     * @param now Epoch milliseconds.
+     * @return The number of rides reduced, or -1 if the archive can't be read.
+     */
+    public int apply(SQLiteDatabase db, long now) {
+        if ( simplifyAfterMillis == NEVER && archiveAfterMillis == NEVER ) {
+            return 0;
+        }
+
+        Set<String> archived;
+        try {
+            archive.exportFinishedRides(db);
+            archived = archive.getArchivedRides();
+        } catch (IOException ex) {
+            Log.e(TAG, "Could not read the archive, keeping every ride", ex);
+            return -1;
+        }
+
+        long began = System.currentTimeMillis();
+        long rowsBefore = countRows(db);
+
+        // Archived first, so no ride is simplified only to be archived straight after
+        int reduced = 0;
+        if ( archiveAfterMillis != NEVER ) {
+            reduced += reduce(db, archived, now - archiveAfterMillis, Rides.DETAIL_ARCHIVED);
+        }
+        if ( simplifyAfterMillis != NEVER ) {
+            reduced += reduce(db, archived, now - simplifyAfterMillis, Rides.DETAIL_SIMPLIFIED);
+        }
+
+        Log.i(TAG, "Reduced " + reduced + " rides by " + (rowsBefore - countRows(db)) +
+                " rows in " + (System.currentTimeMillis() - began) + "ms");
+        return reduced;
+    }
+
+    private static int reduce(SQLiteDatabase db, Set<String> archived, long endedBefore,
+                              int detail) {
+        int reduced = 0;
+
+        Cursor rides = db.rawQuery(SQL_RIDES_DUE,
+                new String[]{Long.toString(endedBefore), Integer.toString(detail)});
+        try {
+            while ( rides.moveToNext() ) {
+                int rideID = rides.getInt(0);
+                if ( !archived.contains(RideArchive.getRideName(rideID, rides.getLong(1))) ) {
+                    continue; // Not safe to reduce until it's archived
+                }
+
+                try {
+                    if ( detail == Rides.DETAIL_ARCHIVED ) {
+                        archiveRide(db, rideID);
+                    } else {
+                        simplifyRide(db, rideID);
+                    }
+                    reduced++;
+                } catch (SQLiteException ex) {
+                    Log.e(TAG, "Could not reduce ride " + rideID, ex);
+                }
+            }
+        } finally {
+            rides.close();
+        }
+
+        return reduced;
+    }
+
+    /**
+     * Deletes the rows of a ride that {@link TrackSimplifier} doesn't keep, and its sensor
+     * channel rows. Interrupted, it's simplified again from what's left.
+     *
+     * @return The number of rows deleted.
+     */
+    public static long simplifyRide(SQLiteDatabase db, int rideID) {
+        Track track = readTrack(db, rideID);
+        boolean[] keep = new boolean[track.count];
+
+        TrackSimplifier.simplify(track.latitude, track.longitude, track.count,
+                TOLERANCE_METRES, keep);
+        TrackSimplifier.keepPeaks(track.time, track.speed, track.count, PEAK_WINDOW_MILLIS,
+                false, keep);
+        TrackSimplifier.keepPeaks(track.time, track.leanAngle, track.count, PEAK_WINDOW_MILLIS,
+                true, keep);
+
+        long fixesDeleted = 0;
+        SQLiteStatement delete = db.compileStatement(SQL_DELETE_ROW);
+        try {
+            int i = 0;
+            while ( i < track.count ) {
+                db.beginTransactionNonExclusive();
+                try {
+                    for (int batch = 0; i < track.count && batch < BATCH_SIZE; i++) {
+                        if ( !keep[i] ) {
+                            delete.bindLong(1, track.ids[i]);
+                            delete.executeUpdateDelete();
+                            batch++;
+                            fixesDeleted++;
+                        }
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        } finally {
+            delete.close();
+        }
+
+        long imuDeleted = deleteBatches(db, SQL_DELETE_IMU_BATCH, rideID);
+        setDetail(db, rideID, Rides.DETAIL_SIMPLIFIED);
+
+        Log.i(TAG, "Simplified ride " + rideID + " from " + track.count + " to " +
+                (track.count - fixesDeleted) + " fixes");
+        return fixesDeleted + imuDeleted;
+    }
+
+    /**
+     * Deletes every row of a ride, leaving its summary and its entry in the rides table.
+     *
+     * @return The number of rows deleted.
+     */
+    public static long archiveRide(SQLiteDatabase db, int rideID) {
+        long deleted = deleteBatches(db, SQL_DELETE_RIDE_BATCH, rideID) +
+                deleteBatches(db, SQL_DELETE_IMU_BATCH, rideID);
+        // Its track levels stay, so the map can still draw it
+        RideSegmentIndex.delete(db, rideID);
+        setDetail(db, rideID, Rides.DETAIL_ARCHIVED);
+
+        Log.i(TAG, "Moved ride " + rideID + " to the archive, " + deleted + " rows");
+        return deleted;
+    }
+
+    private static long deleteBatches(SQLiteDatabase db, String sql, int rideID) {
+        long deleted = 0;
+        int batch;
+
+        SQLiteStatement delete = db.compileStatement(sql);
+        try {
+            delete.bindLong(1, rideID);
+            do {
+                db.beginTransactionNonExclusive();
+                try {
+                    batch = delete.executeUpdateDelete();
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                deleted += batch;
+            } while ( batch == BATCH_SIZE );
+        } finally {
+            delete.close();
+        }
+
+        return deleted;
+    }
+
+    private static void setDetail(SQLiteDatabase db, int rideID, int detail) {
+        db.execSQL("UPDATE " + Rides.TABLE_NAME + " SET " + Rides.DETAIL + " = ? WHERE " +
+                Rides._ID + " = ?", new Object[]{detail, rideID});
+    }
+
+    private static long countRows(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("SELECT (SELECT COUNT(*) FROM " + RideData.TABLE_NAME +
+                ") + (SELECT COUNT(*) FROM " + ImuData.TABLE_NAME + ")", null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /* The columns simplification needs, a page at a time in _id order */
+    private static Track readTrack(SQLiteDatabase db, int rideID) {
+        Track track = new Track();
+        String[] args = {Integer.toString(rideID), "0"};
+        int page;
+
+        do {
+            Cursor cursor = db.rawQuery(SQL_TRACK_PAGE, args);
+            try {
+                page = 0;
+                while ( cursor.moveToNext() ) {
+                    track.add(cursor.getLong(0), cursor.getLong(1), cursor.getDouble(2),
+                            cursor.getDouble(3), getOptional(cursor, 4), getOptional(cursor, 5));
+                    args[1] = Long.toString(cursor.getLong(0));
+                    page++;
+                }
+            } finally {
+                cursor.close();
+            }
+        } while ( page == PAGE_SIZE );
+
+        return track;
+    }
+
+    private static double getOptional(Cursor cursor, int column) {
+        return cursor.isNull(column) ? Double.NaN : cursor.getDouble(column);
+    }
+
+    /* A ride's rows as columns, grown as they're read */
+    private static class Track {
+
+        int count;
+        long[] ids = new long[PAGE_SIZE];
+        long[] time = new long[PAGE_SIZE];
+        double[] latitude = new double[PAGE_SIZE];
+        double[] longitude = new double[PAGE_SIZE];
+        double[] speed = new double[PAGE_SIZE];
+        double[] leanAngle = new double[PAGE_SIZE];
+
+        void add(long id, long timeStamp, double lat, double lon, double v, double lean) {
+            if ( count == ids.length ) {
+                int length = count * 2;
+                ids = Arrays.copyOf(ids, length);
+                time = Arrays.copyOf(time, length);
+                latitude = Arrays.copyOf(latitude, length);
+                longitude = Arrays.copyOf(longitude, length);
+                speed = Arrays.copyOf(speed, length);
+                leanAngle = Arrays.copyOf(leanAngle, length);
+            }
+            ids[count] = id;
+            time[count] = timeStamp;
+            latitude[count] = lat;
+            longitude[count] = lon;
+            speed[count] = v;
+            leanAngle[count] = lean;
+            count++;
+        }
+    }
+}
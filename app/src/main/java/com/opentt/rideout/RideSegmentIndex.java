@@ -0,0 +1,313 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.util.Log;
+
+import com.opentt.rideout.RideDataContract.RideData;
+import com.opentt.rideout.RideDataContract.Rides;
+import com.opentt.rideout.RideDataContract.TrackSegments;
+
+import java.util.Arrays;
+
+/**
+ * A spatial index over each ride's rows, so the map can load just the part of a track in view
+ * at full detail. A ride is cut into segments of {@link #SEGMENT_ROWS} rows, and the box
+ * around each is kept in an SQLite R*Tree keyed by ride as well as position.
+ *
+ * Not every build of SQLite has the rtree module. Without it the boxes are searched in
+ * {@link TrackSegments#TABLE_NAME} through its ride index, a scan of the few hundred segments
+ * of one ride.
+ */
+public class RideSegmentIndex {
+
+    /* Log TAG */
+    private static final String TAG = "RideSegmentIndex";
+
+    /* Rows in a segment, about 13 seconds at 10 Hz */
+    public static final int SEGMENT_ROWS = 128;
+
+    /* The R*Tree; the ride is a dimension of its own so one ride's boxes are searched alone */
+    public static final String RTREE_NAME = TrackSegments.TABLE_NAME + "_rtree";
+    private static final String RTREE_ID = "id";
+    private static final String MIN_RIDE = "min_ride";
+    private static final String MAX_RIDE = "max_ride";
+
+    public static final String SQL_CREATE_TABLE =
+            "CREATE TABLE IF NOT EXISTS " + TrackSegments.TABLE_NAME + " (" +
+                    TrackSegments._ID + " INTEGER PRIMARY KEY," +
+                    TrackSegments.RIDE_ID + " INTEGER NOT NULL," +
+                    TrackSegments.FIRST_ROW + " INTEGER," +
+                    TrackSegments.LAST_ROW + " INTEGER," +
+                    TrackSegments.MIN_LATITUDE + " REAL," +
+                    TrackSegments.MAX_LATITUDE + " REAL," +
+                    TrackSegments.MIN_LONGITUDE + " REAL," +
+                    TrackSegments.MAX_LONGITUDE + " REAL )";
+
+    private static final String SQL_CREATE_RIDE_INDEX =
+            "CREATE INDEX IF NOT EXISTS " + TrackSegments.TABLE_NAME + "_ride_idx ON " +
+                    TrackSegments.TABLE_NAME + " (" + TrackSegments.RIDE_ID + ")";
+
+    private static final String SQL_CREATE_RTREE =
+            "CREATE VIRTUAL TABLE IF NOT EXISTS " + RTREE_NAME + " USING rtree(" +
+                    RTREE_ID + "," + MIN_RIDE + "," + MAX_RIDE + "," +
+                    TrackSegments.MIN_LATITUDE + "," + TrackSegments.MAX_LATITUDE + "," +
+                    TrackSegments.MIN_LONGITUDE + "," + TrackSegments.MAX_LONGITUDE + ")";
+
+    private static final String SQL_INSERT_RTREE =
+            "INSERT INTO " + RTREE_NAME + " VALUES (?, ?, ?, ?, ?, ?, ?)";
+
+    private static final String SQL_DELETE_RTREE =
+            "DELETE FROM " + RTREE_NAME + " WHERE " + RTREE_ID + " IN (SELECT " +
+                    TrackSegments._ID + " FROM " + TrackSegments.TABLE_NAME + " WHERE " +
+                    TrackSegments.RIDE_ID + " = ?)";
+
+    private static final String SQL_RIDE_SELECTION = TrackSegments.RIDE_ID + " = ?";
+
+    /* Arguments: ride, ride, south, north, west, east */
+    private static final String SQL_QUERY_RTREE =
+            "SELECT s." + TrackSegments._ID + ",s." + TrackSegments.FIRST_ROW + ",s." +
+                    TrackSegments.LAST_ROW + " FROM " + TrackSegments.TABLE_NAME + " s, " +
+                    RTREE_NAME + " r WHERE r." + RTREE_ID + " = s." + TrackSegments._ID +
+                    " AND r." + MIN_RIDE + " <= ? AND r." + MAX_RIDE + " >= ?" +
+                    " AND r." + TrackSegments.MAX_LATITUDE + " >= ?" +
+                    " AND r." + TrackSegments.MIN_LATITUDE + " <= ?" +
+                    " AND r." + TrackSegments.MAX_LONGITUDE + " >= ?" +
+                    " AND r." + TrackSegments.MIN_LONGITUDE + " <= ?" +
+                    " ORDER BY s." + TrackSegments._ID;
+
+    /* Arguments: ride, south, north, west, east */
+    private static final String SQL_QUERY_TABLE =
+            "SELECT " + TrackSegments._ID + "," + TrackSegments.FIRST_ROW + "," +
+                    TrackSegments.LAST_ROW + " FROM " + TrackSegments.TABLE_NAME +
+                    " WHERE " + TrackSegments.RIDE_ID + " = ?" +
+                    " AND " + TrackSegments.MAX_LATITUDE + " >= ?" +
+                    " AND " + TrackSegments.MIN_LATITUDE + " <= ?" +
+                    " AND " + TrackSegments.MAX_LONGITUDE + " >= ?" +
+                    " AND " + TrackSegments.MIN_LONGITUDE + " <= ?" +
+                    " ORDER BY " + TrackSegments._ID;
+
+    private static final String SQL_SEGMENT_ROWS =
+            "SELECT " + RideData.LATITUDE + "," + RideData.LONGITUDE + " FROM " +
+                    RideData.TABLE_NAME + " WHERE " + RideData.RIDE_ID + " = ? AND " +
+                    RideData._ID + " BETWEEN ? AND ? ORDER BY " + RideData._ID;
+
+    private static final String[] TRACK_COLUMNS =
+            {RideData._ID, RideData.LATITUDE, RideData.LONGITUDE};
+
+    private RideSegmentIndex() {}
+
+    /** Creates the segment table, and the R*Tree if this SQLite has the module */
+    public static void create(SQLiteDatabase db) {
+        db.execSQL(SQL_CREATE_TABLE);
+        db.execSQL(SQL_CREATE_RIDE_INDEX);
+        try {
+            db.execSQL(SQL_CREATE_RTREE);
+        } catch (SQLiteException ex) {
+            Log.i(TAG, "No rtree module, segments will be searched by ride: " + ex.getMessage());
+        }
+    }
+
+    public static void drop(SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS " + RTREE_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + TrackSegments.TABLE_NAME);
+    }
+
+    public static boolean hasRtree(SQLiteDatabase db) {
+        return DatabaseUtils.queryNumEntries(db, "sqlite_master", "name = ?",
+                new String[]{RTREE_NAME}) > 0;
+    }
+
+    /**
+     * Cuts a ride's rows into segments, replacing any it had.
+     *
+     * @return The number of segments.
+     */
+    public static int build(SQLiteDatabase db, int rideID) {
+        Cursor cursor = RideDataDbHelper.queryRide(db, rideID, TRACK_COLUMNS);
+        if ( cursor == null ) {
+            return 0;
+        }
+
+        Segment segment = new Segment(db, rideID, hasRtree(db));
+        db.beginTransaction();
+        try {
+            delete(db, rideID);
+            while ( cursor.moveToNext() ) {
+                if ( cursor.isNull(1) || cursor.isNull(2) ) {
+                    continue;
+                }
+                segment.add(cursor.getLong(0), cursor.getDouble(1), cursor.getDouble(2));
+                if ( segment.rows > SEGMENT_ROWS ) {
+                    segment.insert();
+                }
+            }
+            if ( segment.rows > 1 ) {
+                segment.insert();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            cursor.close();
+        }
+
+        return segment.count;
+    }
+
+    /**
+     * Builds a ride's segments if it has none and is finished.
+     *
+     * @return Whether the ride has segments to query.
+     */
+    public static boolean ensure(SQLiteDatabase db, int rideID) {
+        if ( DatabaseUtils.queryNumEntries(db, TrackSegments.TABLE_NAME, SQL_RIDE_SELECTION,
+                new String[]{Integer.toString(rideID)}) > 0 ) {
+            return true;
+        }
+        if ( DatabaseUtils.queryNumEntries(db, Rides.TABLE_NAME,
+                Rides._ID + " = ? AND " + Rides.STATE + " = " + Rides.STATE_FINISHED,
+                new String[]{Integer.toString(rideID)}) == 0 ) {
+            return false;
+        }
+
+        int segments = build(db, rideID);
+        Log.i(TAG, "Indexed ride " + rideID + " in " + segments + " segments");
+        return segments > 0;
+    }
+
+    public static void delete(SQLiteDatabase db, int rideID) {
+        String[] where = {Integer.toString(rideID)};
+        if ( hasRtree(db) ) {
+            db.execSQL(SQL_DELETE_RTREE, where);
+        }
+        db.delete(TrackSegments.TABLE_NAME, SQL_RIDE_SELECTION, where);
+    }
+
+    /**
+     * The segments of a ride with any part inside a box, in the order they were ridden.
+     *
+     * @return A cursor of each segment's _id, first row and last row.
+     */
+    public static Cursor query(SQLiteDatabase db, int rideID, double south, double west,
+                               double north, double east) {
+        String ride = Integer.toString(rideID);
+        String[] box = {Double.toString(south), Double.toString(north),
+                Double.toString(west), Double.toString(east)};
+
+        if ( hasRtree(db) ) {
+            return db.rawQuery(SQL_QUERY_RTREE,
+                    new String[]{ride, ride, box[0], box[1], box[2], box[3]});
+        }
+        return db.rawQuery(SQL_QUERY_TABLE, new String[]{ride, box[0], box[1], box[2], box[3]});
+    }
+
+    /** A segment's fixes, as interleaved latitude and longitude */
+    public static double[] loadSegment(SQLiteDatabase db, int rideID, long firstRow,
+                                       long lastRow) {
+        Cursor cursor = db.rawQuery(SQL_SEGMENT_ROWS, new String[]{Integer.toString(rideID),
+                Long.toString(firstRow), Long.toString(lastRow)});
+        double[] points = new double[(SEGMENT_ROWS + 1) * 2];
+        int count = 0;
+        try {
+            while ( cursor.moveToNext() ) {
+                if ( cursor.isNull(0) || cursor.isNull(1) ) {
+                    continue;
+                }
+                if ( count == points.length ) {
+                    points = Arrays.copyOf(points, count * 2);
+                }
+                points[count++] = cursor.getDouble(0);
+                points[count++] = cursor.getDouble(1);
+            }
+        } finally {
+            cursor.close();
+        }
+        return Arrays.copyOf(points, count);
+    }
+
+    /* The segment being built, and how many have been inserted */
+    private static class Segment {
+
+        private final SQLiteDatabase db;
+        private final int rideID;
+        private final boolean rtree;
+        private final ContentValues values = new ContentValues();
+        private final Object[] box = new Object[7];
+
+        int rows;
+        int count;
+        long firstRow;
+        long lastRow;
+        double minLat, maxLat, minLon, maxLon;
+        double lastLat, lastLon;
+
+        Segment(SQLiteDatabase db, int rideID, boolean rtree) {
+            this.db = db;
+            this.rideID = rideID;
+            this.rtree = rtree;
+        }
+
+        void add(long row, double lat, double lon) {
+            if ( rows == 0 ) {
+                firstRow = row;
+                minLat = maxLat = lat;
+                minLon = maxLon = lon;
+            } else {
+                minLat = Math.min(minLat, lat);
+                maxLat = Math.max(maxLat, lat);
+                minLon = Math.min(minLon, lon);
+                maxLon = Math.max(maxLon, lon);
+            }
+            lastRow = row;
+            lastLat = lat;
+            lastLon = lon;
+            rows++;
+        }
+
+        void insert() {
+            values.put(TrackSegments.RIDE_ID, rideID);
+            values.put(TrackSegments.FIRST_ROW, firstRow);
+            values.put(TrackSegments.LAST_ROW, lastRow);
+            values.put(TrackSegments.MIN_LATITUDE, minLat);
+            values.put(TrackSegments.MAX_LATITUDE, maxLat);
+            values.put(TrackSegments.MIN_LONGITUDE, minLon);
+            values.put(TrackSegments.MAX_LONGITUDE, maxLon);
+            long id = db.insertOrThrow(TrackSegments.TABLE_NAME, null, values);
+
+            if ( rtree ) {
+                box[0] = id;
+                box[1] = rideID;
+                box[2] = rideID;
+                box[3] = minLat;
+                box[4] = maxLat;
+                box[5] = minLon;
+                box[6] = maxLon;
+                db.execSQL(SQL_INSERT_RTREE, box);
+            }
+            count++;
+
+            // The next segment starts where this one ends, so they join up
+            rows = 0;
+            add(lastRow, lastLat, lastLon);
+        }
+    }
+}
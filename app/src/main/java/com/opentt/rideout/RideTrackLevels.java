@@ -0,0 +1,173 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.opentt.rideout.RideDataContract.RideData;
+import com.opentt.rideout.RideDataContract.Rides;
+import com.opentt.rideout.RideDataContract.TrackLevels;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Stores each ride's {@link TrackPyramid}, so the map draws a few thousand points of a ride
+ * rather than every fix. Levels are built when a ride is finished; rides finished before there
+ * were levels have theirs built the first time they're shown.
+ *
+ * Levels outlive the rows they were built from, so a ride {@link RideRetention} has archived
+ * can still be drawn.
+ */
+public class RideTrackLevels {
+
+    /* Log TAG */
+    private static final String TAG = "RideTrackLevels";
+
+    public static final String SQL_CREATE_TABLE =
+            "CREATE TABLE IF NOT EXISTS " + TrackLevels.TABLE_NAME + " (" +
+                    TrackLevels.RIDE_ID + " INTEGER NOT NULL," +
+                    TrackLevels.LEVEL + " INTEGER NOT NULL," +
+                    TrackLevels.POINTS + " INTEGER," +
+                    TrackLevels.GEOMETRY + " BLOB," +
+                    "PRIMARY KEY (" + TrackLevels.RIDE_ID + "," + TrackLevels.LEVEL + "))";
+
+    public static final String SQL_DELETE_TABLE = "DROP TABLE IF EXISTS " + TrackLevels.TABLE_NAME;
+
+    private static final String[] LEVEL_COLUMNS = {TrackLevels.GEOMETRY};
+
+    private static final String[] TRACK_COLUMNS = {RideData.LATITUDE, RideData.LONGITUDE};
+
+    private static final String SQL_RIDE_SELECTION = TrackLevels.RIDE_ID + " = ?";
+
+    private RideTrackLevels() {}
+
+    /**
+     * Builds a ride's levels from its rows, replacing any it had.
+     *
+     * @return The number of points at the finest level, 0 if the ride has no rows.
+     */
+    public static int build(SQLiteDatabase db, int rideID) {
+        byte[][] levels = buildLevels(db, rideID);
+        if ( levels == null ) {
+            return 0;
+        }
+        store(db, rideID, levels);
+        return TrackPyramid.countPoints(levels[0]);
+    }
+
+    /**
+     * A ride's levels, finest first, each as interleaved latitude and longitude. Builds them if
+     * the ride has none, storing them only if it's finished.
+     *
+     * @return No levels if the ride has neither levels nor rows.
+     */
+    public static List<double[]> load(SQLiteDatabase db, int rideID) {
+        List<double[]> levels = new ArrayList<>(TrackPyramid.TOLERANCES.length);
+        String[] where = {Integer.toString(rideID)};
+
+        Cursor cursor = db.query(TrackLevels.TABLE_NAME, LEVEL_COLUMNS, SQL_RIDE_SELECTION,
+                where, null, null, TrackLevels.LEVEL);
+        try {
+            while ( cursor.moveToNext() ) {
+                levels.add(TrackPyramid.decode(cursor.getBlob(0)));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        if ( levels.isEmpty() ) {
+            byte[][] built = buildLevels(db, rideID);
+            if ( built != null ) {
+                for (byte[] level : built) {
+                    levels.add(TrackPyramid.decode(level));
+                }
+                if ( isFinished(db, rideID) ) {
+                    store(db, rideID, built);
+                    Log.i(TAG, "Built the track levels of ride " + rideID);
+                }
+            }
+        }
+        return levels;
+    }
+
+    public static void delete(SQLiteDatabase db, int rideID) {
+        db.delete(TrackLevels.TABLE_NAME, SQL_RIDE_SELECTION,
+                new String[]{Integer.toString(rideID)});
+    }
+
+    private static void store(SQLiteDatabase db, int rideID, byte[][] levels) {
+        String[] where = {Integer.toString(rideID)};
+        ContentValues values = new ContentValues();
+
+        db.beginTransaction();
+        try {
+            db.delete(TrackLevels.TABLE_NAME, SQL_RIDE_SELECTION, where);
+            for (int level = 0; level < levels.length; level++) {
+                values.put(TrackLevels.RIDE_ID, rideID);
+                values.put(TrackLevels.LEVEL, level);
+                values.put(TrackLevels.POINTS, TrackPyramid.countPoints(levels[level]));
+                values.put(TrackLevels.GEOMETRY, levels[level]);
+                db.insertOrThrow(TrackLevels.TABLE_NAME, null, values);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /* Null if the ride has no rows */
+    private static byte[][] buildLevels(SQLiteDatabase db, int rideID) {
+        Cursor cursor = RideDataDbHelper.queryRide(db, rideID, TRACK_COLUMNS);
+        if ( cursor == null ) {
+            return null;
+        }
+
+        int count = 0;
+        double[] latitude = new double[Math.max(cursor.getCount(), 1)];
+        double[] longitude = new double[latitude.length];
+        try {
+            while ( cursor.moveToNext() ) {
+                if ( cursor.isNull(0) || cursor.isNull(1) ) {
+                    continue;
+                }
+                if ( count == latitude.length ) {
+                    latitude = Arrays.copyOf(latitude, count * 2);
+                    longitude = Arrays.copyOf(longitude, count * 2);
+                }
+                latitude[count] = cursor.getDouble(0);
+                longitude[count] = cursor.getDouble(1);
+                count++;
+            }
+        } finally {
+            cursor.close();
+        }
+
+        return count > 0 ? TrackPyramid.build(latitude, longitude, count) : null;
+    }
+
+    private static boolean isFinished(SQLiteDatabase db, int rideID) {
+        return DatabaseUtils.queryNumEntries(db, Rides.TABLE_NAME,
+                Rides._ID + " = ? AND " + Rides.STATE + " = " + Rides.STATE_FINISHED,
+                new String[]{Integer.toString(rideID)}) > 0;
+    }
+}
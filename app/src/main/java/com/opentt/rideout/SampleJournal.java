@@ -0,0 +1,493 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of {@link RideSample}s in memory-mapped segment files.
+ *
+ * The acquisition thread appends every sample here first. A sample is committed once its
+ * block header covers it, which happens as part of the append, so it survives the process
+ * being killed from then on. It survives a power loss or kernel panic once {@link #sync()} has
+ * forced its segment out to flash, which the reading thread does without holding up appends.
+ * {@link RideDataWriter} syncs every time it wakes, then compacts the journal into ride_data
+ * and records how far it got in {@link #TABLE_NAME}, in the same transaction as the rows.
+ * After a restart, everything past that checkpoint is replayed.
+ *
+ * Records are fixed width and addressed by position, counting from the first sample ever
+ * appended. Each segment holds {@link #BLOCKS_PER_SEGMENT} blocks of {@link #BLOCK_RECORDS}
+ * records. A block starts with one long, the record count in the high half and the CRC32 of
+ * those records in the low half. It is rewritten with a single putLong after each record,
+ * so a torn append leaves the previous, still valid, header in place.
+ *
+ * One thread appends and one thread reads. Appending only allocates when a new segment is
+ * mapped.
+ */
+public class SampleJournal {
+
+    /* Log TAG */
+    private static final String TAG = "SampleJournal";
+
+    private static final String DIRECTORY_NAME = "journal";
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private static final int MAGIC = 0x52444a31; // "RDJ1"
+
+    /* rideID, padding, timeStamp, elapsedNanos and nine doubles */
+    public static final int RECORD_SIZE = 96;
+    public static final int BLOCK_RECORDS = 64;
+    public static final int BLOCKS_PER_SEGMENT = 170;
+
+    private static final int SEGMENT_HEADER_SIZE = 16;
+    private static final int BLOCK_HEADER_SIZE = 8;
+    private static final int BLOCK_SIZE = BLOCK_HEADER_SIZE + BLOCK_RECORDS * RECORD_SIZE;
+
+    public static final int RECORDS_PER_SEGMENT = BLOCKS_PER_SEGMENT * BLOCK_RECORDS;
+    public static final int SEGMENT_SIZE = SEGMENT_HEADER_SIZE + BLOCKS_PER_SEGMENT * BLOCK_SIZE;
+
+    /** Checkpoint table, a single row holding the first position not yet in ride_data */
+    public static final String TABLE_NAME = "journal_state";
+    public static final String POSITION = "position";
+
+    public static final String SQL_CREATE_STATE_TABLE =
+            "CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (" +
+                    "_id INTEGER PRIMARY KEY," +
+                    POSITION + " INTEGER )";
+
+    public static final String SQL_DELETE_STATE_TABLE = "DROP TABLE IF EXISTS " + TABLE_NAME;
+
+    public static final String SQL_WRITE_CHECKPOINT =
+            "INSERT OR REPLACE INTO " + TABLE_NAME + " (_id, " + POSITION + ") VALUES (0, ?)";
+
+    /* How many journals are open on each directory in this process */
+    private static final Map<File, Integer> sOpen = new HashMap<>();
+
+    private final File directory;
+    private boolean closed;
+
+    /* Appending side */
+    private MappedByteBuffer writeSegment;
+    private long writeSegmentIndex = -1;
+    private final CRC32 crc = new CRC32();
+    private final byte[] record = new byte[RECORD_SIZE];
+    private final ByteBuffer recordBuffer = ByteBuffer.wrap(record).order(ByteOrder.nativeOrder());
+
+    /* Position after the last committed record */
+    private volatile long appendPosition;
+
+    /* Reading side */
+    private MappedByteBuffer readSegment;
+    private long readSegmentIndex = -1;
+
+    /* Records before this are known to be on flash, reading side */
+    private long syncedPosition;
+
+    private SampleJournal(File directory) {
+        this.directory = directory;
+    }
+
+    public static File getDirectory(Context context) {
+        return new File(context.getFilesDir(), DIRECTORY_NAME);
+    }
+
+    /** Whether a journal on directory is open in this process */
+    public static boolean isOpen(File directory) {
+        synchronized (sOpen) {
+            return sOpen.containsKey(directory.getAbsoluteFile());
+        }
+    }
+
+    /**
+     * Deletes every segment, unless a journal on directory is open in this process.
+     *
+     * @return false if the journal is open and nothing was deleted.
+     */
+    public static boolean deleteIfClosed(File directory) {
+        synchronized (sOpen) {
+            if ( isOpen(directory) ) {
+                return false;
+            }
+            delete(directory);
+            return true;
+        }
+    }
+
+    /** Deletes every segment. Only while nothing has the journal open. */
+    public static void delete(File directory) {
+        File[] files = directory.listFiles();
+
+        if ( files != null ) {
+            for (File file : files) {
+                if ( !file.delete() ) {
+                    Log.e(TAG, "Could not delete " + file);
+                }
+            }
+        }
+    }
+
+    public static long readCheckpoint(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db,
+                "SELECT IFNULL(MAX(" + POSITION + "), 0) FROM " + TABLE_NAME, null);
+    }
+
+    /**
+     * Opens the journal and finds the end of its committed records, checking every block from
+     * the checkpoint on. Anything after the first bad block is discarded.
+     *
+     * @param checkpoint First position not yet compacted, from {@link #readCheckpoint}.
+     */
+    public static SampleJournal open(File directory, long checkpoint) throws IOException {
+        if ( !directory.isDirectory() && !directory.mkdirs() ) {
+            throw new IOException("Could not create " + directory);
+        }
+
+        synchronized (sOpen) {
+            SampleJournal journal = new SampleJournal(directory);
+            journal.recover(checkpoint);
+
+            File key = directory.getAbsoluteFile();
+            Integer open = sOpen.get(key);
+            sOpen.put(key, open == null ? 1 : open + 1);
+            return journal;
+        }
+    }
+
+    /** Lets go of the journal and its segments. Once the appending thread has stopped. */
+    public void close() {
+        synchronized (sOpen) {
+            if ( closed ) {
+                return;
+            }
+            closed = true;
+            writeSegment = null;
+            readSegment = null;
+            readSegmentIndex = -1;
+
+            File key = directory.getAbsoluteFile();
+            int open = sOpen.get(key);
+            if ( open > 1 ) {
+                sOpen.put(key, open - 1);
+            } else {
+                sOpen.remove(key);
+            }
+        }
+    }
+
+    private void recover(long checkpoint) throws IOException {
+        long segmentIndex = checkpoint / RECORDS_PER_SEGMENT;
+        // Blocks before the checkpoint's are already in the database and needn't be checked
+        int fromBlock = (int) (checkpoint % RECORDS_PER_SEGMENT) / BLOCK_RECORDS;
+        long end = segmentIndex * RECORDS_PER_SEGMENT + fromBlock * BLOCK_RECORDS;
+
+        // Segments wholly before the checkpoint are already in the database
+        deleteSegmentsBefore(segmentIndex);
+
+        while ( segmentFile(segmentIndex).exists() ) {
+            MappedByteBuffer segment = map(segmentIndex, false);
+            int records = validRecords(segment, fromBlock);
+
+            end = segmentIndex * RECORDS_PER_SEGMENT + fromBlock * BLOCK_RECORDS + records;
+            if ( fromBlock * BLOCK_RECORDS + records < RECORDS_PER_SEGMENT ) {
+                break;
+            }
+            segmentIndex++;
+            fromBlock = 0;
+        }
+
+        // Nothing after the end can be trusted
+        for (long i = segmentIndex + 1; segmentFile(i).exists(); i++) {
+            Log.w(TAG, "Discarding segment " + i + " after the end of the journal");
+            if ( !segmentFile(i).delete() ) {
+                throw new IOException("Could not delete " + segmentFile(i));
+            }
+        }
+
+        if ( end < checkpoint ) {
+            Log.w(TAG, "Journal ends at " + end + " before checkpoint " + checkpoint);
+            end = checkpoint;
+        }
+
+        appendPosition = end;
+        syncedPosition = checkpoint;
+        resumeAppending(end);
+
+        Log.i(TAG, "Opened journal, " + (end - checkpoint) + " records to replay from " +
+                checkpoint);
+    }
+
+    /* Counts the records of a segment from fromBlock up to its first partial or damaged block */
+    private int validRecords(MappedByteBuffer segment, int fromBlock) {
+        if ( segment.getInt(0) != MAGIC ) {
+            return 0;
+        }
+
+        CRC32 check = new CRC32();
+        byte[] buffer = new byte[RECORD_SIZE];
+        int records = 0;
+
+        for (int block = fromBlock; block < BLOCKS_PER_SEGMENT; block++) {
+            long header = segment.getLong(blockOffset(block));
+            int count = (int) (header >>> 32);
+
+            if ( count <= 0 || count > BLOCK_RECORDS ) {
+                break;
+            }
+
+            check.reset();
+            for (int i = 0; i < count; i++) {
+                segment.position(recordOffset(block, i));
+                segment.get(buffer);
+                check.update(buffer, 0, RECORD_SIZE);
+            }
+
+            if ( check.getValue() != (header & 0xffffffffL) ) {
+                Log.w(TAG, "Bad checksum in block " + block + ", journal truncated there");
+                segment.putLong(blockOffset(block), 0);
+                break;
+            }
+
+            records += count;
+            if ( count < BLOCK_RECORDS ) {
+                break;
+            }
+        }
+
+        return records;
+    }
+
+    /* Maps the segment holding position and picks the CRC up where its block left off */
+    private void resumeAppending(long position) throws IOException {
+        long segmentIndex = position / RECORDS_PER_SEGMENT;
+        int offset = (int) (position % RECORDS_PER_SEGMENT);
+
+        writeSegment = map(segmentIndex, true);
+        writeSegmentIndex = segmentIndex;
+
+        int block = offset / BLOCK_RECORDS;
+        crc.reset();
+        for (int i = 0; i < offset % BLOCK_RECORDS; i++) {
+            writeSegment.position(recordOffset(block, i));
+            writeSegment.get(record);
+            crc.update(record, 0, RECORD_SIZE);
+        }
+    }
+
+    /**
+     * Commits a sample. Appending thread only.
+     *
+     * @return false if a new segment could not be created.
+     */
+    public boolean append(RideSample sample) {
+        long position = appendPosition;
+        long segmentIndex = position / RECORDS_PER_SEGMENT;
+        int offset = (int) (position % RECORDS_PER_SEGMENT);
+
+        if ( segmentIndex != writeSegmentIndex ) {
+            try {
+                writeSegment = map(segmentIndex, true);
+                writeSegmentIndex = segmentIndex;
+            } catch (IOException ex) {
+                Log.e(TAG, "Could not create journal segment " + segmentIndex, ex);
+                return false;
+            }
+        }
+
+        int block = offset / BLOCK_RECORDS;
+        int index = offset % BLOCK_RECORDS;
+        if ( index == 0 ) {
+            crc.reset();
+        }
+
+        recordBuffer.clear();
+        recordBuffer.putInt(sample.rideID);
+        recordBuffer.putInt(0);
+        recordBuffer.putLong(sample.timeStamp);
+        recordBuffer.putLong(sample.elapsedNanos);
+        recordBuffer.putDouble(sample.latitude);
+        recordBuffer.putDouble(sample.longitude);
+        recordBuffer.putDouble(sample.altitude);
+        recordBuffer.putDouble(sample.speed);
+        recordBuffer.putDouble(sample.bearing);
+        recordBuffer.putDouble(sample.accelerationX);
+        recordBuffer.putDouble(sample.accelerationY);
+        recordBuffer.putDouble(sample.accelerationZ);
+        recordBuffer.putDouble(sample.leanAngle);
+
+        writeSegment.position(recordOffset(block, index));
+        writeSegment.put(record);
+        crc.update(record, 0, RECORD_SIZE);
+
+        // The commit point: count and checksum in one write
+        writeSegment.putLong(blockOffset(block), ((long) (index + 1) << 32) | crc.getValue());
+
+        appendPosition = position + 1;
+        return true;
+    }
+
+    /** Position after the last committed record */
+    public long getAppendPosition() {
+        return appendPosition;
+    }
+
+    /**
+     * Reads a committed record into sample. Reading thread only.
+     *
+     * @return false if the segment holding it could not be mapped.
+     */
+    public boolean read(long position, RideSample sample) {
+        long segmentIndex = position / RECORDS_PER_SEGMENT;
+        int offset = (int) (position % RECORDS_PER_SEGMENT);
+
+        if ( segmentIndex != readSegmentIndex ) {
+            try {
+                readSegment = map(segmentIndex, false);
+                readSegmentIndex = segmentIndex;
+            } catch (IOException ex) {
+                Log.e(TAG, "Could not map journal segment " + segmentIndex, ex);
+                return false;
+            }
+        }
+
+        int base = recordOffset(offset / BLOCK_RECORDS, offset % BLOCK_RECORDS);
+        sample.rideID = readSegment.getInt(base);
+        sample.timeStamp = readSegment.getLong(base + 8);
+        sample.elapsedNanos = readSegment.getLong(base + 16);
+        sample.latitude = readSegment.getDouble(base + 24);
+        sample.longitude = readSegment.getDouble(base + 32);
+        sample.altitude = readSegment.getDouble(base + 40);
+        sample.speed = readSegment.getDouble(base + 48);
+        sample.bearing = readSegment.getDouble(base + 56);
+        sample.accelerationX = readSegment.getDouble(base + 64);
+        sample.accelerationY = readSegment.getDouble(base + 72);
+        sample.accelerationZ = readSegment.getDouble(base + 80);
+        sample.leanAngle = readSegment.getDouble(base + 88);
+        return true;
+    }
+
+    /**
+     * Forces the records appended since the last sync out to flash, segment by segment, so
+     * they survive a power loss as well as the process being killed. Reading thread; the
+     * appending thread carries on meanwhile.
+     *
+     * @return false if a segment could not be mapped to force it.
+     */
+    public boolean sync() {
+        long end = appendPosition;
+        if ( end == syncedPosition ) {
+            return true;
+        }
+
+        long last = (end - 1) / RECORDS_PER_SEGMENT;
+        for (long i = syncedPosition / RECORDS_PER_SEGMENT; i <= last; i++) {
+            try {
+                MappedByteBuffer segment = i == readSegmentIndex ? readSegment : map(i, false);
+                segment.force();
+            } catch (IOException ex) {
+                Log.e(TAG, "Could not sync journal segment " + i, ex);
+                return false;
+            }
+        }
+
+        syncedPosition = end;
+        return true;
+    }
+
+    /** Deletes the segments wholly before position, once it is checkpointed. Reading thread. */
+    public void release(long position) {
+        deleteSegmentsBefore(Math.min(position, appendPosition) / RECORDS_PER_SEGMENT);
+    }
+
+    private void deleteSegmentsBefore(long segmentIndex) {
+        File[] files = directory.listFiles();
+
+        if ( files == null ) {
+            return;
+        }
+
+        for (File file : files) {
+            long index = segmentIndex(file);
+            if ( index >= 0 && index < segmentIndex && !file.delete() ) {
+                Log.e(TAG, "Could not delete " + file);
+            }
+        }
+    }
+
+    private MappedByteBuffer map(long segmentIndex, boolean create) throws IOException {
+        File file = segmentFile(segmentIndex);
+        boolean initialise = create && !file.exists();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if ( raf.length() < SEGMENT_SIZE ) {
+                raf.setLength(SEGMENT_SIZE);
+            }
+
+            MappedByteBuffer segment = raf.getChannel()
+                    .map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+            segment.order(ByteOrder.nativeOrder());
+
+            if ( initialise ) {
+                segment.putLong(8, segmentIndex);
+                segment.putInt(4, RECORD_SIZE);
+                segment.putInt(0, MAGIC);
+            }
+            return segment;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private File segmentFile(long segmentIndex) {
+        return new File(directory, String.format("%016d%s", segmentIndex, SEGMENT_SUFFIX));
+    }
+
+    private static long segmentIndex(File file) {
+        String name = file.getName();
+
+        if ( !name.endsWith(SEGMENT_SUFFIX) ) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    private static int blockOffset(int block) {
+        return SEGMENT_HEADER_SIZE + block * BLOCK_SIZE;
+    }
+
+    private static int recordOffset(int block, int index) {
+        return blockOffset(block) + BLOCK_HEADER_SIZE + index * RECORD_SIZE;
+    }
+}
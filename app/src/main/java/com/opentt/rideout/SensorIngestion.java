@@ -0,0 +1,142 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Reads the motion sensors at 200 Hz on a thread of its own and queues every reading in an
+ * {@link ImuRingBuffer}.
+ *
+ * The location path runs at a fraction of this rate, so it drains the buffer in batches on
+ * its own thread instead of sharing fields with the sensor callbacks. The callbacks only copy
+ * the event values into the buffer; they never touch the database or allocate.
+ */
+public class SensorIngestion implements SensorSource, SensorEventListener {
+
+    /* Log TAG */
+    private static final String TAG = "SensorIngestion";
+
+    private static final String SENSOR_THREAD_NAME = "sensorIngestion";
+
+    /* 200 Hz. The sensor may deliver faster or slower than requested. */
+    public static final int SAMPLING_PERIOD_US = 5000;
+
+    /* Over a second at the requested rate for each of the four sensors */
+    public static final int BUFFER_CAPACITY = 2048;
+
+    private final SensorManager sensorManager;
+    private ImuRingBuffer buffer;
+    private final boolean linearAcceleration;
+    private final boolean gyroscope;
+
+    private HandlerThread thread;
+
+    /**
+     * @param linearAcceleration Read the linear acceleration sensor.
+     * @param gyroscope Read the gyroscope.
+     */
+    public SensorIngestion(Context context, boolean linearAcceleration, boolean gyroscope) {
+        this.sensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+        this.linearAcceleration = linearAcceleration;
+        this.gyroscope = gyroscope;
+    }
+
+    /**
+     * Registers for the enabled sensors, and for the accelerometer and rotation vector if any
+     * are enabled
+     */
+    @Override
+    public void start(ImuRingBuffer buffer) {
+        if ( thread != null ) {
+            return;
+        }
+
+        this.buffer = buffer;
+
+        thread = new HandlerThread(SENSOR_THREAD_NAME, Process.THREAD_PRIORITY_URGENT_DISPLAY);
+        thread.start();
+        Handler handler = new Handler(thread.getLooper());
+
+        if ( linearAcceleration ) {
+            register(Sensor.TYPE_LINEAR_ACCELERATION, handler);
+        }
+        if ( gyroscope ) {
+            register(Sensor.TYPE_GYROSCOPE, handler);
+        }
+        if ( linearAcceleration || gyroscope ) {
+            // Gravity for the lean angle estimate, and absolute orientation
+            register(Sensor.TYPE_ACCELEROMETER, handler);
+            register(Sensor.TYPE_ROTATION_VECTOR, handler);
+        }
+    }
+
+    private void register(int sensorType, Handler handler) {
+        Sensor sensor = sensorManager.getDefaultSensor(sensorType);
+
+        if ( sensor == null ) {
+            Log.w(TAG, "No sensor of type " + sensorType + " on this device");
+            return;
+        }
+
+        if ( !sensorManager.registerListener(this, sensor, SAMPLING_PERIOD_US, handler) ) {
+            Log.e(TAG, "Could not register for sensor type " + sensorType);
+        }
+    }
+
+    @Override
+    public void stop() {
+        if ( thread == null ) {
+            return;
+        }
+
+        sensorManager.unregisterListener(this);
+        thread.quit();
+        thread = null;
+
+        Log.i(TAG, "Stopped, " + buffer.getReadingsDropped() + " readings dropped");
+    }
+
+    /** Sensor events are stamped with elapsedRealtimeNanos */
+    @Override
+    public long getElapsedNanos() {
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    /**
+     * Sensor thread. The rotation vector's fourth component is left out; it follows from the
+     * other three for a unit quaternion.
+     */
+    @Override
+    public void onSensorChanged(SensorEvent event) {
+        float[] v = event.values;
+        buffer.offer(event.sensor.getType(), event.timestamp, v[0], v[1], v[2]);
+    }
+
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+    }
+}
@@ -0,0 +1,38 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+/**
+ * Where {@link DataAcquisitionService} gets its motion sensor readings: the device sensors on a
+ * ride, or a recorded sensor log for testing.
+ *
+ * @see SensorIngestion
+ * @see ReplaySource
+ */
+public interface SensorSource {
+
+    /** Starts offering readings to buffer, from a thread of the source's own */
+    void start(ImuRingBuffer buffer);
+
+    void stop();
+
+    /**
+     * Current time on the clock readings and fixes are stamped with. The acquisition thread
+     * drains readings relative to this, so a replay isn't held to the wall clock.
+     */
+    long getElapsedNanos();
+}
@@ -17,11 +17,13 @@
 package com.opentt.rideout;
 
 import android.app.AlertDialog;
+import android.app.ProgressDialog;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.SharedPreferences;
 import android.database.sqlite.SQLiteDatabase;
 import android.preference.Preference;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.preference.PreferenceActivity;
 import android.preference.PreferenceFragment;
@@ -29,6 +31,8 @@ import android.preference.PreferenceManager;
 import android.util.Log;
 import android.widget.Toast;
 
+import java.io.File;
+
 
 public class SettingsActivity extends PreferenceActivity implements
         Preference.OnPreferenceClickListener {
@@ -42,8 +46,17 @@ public class SettingsActivity extends PreferenceActivity implements
     public static final String PREF_KEY_SPLASH_SOUND = "pref_key_splash_sound";
     public static final String PREF_KEY_USE_LOCATION_SERVICES = "pref_key_use_location_services";
     public static final String PREF_KEY_SAMPLE_FREQUENCY  = "pref_key_sample_frequency";
+    public static final String PREF_KEY_ENABLE_LINEAR_ACCELEROMETERS =
+            "pref_key_enable_linear_accelerometers";
+    public static final String PREF_KEY_ENABLE_GYROS = "pref_key_enable_gyros";
+    public static final String PREF_KEY_RECORD_LEAN_CHANNEL = "pref_key_record_lean_channel";
     public static final String PREF_KEY_RESET_PREFERENCES  = "pref_key_reset_preferences";
     public static final String PREF_KEY_CLEAR_DATA  = "pref_key_clear_data";
+    public static final String PREF_KEY_EXPORT_FORMAT = "pref_key_export_format";
+    public static final String PREF_KEY_EXPORT_RIDES = "pref_key_export_rides";
+    public static final String PREF_KEY_RESTORE_RIDES = "pref_key_restore_rides";
+    public static final String PREF_KEY_SIMPLIFY_AFTER = "pref_key_simplify_after";
+    public static final String PREF_KEY_ARCHIVE_AFTER = "pref_key_archive_after";
 
     private final Context context = this;
 
@@ -103,12 +116,13 @@ public class SettingsActivity extends PreferenceActivity implements
                 public void onClick(DialogInterface dialog, int which) {
                     Log.i(TAG, "Resetting Data");
 
-                    RideDataDbHelper mDbHelper = new RideDataDbHelper(getApplicationContext());
-                    SQLiteDatabase db = mDbHelper.getWritableDatabase();
-                    mDbHelper.clearDb(db);
-                    db.close();
+                    RideDataDbHelper mDbHelper = RideDataDbHelper.getInstance(context);
+                    SQLiteDatabase db = mDbHelper.acquireDatabase();
+                    boolean cleared = mDbHelper.clearDb(db);
+                    mDbHelper.releaseDatabase();
 
-                    Toast.makeText(context,"Data Cleared!", Toast.LENGTH_SHORT).show();
+                    Toast.makeText(context, cleared ? "Data Cleared!" :
+                            "Stop recording before clearing data", Toast.LENGTH_SHORT).show();
                 }
             });
 
@@ -122,6 +136,15 @@ public class SettingsActivity extends PreferenceActivity implements
             AlertDialog alert = builder.create();
             alert.show();
             return true;
+
+        } else if ( key.equals(PREF_KEY_EXPORT_RIDES) ){
+            new ExportRides().execute(Integer.parseInt(
+                    mSharedPreferences.getString(PREF_KEY_EXPORT_FORMAT, "0")));
+            return true;
+
+        } else if ( key.equals(PREF_KEY_RESTORE_RIDES) ){
+            new RestoreRides().execute();
+            return true;
         }
 
         //TODO: Restart activity if reset is confirmed
@@ -149,6 +172,22 @@ public class SettingsActivity extends PreferenceActivity implements
         } else{
             Log.e(TAG, "Couldn't find preference ResetData");
         }
+
+        Preference exportRides = mSettingsFragment.findPreference(PREF_KEY_EXPORT_RIDES);
+
+        if ( exportRides != null ) {
+            exportRides.setOnPreferenceClickListener(this);
+        } else{
+            Log.e(TAG, "Couldn't find preference ExportRides");
+        }
+
+        Preference restoreRides = mSettingsFragment.findPreference(PREF_KEY_RESTORE_RIDES);
+
+        if ( restoreRides != null ) {
+            restoreRides.setOnPreferenceClickListener(this);
+        } else{
+            Log.e(TAG, "Couldn't find preference RestoreRides");
+        }
     }
 
     @Override
@@ -156,6 +195,81 @@ public class SettingsActivity extends PreferenceActivity implements
         super.onPause();
     }
 
+    /** AsyncTask ExportRides
+     *  Writes every finished ride to RideDataBackup/export in the format given.
+     */
+    private class ExportRides extends AsyncTask<Integer, Void, Integer> {
+
+        @Override
+        protected Integer doInBackground(Integer... format) {
+            // Exports are mostly file writes; a couple at a time keeps the disk busy
+            int threads = Math.min(2, Runtime.getRuntime().availableProcessors());
+
+            RideDataDbHelper mDbHelper = RideDataDbHelper.getInstance(context);
+            SQLiteDatabase db = mDbHelper.acquireDatabase();
+            try {
+                return RideExporter.exportFinishedRides(db, format[0],
+                        RideExporter.getDirectory(), RideArchive.getDirectory(), threads);
+            } finally {
+                mDbHelper.releaseDatabase();
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Integer exported) {
+            Toast.makeText(context, exported < 0 ? "Export Failed!" :
+                    exported + " Rides Exported!", Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    /** AsyncTask RestoreRides
+     *  Merges the whole database backups and archived rides in RideDataBackup into the
+     *  rides on this device.
+     */
+    private class RestoreRides extends AsyncTask<Void, Integer, Integer>
+            implements RideImporter.Progress {
+
+        private final ProgressDialog dialog = new ProgressDialog(context);
+
+        @Override
+        protected void onPreExecute() {
+            dialog.setTitle(R.string.pref_restore_rides_progress);
+            dialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+            dialog.setCancelable(false);
+            dialog.show();
+        }
+
+        @Override
+        protected Integer doInBackground(Void... params) {
+            RideDataDbHelper mDbHelper = RideDataDbHelper.getInstance(context);
+            SQLiteDatabase db = mDbHelper.acquireDatabase();
+            try {
+                File archive = RideArchive.getDirectory();
+                return new RideImporter(mDbHelper, db, this)
+                        .importAll(archive.getParentFile(), archive);
+            } finally {
+                mDbHelper.releaseDatabase();
+            }
+        }
+
+        @Override
+        public void onProgress(int ridesDone, int ridesTotal, long rowsImported) {
+            publishProgress(ridesDone, ridesTotal);
+        }
+
+        @Override
+        protected void onProgressUpdate(Integer... values) {
+            dialog.setMax(values[1]);
+            dialog.setProgress(values[0]);
+        }
+
+        @Override
+        protected void onPostExecute(Integer imported) {
+            dialog.dismiss();
+            Toast.makeText(context, imported + " Rides Restored!", Toast.LENGTH_SHORT).show();
+        }
+    }
+
     public static class SettingsFragment extends PreferenceFragment {
 
         @Override
@@ -0,0 +1,112 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.opentt.rideout;
+
+import java.util.Locale;
+
+/**
+ * A synthetic ride held in arrays, shared by the benchmarks so that they measure the code under
+ * test rather than the generator. The same seed gives the same ride on every run.
+ */
+final class BenchmarkRide {
+
+    static final double SAMPLE_RATE_HZ = 10.0;
+    static final long START_TIME = 1430000000000L;
+    static final long SEED = 42;
+
+    final int length;
+    final long[] time;
+    final long[] elapsedNanos;
+    final double[] latitude;
+    final double[] longitude;
+    final double[] altitude;
+    final double[] speed;
+    final double[] bearing;
+    final double[] leanAngle;
+
+    BenchmarkRide(SyntheticRideGenerator.Profile profile, int length) {
+        this.length = length;
+        time = new long[length];
+        elapsedNanos = new long[length];
+        latitude = new double[length];
+        longitude = new double[length];
+        altitude = new double[length];
+        speed = new double[length];
+        bearing = new double[length];
+        leanAngle = new double[length];
+
+        SyntheticRideGenerator generator = new SyntheticRideGenerator(profile, SAMPLE_RATE_HZ,
+                length, START_TIME, SEED);
+        RideSample sample = new RideSample();
+        for (int i = 0; generator.next(sample); i++) {
+            time[i] = sample.timeStamp;
+            elapsedNanos[i] = sample.elapsedNanos;
+            latitude[i] = sample.latitude;
+            longitude[i] = sample.longitude;
+            altitude[i] = sample.altitude;
+            speed[i] = sample.speed;
+            bearing[i] = sample.bearing;
+            leanAngle[i] = sample.leanAngle;
+        }
+    }
+
+    /** The ride as a CSV track, with the columns CsvTrackReader reads */
+    String toCsv() {
+        StringBuilder csv = new StringBuilder("timestamp,latitude,longitude,altitude,speed," +
+                "bearing,elapsed_nanos\n");
+        for (int i = 0; i < length; i++) {
+            csv.append(time[i]).append(',').append(latitude[i]).append(',')
+                    .append(longitude[i]).append(',').append(altitude[i]).append(',')
+                    .append(speed[i]).append(',').append(bearing[i]).append(',')
+                    .append(elapsedNanos[i]).append('\n');
+        }
+        return csv.toString();
+    }
+
+    /** The ride as RMC and GGA sentences, one pair per fix */
+    String toNmea() {
+        StringBuilder nmea = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            long millisOfDay = time[i] % 86400000L;
+            String epoch = String.format(Locale.US, "%02d%02d%06.3f", millisOfDay / 3600000,
+                    millisOfDay / 60000 % 60, millisOfDay % 60000 / 1000.0);
+            String lat = coordinate(latitude[i], 2) + (latitude[i] < 0 ? ",S" : ",N");
+            String lon = coordinate(longitude[i], 3) + (longitude[i] < 0 ? ",W" : ",E");
+
+            appendSentence(nmea, String.format(Locale.US, "GPRMC,%s,A,%s,%s,%.2f,%.1f,250415,,",
+                    epoch, lat, lon, speed[i] * 3600 / 1852, bearing[i]));
+            appendSentence(nmea, String.format(Locale.US, "GPGGA,%s,%s,%s,1,08,0.9,%.1f,M,,M,,",
+                    epoch, lat, lon, altitude[i]));
+        }
+        return nmea.toString();
+    }
+
+    private static String coordinate(double degrees, int width) {
+        double abs = Math.abs(degrees);
+        int whole = (int) abs;
+        return String.format(Locale.US, "%0" + width + "d%07.4f", whole, (abs - whole) * 60);
+    }
+
+    private static void appendSentence(StringBuilder out, String body) {
+        int checksum = 0;
+        for (int i = 0; i < body.length(); i++) {
+            checksum ^= body.charAt(i);
+        }
+        out.append('$').append(body).append(String.format(Locale.US, "*%02X\n", checksum));
+    }
+}
@@ -0,0 +1,161 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The columnar ride format over the same ride as TrackCodecBenchmark, so that its scores
+ * compare with the CSV track's: encoding, reading in order from a mapped file, and reading
+ * rows at random. Scores are per fix.
+ *
+ * Run main to print the size of the ride in each form.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ColumnarRideBenchmark {
+
+    private static final int FIXES = 3600;
+
+    private final TrackPoint point = new TrackPoint();
+    private final RideSample sample = new RideSample();
+    private final OutputStream sink = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    private BenchmarkRide ride;
+    private File file;
+    private ColumnarRideReader reader;
+    private int[] randomRows;
+
+    @Setup
+    public void setUp() throws IOException {
+        ride = new BenchmarkRide(SyntheticRideGenerator.Profile.TOURING, FIXES);
+
+        file = File.createTempFile("benchmark", ColumnarRide.SUFFIX);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            encode(ride, sample).writeTo(out);
+        } finally {
+            out.close();
+        }
+        reader = ColumnarRideReader.open(file);
+
+        Random random = new Random(BenchmarkRide.SEED);
+        randomRows = new int[FIXES];
+        for (int i = 0; i < FIXES; i++) {
+            randomRows[i] = random.nextInt(FIXES);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FIXES)
+    public long encode() throws IOException {
+        return encode(ride, sample).writeTo(sink);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FIXES)
+    public double sequential() {
+        double total = 0;
+        for (int i = 0; i < FIXES; i++) {
+            reader.read(i, point);
+            total += point.latitude;
+        }
+        return total;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FIXES)
+    public double random() {
+        double total = 0;
+        for (int i = 0; i < FIXES; i++) {
+            reader.read(randomRows[i], point);
+            total += point.latitude;
+        }
+        return total;
+    }
+
+    private static ColumnarRideWriter encode(BenchmarkRide ride, RideSample sample) {
+        ColumnarRideWriter writer = new ColumnarRideWriter(BenchmarkRide.START_TIME);
+        for (int i = 0; i < ride.length; i++) {
+            sample.timeStamp = ride.time[i];
+            sample.elapsedNanos = ride.elapsedNanos[i];
+            sample.latitude = ride.latitude[i];
+            sample.longitude = ride.longitude[i];
+            sample.altitude = ride.altitude[i];
+            sample.speed = ride.speed[i];
+            sample.bearing = ride.bearing[i];
+            sample.leanAngle = ride.leanAngle[i];
+            writer.add(sample);
+        }
+        writer.setEndTime(ride.time[ride.length - 1]);
+        return writer;
+    }
+
+    /** Prints the bytes a fix takes as CSV, gzipped CSV and columnar */
+    public static void main(String[] args) throws IOException {
+        BenchmarkRide ride = new BenchmarkRide(SyntheticRideGenerator.Profile.TOURING, FIXES);
+
+        byte[] csv = ride.toCsv().getBytes("UTF-8");
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(gzipped);
+        gzip.write(csv);
+        gzip.close();
+        ByteArrayOutputStream columnar = new ByteArrayOutputStream();
+        encode(ride, new RideSample()).writeTo(columnar);
+
+        System.out.printf("%d fixes, bytes per fix: csv %.1f, csv.gz %.1f, columnar %.1f%n",
+                FIXES, (double) csv.length / FIXES, (double) gzipped.size() / FIXES,
+                (double) columnar.size() / FIXES);
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.opentt.rideout;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Distance between consecutive fixes of a ride: the great circle the summary uses, the
+ * ellipsoid distance the graph's x axis was worked out with, and the {@link TrackOdometer}
+ * that now stores it with each row. Scores are per pair of fixes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GeodesyBenchmark {
+
+    private static final int FIXES = 1024;
+
+    private final TrackOdometer odometer = new TrackOdometer();
+    private final double[] distances = new double[FIXES + 1];
+    private final long[] elapsed = new long[FIXES + 1];
+
+    private BenchmarkRide ride;
+
+    @Setup
+    public void setUp() {
+        ride = new BenchmarkRide(SyntheticRideGenerator.Profile.TOURING, FIXES + 1);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FIXES)
+    public double haversine() {
+        double total = 0;
+        for (int i = 0; i < FIXES; i++) {
+            total += Geodesy.haversine(ride.latitude[i], ride.longitude[i],
+                    ride.latitude[i + 1], ride.longitude[i + 1]);
+        }
+        return total;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FIXES)
+    public double ellipsoid() {
+        double total = 0;
+        for (int i = 0; i < FIXES; i++) {
+            total += Geodesy.distance(ride.latitude[i], ride.longitude[i],
+                    ride.latitude[i + 1], ride.longitude[i + 1]);
+        }
+        return total;
+    }
+
+    /* Each step's distance, as the backfill writes it, reusing a cosine per fix */
+    @Benchmark
+    @OperationsPerInvocation(FIXES)
+    public double odometer() {
+        odometer.reset();
+        odometer.addAll(ride.time, ride.latitude, ride.longitude, FIXES + 1, distances, elapsed);
+        return distances[FIXES];
+    }
+
+    /* The graph once measured each fix from the first, so the points are further apart */
+    @Benchmark
+    @OperationsPerInvocation(FIXES)
+    public double ellipsoidFromStart() {
+        double total = 0;
+        for (int i = 1; i <= FIXES; i++) {
+            total += Geodesy.distance(ride.latitude[0], ride.longitude[0],
+                    ride.latitude[i], ride.longitude[i]);
+        }
+        return total;
+    }
+}
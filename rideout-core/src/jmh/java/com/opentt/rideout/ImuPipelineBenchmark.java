@@ -0,0 +1,140 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.opentt.rideout;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One second of the acquisition path at the sensor rate: 200 Hz readings through the ring
+ * buffer, the lean angle filter and the merger, with a fix every 100 readings. Scores are per
+ * reading.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ImuPipelineBenchmark {
+
+    private static final int READINGS = 200;
+    private static final long PERIOD_NANOS = 5000000L;
+    private static final int READINGS_PER_FIX = 100;
+
+    /* Android's sensor types */
+    private static final int TYPE_LINEAR_ACCELERATION = 10;
+    private static final int TYPE_GYROSCOPE = 4;
+
+    private final ImuRingBuffer buffer = new ImuRingBuffer(2048);
+    private final LeanAngleEstimator estimator = new LeanAngleEstimator();
+    private ImuLocationMerger merger;
+    private long merged;
+    private long nanos;
+
+    private final ImuRingBuffer.Reader pipeline = new ImuRingBuffer.Reader() {
+        @Override
+        public void onReading(int sensorType, long timestampNanos, float x, float y, float z) {
+            if ( sensorType == TYPE_GYROSCOPE ) {
+                double lean = estimator.onGyroscope(timestampNanos, x, y, z);
+                merger.addReading(ImuLocationMerger.channel(1, 0), timestampNanos, lean);
+            } else {
+                estimator.onAccelerometer(timestampNanos, x, y, z);
+                merger.addReading(ImuLocationMerger.channel(0, 0), timestampNanos, x);
+                merger.addReading(ImuLocationMerger.channel(0, 1), timestampNanos, y);
+                merger.addReading(ImuLocationMerger.channel(0, 2), timestampNanos, z);
+            }
+        }
+    };
+
+    @Setup
+    public void setUp() {
+        merger = new ImuLocationMerger(2 * ImuLocationMerger.AXES,
+                new ImuLocationMerger.Output() {
+                    @Override
+                    public void onMerged(long sequence, long fixNanos,
+                                         ImuLocationMerger.Window window) {
+                        merged += window.getCount(0);
+                    }
+                });
+        estimator.setSpeed(25.0);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(READINGS)
+    public int ringBuffer() {
+        int drained = 0;
+        for (int i = 0; i < READINGS; i++) {
+            nanos += PERIOD_NANOS;
+            buffer.offer(TYPE_GYROSCOPE, nanos, 0.01f, 0.2f, 0.03f);
+        }
+        while ( buffer.size() > 0 ) {
+            drained += buffer.drain(NO_OP, 64);
+        }
+        return drained;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(READINGS)
+    public double leanAngle() {
+        for (int i = 0; i < READINGS; i++) {
+            nanos += PERIOD_NANOS;
+            if ( (i & 1) == 0 ) {
+                estimator.onAccelerometer(nanos, 0.4, 3.2, 9.6);
+            } else {
+                estimator.onGyroscope(nanos, 0.01, 0.2, 0.03);
+            }
+        }
+        return estimator.getLeanAngle();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(READINGS)
+    public long ingest() {
+        for (int i = 0; i < READINGS; i++) {
+            nanos += PERIOD_NANOS;
+            buffer.offer((i & 1) == 0 ? TYPE_LINEAR_ACCELERATION : TYPE_GYROSCOPE, nanos,
+                    0.4f, 3.2f, 9.6f);
+            if ( i % READINGS_PER_FIX == 0 ) {
+                merger.addFix(nanos);
+            }
+            if ( (i & 63) == 63 ) {
+                buffer.drain(pipeline, 64);
+            }
+        }
+        buffer.drain(pipeline, READINGS);
+        return merged;
+    }
+
+    private static final ImuRingBuffer.Reader NO_OP = new ImuRingBuffer.Reader() {
+        @Override
+        public void onReading(int sensorType, long timestampNanos, float x, float y, float z) {
+        }
+    };
+}
@@ -0,0 +1,74 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.opentt.rideout;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The summary kept while recording, per fix, and the formatting of its duration for display.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RideSummaryBenchmark {
+
+    /* An hour at 10 Hz */
+    private static final int FIXES = 36000;
+
+    private final RideSummaryAccumulator summary = new RideSummaryAccumulator();
+    private BenchmarkRide ride;
+    private long duration;
+
+    @Setup
+    public void setUp() {
+        ride = new BenchmarkRide(SyntheticRideGenerator.Profile.TOURING, FIXES);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FIXES)
+    public double accumulate() {
+        summary.reset();
+        for (int i = 0; i < FIXES; i++) {
+            summary.add(ride.time[i], ride.latitude[i], ride.longitude[i], ride.altitude[i],
+                    ride.speed[i], ride.leanAngle[i]);
+        }
+        return summary.getDistance();
+    }
+
+    @Benchmark
+    public String formatDuration() {
+        // Vary the input so the result can't be hoisted
+        duration = (duration + 1234567) % 360000000L;
+        return RideTime.formatDuration(duration);
+    }
+}
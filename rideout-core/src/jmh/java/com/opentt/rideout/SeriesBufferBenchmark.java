@@ -0,0 +1,147 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drawing a million point series, projecting every point into line segments as a graph's
+ * draw does, from a {@link SeriesBuffer} and from a list of an object a point as a
+ * LineGraphSeries keeps them. Both scores are per point. window finds and projects a
+ * thousand points in the middle and lookup finds a window's first point; both are per call.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SeriesBufferBenchmark {
+
+    private static final int POINTS = 1000000;
+    private static final int WINDOW = 1000;
+
+    /* A graph about a phone screen across */
+    private static final float WIDTH = 1080;
+    private static final float HEIGHT = 600;
+
+    private SeriesBuffer buffer;
+    private List<Point> boxed;
+    private float[] lines;
+    private double[] lookups;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(1);
+        buffer = new SeriesBuffer(POINTS);
+        boxed = new ArrayList<>(POINTS);
+
+        // Distance along a ride at 10 Hz and a speed wandering about 20 m/s
+        double x = 0;
+        double y = 20;
+        for (int i = 0; i < POINTS; i++) {
+            x += 1 + random.nextDouble();
+            y = Math.max(0, y + random.nextGaussian() * 0.2);
+            buffer.append(x, y);
+            boxed.add(new Point(x, y));
+        }
+
+        lines = new float[SeriesBuffer.lineLength(0, POINTS)];
+        lookups = new double[1024];
+        for (int i = 0; i < lookups.length; i++) {
+            lookups[i] = random.nextDouble() * x;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(POINTS)
+    public int buffer() {
+        return buffer.project(0, POINTS, buffer.getLowestX(), buffer.getHighestX(),
+                buffer.getLowestY(), buffer.getHighestY(), 0, 0, WIDTH, HEIGHT, lines);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(POINTS)
+    public int boxed() {
+        double minX = boxed.get(0).x;
+        double scaleX = WIDTH / (boxed.get(POINTS - 1).x - minX);
+        double minY = buffer.getLowestY();
+        double scaleY = HEIGHT / (buffer.getHighestY() - minY);
+
+        int written = 0;
+        Iterator<Point> points = boxed.iterator();
+        Point point = points.next();
+        float lastX = (float) ((point.x - minX) * scaleX);
+        float lastY = (float) (HEIGHT - (point.y - minY) * scaleY);
+        while ( points.hasNext() ) {
+            point = points.next();
+            float screenX = (float) ((point.x - minX) * scaleX);
+            float screenY = (float) (HEIGHT - (point.y - minY) * scaleY);
+            lines[written++] = lastX;
+            lines[written++] = lastY;
+            lines[written++] = screenX;
+            lines[written++] = screenY;
+            lastX = screenX;
+            lastY = screenY;
+        }
+        return written;
+    }
+
+    @Benchmark
+    public int window() {
+        double minX = buffer.getX(POINTS / 2);
+        double maxX = buffer.getX(POINTS / 2 + WINDOW);
+        int from = Math.max(0, buffer.lowerBound(minX) - 1);
+        int to = Math.min(POINTS, buffer.lowerBound(maxX) + 1);
+        return buffer.project(from, to, minX, maxX, buffer.getLowestY(), buffer.getHighestY(),
+                0, 0, WIDTH, HEIGHT, lines);
+    }
+
+    @Benchmark
+    public int lookup() {
+        next = (next + 1) & (lookups.length - 1);
+        return buffer.lowerBound(lookups[next]);
+    }
+
+    private static final class Point {
+
+        final double x;
+        final double y;
+
+        Point(double x, double y) {
+            this.x = x;
+            this.y = y;
+        }
+    }
+}
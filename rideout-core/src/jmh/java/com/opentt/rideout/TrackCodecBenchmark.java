@@ -0,0 +1,106 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.opentt.rideout;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading recorded tracks for replay, from memory so that only parsing is measured. Scores are
+ * per fix.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TrackCodecBenchmark {
+
+    private static final int FIXES = 3600;
+
+    private final TrackPoint point = new TrackPoint();
+    private String csv;
+    private String nmea;
+    private String imuLog;
+
+    @Setup
+    public void setUp() {
+        BenchmarkRide ride = new BenchmarkRide(SyntheticRideGenerator.Profile.TOURING, FIXES);
+        csv = ride.toCsv();
+        nmea = ride.toNmea();
+
+        StringBuilder imu = new StringBuilder("elapsed_nanos,sensor_type,x,y,z\n");
+        for (int i = 0; i < FIXES; i++) {
+            imu.append(ride.elapsedNanos[i]).append(",4,0.0123,-0.456,0.789\n");
+        }
+        imuLog = imu.toString();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FIXES)
+    public double csv() throws IOException {
+        return readAll(new CsvTrackReader(new StringReader(csv)));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FIXES)
+    public double nmea() throws IOException {
+        return readAll(new NmeaTrackReader(new StringReader(nmea)));
+    }
+
+    /* Scores are per reading */
+    @Benchmark
+    @OperationsPerInvocation(FIXES)
+    public double imuLog() throws IOException {
+        ImuLogReader reader = new ImuLogReader(new StringReader(imuLog));
+        double total = 0;
+        while ( reader.next() ) {
+            total += reader.getX();
+        }
+        reader.close();
+        return total;
+    }
+
+    private double readAll(TrackReader reader) throws IOException {
+        double total = 0;
+        int fixes = 0;
+        while ( reader.next(point) ) {
+            total += point.latitude;
+            fixes++;
+        }
+        reader.close();
+        if ( fixes != FIXES ) {
+            throw new IllegalStateException("Read " + fixes + " of " + FIXES + " fixes");
+        }
+        return total;
+    }
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exporting a three hour, 10 Hz ride to a file in each format, from the fixes in memory, so
+ * the score is the writer and the disk. Scores are per fix.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TrackExportBenchmark {
+
+    private static final int FIXES = 3 * 3600 * 10;
+
+    private static final int BUFFER_SIZE = 65536;
+
+    private final TrackPoint point = new TrackPoint();
+
+    private BenchmarkRide ride;
+    private File file;
+
+    @Setup
+    public void setUp() throws IOException {
+        ride = new BenchmarkRide(SyntheticRideGenerator.Profile.TOURING, FIXES);
+        file = File.createTempFile("benchmark", ".export");
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FIXES)
+    public long gpx() throws IOException {
+        return export(new GpxTrackWriter(openText(), "Benchmark"));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FIXES)
+    public long csv() throws IOException {
+        return export(new CsvTrackWriter(openText()));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FIXES)
+    public long fit() throws IOException {
+        return export(new FitTrackWriter(file));
+    }
+
+    private BufferedWriter openText() throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"),
+                BUFFER_SIZE);
+    }
+
+    private long export(TrackWriter writer) throws IOException {
+        try {
+            for (int i = 0; i < ride.length; i++) {
+                point.time = ride.time[i];
+                point.elapsedNanos = ride.elapsedNanos[i];
+                point.latitude = ride.latitude[i];
+                point.longitude = ride.longitude[i];
+                point.altitude = ride.altitude[i];
+                point.speed = ride.speed[i];
+                point.bearing = ride.bearing[i];
+                writer.write(point);
+            }
+        } finally {
+            writer.close();
+        }
+        return file.length();
+    }
+}
@@ -0,0 +1,165 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+import com.opentt.rideout.RideDataContract.ImuData;
+import com.opentt.rideout.RideDataContract.RideData;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The compact binary form of a finished ride, written by {@link ColumnarRideWriter} and read by
+ * {@link ColumnarRideReader}. A ride holds two tables, its rows and its sensor channel rows,
+ * each stored a column at a time.
+ *
+ * Every value is quantized to a whole number of its column's unit, 1e-7 degrees for a position
+ * or a centimetre a second for a speed, and stored as the zig-zag varint of its difference from
+ * the value before. Consecutive samples differ little, so most values take one or two bytes.
+ * The clock columns store the difference between successive differences instead, which is
+ * close to zero while fixes arrive at a steady rate.
+ * Columns are cut into blocks of {@link #BLOCK_SIZE} rows; each block starts from zero, so any
+ * row can be found by decoding at most one block of each column.
+ *
+ * Layout, big-endian:
+ * <pre>
+ * int magic, short version, short block size, long start time, long end time
+ * per table: int rows, short columns,
+ *     per column: UTF name, double scale, byte order, int bytes
+ *     per column: int block offsets[rows / block size rounded up], then the varints
+ * </pre>
+ * A varint of 0 is a null; any other is the zig-zag difference plus one. A null leaves the
+ * value, and the difference, that the next one applies to unchanged.
+ */
+public final class ColumnarRide {
+
+    public static final int MAGIC = 0x524f4331; // "ROC1"
+    public static final short VERSION = 1;
+
+    public static final int BLOCK_SIZE = 64;
+
+    public static final String SUFFIX = ".ride";
+
+    /* Orders of difference stored */
+    public static final int DELTA = 1;
+    public static final int DELTA_OF_DELTA = 2;
+
+    /** A column, the number of its quanta to a unit and the order of difference stored */
+    public static final class Column {
+
+        public final String name;
+        public final double scale;
+        public final int order;
+
+        public Column(String name, double scale, int order) {
+            this.name = name;
+            this.scale = scale;
+            this.order = order;
+        }
+
+        public Column(String name, double scale) {
+            this(name, scale, DELTA);
+        }
+    }
+
+    /* Positions in RIDE_COLUMNS */
+    public static final int TIME_STAMP = 0;
+    public static final int LATITUDE = 1;
+    public static final int LONGITUDE = 2;
+    public static final int ALTITUDE = 3;
+    public static final int SPEED = 4;
+    public static final int BEARING = 5;
+    public static final int ACCELERATION_X = 6;
+    public static final int ACCELERATION_Y = 7;
+    public static final int ACCELERATION_Z = 8;
+    public static final int LEAN_ANGLE = 9;
+    public static final int ELAPSED_NANOS = 10;
+
+    /* The columns of ride_data bar the row and ride IDs, in the order RideArchive writes them */
+    public static final Column[] RIDE_COLUMNS = {
+            new Column(RideData.TIME_STAMP, 1, DELTA_OF_DELTA),     // milliseconds
+            new Column(RideData.LATITUDE, 1e7),                     // about a centimetre
+            new Column(RideData.LONGITUDE, 1e7),
+            new Column(RideData.ALTITUDE, 10),                      // decimetres
+            new Column(RideData.SPEED, 100),                        // centimetres a second
+            new Column(RideData.BEARING, 10),                       // tenths of a degree
+            new Column(RideData.ACCELERATION_X, 100),               // centimetres a second^2
+            new Column(RideData.ACCELERATION_Y, 100),
+            new Column(RideData.ACCELERATION_Z, 100),
+            new Column(RideData.LEAN_ANGLE, 10),
+            new Column(RideData.ELAPSED_NANOS, 1, DELTA_OF_DELTA)};
+
+    /* Positions in IMU_COLUMNS */
+    public static final int IMU_ELAPSED_NANOS = 0;
+    public static final int IMU_SENSOR_TYPE = 1;
+    public static final int IMU_X = 2;
+    public static final int IMU_Y = 3;
+    public static final int IMU_Z = 4;
+
+    /* Sensor axes to a thousandth: m/s^2, rad/s, or degrees for the lean channel */
+    public static final Column[] IMU_COLUMNS = {
+            new Column(ImuData.ELAPSED_NANOS, 1, DELTA_OF_DELTA),
+            new Column(ImuData.SENSOR_TYPE, 1),
+            new Column(ImuData.X, 1000),
+            new Column(ImuData.Y, 1000),
+            new Column(ImuData.Z, 1000)};
+
+    /* A 64 bit varint at its longest */
+    static final int MAX_VARINT_BYTES = 10;
+
+    private ColumnarRide() {}
+
+    static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Writes a varint, seven bits to a byte, low bits first.
+     *
+     * @param bytes Room for {@link #MAX_VARINT_BYTES} from offset.
+     * @return The offset after it.
+     */
+    static int writeVarint(byte[] bytes, int offset, long value) {
+        while ( (value & ~0x7fL) != 0 ) {
+            bytes[offset++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        bytes[offset++] = (byte) value;
+        return offset;
+    }
+
+    /**
+     * Reads the varint at position[0] and moves position[0] past it.
+     *
+     * @throws IndexOutOfBoundsException If the buffer ends inside it.
+     * @throws IllegalArgumentException If it runs past 64 bits.
+     */
+    static long readVarint(ByteBuffer buffer, int[] position) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get(position[0]++);
+            value |= (long) (b & 0x7f) << shift;
+            if ( b >= 0 ) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Varint is too long at " + position[0]);
+    }
+}
@@ -0,0 +1,260 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+import com.opentt.rideout.ColumnarRide.Column;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a ride in the {@link ColumnarRide} format in place, from a memory-mapped file or any
+ * other buffer. Any row can be read by its index: a read decodes from the start of the row's
+ * block, or on from the row read last in the same column, so reading a ride in order costs one
+ * varint a value. Not safe for use from more than one thread.
+ */
+public class ColumnarRideReader {
+
+    private final long startTime;
+    private final long endTime;
+
+    private final Table rows;
+    private final Table imu;
+
+    /** Maps the file; the pages are read as rows are */
+    public static ColumnarRideReader open(File file) throws IOException {
+        RandomAccessFile access = new RandomAccessFile(file, "r");
+        try {
+            return new ColumnarRideReader(access.getChannel()
+                    .map(FileChannel.MapMode.READ_ONLY, 0, access.length()));
+        } finally {
+            access.close(); // The mapping outlives the channel
+        }
+    }
+
+    public ColumnarRideReader(ByteBuffer buffer) throws IOException {
+        buffer = buffer.duplicate();
+        try {
+            if ( buffer.getInt() != ColumnarRide.MAGIC ) {
+                throw new IOException("Not a columnar ride");
+            }
+            short version = buffer.getShort();
+            if ( version != ColumnarRide.VERSION ) {
+                throw new IOException("Unknown columnar ride version " + version);
+            }
+            if ( buffer.getShort() != ColumnarRide.BLOCK_SIZE ) {
+                throw new IOException("Unexpected block size");
+            }
+            startTime = buffer.getLong();
+            endTime = buffer.getLong();
+            rows = new Table(buffer, ColumnarRide.RIDE_COLUMNS);
+            imu = new Table(buffer, ColumnarRide.IMU_COLUMNS);
+        } catch (BufferUnderflowException ex) {
+            throw new IOException("Truncated columnar ride", ex);
+        }
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public long getEndTime() {
+        return endTime;
+    }
+
+    /** The ride's rows, in {@link ColumnarRide#RIDE_COLUMNS} */
+    public Table rows() {
+        return rows;
+    }
+
+    /** The ride's sensor channel rows, in {@link ColumnarRide#IMU_COLUMNS} */
+    public Table imu() {
+        return imu;
+    }
+
+    /** Reads a row as a track point; null values are NaN, or NO_ELAPSED_TIME */
+    public void read(int row, TrackPoint point) {
+        point.time = rows.getLong(row, ColumnarRide.TIME_STAMP);
+        point.latitude = rows.getDouble(row, ColumnarRide.LATITUDE);
+        point.longitude = rows.getDouble(row, ColumnarRide.LONGITUDE);
+        point.altitude = rows.getDouble(row, ColumnarRide.ALTITUDE);
+        point.speed = rows.getDouble(row, ColumnarRide.SPEED);
+        point.bearing = rows.getDouble(row, ColumnarRide.BEARING);
+        point.elapsedNanos = rows.isNull(row, ColumnarRide.ELAPSED_NANOS) ?
+                TrackPoint.NO_ELAPSED_TIME : rows.getLong(row, ColumnarRide.ELAPSED_NANOS);
+
+        // As CsvTrackReader reads a missing speed
+        if ( point.speed < 0 ) {
+            point.speed = Double.NaN;
+        }
+    }
+
+    /** One table of the ride */
+    public static class Table {
+
+        private final ByteBuffer buffer;
+        private final int count;
+        private final double[] scales;
+        private final int[] orders;
+        private final int[] indexes;
+        private final int[] starts;
+
+        /* Where each column was decoded to last */
+        private final int[] lastRows;
+        private final int[] positions;
+        private final long[] values;
+        private final long[] deltas;
+        private final boolean[] nulls;
+
+        /* Position of the varint being read */
+        private final int[] cursor = new int[1];
+
+        Table(ByteBuffer buffer, Column[] columns) throws IOException {
+            this.buffer = buffer;
+            count = buffer.getInt();
+            if ( count < 0 ) {
+                throw new IOException("Bad row count " + count);
+            }
+            int length = buffer.getShort();
+            if ( length != columns.length ) {
+                throw new IOException("Expected " + columns.length + " columns, found " + length);
+            }
+
+            scales = new double[length];
+            orders = new int[length];
+            int[] lengths = new int[length];
+            for (int i = 0; i < length; i++) {
+                String name = readUtf(buffer);
+                if ( !name.equals(columns[i].name) ) {
+                    throw new IOException("Expected column " + columns[i].name + ", found " +
+                            name);
+                }
+                scales[i] = buffer.getDouble();
+                orders[i] = buffer.get();
+                if ( orders[i] != columns[i].order ) {
+                    throw new IOException("Unexpected order for column " + name);
+                }
+                lengths[i] = buffer.getInt();
+            }
+
+            int blocks = (count + ColumnarRide.BLOCK_SIZE - 1) / ColumnarRide.BLOCK_SIZE;
+            indexes = new int[length];
+            starts = new int[length];
+            int position = buffer.position();
+            for (int i = 0; i < length; i++) {
+                indexes[i] = position;
+                starts[i] = position + blocks * 4;
+                position = starts[i] + lengths[i];
+            }
+            if ( position > buffer.limit() ) {
+                throw new IOException("Truncated columnar ride");
+            }
+            buffer.position(position);
+
+            lastRows = new int[length];
+            positions = new int[length];
+            values = new long[length];
+            deltas = new long[length];
+            nulls = new boolean[length];
+            for (int i = 0; i < length; i++) {
+                lastRows[i] = -1;
+            }
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public boolean isNull(int row, int column) {
+            seek(row, column);
+            return nulls[column];
+        }
+
+        /** The value in the column's quanta; 0 if null */
+        public long getLong(int row, int column) {
+            seek(row, column);
+            return nulls[column] ? 0 : values[column];
+        }
+
+        /** The value in the column's unit; NaN if null */
+        public double getDouble(int row, int column) {
+            seek(row, column);
+            return nulls[column] ? Double.NaN : values[column] / scales[column];
+        }
+
+        private void seek(int row, int column) {
+            if ( row < 0 || row >= count ) {
+                throw new IndexOutOfBoundsException("Row " + row + " of " + count);
+            }
+
+            int current = lastRows[column];
+            if ( current == row ) {
+                return;
+            }
+
+            int block = row / ColumnarRide.BLOCK_SIZE;
+            long value;
+            long delta;
+            boolean isNull = nulls[column];
+
+            // Go on from the last row read if it's earlier in the same block
+            if ( current >= 0 && current < row && current / ColumnarRide.BLOCK_SIZE == block ) {
+                cursor[0] = positions[column];
+                value = values[column];
+                delta = deltas[column];
+            } else {
+                current = block * ColumnarRide.BLOCK_SIZE - 1;
+                cursor[0] = starts[column] + buffer.getInt(indexes[column] + block * 4);
+                value = 0;
+                delta = 0;
+            }
+            boolean deltaOfDelta = orders[column] == ColumnarRide.DELTA_OF_DELTA;
+
+            while ( current < row ) {
+                long code = ColumnarRide.readVarint(buffer, cursor);
+                isNull = code == 0;
+                if ( !isNull && deltaOfDelta ) {
+                    delta += ColumnarRide.unZigZag(code - 1);
+                    value += delta;
+                } else if ( !isNull ) {
+                    value += ColumnarRide.unZigZag(code - 1);
+                }
+                current++;
+            }
+
+            lastRows[column] = row;
+            positions[column] = cursor[0];
+            values[column] = value;
+            deltas[column] = delta;
+            nulls[column] = isNull;
+        }
+
+        /* As DataOutput.writeUTF wrote it; column names are ASCII */
+        private static String readUtf(ByteBuffer buffer) {
+            int length = buffer.getShort() & 0xffff;
+            char[] chars = new char[length];
+            for (int i = 0; i < length; i++) {
+                chars[i] = (char) buffer.get();
+            }
+            return new String(chars);
+        }
+    }
+}
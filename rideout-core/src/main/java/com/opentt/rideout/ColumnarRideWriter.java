@@ -0,0 +1,220 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+import com.opentt.rideout.ColumnarRide.Column;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Encodes a ride in the {@link ColumnarRide} format. Rows are added one at a time, each value
+ * put into its column and the row ended; the encoded columns are held until the ride is
+ * written. They take a few bytes a row, so even a long ride stays small.
+ */
+public class ColumnarRideWriter {
+
+    private final long startTime;
+    private long endTime;
+
+    private final Table rows = new Table(ColumnarRide.RIDE_COLUMNS);
+    private final Table imu = new Table(ColumnarRide.IMU_COLUMNS);
+
+    public ColumnarRideWriter(long startTime) {
+        this.startTime = startTime;
+        this.endTime = startTime;
+    }
+
+    public void setEndTime(long endTime) {
+        this.endTime = endTime;
+    }
+
+    /** The ride's rows, in {@link ColumnarRide#RIDE_COLUMNS} */
+    public Table rows() {
+        return rows;
+    }
+
+    /** The ride's sensor channel rows, in {@link ColumnarRide#IMU_COLUMNS} */
+    public Table imu() {
+        return imu;
+    }
+
+    /** Adds a row from a sample, as RideDataWriter stores it */
+    public void add(RideSample sample) {
+        rows.putLong(ColumnarRide.TIME_STAMP, sample.timeStamp);
+        rows.putDouble(ColumnarRide.LATITUDE, sample.latitude);
+        rows.putDouble(ColumnarRide.LONGITUDE, sample.longitude);
+        rows.putDouble(ColumnarRide.ALTITUDE, sample.altitude);
+        rows.putDouble(ColumnarRide.SPEED, sample.speed);
+        rows.putDouble(ColumnarRide.BEARING, sample.bearing);
+        rows.putDouble(ColumnarRide.ACCELERATION_X, sample.accelerationX);
+        rows.putDouble(ColumnarRide.ACCELERATION_Y, sample.accelerationY);
+        rows.putDouble(ColumnarRide.ACCELERATION_Z, sample.accelerationZ);
+        rows.putDouble(ColumnarRide.LEAN_ANGLE, sample.leanAngle);
+        rows.putLong(ColumnarRide.ELAPSED_NANOS, sample.elapsedNanos);
+        rows.endRow();
+    }
+
+    /**
+     * Writes the ride. The writer can go on taking rows and be written again.
+     *
+     * @return The number of bytes written.
+     */
+    public long writeTo(OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        out.writeInt(ColumnarRide.MAGIC);
+        out.writeShort(ColumnarRide.VERSION);
+        out.writeShort(ColumnarRide.BLOCK_SIZE);
+        out.writeLong(startTime);
+        out.writeLong(endTime);
+        rows.writeTo(out);
+        imu.writeTo(out);
+        out.flush();
+        return out.size();
+    }
+
+    /**
+     * One table of the ride. Put a value, or a null, into each column and then end the row;
+     * columns left out of a row are null.
+     */
+    public static class Table {
+
+        private final Column[] columns;
+        private final Encoder[] encoders;
+        private final boolean[] put;
+        private int count;
+
+        Table(Column[] columns) {
+            this.columns = columns;
+            this.encoders = new Encoder[columns.length];
+            this.put = new boolean[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                encoders[i] = new Encoder(columns[i].order);
+            }
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        /** A value already in the column's quanta */
+        public void putLong(int column, long value) {
+            if ( put[column] ) {
+                throw new IllegalStateException("Column " + columns[column].name + " put twice");
+            }
+            encoders[column].add(value, count);
+            put[column] = true;
+        }
+
+        /** A value in the column's unit, rounded to its quanta; NaN is null */
+        public void putDouble(int column, double value) {
+            if ( Double.isNaN(value) ) {
+                putNull(column);
+            } else {
+                putLong(column, Math.round(value * columns[column].scale));
+            }
+        }
+
+        public void putNull(int column) {
+            if ( put[column] ) {
+                throw new IllegalStateException("Column " + columns[column].name + " put twice");
+            }
+            encoders[column].addNull(count);
+            put[column] = true;
+        }
+
+        public void endRow() {
+            for (int i = 0; i < columns.length; i++) {
+                if ( !put[i] ) {
+                    encoders[i].addNull(count);
+                }
+                put[i] = false;
+            }
+            count++;
+        }
+
+        private void writeTo(DataOutputStream out) throws IOException {
+            out.writeInt(count);
+            out.writeShort(columns.length);
+            for (int i = 0; i < columns.length; i++) {
+                out.writeUTF(columns[i].name);
+                out.writeDouble(columns[i].scale);
+                out.writeByte(columns[i].order);
+                out.writeInt(encoders[i].length);
+            }
+            for (Encoder encoder : encoders) {
+                for (int block = 0; block < encoder.blocks; block++) {
+                    out.writeInt(encoder.blockOffsets[block]);
+                }
+                out.write(encoder.bytes, 0, encoder.length);
+            }
+        }
+    }
+
+    /* The varints of one column and where each of its blocks starts */
+    private static class Encoder {
+
+        private final int order;
+        private byte[] bytes = new byte[1024];
+        private int length;
+        private int[] blockOffsets = new int[16];
+        private int blocks;
+        private long previous;
+        private long previousDelta;
+
+        Encoder(int order) {
+            this.order = order;
+        }
+
+        void add(long value, int row) {
+            startRow(row);
+            long delta = value - previous;
+            if ( order == ColumnarRide.DELTA_OF_DELTA ) {
+                writeVarint(ColumnarRide.zigZag(delta - previousDelta) + 1);
+                previousDelta = delta;
+            } else {
+                writeVarint(ColumnarRide.zigZag(delta) + 1);
+            }
+            previous = value;
+        }
+
+        void addNull(int row) {
+            startRow(row);
+            writeVarint(0);
+        }
+
+        private void startRow(int row) {
+            if ( row % ColumnarRide.BLOCK_SIZE == 0 ) {
+                if ( blocks == blockOffsets.length ) {
+                    blockOffsets = Arrays.copyOf(blockOffsets, blocks * 2);
+                }
+                blockOffsets[blocks++] = length;
+                previous = 0;
+                previousDelta = 0;
+            }
+        }
+
+        private void writeVarint(long value) {
+            if ( length + ColumnarRide.MAX_VARINT_BYTES > bytes.length ) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+            length = ColumnarRide.writeVarint(bytes, length, value);
+        }
+    }
+}
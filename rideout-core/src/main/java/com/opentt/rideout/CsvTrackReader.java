@@ -0,0 +1,129 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+import com.opentt.rideout.RideDataContract.RideData;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reads a track from CSV with a header row naming its columns after {@link RideData}:
+ * timestamp, latitude and longitude are required; altitude, speed, bearing and elapsed_nanos
+ * are optional. An empty value counts as missing, and so do the values the database keeps for
+ * a missing one, as {@link TrackPoint#clearStoredMissing} reads them. Lines starting with #
+ * are comments, such as the metadata of a ride archive.
+ */
+public class CsvTrackReader implements TrackReader {
+
+    private final BufferedReader reader;
+
+    private final int time;
+    private final int latitude;
+    private final int longitude;
+    private final int altitude;
+    private final int speed;
+    private final int bearing;
+    private final int elapsedNanos;
+
+    private int lineNumber;
+
+    public CsvTrackReader(Reader reader) throws IOException {
+        this.reader = new BufferedReader(reader);
+
+        String header;
+        do {
+            header = this.reader.readLine();
+            lineNumber++;
+        } while ( header != null && isComment(header) );
+        if ( header == null ) {
+            throw new IOException("Empty track");
+        }
+
+        String[] columns = header.trim().split(",", -1);
+        time = indexOf(columns, RideData.TIME_STAMP, true);
+        latitude = indexOf(columns, RideData.LATITUDE, true);
+        longitude = indexOf(columns, RideData.LONGITUDE, true);
+        altitude = indexOf(columns, RideData.ALTITUDE, false);
+        speed = indexOf(columns, RideData.SPEED, false);
+        bearing = indexOf(columns, RideData.BEARING, false);
+        elapsedNanos = indexOf(columns, RideData.ELAPSED_NANOS, false);
+    }
+
+    /* Column index of name, or -1 if the column is optional and absent */
+    static int indexOf(String[] columns, String name, boolean required) throws IOException {
+        for (int i = 0; i < columns.length; i++) {
+            if ( columns[i].trim().equalsIgnoreCase(name) ) {
+                return i;
+            }
+        }
+
+        if ( required ) {
+            throw new IOException("No " + name + " column");
+        }
+        return -1;
+    }
+
+    @Override
+    public boolean next(TrackPoint point) throws IOException {
+        String line;
+
+        while ( (line = reader.readLine()) != null ) {
+            lineNumber++;
+            if ( line.trim().isEmpty() || isComment(line) ) {
+                continue;
+            }
+
+            String[] values = line.split(",", -1);
+            try {
+                point.clear();
+                point.time = Long.parseLong(values[time].trim());
+                point.latitude = Double.parseDouble(values[latitude].trim());
+                point.longitude = Double.parseDouble(values[longitude].trim());
+                point.altitude = optional(values, altitude);
+                point.speed = optional(values, speed);
+                point.bearing = optional(values, bearing);
+                if ( elapsedNanos >= 0 && !values[elapsedNanos].trim().isEmpty() ) {
+                    point.elapsedNanos = Long.parseLong(values[elapsedNanos].trim());
+                }
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException ex) {
+                throw new IOException("Bad track row at line " + lineNumber, ex);
+            }
+
+            point.clearStoredMissing();
+            return true;
+        }
+        return false;
+    }
+
+    static boolean isComment(String line) {
+        return line.startsWith("#");
+    }
+
+    private static double optional(String[] values, int index) {
+        if ( index < 0 || index >= values.length || values[index].trim().isEmpty() ) {
+            return Double.NaN;
+        }
+        return Double.parseDouble(values[index].trim());
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
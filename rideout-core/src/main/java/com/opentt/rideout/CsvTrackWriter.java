@@ -0,0 +1,98 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+import com.opentt.rideout.RideDataContract.RideData;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes a track as CSV in the form {@link CsvTrackReader} reads: a header row naming the
+ * columns after {@link RideData}, then a row a fix, missing values left empty. Values are
+ * written in fixed point, so any spreadsheet reads them.
+ */
+public class CsvTrackWriter implements TrackWriter {
+
+    public static final String HEADER = RideData.TIME_STAMP + "," + RideData.LATITUDE + "," +
+            RideData.LONGITUDE + "," + RideData.ALTITUDE + "," + RideData.SPEED + "," +
+            RideData.BEARING + "," + RideData.ELAPSED_NANOS;
+
+    private final Writer out;
+    private final StringBuilder line = new StringBuilder(128);
+
+    public CsvTrackWriter(Writer out) throws IOException {
+        this.out = out;
+        out.write(HEADER);
+        out.write('\n');
+    }
+
+    @Override
+    public void write(TrackPoint point) throws IOException {
+        line.setLength(0);
+        line.append(point.time).append(',');
+        appendDecimal(line, point.latitude, 7);
+        line.append(',');
+        appendDecimal(line, point.longitude, 7);
+        line.append(',');
+        appendDecimal(line, point.altitude, 2);
+        line.append(',');
+        appendDecimal(line, point.speed, 3);
+        line.append(',');
+        appendDecimal(line, point.bearing, 1);
+        line.append(',');
+        if ( point.elapsedNanos != TrackPoint.NO_ELAPSED_TIME ) {
+            line.append(point.elapsedNanos);
+        }
+        line.append('\n');
+        out.append(line);
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    /**
+     * Appends value rounded to the given number of decimal places, without an exponent, or
+     * nothing if it's NaN. Quicker than Double.toString, and valid as an XML decimal.
+     */
+    static void appendDecimal(StringBuilder out, double value, int decimals) {
+        if ( Double.isNaN(value) ) {
+            return;
+        }
+
+        long scale = 1;
+        for (int i = 0; i < decimals; i++) {
+            scale *= 10;
+        }
+        long fixed = Math.round(Math.abs(value) * scale);
+        if ( value < 0 && fixed != 0 ) {
+            out.append('-');
+        }
+        out.append(fixed / scale);
+
+        if ( decimals > 0 ) {
+            out.append('.');
+            long fraction = fixed % scale;
+            for (long digit = scale / 10; digit > 1 && fraction < digit; digit /= 10) {
+                out.append('0');
+            }
+            out.append(fraction);
+        }
+    }
+}
@@ -0,0 +1,242 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * Writes a track as a FIT activity file, the binary format of Garmin devices and the fitness
+ * sites: a file_id message, then a record message a second with position, altitude, speed
+ * and the distance so far. Fixes are thinned to the first of each second, as FIT timestamps
+ * are whole seconds.
+ *
+ * The header holds the size of the data and the file ends with a CRC of all that comes before
+ * it, so both are written on close, the CRC by reading the file back a block at a time.
+ */
+public class FitTrackWriter implements TrackWriter {
+
+    /** Seconds from the Unix epoch to the FIT epoch, 1989-12-31T00:00:00Z */
+    public static final long FIT_EPOCH = 631065600L;
+
+    public static final int HEADER_SIZE = 14;
+    private static final int PROTOCOL_VERSION = 0x10; // 1.0
+    private static final int PROFILE_VERSION = 1600; // 16.00
+
+    /* Base types */
+    private static final int ENUM = 0x00;
+    private static final int UINT16 = 0x84;
+    private static final int SINT32 = 0x85;
+    private static final int UINT32 = 0x86;
+
+    /* Global message numbers */
+    private static final int FILE_ID = 0;
+    private static final int RECORD = 20;
+
+    /* Local message types */
+    private static final int LOCAL_FILE_ID = 0;
+    private static final int LOCAL_RECORD = 1;
+
+    private static final int DEFINITION = 0x40;
+    private static final int FILE_TYPE_ACTIVITY = 4;
+    private static final int MANUFACTURER_DEVELOPMENT = 255;
+
+    /* Record fields: number, size, base type */
+    private static final int[][] RECORD_FIELDS = {
+            {253, 4, UINT32},   // timestamp, s since FIT_EPOCH
+            {0, 4, SINT32},     // position_lat, semicircles
+            {1, 4, SINT32},     // position_long
+            {2, 2, UINT16},     // altitude, (m + 500) * 5
+            {6, 2, UINT16},     // speed, mm/s
+            {73, 4, UINT32},    // enhanced_speed, mm/s, for speeds past 65 m/s
+            {5, 4, UINT32}};    // distance, cm
+
+    private static final int INVALID_UINT16 = 0xffff;
+    private static final int INVALID_SINT32 = 0x7fffffff;
+    private static final long INVALID_UINT32 = 0xffffffffL;
+
+    private static final double SEMICIRCLES = 2147483648.0 / 180.0;
+
+    private static final int[] CRC_TABLE = {
+            0x0000, 0xcc01, 0xd801, 0x1400, 0xf001, 0x3c00, 0x2800, 0xe401,
+            0xa001, 0x6c00, 0x7800, 0xb401, 0x5000, 0x9c01, 0x8801, 0x4400};
+
+    private static final int BUFFER_SIZE = 65536;
+
+    private final File file;
+    private final OutputStream out;
+    private final byte[] message = new byte[64];
+
+    private long dataSize;
+    private boolean started;
+    private long lastSecond = -1;
+    private double distance;
+    private double lastLatitude;
+    private double lastLongitude;
+
+    public FitTrackWriter(File file) throws IOException {
+        this.file = file;
+        this.out = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+
+        // Filled in on close
+        out.write(new byte[HEADER_SIZE]);
+
+        writeDefinition(LOCAL_FILE_ID, FILE_ID, new int[][]{
+                {0, 1, ENUM},       // type
+                {1, 2, UINT16},     // manufacturer
+                {2, 2, UINT16},     // product
+                {4, 4, UINT32}});   // time_created
+        writeDefinition(LOCAL_RECORD, RECORD, RECORD_FIELDS);
+    }
+
+    @Override
+    public void write(TrackPoint point) throws IOException {
+        long unixSecond = (long) Math.floor(point.time / 1000.0);
+        long second = unixSecond >= FIT_EPOCH ? unixSecond - FIT_EPOCH : -1;
+
+        if ( !started ) {
+            writeFileId(second);
+        } else {
+            distance += Geodesy.haversine(lastLatitude, lastLongitude,
+                    point.latitude, point.longitude);
+        }
+        lastLatitude = point.latitude;
+        lastLongitude = point.longitude;
+
+        if ( second < 0 || second <= lastSecond ) {
+            return;
+        }
+        lastSecond = second;
+
+        double speed = Double.isNaN(point.speed) || point.speed < 0 ? -1 : point.speed * 1000;
+
+        int i = 0;
+        message[i++] = LOCAL_RECORD;
+        i = putInt(message, i, second, 4);
+        i = putInt(message, i, Math.round(point.latitude * SEMICIRCLES), 4);
+        i = putInt(message, i, Math.round(point.longitude * SEMICIRCLES), 4);
+        i = putInt(message, i, Double.isNaN(point.altitude) ? INVALID_UINT16 :
+                inRange(Math.round((point.altitude + 500) * 5), INVALID_UINT16), 2);
+        i = putInt(message, i, speed < 0 ? INVALID_UINT16 :
+                inRange(Math.round(speed), INVALID_UINT16), 2);
+        i = putInt(message, i, speed < 0 ? INVALID_UINT32 :
+                inRange(Math.round(speed), INVALID_UINT32), 4);
+        i = putInt(message, i, inRange(Math.round(distance * 100), INVALID_UINT32), 4);
+        writeMessage(i);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if ( !started ) {
+                writeFileId(-1);
+            }
+        } finally {
+            out.close();
+        }
+
+        RandomAccessFile access = new RandomAccessFile(file, "rw");
+        try {
+            byte[] header = new byte[HEADER_SIZE];
+            header[0] = HEADER_SIZE;
+            header[1] = PROTOCOL_VERSION;
+            putInt(header, 2, PROFILE_VERSION, 2);
+            putInt(header, 4, dataSize, 4);
+            header[8] = '.';
+            header[9] = 'F';
+            header[10] = 'I';
+            header[11] = 'T';
+            putInt(header, 12, crc(0, header, 0, 12), 2);
+            access.write(header);
+
+            int crc = crc(0, header, 0, HEADER_SIZE);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ( (read = access.read(buffer)) > 0 ) {
+                crc = crc(crc, buffer, 0, read);
+            }
+
+            putInt(buffer, 0, crc, 2);
+            access.write(buffer, 0, 2);
+        } finally {
+            access.close();
+        }
+    }
+
+    /** The FIT CRC-16 of length bytes from offset, carrying on from crc */
+    public static int crc(int crc, byte[] bytes, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            int b = bytes[i];
+            int tmp = CRC_TABLE[crc & 0xf];
+            crc = (crc >> 4) & 0x0fff;
+            crc = crc ^ tmp ^ CRC_TABLE[b & 0xf];
+
+            tmp = CRC_TABLE[crc & 0xf];
+            crc = (crc >> 4) & 0x0fff;
+            crc = crc ^ tmp ^ CRC_TABLE[(b >> 4) & 0xf];
+        }
+        return crc;
+    }
+
+    private void writeFileId(long timeCreated) throws IOException {
+        int i = 0;
+        message[i++] = LOCAL_FILE_ID;
+        message[i++] = FILE_TYPE_ACTIVITY;
+        i = putInt(message, i, MANUFACTURER_DEVELOPMENT, 2);
+        i = putInt(message, i, 0, 2);
+        i = putInt(message, i, timeCreated < 0 ? INVALID_UINT32 : timeCreated, 4);
+        writeMessage(i);
+        started = true;
+    }
+
+    private void writeDefinition(int localType, int globalNumber, int[][] fields)
+            throws IOException {
+        int i = 0;
+        message[i++] = (byte) (DEFINITION | localType);
+        message[i++] = 0; // Reserved
+        message[i++] = 0; // Little endian
+        i = putInt(message, i, globalNumber, 2);
+        message[i++] = (byte) fields.length;
+        for (int[] field : fields) {
+            message[i++] = (byte) field[0];
+            message[i++] = (byte) field[1];
+            message[i++] = (byte) field[2];
+        }
+        writeMessage(i);
+    }
+
+    private void writeMessage(int length) throws IOException {
+        out.write(message, 0, length);
+        dataSize += length;
+    }
+
+    private static long inRange(long value, long invalid) {
+        return value >= 0 && value < invalid ? value : invalid;
+    }
+
+    /* Little endian */
+    private static int putInt(byte[] bytes, int offset, long value, int size) {
+        for (int i = 0; i < size; i++) {
+            bytes[offset + i] = (byte) (value >>> (8 * i));
+        }
+        return offset + size;
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes a track as a GPX 1.1 file of one track segment. GPX 1.1 has no speed or course, so
+ * they go in a Garmin TrackPointExtension, which GpxTrackReader and most tools read.
+ */
+public class GpxTrackWriter implements TrackWriter {
+
+    private static final String TRACK_POINT_EXTENSION =
+            "http://www.garmin.com/xmlschemas/TrackPointExtension/v2";
+
+    private final Writer out;
+    private final StringBuilder element = new StringBuilder(256);
+
+    /** @param name The name of the track, or null */
+    public GpxTrackWriter(Writer out, String name) throws IOException {
+        this.out = out;
+        out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                "<gpx version=\"1.1\" creator=\"RideOut\" " +
+                "xmlns=\"http://www.topografix.com/GPX/1/1\" " +
+                "xmlns:gpxtpx=\"" + TRACK_POINT_EXTENSION + "\">\n<trk>\n");
+        if ( name != null ) {
+            out.write("<name>" + escape(name) + "</name>\n");
+        }
+        out.write("<trkseg>\n");
+    }
+
+    @Override
+    public void write(TrackPoint point) throws IOException {
+        StringBuilder e = element;
+        e.setLength(0);
+        e.append("<trkpt lat=\"");
+        CsvTrackWriter.appendDecimal(e, point.latitude, 7);
+        e.append("\" lon=\"");
+        CsvTrackWriter.appendDecimal(e, point.longitude, 7);
+        e.append("\">");
+
+        // In the order the schema has them
+        if ( !Double.isNaN(point.altitude) ) {
+            e.append("<ele>");
+            CsvTrackWriter.appendDecimal(e, point.altitude, 2);
+            e.append("</ele>");
+        }
+        e.append("<time>");
+        RideTime.appendIsoTime(e, point.time);
+        e.append("</time>");
+
+        boolean hasSpeed = !Double.isNaN(point.speed) && point.speed >= 0;
+        if ( hasSpeed || !Double.isNaN(point.bearing) ) {
+            e.append("<extensions><gpxtpx:TrackPointExtension>");
+            if ( hasSpeed ) {
+                e.append("<gpxtpx:speed>");
+                CsvTrackWriter.appendDecimal(e, point.speed, 3);
+                e.append("</gpxtpx:speed>");
+            }
+            if ( !Double.isNaN(point.bearing) ) {
+                e.append("<gpxtpx:course>");
+                CsvTrackWriter.appendDecimal(e, point.bearing, 1);
+                e.append("</gpxtpx:course>");
+            }
+            e.append("</gpxtpx:TrackPointExtension></extensions>");
+        }
+        e.append("</trkpt>\n");
+        out.append(e);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            out.write("</trkseg>\n</trk>\n</gpx>\n");
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String escape(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+}
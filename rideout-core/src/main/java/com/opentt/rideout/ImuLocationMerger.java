@@ -0,0 +1,305 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+import java.util.Arrays;
+
+/**
+ * Joins sensor channels onto location fixes by time, in a single pass.
+ *
+ * Fixes and readings carry timestamps on the same clock, elapsedRealtimeNanos, and each stream
+ * is in time order. Each fix owns the window of readings since the previous fix. For every
+ * channel, a fix gets the mean, minimum and maximum over its window, plus the value linearly
+ * interpolated at the fix time.
+ *
+ * Sensor readings lag behind their timestamps, so a fix is held until every channel has a
+ * reading past it. A channel that has never had a reading doesn't hold anything up. At most
+ * {@link #MAX_PENDING_FIXES} fixes are held. Beyond that the oldest is merged with what it
+ * has, holding each channel's last value in place of the interpolation.
+ *
+ * A fix that arrives after readings past its own time has been handed in keeps those readings
+ * in its window and takes the latest value of each channel. Live callers avoid this by
+ * holding sensor readings back for longer than fixes take to arrive.
+ *
+ * All state is preallocated and the merged window is handed to the {@link Output} as a
+ * reusable view, so nothing is allocated per reading or per fix. The same class re-joins
+ * stored readings offline, at any fix spacing; see RideDataDbHelper.rejoinImu in the app.
+ */
+public class ImuLocationMerger {
+
+    /** Receives fixes in the order they were added */
+    public interface Output {
+        /**
+         * @param sequence The value {@link #addFix} returned for this fix.
+         * @param window Valid until this method returns.
+         */
+        void onMerged(long sequence, long fixNanos, Window window);
+    }
+
+    public static final int MAX_PENDING_FIXES = 16;
+
+    /* Channels per three axis stream, see {@link #channel} */
+    public static final int AXES = 3;
+
+    private final int channels;
+    private final Output output;
+
+    /* Ring of windows: one per pending fix, plus the open one after the newest fix */
+    private final int slots = MAX_PENDING_FIXES + 1;
+    private final long[] fixNanos = new long[slots];
+    private final double[] sum;
+    private final int[] count;
+    private final double[] min;
+    private final double[] max;
+    private final double[] interpolated;
+    private final boolean[] resolved;
+
+    /* First pending fix, and number of fixes pending */
+    private long headSequence;
+    private int pending;
+
+    /* Latest reading per channel */
+    private final long[] lastNanos;
+    private final double[] lastValue;
+    private final boolean[] seen;
+
+    private final Window window = new Window();
+
+    public ImuLocationMerger(int channels, Output output) {
+        if ( channels <= 0 ) {
+            throw new IllegalArgumentException("Need at least one channel");
+        }
+
+        this.channels = channels;
+        this.output = output;
+
+        sum = new double[slots * channels];
+        count = new int[slots * channels];
+        min = new double[slots * channels];
+        max = new double[slots * channels];
+        interpolated = new double[slots * channels];
+        resolved = new boolean[slots * channels];
+
+        lastNanos = new long[channels];
+        lastValue = new double[channels];
+        seen = new boolean[channels];
+
+        reset();
+    }
+
+    /** Drops every pending fix and reading */
+    public void reset() {
+        headSequence = 0;
+        pending = 0;
+        Arrays.fill(seen, false);
+        for (int s = 0; s < slots; s++) {
+            clearSlot(s);
+        }
+    }
+
+    /**
+     * Adds a fix. Fixes must come in time order.
+     *
+     * @return The sequence number the fix is merged under.
+     */
+    public long addFix(long nanos) {
+        if ( pending == MAX_PENDING_FIXES ) {
+            emitHead();
+        }
+
+        long sequence = headSequence + pending;
+        int slot = slotOf(sequence);
+        fixNanos[slot] = nanos;
+        pending++;
+
+        // Readings already past the fix resolve it straight away
+        for (int c = 0; c < channels; c++) {
+            if ( !seen[c] || lastNanos[c] >= nanos ) {
+                resolveWithLast(slot, c);
+            }
+        }
+
+        // The window after the new fix opens empty
+        clearSlot(slotOf(sequence + 1));
+
+        emitResolved();
+        return sequence;
+    }
+
+    /** Adds a reading of one channel. Readings of a channel must come in time order. */
+    public void addReading(int channel, long nanos, double value) {
+        // Interpolate every pending fix this reading steps over
+        for (int i = 0; i < pending; i++) {
+            int slot = slotOf(headSequence + i);
+            int index = slot * channels + channel;
+
+            if ( resolved[index] || fixNanos[slot] > nanos ) {
+                continue;
+            }
+
+            if ( seen[channel] && nanos > lastNanos[channel] ) {
+                double f = (double) (fixNanos[slot] - lastNanos[channel]) /
+                        (nanos - lastNanos[channel]);
+                interpolated[index] = lastValue[channel] + f * (value - lastValue[channel]);
+            } else {
+                interpolated[index] = value;
+            }
+            resolved[index] = true;
+        }
+
+        accumulate(windowOf(nanos), channel, value);
+
+        lastNanos[channel] = nanos;
+        lastValue[channel] = value;
+        seen[channel] = true;
+
+        emitResolved();
+    }
+
+    /** Merges every pending fix with what it has, for the end of a stream */
+    public void flush() {
+        while ( pending > 0 ) {
+            emitHead();
+        }
+    }
+
+    /** The sequence number the next {@link #addFix} will return */
+    public long getNextSequence() {
+        return headSequence + pending;
+    }
+
+    /** Channel of one axis (0 x, 1 y, 2 z) of the stream-th three axis stream */
+    public static int channel(int stream, int axis) {
+        return stream * AXES + axis;
+    }
+
+    public int getPendingFixes() {
+        return pending;
+    }
+
+    /* Slot of the earliest window whose fix is at or after nanos; the open one if none is */
+    private int windowOf(long nanos) {
+        for (int i = 0; i < pending; i++) {
+            int slot = slotOf(headSequence + i);
+            if ( nanos <= fixNanos[slot] ) {
+                return slot;
+            }
+        }
+        return slotOf(headSequence + pending);
+    }
+
+    private void accumulate(int slot, int channel, double value) {
+        int index = slot * channels + channel;
+
+        if ( count[index] == 0 ) {
+            min[index] = value;
+            max[index] = value;
+        } else {
+            if ( value < min[index] ) min[index] = value;
+            if ( value > max[index] ) max[index] = value;
+        }
+        sum[index] += value;
+        count[index]++;
+    }
+
+    private void resolveWithLast(int slot, int channel) {
+        int index = slot * channels + channel;
+        interpolated[index] = seen[channel] ? lastValue[channel] : Double.NaN;
+        resolved[index] = true;
+    }
+
+    private void emitResolved() {
+        while ( pending > 0 && isResolved(slotOf(headSequence)) ) {
+            emit();
+        }
+    }
+
+    private void emitHead() {
+        int slot = slotOf(headSequence);
+        for (int c = 0; c < channels; c++) {
+            if ( !resolved[slot * channels + c] ) {
+                resolveWithLast(slot, c);
+            }
+        }
+        emit();
+    }
+
+    private void emit() {
+        int slot = slotOf(headSequence);
+
+        window.slot = slot;
+        output.onMerged(headSequence, fixNanos[slot], window);
+
+        clearSlot(slot);
+        headSequence++;
+        pending--;
+    }
+
+    private boolean isResolved(int slot) {
+        for (int c = 0; c < channels; c++) {
+            if ( !resolved[slot * channels + c] ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void clearSlot(int slot) {
+        int from = slot * channels;
+        int to = from + channels;
+        Arrays.fill(sum, from, to, 0.0);
+        Arrays.fill(count, from, to, 0);
+        Arrays.fill(resolved, from, to, false);
+    }
+
+    private int slotOf(long sequence) {
+        return (int) (sequence % slots);
+    }
+
+    /** The merged channels of one fix. Values are NaN for a channel with no readings. */
+    public final class Window {
+
+        private int slot;
+
+        private Window() {
+        }
+
+        public int getCount(int channel) {
+            return count[slot * channels + channel];
+        }
+
+        public double getMean(int channel) {
+            int index = slot * channels + channel;
+            return count[index] == 0 ? Double.NaN : sum[index] / count[index];
+        }
+
+        public double getMin(int channel) {
+            int index = slot * channels + channel;
+            return count[index] == 0 ? Double.NaN : min[index];
+        }
+
+        public double getMax(int channel) {
+            int index = slot * channels + channel;
+            return count[index] == 0 ? Double.NaN : max[index];
+        }
+
+        /** Value at the fix time */
+        public double getValue(int channel) {
+            return interpolated[slot * channels + channel];
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+import com.opentt.rideout.RideDataContract.ImuData;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Streams a recorded sensor log: CSV with a header row naming its columns after
+ * {@link ImuData}, elapsed_nanos, sensor_type, x, y and z, in time order. Sensor types are
+ * the android.hardware.Sensor constants. The reader is a cursor; after {@link #next()} the
+ * getters return the current reading.
+ */
+public class ImuLogReader implements Closeable {
+
+    private final BufferedReader reader;
+
+    private final int elapsedNanos;
+    private final int sensorType;
+    private final int x;
+    private final int y;
+    private final int z;
+
+    private int lineNumber = 1;
+
+    private long currentNanos;
+    private int currentType;
+    private float currentX;
+    private float currentY;
+    private float currentZ;
+
+    public ImuLogReader(Reader reader) throws IOException {
+        this.reader = new BufferedReader(reader);
+
+        String header = this.reader.readLine();
+        if ( header == null ) {
+            throw new IOException("Empty sensor log");
+        }
+
+        String[] columns = header.trim().split(",", -1);
+        elapsedNanos = CsvTrackReader.indexOf(columns, ImuData.ELAPSED_NANOS, true);
+        sensorType = CsvTrackReader.indexOf(columns, ImuData.SENSOR_TYPE, true);
+        x = CsvTrackReader.indexOf(columns, ImuData.X, true);
+        y = CsvTrackReader.indexOf(columns, ImuData.Y, true);
+        z = CsvTrackReader.indexOf(columns, ImuData.Z, true);
+    }
+
+    /** Moves to the next reading. @return false at the end of the log. */
+    public boolean next() throws IOException {
+        String line;
+
+        while ( (line = reader.readLine()) != null ) {
+            lineNumber++;
+            if ( line.trim().isEmpty() ) {
+                continue;
+            }
+
+            String[] values = line.split(",", -1);
+            try {
+                currentNanos = Long.parseLong(values[elapsedNanos].trim());
+                currentType = Integer.parseInt(values[sensorType].trim());
+                currentX = Float.parseFloat(values[x].trim());
+                currentY = Float.parseFloat(values[y].trim());
+                currentZ = Float.parseFloat(values[z].trim());
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException ex) {
+                throw new IOException("Bad sensor log row at line " + lineNumber, ex);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    public long getTimestampNanos() {
+        return currentNanos;
+    }
+
+    public int getSensorType() {
+        return currentType;
+    }
+
+    public float getX() {
+        return currentX;
+    }
+
+    public float getY() {
+        return currentY;
+    }
+
+    public float getZ() {
+        return currentZ;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -0,0 +1,147 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed size queue of three axis sensor readings between exactly one producer thread and one
+ * consumer thread.
+ *
+ * Readings are kept in parallel primitive arrays, so neither side allocates or takes a lock.
+ * The producer publishes a slot by advancing the tail and the consumer frees it by advancing
+ * the head. Both are ordered writes, and each side only ever writes its own counter. A full
+ * buffer drops the new reading rather than block the sensor thread.
+ */
+public class ImuRingBuffer {
+
+    /** Receives readings from {@link #drain}, on the consumer thread */
+    public interface Reader {
+        void onReading(int sensorType, long timestampNanos, float x, float y, float z);
+    }
+
+    private final int mask;
+
+    private final int[] sensorTypes;
+    private final long[] timestamps;
+    private final float[] values; // x, y, z per slot
+
+    /* Next slot to read, written by the consumer only */
+    private final AtomicLong head = new AtomicLong();
+
+    /* Next slot to write, written by the producer only */
+    private final AtomicLong tail = new AtomicLong();
+
+    /* Producer's last sight of head, saves a volatile read per offer while there's room */
+    private long cachedHead;
+
+    private volatile long readingsDropped;
+
+    /**
+     * @param capacity Number of readings held, rounded up to a power of two.
+     */
+    public ImuRingBuffer(int capacity) {
+        if ( capacity <= 0 || capacity > (1 << 30) ) {
+            throw new IllegalArgumentException("Invalid capacity " + capacity);
+        }
+
+        int size = Integer.highestOneBit(capacity);
+        if ( size < capacity ) {
+            size <<= 1;
+        }
+
+        mask = size - 1;
+        sensorTypes = new int[size];
+        timestamps = new long[size];
+        values = new float[size * 3];
+    }
+
+    /**
+     * Adds a reading. Producer thread only.
+     *
+     * @return false if the buffer was full and the reading was dropped.
+     */
+    public boolean offer(int sensorType, long timestampNanos, float x, float y, float z) {
+        long t = tail.get();
+
+        if ( t - cachedHead > mask ) {
+            cachedHead = head.get();
+            if ( t - cachedHead > mask ) {
+                readingsDropped++;
+                return false;
+            }
+        }
+
+        int slot = (int) t & mask;
+        sensorTypes[slot] = sensorType;
+        timestamps[slot] = timestampNanos;
+        values[slot * 3] = x;
+        values[slot * 3 + 1] = y;
+        values[slot * 3 + 2] = z;
+
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /**
+     * Hands up to max readings to reader, oldest first. Consumer thread only.
+     *
+     * @return The number of readings drained.
+     */
+    public int drain(Reader reader, int max) {
+        return drain(reader, max, Long.MAX_VALUE);
+    }
+
+    /**
+     * Hands up to max readings to reader, oldest first, stopping at the first reading
+     * timestamped after untilNanos. Consumer thread only.
+     *
+     * @return The number of readings drained.
+     */
+    public int drain(Reader reader, int max, long untilNanos) {
+        long h = head.get();
+        long available = tail.get() - h;
+        int limit = (int) Math.min(available, max);
+        int count = 0;
+
+        while ( count < limit ) {
+            int slot = (int) (h + count) & mask;
+            if ( timestamps[slot] > untilNanos ) {
+                break;
+            }
+            reader.onReading(sensorTypes[slot], timestamps[slot],
+                    values[slot * 3], values[slot * 3 + 1], values[slot * 3 + 2]);
+            count++;
+        }
+
+        head.lazySet(h + count);
+        return count;
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /** Readings waiting to be drained. Exact only on the consumer thread. */
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    public long getReadingsDropped() {
+        return readingsDropped;
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+/**
+ * Streaming lean angle estimate from the gyroscope, accelerometer and GPS speed.
+ *
+ * Assumes the phone is mounted upright facing the rider: device y up, x to the rider's right
+ * and z towards the rider, so the bike rolls about the device z axis. Angles are positive
+ * leaning right.
+ *
+ * A complementary filter integrates the roll rate from the gyroscope and pulls the result
+ * towards a reference with time constant {@link #TIME_CONSTANT_SECONDS}. The reference is the
+ * tilt of the accelerometer's gravity vector. In a steady turn the accelerometer also feels
+ * the centripetal acceleration, which makes the bike look upright, so the reference adds
+ * back atan(v * yaw rate / g) from the GPS speed and the gyroscope's yaw rate.
+ *
+ * All state is primitive fields and an update does no allocation, so it runs at sensor rate.
+ */
+public class LeanAngleEstimator {
+
+    public static final double GRAVITY = 9.80665;
+
+    /* Gyroscope drift is corrected over roughly this long */
+    public static final double TIME_CONSTANT_SECONDS = 1.0;
+
+    /* Gaps longer than this restart the integration rather than integrate a stale rate */
+    private static final double MAX_STEP_SECONDS = 0.5;
+
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    private final double timeConstant;
+
+    private double gravityX;
+    private double gravityY;
+    private boolean hasGravity;
+
+    private double speed;
+
+    private long lastGyroNanos;
+    private boolean initialised;
+
+    private double lean; // radians
+    private long leanNanos;
+
+    public LeanAngleEstimator() {
+        this(TIME_CONSTANT_SECONDS);
+    }
+
+    public LeanAngleEstimator(double timeConstantSeconds) {
+        if ( timeConstantSeconds <= 0.0 ) {
+            throw new IllegalArgumentException("Time constant must be positive");
+        }
+        this.timeConstant = timeConstantSeconds;
+    }
+
+    public void reset() {
+        hasGravity = false;
+        initialised = false;
+        speed = 0.0;
+        lean = 0.0;
+        leanNanos = 0;
+    }
+
+    /** Latest ground speed in metres per second. Negative values are ignored. */
+    public void setSpeed(double metresPerSecond) {
+        if ( metresPerSecond >= 0.0 ) {
+            speed = metresPerSecond;
+        }
+    }
+
+    /** Accelerometer reading including gravity, m/s^2 */
+    public void onAccelerometer(long timestampNanos, double x, double y, double z) {
+        gravityX = x;
+        gravityY = y;
+        hasGravity = true;
+    }
+
+    /**
+     * Gyroscope reading, rad/s, counter-clockwise positive. Advances the estimate.
+     *
+     * @return The lean angle in degrees after this reading.
+     */
+    public double onGyroscope(long timestampNanos, double x, double y, double z) {
+        if ( !hasGravity ) {
+            return 0.0;
+        }
+
+        // Leaning right by lean, world up is (-sin lean, cos lean, 0) in device coordinates
+        double rollRate = -z;
+        double yawRate = y * Math.cos(lean) - x * Math.sin(lean);
+
+        double reference = Math.atan2(-gravityX, gravityY) +
+                Math.atan(-speed * yawRate / GRAVITY);
+
+        if ( !initialised ) {
+            lean = reference;
+            initialised = true;
+        } else {
+            double dt = (timestampNanos - lastGyroNanos) / NANOS_PER_SECOND;
+
+            if ( dt <= 0.0 || dt > MAX_STEP_SECONDS ) {
+                lean = reference;
+            } else {
+                double alpha = timeConstant / (timeConstant + dt);
+                lean = alpha * (lean + rollRate * dt) + (1.0 - alpha) * reference;
+            }
+        }
+
+        lastGyroNanos = timestampNanos;
+        leanNanos = timestampNanos;
+        return getLeanAngle();
+    }
+
+    /** Degrees, positive leaning right */
+    public double getLeanAngle() {
+        return Math.toDegrees(lean);
+    }
+
+    /** Sensor timestamp of the latest estimate */
+    public long getTimestampNanos() {
+        return leanNanos;
+    }
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+/**
+ * Where the lowest and highest values of any run of a channel are, found without scanning it.
+ * Level k holds the index of the minimum and maximum of each aligned block of 2^k values, so
+ * a run is covered by a few blocks from each level, O(log n) of them in all.
+ *
+ * NaN values, a sensor that had no reading, are never a minimum or maximum; a run of nothing
+ * else gives the index of one of them.
+ */
+public final class MinMaxPyramid {
+
+    private final double[] values;
+    private final int count;
+
+    /* Level k is at index k - 1; level 0 is the values themselves */
+    private final int[][] minimums;
+    private final int[][] maximums;
+
+    public MinMaxPyramid(double[] values, int count) {
+        this.values = values;
+        this.count = count;
+
+        int levels = 0;
+        for (int size = count; size > 1; size >>= 1) {
+            levels++;
+        }
+        minimums = new int[levels][];
+        maximums = new int[levels][];
+
+        for (int level = 0; level < levels; level++) {
+            int blocks = count >> (level + 1);
+            int[] min = new int[blocks];
+            int[] max = new int[blocks];
+            for (int block = 0; block < blocks; block++) {
+                int left = 2 * block;
+                int right = left + 1;
+                if ( level == 0 ) {
+                    min[block] = lower(left, right);
+                    max[block] = higher(left, right);
+                } else {
+                    min[block] = lower(minimums[level - 1][left], minimums[level - 1][right]);
+                    max[block] = higher(maximums[level - 1][left], maximums[level - 1][right]);
+                }
+            }
+            minimums[level] = min;
+            maximums[level] = max;
+        }
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /** Index of the lowest value from from, inclusive, to to, exclusive */
+    public int indexOfMin(int from, int to) {
+        return find(from, to, false);
+    }
+
+    /** Index of the highest value from from, inclusive, to to, exclusive */
+    public int indexOfMax(int from, int to) {
+        return find(from, to, true);
+    }
+
+    private int find(int from, int to, boolean highest) {
+        if ( from < 0 || to > count || from >= to ) {
+            throw new IllegalArgumentException("Bad range " + from + " to " + to + " of " + count);
+        }
+
+        int best = from;
+        int index = from;
+        while ( index < to ) {
+            // The largest aligned block starting here that fits in the run
+            int level = 0;
+            while ( level < minimums.length && (index & ((2 << level) - 1)) == 0 &&
+                    index + (2 << level) <= to ) {
+                level++;
+            }
+
+            int candidate = level == 0 ? index :
+                    (highest ? maximums : minimums)[level - 1][index >> level];
+            best = highest ? higher(best, candidate) : lower(best, candidate);
+            index += 1 << level;
+        }
+        return best;
+    }
+
+    private int lower(int a, int b) {
+        return values[b] < values[a] || Double.isNaN(values[a]) ? b : a;
+    }
+
+    private int higher(int a, int b) {
+        return values[b] > values[a] || Double.isNaN(values[a]) ? b : a;
+    }
+}
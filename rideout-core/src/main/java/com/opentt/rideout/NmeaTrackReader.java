@@ -0,0 +1,178 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reads a track from an NMEA 0183 log. Every valid RMC sentence is a fix, with the altitude of
+ * the GGA sentence of the same epoch, whichever order they come in. Any talker (GP, GN, GL...)
+ * is accepted. Sentences with a bad checksum are skipped, as are any other sentence types.
+ */
+public class NmeaTrackReader implements TrackReader {
+
+    private static final double KNOTS_TO_METRES_PER_SECOND = 1852.0 / 3600.0;
+
+    private final BufferedReader reader;
+
+    /* The fix of the current epoch, held until a sentence of another epoch shows up */
+    private final TrackPoint pending = new TrackPoint();
+    private boolean hasPending;
+    private String pendingEpoch;
+
+    /* Altitude from the last GGA, and its epoch */
+    private double altitude = Double.NaN;
+    private String altitudeEpoch;
+
+    public NmeaTrackReader(Reader reader) {
+        this.reader = new BufferedReader(reader);
+    }
+
+    @Override
+    public boolean next(TrackPoint point) throws IOException {
+        String line;
+
+        while ( (line = reader.readLine()) != null ) {
+            String[] fields = parseSentence(line.trim());
+            if ( fields == null || fields.length < 2 ) {
+                continue;
+            }
+
+            String epoch = fields[1];
+            boolean emit = hasPending && !epoch.equals(pendingEpoch);
+            if ( emit ) {
+                point.set(pending);
+                hasPending = false;
+            }
+
+            String type = fields[0].length() >= 3 ?
+                    fields[0].substring(fields[0].length() - 3) : "";
+            try {
+                if ( type.equals("RMC") ) {
+                    readRmc(fields, epoch);
+                } else if ( type.equals("GGA") ) {
+                    readGga(fields, epoch);
+                }
+            } catch (NumberFormatException | IndexOutOfBoundsException ex) {
+                // A damaged sentence with a good checksum; treat it like a bad checksum
+            }
+
+            if ( emit ) {
+                return true;
+            }
+        }
+
+        if ( hasPending ) {
+            point.set(pending);
+            hasPending = false;
+            return true;
+        }
+        return false;
+    }
+
+    /* $GPRMC,hhmmss.ss,A,llll.ll,a,yyyyy.yy,a,knots,course,ddmmyy,... */
+    private void readRmc(String[] f, String epoch) {
+        if ( !"A".equals(f[2]) ) {
+            return; // No fix
+        }
+
+        pending.clear();
+        pending.latitude = parseCoordinate(f[3], f[4]);
+        pending.longitude = parseCoordinate(f[5], f[6]);
+        if ( !f[7].isEmpty() ) {
+            pending.speed = Double.parseDouble(f[7]) * KNOTS_TO_METRES_PER_SECOND;
+        }
+        if ( !f[8].isEmpty() ) {
+            pending.bearing = Double.parseDouble(f[8]);
+        }
+
+        // Two digit years, taken to be 1980 to 2079
+        String date = f[9];
+        int year = Integer.parseInt(date.substring(4, 6));
+        long days = RideTime.daysFromCivil(year < 80 ? 2000 + year : 1900 + year,
+                Integer.parseInt(date.substring(2, 4)), Integer.parseInt(date.substring(0, 2)));
+        pending.time = days * 86400000L + parseTimeOfDay(epoch);
+
+        if ( epoch.equals(altitudeEpoch) ) {
+            pending.altitude = altitude;
+        }
+
+        hasPending = true;
+        pendingEpoch = epoch;
+    }
+
+    /* $GPGGA,hhmmss.ss,llll.ll,a,yyyyy.yy,a,quality,satellites,hdop,altitude,M,... */
+    private void readGga(String[] f, String epoch) {
+        if ( f[6].isEmpty() || f[6].equals("0") || f[9].isEmpty() ) {
+            return; // No fix
+        }
+
+        altitude = Double.parseDouble(f[9]);
+        altitudeEpoch = epoch;
+
+        if ( hasPending && epoch.equals(pendingEpoch) ) {
+            pending.altitude = altitude;
+        }
+    }
+
+    /* Fields of a sentence with a good checksum, without the $ and checksum; otherwise null */
+    static String[] parseSentence(String line) {
+        int star = line.lastIndexOf('*');
+
+        if ( !line.startsWith("$") || star < 0 || star + 3 > line.length() ) {
+            return null;
+        }
+
+        int checksum = 0;
+        for (int i = 1; i < star; i++) {
+            checksum ^= line.charAt(i);
+        }
+
+        try {
+            if ( checksum != Integer.parseInt(line.substring(star + 1, star + 3), 16) ) {
+                return null;
+            }
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+
+        return line.substring(1, star).split(",", -1);
+    }
+
+    /* ddmm.mmmm or dddmm.mmmm and a hemisphere, to signed degrees */
+    static double parseCoordinate(String value, String hemisphere) {
+        double raw = Double.parseDouble(value);
+        double degrees = Math.floor(raw / 100);
+        double result = degrees + (raw - degrees * 100) / 60;
+        return hemisphere.equals("S") || hemisphere.equals("W") ? -result : result;
+    }
+
+    /* hhmmss.sss to milliseconds since midnight */
+    static long parseTimeOfDay(String value) {
+        int hours = Integer.parseInt(value.substring(0, 2));
+        int minutes = Integer.parseInt(value.substring(2, 4));
+        double seconds = Double.parseDouble(value.substring(4));
+        return (hours * 60 + minutes) * 60000L + Math.round(seconds * 1000);
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+/**
+ * Tables and columns of the ride database. Plain Java so the codecs can name columns off the
+ * device; _ID has the value of android.provider.BaseColumns._ID, which cursor adapters expect.
+ */
+public class RideDataContract {
+
+    private static final String ID = "_id";
+
+    // Empty constructor in case of accidental instantiation
+    public RideDataContract() {}
+
+    public static abstract class RideData {
+        public static final String _ID = ID;
+        public static final String TABLE_NAME = "ride_data";
+        public static final String RIDE_ID = "rideID";
+        public static final String TIME_STAMP = "timestamp";
+        public static final String LATITUDE = "latitude";
+        public static final String LONGITUDE = "longitude";
+        public static final String ALTITUDE = "altitude";
+        public static final String SPEED = "speed";
+        public static final String BEARING = "bearing";
+        public static final String ACCELERATION_X = "x_acceleration";
+        public static final String ACCELERATION_Y = "y_acceleration";
+        public static final String ACCELERATION_Z = "z_acceleration";
+        public static final String LEAN_ANGLE = "lean_angle";
+        public static final String ELAPSED_NANOS = "elapsed_nanos";
+        /* Derived from the fixes before: metres along the track and milliseconds from the
+         * ride's first fix. NULL until worked out for rows stored before version 12. */
+        public static final String DISTANCE = "distance";
+        public static final String ELAPSED_TIME = "elapsed_time";
+    }
+
+    /** Sensor channels recorded at sensor rate, timed by the sensor clock */
+    public static abstract class ImuData {
+        public static final String _ID = ID;
+        public static final String TABLE_NAME = "imu_data";
+        public static final String RIDE_ID = "rideID";
+        public static final String ELAPSED_NANOS = "elapsed_nanos";
+        public static final String SENSOR_TYPE = "sensor_type";
+        public static final String X = "x";
+        public static final String Y = "y";
+        public static final String Z = "z";
+
+        /* SENSOR_TYPE of the lean angle estimate, degrees in X. Android sensor types are positive. */
+        public static final int TYPE_LEAN_ANGLE = -1;
+    }
+
+    /** One row per ride; _ID is the rideID used by the other tables */
+    public static abstract class Rides {
+        public static final String _ID = ID;
+        public static final String TABLE_NAME = "rides";
+        public static final String START_TIME = "start_time";
+        public static final String END_TIME = "end_time";
+        public static final String STATE = "state";
+        public static final String DETAIL = "detail";
+        /* Non-zero for a ride the rider restored; retention leaves it at full detail */
+        public static final String PINNED = "pinned";
+
+        /* Values of STATE */
+        public static final int STATE_RECORDING = 0;
+        public static final int STATE_FINISHED = 1;
+        /* Being copied in from a backup; discarded if the import doesn't finish */
+        public static final int STATE_IMPORTING = 2;
+
+        /* Values of DETAIL, what's left of a ride's rows once retention has reduced it. A ride
+         * is only reduced once it's archived; NULL is full detail. */
+        public static final int DETAIL_FULL = 0;
+        public static final int DETAIL_SIMPLIFIED = 1;
+        public static final int DETAIL_ARCHIVED = 2;
+    }
+
+    /** A ride's track at each level of a TrackPyramid, built when it's finished */
+    public static abstract class TrackLevels {
+        public static final String TABLE_NAME = "track_levels";
+        public static final String RIDE_ID = "rideID";
+        public static final String LEVEL = "level";
+        public static final String POINTS = "points";
+        /* BLOB, as TrackPyramid.encode writes it */
+        public static final String GEOMETRY = "geometry";
+    }
+
+    /** Runs of a ride's rows and the box around each, for loading the part of a track in view */
+    public static abstract class TrackSegments {
+        public static final String _ID = ID;
+        public static final String TABLE_NAME = "track_segments";
+        public static final String RIDE_ID = "rideID";
+        /* ride_data _ids of the run's first and last rows; a run's last row is the next's first */
+        public static final String FIRST_ROW = "first_row";
+        public static final String LAST_ROW = "last_row";
+        public static final String MIN_LATITUDE = "min_latitude";
+        public static final String MAX_LATITUDE = "max_latitude";
+        public static final String MIN_LONGITUDE = "min_longitude";
+        public static final String MAX_LONGITUDE = "max_longitude";
+    }
+
+    public static abstract class RideSummary {
+        public static final String _ID = ID;
+        public static final String TABLE_NAME = "ride_summary";
+        public static final String RIDE_ID = "rideID";
+        public static final String TIME_STAMP = "timestamp";
+        public static final String LATITUDE = "latitude";
+        public static final String LONGITUDE = "longitude";
+        public static final String DURATION = "duration";
+        public static final String DISTANCE_TRAVELLED = "distance_travelled";
+        public static final String MAX_SPEED = "max_speed";
+        public static final String MAX_LEAN_ANGLE = "max_lean_angle";
+        public static final String MOVING_TIME = "moving_time";
+        public static final String AVERAGE_SPEED = "average_speed";
+        public static final String ELEVATION_GAIN = "elevation_gain";
+    }
+}
@@ -0,0 +1,38 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+/**
+ * One row of {@link RideDataContract.RideData}, as captured by the acquisition thread and
+ * handed to the RideDataWriter. Samples are copied into the SampleJournal and
+ * reused, so every field is a primitive and nothing here should allocate.
+ */
+public class RideSample {
+
+    public int rideID;
+    public long timeStamp; // epoch milliseconds
+    public long elapsedNanos; // elapsedRealtimeNanos of the fix, the sensor clock
+    public double latitude;
+    public double longitude;
+    public double altitude;
+    public double speed;
+    public double bearing;
+    public double accelerationX;
+    public double accelerationY;
+    public double accelerationZ;
+    public double leanAngle;
+}
@@ -0,0 +1,172 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+/**
+ * Running totals for a ride's summary, updated one sample at a time.
+ *
+ * The acquisition thread feeds every fix through {@link #add}, so finishing a ride only has to
+ * write the current values. The same class rebuilds the summary of a ride already in the
+ * database by replaying its rows. {@link #add} does no allocation.
+ */
+public class RideSummaryAccumulator {
+
+    /* Value stored in ride_data for a missing altitude or speed */
+    public static final double MISSING = -1;
+
+    /* Below this speed (m/s) the rider is treated as stopped */
+    public static final double MOVING_SPEED = 1.0;
+
+    /* Altitude changes smaller than this (m) are treated as GPS noise */
+    public static final double ELEVATION_HYSTERESIS = 3.0;
+
+    private long sampleCount;
+
+    private double startLatitude;
+    private double startLongitude;
+    private long startTime;
+
+    private double lastLatitude;
+    private double lastLongitude;
+    private long lastTime;
+
+    private double distance;
+    private long movingTime;
+    private double movingDistance;
+    private double maxSpeed;
+    private double maxLeanAngle;
+
+    private double elevationGain;
+    private double elevationReference = Double.NaN;
+
+    public void reset() {
+        sampleCount = 0;
+        distance = 0.0;
+        movingTime = 0;
+        movingDistance = 0.0;
+        maxSpeed = 0.0;
+        maxLeanAngle = 0.0;
+        elevationGain = 0.0;
+        elevationReference = Double.NaN;
+    }
+
+    /**
+     * Adds one sample.
+     *
+     * @param time Epoch milliseconds.
+     * @param latitude Degrees.
+     * @param longitude Degrees.
+     * @param altitude Metres, or {@link #MISSING}.
+     * @param speed Metres per second, or {@link #MISSING}.
+     * @param leanAngle Degrees, either side.
+     */
+    public void add(long time, double latitude, double longitude, double altitude,
+                    double speed, double leanAngle) {
+
+        if ( sampleCount == 0 ) {
+            startLatitude = latitude;
+            startLongitude = longitude;
+            startTime = time;
+        } else {
+            double step = Geodesy.haversine(lastLatitude, lastLongitude, latitude, longitude);
+            long interval = time - lastTime;
+
+            distance += step;
+
+            // Without a speed fix, fall back on the average speed over the step
+            double stepSpeed = speed != MISSING ? speed :
+                    (interval > 0 ? step * 1000.0 / interval : 0.0);
+            if ( stepSpeed >= MOVING_SPEED && interval > 0 ) {
+                movingTime += interval;
+                movingDistance += step;
+            }
+        }
+
+        if ( speed > maxSpeed ) {
+            maxSpeed = speed;
+        }
+
+        if ( Math.abs(leanAngle) > maxLeanAngle ) {
+            maxLeanAngle = Math.abs(leanAngle);
+        }
+
+        if ( altitude != MISSING ) {
+            // Climbs and descents only count once they exceed the hysteresis band
+            if ( Double.isNaN(elevationReference) ||
+                    elevationReference - altitude >= ELEVATION_HYSTERESIS ) {
+                elevationReference = altitude;
+            } else if ( altitude - elevationReference >= ELEVATION_HYSTERESIS ) {
+                elevationGain += altitude - elevationReference;
+                elevationReference = altitude;
+            }
+        }
+
+        lastLatitude = latitude;
+        lastLongitude = longitude;
+        lastTime = time;
+        sampleCount++;
+    }
+
+    public long getSampleCount() {
+        return sampleCount;
+    }
+
+    public double getStartLatitude() {
+        return startLatitude;
+    }
+
+    public double getStartLongitude() {
+        return startLongitude;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /** Milliseconds from the first to the last sample */
+    public long getDuration() {
+        return sampleCount == 0 ? 0 : lastTime - startTime;
+    }
+
+    /** Metres along the track */
+    public double getDistance() {
+        return distance;
+    }
+
+    /** Milliseconds spent above {@link #MOVING_SPEED} */
+    public long getMovingTime() {
+        return movingTime;
+    }
+
+    public double getMaxSpeed() {
+        return maxSpeed;
+    }
+
+    /** Metres per second while moving, so stops and GPS drift at rest don't count */
+    public double getAverageSpeed() {
+        return movingTime == 0 ? 0.0 : movingDistance * 1000.0 / movingTime;
+    }
+
+    public double getMaxLeanAngle() {
+        return maxLeanAngle;
+    }
+
+    /** Metres climbed */
+    public double getElevationGain() {
+        return elevationGain;
+    }
+}
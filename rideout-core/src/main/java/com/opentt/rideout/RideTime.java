@@ -0,0 +1,117 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+/**
+ * Date and duration arithmetic shared by the track codecs and the playback screens.
+ */
+public final class RideTime {
+
+    private RideTime() {}
+
+    /** Days since 1970-01-01 of a proleptic Gregorian date */
+    public static long daysFromCivil(int year, int month, int day) {
+        year -= month <= 2 ? 1 : 0;
+        long era = (year >= 0 ? year : year - 399) / 400;
+        long yearOfEra = year - era * 400;
+        long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    /**
+     * Appends an epoch millisecond time as UTC ISO 8601 with milliseconds, as GPX has it:
+     * 2015-05-01T10:00:00.000Z.
+     */
+    public static void appendIsoTime(StringBuilder out, long millis) {
+        long days = floorDiv(millis, 86400000L);
+        long millisOfDay = millis - days * 86400000L;
+
+        // Inverse of daysFromCivil
+        long z = days + 719468;
+        long era = (z >= 0 ? z : z - 146096) / 146097;
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long monthIndex = (5 * dayOfYear + 2) / 153;
+        long day = dayOfYear - (153 * monthIndex + 2) / 5 + 1;
+        long month = monthIndex < 10 ? monthIndex + 3 : monthIndex - 9;
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        appendDigits(out, year, 4);
+        out.append('-');
+        appendDigits(out, month, 2);
+        out.append('-');
+        appendDigits(out, day, 2);
+        out.append('T');
+        appendDigits(out, millisOfDay / 3600000, 2);
+        out.append(':');
+        appendDigits(out, millisOfDay / 60000 % 60, 2);
+        out.append(':');
+        appendDigits(out, millisOfDay / 1000 % 60, 2);
+        out.append('.');
+        appendDigits(out, millisOfDay % 1000, 3);
+        out.append('Z');
+    }
+
+    /* Math.floorDiv is Java 8 */
+    private static long floorDiv(long x, long y) {
+        long quotient = x / y;
+        return (x % y != 0 && (x < 0) != (y < 0)) ? quotient - 1 : quotient;
+    }
+
+    private static void appendDigits(StringBuilder out, long value, int width) {
+        for (long scale = pow10(width - 1); scale > 1 && value < scale; scale /= 10) {
+            out.append('0');
+        }
+        out.append(value);
+    }
+
+    private static long pow10(int exponent) {
+        long value = 1;
+        while ( exponent-- > 0 ) {
+            value *= 10;
+        }
+        return value;
+    }
+
+    /** Formats a ride duration in milliseconds as HH:MM:SS, hours running past 24 */
+    public static String formatDuration(long millis) {
+        long seconds = Math.max(0, millis) / 1000;
+        long minutes = seconds / 60;
+        long hours = minutes / 60;
+
+        char[] text = new char[hours > 99 ? Long.toString(hours).length() + 6 : 8];
+        int i = text.length;
+        i = putTwoDigits(text, i, seconds % 60);
+        text[--i] = ':';
+        i = putTwoDigits(text, i, minutes % 60);
+        text[--i] = ':';
+        do {
+            text[--i] = (char) ('0' + hours % 10);
+            hours /= 10;
+        } while ( i > 0 );
+
+        return new String(text);
+    }
+
+    private static int putTwoDigits(char[] text, int end, long value) {
+        text[end - 1] = (char) ('0' + value % 10);
+        text[end - 2] = (char) ('0' + value / 10);
+        return end - 2;
+    }
+}
@@ -0,0 +1,189 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+import java.util.Arrays;
+
+/**
+ * The points of a graph series in parallel x and y arrays rather than an object each, with x
+ * ascending so the points in a window are found by binary search. Points are projected
+ * straight into the line segments a canvas draws, so drawing a series allocates nothing.
+ */
+public final class SeriesBuffer {
+
+    private double[] x;
+    private double[] y;
+    private int count;
+
+    private double lowestY = Double.NaN;
+    private double highestY = Double.NaN;
+
+    public SeriesBuffer(int capacity) {
+        x = new double[Math.max(capacity, 1)];
+        y = new double[x.length];
+    }
+
+    /** Wraps the first count points of the arrays, which the buffer then owns */
+    public SeriesBuffer(double[] x, double[] y, int count) {
+        if ( count > x.length || count > y.length ) {
+            throw new IllegalArgumentException("Only " + Math.min(x.length, y.length) +
+                    " points, not " + count);
+        }
+        this.x = x;
+        this.y = y;
+        for (int i = 0; i < count; i++) {
+            if ( i > 0 && x[i] < x[i - 1] ) {
+                throw new IllegalArgumentException("x goes back at " + i);
+            }
+            include(y[i]);
+        }
+        this.count = count;
+    }
+
+    /** Adds a point after the last; x must not go back */
+    public void append(double px, double py) {
+        if ( count > 0 && px < x[count - 1] ) {
+            throw new IllegalArgumentException("x goes back from " + x[count - 1] + " to " + px);
+        }
+        if ( count == x.length ) {
+            x = Arrays.copyOf(x, count * 2);
+            y = Arrays.copyOf(y, count * 2);
+        }
+        x[count] = px;
+        y[count] = py;
+        include(py);
+        count++;
+    }
+
+    /** Empties the buffer, keeping its arrays */
+    public void clear() {
+        count = 0;
+        lowestY = Double.NaN;
+        highestY = Double.NaN;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public double getX(int index) {
+        return x[index];
+    }
+
+    public double getY(int index) {
+        return y[index];
+    }
+
+    public double getLowestX() {
+        return count > 0 ? x[0] : 0;
+    }
+
+    public double getHighestX() {
+        return count > 0 ? x[count - 1] : 0;
+    }
+
+    /** NaN values are left out; 0 if there are no others */
+    public double getLowestY() {
+        return Double.isNaN(lowestY) ? 0 : lowestY;
+    }
+
+    public double getHighestY() {
+        return Double.isNaN(highestY) ? 0 : highestY;
+    }
+
+    /** Index of the first point at or past value, or size() if there's none */
+    public int lowerBound(double value) {
+        int low = 0;
+        int high = count;
+        while ( low < high ) {
+            int middle = (low + high) >>> 1;
+            if ( x[middle] < value ) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /** Index of the point nearest value in x, -1 if the buffer is empty */
+    public int nearest(double value) {
+        if ( count == 0 ) {
+            return -1;
+        }
+        int index = lowerBound(value);
+        if ( index == count ) {
+            return count - 1;
+        }
+        return index > 0 && value - x[index - 1] < x[index] - value ? index - 1 : index;
+    }
+
+    /** Floats project needs to draw points from and up to to */
+    public static int lineLength(int from, int to) {
+        return Math.max(0, to - from - 1) * 4;
+    }
+
+    /**
+     * Projects the points from from up to to onto a rectangle of the screen, as the segments
+     * between them, four floats each for Canvas.drawLines. A segment with a NaN end is left
+     * out, leaving a gap.
+     *
+     * @param lines At least {@link #lineLength} floats.
+     * @return The number of floats written.
+     */
+    public int project(int from, int to, double minX, double maxX, double minY, double maxY,
+                       float left, float top, float width, float height, float[] lines) {
+        if ( lines.length < lineLength(from, to) ) {
+            throw new IllegalArgumentException("Need " + lineLength(from, to) + " floats, not " +
+                    lines.length);
+        }
+
+        double scaleX = maxX > minX ? width / (maxX - minX) : 0;
+        double scaleY = maxY > minY ? height / (maxY - minY) : 0;
+        float bottom = top + height;
+
+        int written = 0;
+        float lastX = 0;
+        float lastY = Float.NaN;
+        for (int i = from; i < to; i++) {
+            float screenX = (float) (left + (x[i] - minX) * scaleX);
+            float screenY = (float) (bottom - (y[i] - minY) * scaleY);
+
+            if ( i > from && !Float.isNaN(lastY) && !Float.isNaN(screenY) ) {
+                lines[written++] = lastX;
+                lines[written++] = lastY;
+                lines[written++] = screenX;
+                lines[written++] = screenY;
+            }
+            lastX = screenX;
+            lastY = screenY;
+        }
+        return written;
+    }
+
+    private void include(double value) {
+        if ( Double.isNaN(value) ) {
+            return;
+        }
+        if ( Double.isNaN(lowestY) || value < lowestY ) {
+            lowestY = value;
+        }
+        if ( Double.isNaN(highestY) || value > highestY ) {
+            highestY = value;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+/**
+ * Thins a channel down to about as many points as a graph has pixels across, by
+ * Largest-Triangle-Three-Buckets. Rather than weighing every point, LTTB chooses among the
+ * lowest and highest of each pixel's share of the run, found in a {@link MinMaxPyramid}, so
+ * the cost is set by the pixels and not the length of the ride. The run's own lowest and
+ * highest points are always kept, so a peak of speed or lean is never thinned away.
+ *
+ * x must be ascending.
+ */
+public final class SeriesDecimator {
+
+    private SeriesDecimator() {}
+
+    /**
+     * Indices of the points to draw from a run, ascending.
+     *
+     * @param from First index of the run.
+     * @param to Index after the last of the run.
+     * @param budget Points wanted, at least 3; up to two more may be given for the peaks.
+     * @param selected At least budget + 2 long, filled with the indices.
+     * @return The number of indices in selected.
+     */
+    public static int decimate(double[] x, double[] y, MinMaxPyramid pyramid, int from, int to,
+                               int budget, int[] selected) {
+        if ( budget < 3 ) {
+            throw new IllegalArgumentException("Budget must be at least 3: " + budget);
+        }
+
+        int count = to - from;
+        if ( count <= budget + 2 ) {
+            for (int i = 0; i < count; i++) {
+                selected[i] = from + i;
+            }
+            return Math.max(count, 0);
+        }
+
+        // The lowest and highest of each pixel's share, in order, between the ends
+        int[] candidates = new int[2 * budget + 2];
+        int candidateCount = 0;
+        candidates[candidateCount++] = from;
+        for (int bucket = 0; bucket < budget; bucket++) {
+            int start = Math.max(from + 1, from + (int) ((long) count * bucket / budget));
+            int end = Math.min(to - 1, from + (int) ((long) count * (bucket + 1) / budget));
+            if ( start >= end ) {
+                continue;
+            }
+            int low = pyramid.indexOfMin(start, end);
+            int high = pyramid.indexOfMax(start, end);
+            candidates[candidateCount++] = Math.min(low, high);
+            if ( low != high ) {
+                candidates[candidateCount++] = Math.max(low, high);
+            }
+        }
+        candidates[candidateCount++] = to - 1;
+
+        int selectedCount = largestTriangles(x, y, candidates, candidateCount, budget, selected);
+
+        selectedCount = insert(selected, selectedCount, pyramid.indexOfMin(from, to));
+        return insert(selected, selectedCount, pyramid.indexOfMax(from, to));
+    }
+
+    /* LTTB over the candidate indices: in each bucket, the point making the largest triangle
+     * with the point chosen before it and the average of the next bucket */
+    private static int largestTriangles(double[] x, double[] y, int[] candidates, int count,
+                                        int budget, int[] selected) {
+        if ( count <= budget ) {
+            System.arraycopy(candidates, 0, selected, 0, count);
+            return count;
+        }
+
+        double bucketSize = (double) (count - 2) / (budget - 2);
+        int selectedCount = 0;
+        int previous = candidates[0];
+        selected[selectedCount++] = previous;
+
+        for (int bucket = 0; bucket < budget - 2; bucket++) {
+            int start = (int) (bucket * bucketSize) + 1;
+            int end = (int) ((bucket + 1) * bucketSize) + 1;
+
+            // Average of the next bucket, or the last point
+            int nextEnd = Math.min((int) ((bucket + 2) * bucketSize) + 1, count - 1);
+            double averageX = 0;
+            double averageY = 0;
+            int averaged = 0;
+            for (int i = end; i < nextEnd; i++) {
+                if ( !Double.isNaN(y[candidates[i]]) ) {
+                    averageX += x[candidates[i]];
+                    averageY += y[candidates[i]];
+                    averaged++;
+                }
+            }
+            if ( averaged > 0 ) {
+                averageX /= averaged;
+                averageY /= averaged;
+            } else {
+                averageX = x[candidates[count - 1]];
+                averageY = y[candidates[count - 1]];
+            }
+
+            int chosen = candidates[start];
+            double largest = -1;
+            for (int i = start; i < end; i++) {
+                int point = candidates[i];
+                double area = Math.abs((x[previous] - averageX) * (y[point] - y[previous]) -
+                        (x[previous] - x[point]) * (averageY - y[previous]));
+                if ( area > largest ) {
+                    largest = area;
+                    chosen = point;
+                }
+            }
+
+            selected[selectedCount++] = chosen;
+            previous = chosen;
+        }
+
+        selected[selectedCount++] = candidates[count - 1];
+        return selectedCount;
+    }
+
+    /* Adds an index in order unless it's there already */
+    private static int insert(int[] selected, int count, int index) {
+        int position = count;
+        while ( position > 0 && selected[position - 1] > index ) {
+            position--;
+        }
+        if ( position > 0 && selected[position - 1] == index ) {
+            return count;
+        }
+        System.arraycopy(selected, position, selected, position + 1, count - position);
+        selected[position] = index;
+        return count + 1;
+    }
+}
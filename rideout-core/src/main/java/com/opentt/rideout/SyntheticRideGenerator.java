@@ -0,0 +1,303 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+import java.util.Random;
+
+/**
+ * Generates a plausible ride, sample by sample, for load and soak testing.
+ *
+ * The road is a run of straights and constant radius bends. The bike brakes ahead of each
+ * bend to the speed its profile allows at a given lateral acceleration, leans into it by
+ * atan(v^2 / (g r)) and accelerates out. Touring rides stop now and then and pass through
+ * tunnels, where no fixes are generated. GPS position, altitude and speed and the
+ * accelerometer all carry noise. Position and altitude errors wander slowly, as a receiver's
+ * do, rather than jumping from one fix to the next.
+ *
+ * The same seed always generates the same ride. Nothing is allocated per sample.
+ */
+public class SyntheticRideGenerator {
+
+    private static final double GRAVITY = 9.80665;
+    private static final double EARTH_RADIUS = Geodesy.EARTH_RADIUS;
+
+    /** How a kind of ride is driven */
+    public static final class Profile {
+
+        /** A day on the open road: gentle bends, stops and tunnels */
+        public static final Profile TOURING = new Profile(27.0, 3.0, 2.5, 5.0,
+                60.0, 600.0, 200.0, 2000.0, 1800.0, 300.0, 3600.0, 90.0);
+
+        /** Laps of a circuit: tight bends, hard braking, no stops or tunnels */
+        public static final Profile TRACK = new Profile(70.0, 11.0, 6.0, 10.0,
+                30.0, 250.0, 100.0, 700.0, 0.0, 0.0, 0.0, 0.0);
+
+        final double cruiseSpeed;           // m/s
+        final double maxLateralAcceleration; // m/s^2
+        final double acceleration;          // m/s^2
+        final double braking;               // m/s^2
+        final double minRadius;             // m
+        final double maxRadius;             // m
+        final double minStraight;           // m
+        final double maxStraight;           // m
+        final double meanStopInterval;      // s, 0 for none
+        final double meanStopDuration;      // s
+        final double meanTunnelInterval;    // s, 0 for none
+        final double meanTunnelDuration;    // s
+
+        private Profile(double cruiseSpeed, double maxLateralAcceleration,
+                        double acceleration, double braking, double minRadius,
+                        double maxRadius, double minStraight, double maxStraight,
+                        double meanStopInterval, double meanStopDuration,
+                        double meanTunnelInterval, double meanTunnelDuration) {
+            this.cruiseSpeed = cruiseSpeed;
+            this.maxLateralAcceleration = maxLateralAcceleration;
+            this.acceleration = acceleration;
+            this.braking = braking;
+            this.minRadius = minRadius;
+            this.maxRadius = maxRadius;
+            this.minStraight = minStraight;
+            this.maxStraight = maxStraight;
+            this.meanStopInterval = meanStopInterval;
+            this.meanStopDuration = meanStopDuration;
+            this.meanTunnelInterval = meanTunnelInterval;
+            this.meanTunnelDuration = meanTunnelDuration;
+        }
+    }
+
+    /* Noise, one standard deviation */
+    private static final double POSITION_NOISE = 3.0; // m
+    private static final double POSITION_NOISE_TIME_CONSTANT = 30.0; // s
+    private static final double ALTITUDE_NOISE = 1.5; // m
+    private static final double SPEED_NOISE = 0.2; // m/s
+    private static final double ACCELERATION_NOISE = 0.3; // m/s^2
+    private static final double LEAN_NOISE = 1.0; // degrees
+
+    private final Profile profile;
+    private final long periodNanos;
+    private final long samples;
+    private final Random random;
+
+    /* Fraction of the position and altitude errors carried from one fix to the next */
+    private final double noiseCorrelation;
+    private double northError;
+    private double eastError;
+    private double altitudeError;
+
+    /* True state */
+    private final long startTime;
+    private long time;
+    private long elapsedNanos;
+    private double latitude;
+    private double longitude;
+    private double heading; // radians, clockwise from north
+    private double speed;
+    private double acceleration;
+    private double distance; // along the road, for the elevation profile
+
+    /* Current stretch of road: remaining length, and signed curvature, 0 on a straight. On a
+     * straight, the bend after it is already known so the bike can brake for it. */
+    private double segmentRemaining;
+    private double curvature;
+    private double nextCurvature;
+
+    /* Seconds until the next stop or tunnel, and until the current one ends */
+    private double untilStop;
+    private double stopRemaining;
+    private double untilTunnel;
+    private double tunnelRemaining;
+
+    private long generated;
+    private long samplesInTunnels;
+
+    /**
+     * @param sampleRate Fixes per second.
+     * @param samples Fixes to generate, not counting those lost in tunnels.
+     * @param startTime Epoch milliseconds of the first fix.
+     */
+    public SyntheticRideGenerator(Profile profile, double sampleRate, long samples,
+                                  long startTime, long seed) {
+        if ( sampleRate <= 0 || samples < 0 ) {
+            throw new IllegalArgumentException("Invalid rate " + sampleRate + " or length " +
+                    samples);
+        }
+
+        this.profile = profile;
+        this.periodNanos = Math.round(1e9 / sampleRate);
+        this.samples = samples;
+        this.random = new Random(seed);
+        this.noiseCorrelation = Math.exp(-1 / (sampleRate * POSITION_NOISE_TIME_CONSTANT));
+
+        this.startTime = startTime;
+        time = startTime;
+        latitude = 51.5 + random.nextDouble() * 2;
+        longitude = -2.0 + random.nextDouble() * 2;
+        heading = random.nextDouble() * 2 * Math.PI;
+
+        nextCurvature = randomCurvature();
+        nextSegment();
+        untilStop = nextInterval(profile.meanStopInterval);
+        untilTunnel = nextInterval(profile.meanTunnelInterval);
+    }
+
+    /**
+     * Generates the next fix into sample; rideID is left to the caller.
+     *
+     * @return false once the ride is over.
+     */
+    public boolean next(RideSample sample) {
+        if ( generated >= samples ) {
+            return false;
+        }
+
+        // Drive on through any tunnel, where there's no fix to report
+        do {
+            step();
+        } while ( tunnelRemaining > 0 );
+
+        double lean = Math.toDegrees(Math.atan(speed * speed * curvature / GRAVITY));
+        double lateral = speed * speed * curvature;
+
+        northError = wander(northError, POSITION_NOISE);
+        eastError = wander(eastError, POSITION_NOISE);
+        altitudeError = wander(altitudeError, ALTITUDE_NOISE);
+
+        sample.timeStamp = time;
+        sample.elapsedNanos = elapsedNanos;
+        sample.latitude = latitude + Math.toDegrees(northError / EARTH_RADIUS);
+        sample.longitude = longitude + Math.toDegrees(eastError /
+                (EARTH_RADIUS * Math.cos(Math.toRadians(latitude))));
+        sample.altitude = altitude() + altitudeError;
+        sample.speed = Math.max(0, speed + random.nextGaussian() * SPEED_NOISE);
+        sample.bearing = (Math.toDegrees(heading) % 360 + 360) % 360;
+        sample.accelerationX = lateral + random.nextGaussian() * ACCELERATION_NOISE;
+        sample.accelerationY = acceleration + random.nextGaussian() * ACCELERATION_NOISE;
+        sample.accelerationZ = random.nextGaussian() * ACCELERATION_NOISE;
+        sample.leanAngle = lean + random.nextGaussian() * LEAN_NOISE;
+
+        generated++;
+        return true;
+    }
+
+    /* Advances the true state by one sample period */
+    private void step() {
+        double dt = periodNanos / 1e9;
+
+        elapsedNanos += periodNanos;
+        time = startTime + elapsedNanos / 1000000;
+
+        if ( tunnelRemaining > 0 ) {
+            tunnelRemaining -= dt;
+            samplesInTunnels++;
+        } else if ( (untilTunnel -= dt) <= 0 && profile.meanTunnelInterval > 0 ) {
+            tunnelRemaining = nextInterval(profile.meanTunnelDuration);
+            untilTunnel = nextInterval(profile.meanTunnelInterval);
+        }
+
+        double target;
+        if ( stopRemaining > 0 ) {
+            stopRemaining -= dt;
+            target = 0;
+        } else {
+            if ( (untilStop -= dt) <= 0 && profile.meanStopInterval > 0 ) {
+                stopRemaining = nextInterval(profile.meanStopDuration);
+                untilStop = nextInterval(profile.meanStopInterval);
+            }
+            target = targetSpeed();
+        }
+
+        double previous = speed;
+        if ( speed < target ) {
+            speed = Math.min(target, speed + profile.acceleration * dt);
+        } else {
+            speed = Math.max(target, speed - profile.braking * dt);
+        }
+        acceleration = (speed - previous) / dt;
+
+        double travelled = speed * dt;
+        heading += curvature * travelled;
+        latitude += Math.toDegrees(travelled * Math.cos(heading) / EARTH_RADIUS);
+        longitude += Math.toDegrees(travelled * Math.sin(heading) /
+                (EARTH_RADIUS * Math.cos(Math.toRadians(latitude))));
+        distance += travelled;
+
+        if ( (segmentRemaining -= travelled) <= 0 ) {
+            nextSegment();
+        }
+    }
+
+    /* Cruise on a straight, slowing in time for the next bend; in a bend, what grip allows */
+    private double targetSpeed() {
+        if ( curvature != 0 ) {
+            return Math.min(profile.cruiseSpeed, cornerSpeed(curvature));
+        }
+
+        double entry = cornerSpeed(nextCurvature);
+        return Math.min(profile.cruiseSpeed,
+                Math.sqrt(entry * entry + 2 * profile.braking * segmentRemaining));
+    }
+
+    private double cornerSpeed(double curvature) {
+        return Math.sqrt(profile.maxLateralAcceleration / Math.abs(curvature));
+    }
+
+    /* Alternates straights and bends of random length, radius and direction */
+    private void nextSegment() {
+        if ( curvature == 0 ) {
+            curvature = nextCurvature;
+            // Between an eighth and three quarters of a turn
+            segmentRemaining = uniform(Math.PI / 4, 3 * Math.PI / 2) / Math.abs(curvature);
+        } else {
+            curvature = 0;
+            nextCurvature = randomCurvature();
+            segmentRemaining = uniform(profile.minStraight, profile.maxStraight);
+        }
+    }
+
+    private double randomCurvature() {
+        return (random.nextBoolean() ? 1 : -1) / uniform(profile.minRadius, profile.maxRadius);
+    }
+
+    /* Long climbs and descents with rolling hills on top */
+    private double altitude() {
+        return 120 + 40 * Math.sin(distance / 5000) + 8 * Math.sin(distance / 900 + 1);
+    }
+
+    /* First order Gauss-Markov step, keeping the error's standard deviation at sigma */
+    private double wander(double error, double sigma) {
+        return error * noiseCorrelation + random.nextGaussian() * sigma *
+                Math.sqrt(1 - noiseCorrelation * noiseCorrelation);
+    }
+
+    private double uniform(double min, double max) {
+        return min + random.nextDouble() * (max - min);
+    }
+
+    /* Exponentially distributed, or forever for a mean of 0 */
+    private double nextInterval(double mean) {
+        return mean > 0 ? -mean * Math.log(1 - random.nextDouble()) : Double.MAX_VALUE;
+    }
+
+    public long getSamplesGenerated() {
+        return generated;
+    }
+
+    /** Sample periods spent in tunnels, without a fix */
+    public long getSamplesInTunnels() {
+        return samplesInTunnels;
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+/**
+ * Distance along a track and time since its first fix, carried from one fix to the next.
+ *
+ * Each step is the great-circle distance, summed exactly as {@link Geodesy#haversine} sums it,
+ * so a ride's last distance is its summary's. The cosine of a fix's latitude is worked out
+ * once and used for the steps either side of it, and a fix that hasn't moved costs nothing.
+ */
+public final class TrackOdometer {
+
+    private boolean started;
+    private long startTime;
+
+    private double lastLatitude;
+    private double lastLongitude;
+    private double lastPhi;
+    private double lastCosPhi;
+
+    private double distance;
+    private long elapsed;
+
+    public void reset() {
+        started = false;
+        distance = 0.0;
+        elapsed = 0;
+    }
+
+    /**
+     * Carries on from a fix already measured, rather than from the start of the track.
+     *
+     * @param distance Metres along the track at that fix.
+     * @param elapsed Milliseconds from the first fix to that fix.
+     */
+    public void resume(long time, double latitude, double longitude, double distance,
+                       long elapsed) {
+        started = true;
+        startTime = time - elapsed;
+        this.distance = distance;
+        this.elapsed = elapsed;
+        moveTo(latitude, longitude);
+    }
+
+    /**
+     * Adds one fix.
+     *
+     * @param time Epoch milliseconds.
+     * @param latitude Degrees.
+     * @param longitude Degrees.
+     */
+    public void add(long time, double latitude, double longitude) {
+        if ( !started ) {
+            started = true;
+            startTime = time;
+            moveTo(latitude, longitude);
+        } else if ( latitude != lastLatitude || longitude != lastLongitude ) {
+            double phi = Math.toRadians(latitude);
+            double cosPhi = Math.cos(phi);
+            double sinDPhi = Math.sin((phi - lastPhi) / 2.0);
+            double sinDLambda = Math.sin(Math.toRadians(longitude - lastLongitude) / 2.0);
+
+            double a = sinDPhi * sinDPhi + lastCosPhi * cosPhi * sinDLambda * sinDLambda;
+            distance += 2.0 * Geodesy.EARTH_RADIUS * Math.asin(Math.min(1.0, Math.sqrt(a)));
+
+            lastLatitude = latitude;
+            lastLongitude = longitude;
+            lastPhi = phi;
+            lastCosPhi = cosPhi;
+        }
+        elapsed = time - startTime;
+    }
+
+    /**
+     * Adds the first count fixes of the arrays and writes where the track had got to at each.
+     *
+     * @param distances Metres along the track, at least count long.
+     * @param elapsedTimes Milliseconds from the first fix, at least count long.
+     */
+    public void addAll(long[] time, double[] latitude, double[] longitude, int count,
+                       double[] distances, long[] elapsedTimes) {
+        for (int i = 0; i < count; i++) {
+            add(time[i], latitude[i], longitude[i]);
+            distances[i] = distance;
+            elapsedTimes[i] = elapsed;
+        }
+    }
+
+    public boolean isStarted() {
+        return started;
+    }
+
+    /** Metres along the track to the last fix */
+    public double getDistance() {
+        return distance;
+    }
+
+    /** Milliseconds from the first fix to the last */
+    public long getElapsed() {
+        return elapsed;
+    }
+
+    private void moveTo(double latitude, double longitude) {
+        lastLatitude = latitude;
+        lastLongitude = longitude;
+        lastPhi = Math.toRadians(latitude);
+        lastCosPhi = Math.cos(lastPhi);
+    }
+}
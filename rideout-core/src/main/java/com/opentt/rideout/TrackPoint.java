@@ -0,0 +1,76 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+/**
+ * One fix of a recorded track, read by a {@link TrackReader}. Plain Java so that tracks can be
+ * replayed off the device; optional values are NaN when the track doesn't have them.
+ */
+public class TrackPoint {
+
+    /** Value of {@link #elapsedNanos} for tracks that only carry wall clock time */
+    public static final long NO_ELAPSED_TIME = -1;
+
+    public long time; // epoch milliseconds
+    public long elapsedNanos; // sensor clock, or NO_ELAPSED_TIME
+    public double latitude;
+    public double longitude;
+    public double altitude;
+    public double speed; // metres per second
+    public double bearing; // degrees
+
+    public TrackPoint() {
+        clear();
+    }
+
+    public void clear() {
+        time = 0;
+        elapsedNanos = NO_ELAPSED_TIME;
+        latitude = 0;
+        longitude = 0;
+        altitude = Double.NaN;
+        speed = Double.NaN;
+        bearing = Double.NaN;
+    }
+
+    /**
+     * Reads the values a stored ride keeps for a missing altitude, speed or bearing as NaN. The
+     * database stores a missing altitude as {@link RideSummaryAccumulator#MISSING}, and a
+     * missing speed or bearing as a negative number.
+     */
+    public void clearStoredMissing() {
+        if ( altitude == RideSummaryAccumulator.MISSING ) {
+            altitude = Double.NaN;
+        }
+        if ( speed < 0 ) {
+            speed = Double.NaN;
+        }
+        if ( bearing < 0 ) {
+            bearing = Double.NaN;
+        }
+    }
+
+    public void set(TrackPoint other) {
+        time = other.time;
+        elapsedNanos = other.elapsedNanos;
+        latitude = other.latitude;
+        longitude = other.longitude;
+        altitude = other.altitude;
+        speed = other.speed;
+        bearing = other.bearing;
+    }
+}
@@ -0,0 +1,152 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A track drawn at several levels of detail, so a map needn't be handed every fix of a ride to
+ * show it. Each level is the one below simplified by {@link TrackSimplifier} at a coarser
+ * tolerance, and the map draws the coarsest level whose error is still under a pixel at its
+ * zoom.
+ *
+ * Levels are stored as delta-encoded varints of degrees to {@link #SCALE}, a few bytes a
+ * point, and decoded into interleaved latitude and longitude.
+ */
+public final class TrackPyramid {
+
+    /* Tolerance of each level in metres, finest first; a quarter of the next so a level is a
+     * small fraction of the one below */
+    public static final double[] TOLERANCES = {0.5, 2, 8, 32, 128, 512};
+
+    /* Degrees to a tenth of a microdegree, a centimetre, as ColumnarRide keeps them */
+    public static final double SCALE = 1e7;
+
+    /* Ground metres a pixel covers at the equator at zoom 0, on a 256 pixel Mercator tile */
+    public static final double EQUATOR_METRES_PER_PIXEL = 156543.03392;
+
+    private TrackPyramid() {}
+
+    /**
+     * Simplifies a track into one level for each of {@link #TOLERANCES}. As each is made from
+     * the level below, a level's error is at most the sum of the tolerances up to it, a third
+     * over its own.
+     *
+     * @return The encoded levels, finest first.
+     */
+    public static byte[][] build(double[] latitude, double[] longitude, int count) {
+        byte[][] levels = new byte[TOLERANCES.length][];
+        double[] lat = new double[count];
+        double[] lon = new double[count];
+        System.arraycopy(latitude, 0, lat, 0, count);
+        System.arraycopy(longitude, 0, lon, 0, count);
+
+        boolean[] keep = new boolean[count];
+        for (int level = 0; level < TOLERANCES.length; level++) {
+            Arrays.fill(keep, 0, count, false);
+            TrackSimplifier.simplify(lat, lon, count, TOLERANCES[level], keep);
+
+            // Kept fixes move to the front, to be simplified again for the next level
+            int kept = 0;
+            for (int i = 0; i < count; i++) {
+                if ( keep[i] ) {
+                    lat[kept] = lat[i];
+                    lon[kept] = lon[i];
+                    kept++;
+                }
+            }
+            count = kept;
+            levels[level] = encode(lat, lon, count);
+        }
+        return levels;
+    }
+
+    /** Packs the first count points as a varint count, then zig-zag varint deltas */
+    public static byte[] encode(double[] latitude, double[] longitude, int count) {
+        byte[] bytes = new byte[(1 + 2 * count) * ColumnarRide.MAX_VARINT_BYTES];
+        int length = ColumnarRide.writeVarint(bytes, 0, count);
+
+        long previousLat = 0;
+        long previousLon = 0;
+        for (int i = 0; i < count; i++) {
+            long lat = Math.round(latitude[i] * SCALE);
+            long lon = Math.round(longitude[i] * SCALE);
+            length = ColumnarRide.writeVarint(bytes, length,
+                    ColumnarRide.zigZag(lat - previousLat));
+            length = ColumnarRide.writeVarint(bytes, length,
+                    ColumnarRide.zigZag(lon - previousLon));
+            previousLat = lat;
+            previousLon = lon;
+        }
+        return Arrays.copyOf(bytes, length);
+    }
+
+    /**
+     * Unpacks a level written by {@link #encode}.
+     *
+     * @return Latitude and longitude of each point in turn.
+     * @throws IllegalArgumentException If the level is truncated.
+     */
+    public static double[] decode(byte[] level) {
+        ByteBuffer buffer = ByteBuffer.wrap(level);
+        int[] position = {0};
+        try {
+            int count = (int) ColumnarRide.readVarint(buffer, position);
+            double[] points = new double[count * 2];
+
+            long lat = 0;
+            long lon = 0;
+            for (int i = 0; i < count; i++) {
+                lat += ColumnarRide.unZigZag(ColumnarRide.readVarint(buffer, position));
+                lon += ColumnarRide.unZigZag(ColumnarRide.readVarint(buffer, position));
+                points[2 * i] = lat / SCALE;
+                points[2 * i + 1] = lon / SCALE;
+            }
+            return points;
+        } catch (IndexOutOfBoundsException ex) {
+            throw new IllegalArgumentException("Level is truncated at " + position[0], ex);
+        }
+    }
+
+    /** The number of points in an encoded level, without decoding it */
+    public static int countPoints(byte[] level) {
+        try {
+            return (int) ColumnarRide.readVarint(ByteBuffer.wrap(level), new int[]{0});
+        } catch (IndexOutOfBoundsException ex) {
+            throw new IllegalArgumentException("Level is empty", ex);
+        }
+    }
+
+    /** Ground metres a pixel covers at a zoom, shrinking with latitude as Mercator does */
+    public static double metresPerPixel(double zoom, double latitude) {
+        return EQUATOR_METRES_PER_PIXEL * Math.cos(Math.toRadians(latitude)) / Math.pow(2, zoom);
+    }
+
+    /**
+     * The coarsest level whose tolerance is under a pixel at a zoom, or the finest if even that
+     * is coarser.
+     */
+    public static int levelForZoom(double zoom, double latitude) {
+        double pixel = metresPerPixel(zoom, latitude);
+        int level = 0;
+        while ( level + 1 < TOLERANCES.length && TOLERANCES[level + 1] <= pixel ) {
+            level++;
+        }
+        return level;
+    }
+}
@@ -0,0 +1,187 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Locale;
+
+/**
+ * Plays a recorded track, and optionally a sensor log of the same ride, back in time order
+ * at real time, N times real time or as fast as the {@link Output} takes it.
+ *
+ * Fixes and readings are interleaved by their sensor clock time. A track that only carries
+ * wall clock time is put on the sensor clock from its first fix, lined up with the start of
+ * the sensor log.
+ *
+ * Plain Java, so a ride can be pushed through the ingest path on a JVM without a device. On
+ * the device, ReplaySource feeds it to the acquisition service.
+ */
+public class TrackReplay {
+
+    /** Receives the ride on the replay thread. Either method may block to hold it back. */
+    public interface Output {
+        /** @param point Reused for the next fix once this returns. */
+        void onFix(TrackPoint point) throws InterruptedException;
+
+        void onReading(int sensorType, long timestampNanos, float x, float y, float z)
+                throws InterruptedException;
+    }
+
+    /** Replay speed that doesn't wait between events */
+    public static final double AS_FAST_AS_POSSIBLE = 0;
+
+    private final TrackReader track;
+    private final ImuLogReader imu;
+    private final double speed;
+    private final Output output;
+
+    private volatile boolean cancelled;
+
+    /* Sensor clock time of the last event handed over */
+    private volatile long positionNanos;
+
+    private volatile long fixesReplayed;
+    private volatile long readingsReplayed;
+    private volatile long elapsedWallNanos;
+
+    /**
+     * @param imu Sensor log, or null.
+     * @param speed Multiple of real time, or {@link #AS_FAST_AS_POSSIBLE}.
+     */
+    public TrackReplay(TrackReader track, ImuLogReader imu, double speed, Output output) {
+        if ( speed < 0 ) {
+            throw new IllegalArgumentException("Invalid replay speed " + speed);
+        }
+
+        this.track = track;
+        this.imu = imu;
+        this.speed = speed;
+        this.output = output;
+    }
+
+    /**
+     * Opens an NMEA or CSV track by its file extension. GPX needs an XML pull parser, which
+     * Android provides; ReplaySource opens those.
+     */
+    public static TrackReader openTrack(File file) throws IOException {
+        String name = file.getName().toLowerCase(Locale.US);
+
+        if ( name.endsWith(".nmea") || name.endsWith(".nma") ) {
+            return new NmeaTrackReader(open(file));
+        } else if ( name.endsWith(".csv") ) {
+            return new CsvTrackReader(open(file));
+        }
+        throw new IOException("Unknown track format: " + file);
+    }
+
+    public static ImuLogReader openImuLog(File file) throws IOException {
+        return new ImuLogReader(open(file));
+    }
+
+    public static Reader open(File file) throws IOException {
+        return new InputStreamReader(new FileInputStream(file), "UTF-8");
+    }
+
+    /** Replays the whole ride on the calling thread, or until {@link #cancel()} */
+    public void run() throws IOException, InterruptedException {
+        TrackPoint point = new TrackPoint();
+        boolean hasFix = track.next(point);
+        boolean hasReading = imu != null && imu.next();
+
+        long origin = hasReading ? imu.getTimestampNanos() : 0;
+        long firstTime = point.time;
+
+        long wallStart = System.nanoTime();
+        long recordedStart = 0;
+        boolean started = false;
+
+        while ( (hasFix || hasReading) && !cancelled ) {
+            if ( hasFix && point.elapsedNanos == TrackPoint.NO_ELAPSED_TIME ) {
+                point.elapsedNanos = origin + (point.time - firstTime) * 1000000L;
+            }
+
+            boolean fix = hasFix && (!hasReading || point.elapsedNanos <= imu.getTimestampNanos());
+            long nanos = fix ? point.elapsedNanos : imu.getTimestampNanos();
+
+            if ( !started ) {
+                recordedStart = nanos;
+                started = true;
+            }
+            pace(wallStart, nanos - recordedStart);
+
+            if ( fix ) {
+                output.onFix(point);
+                positionNanos = nanos;
+                fixesReplayed++;
+                hasFix = track.next(point);
+            } else {
+                output.onReading(imu.getSensorType(), nanos, imu.getX(), imu.getY(), imu.getZ());
+                positionNanos = nanos;
+                readingsReplayed++;
+                hasReading = imu.next();
+            }
+        }
+
+        elapsedWallNanos = System.nanoTime() - wallStart;
+    }
+
+    /* Sleeps until recordedNanos into the ride, scaled by the replay speed */
+    private void pace(long wallStart, long recordedNanos) throws InterruptedException {
+        if ( speed == AS_FAST_AS_POSSIBLE ) {
+            return;
+        }
+
+        long wait = wallStart + (long) (recordedNanos / speed) - System.nanoTime();
+        if ( wait > 0 ) {
+            Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+        }
+    }
+
+    /** Stops the replay after the current event. Any thread. */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public void close() throws IOException {
+        track.close();
+        if ( imu != null ) {
+            imu.close();
+        }
+    }
+
+    /** Sensor clock time the replay has reached */
+    public long getPositionNanos() {
+        return positionNanos;
+    }
+
+    public long getFixesReplayed() {
+        return fixesReplayed;
+    }
+
+    public long getReadingsReplayed() {
+        return readingsReplayed;
+    }
+
+    /** Wall time run() took, once it has returned */
+    public long getElapsedWallNanos() {
+        return elapsedWallNanos;
+    }
+}
@@ -0,0 +1,164 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+/**
+ * Picks the fixes of a track worth keeping once its full detail is no longer needed. The path
+ * is simplified by Douglas-Peucker, which keeps every fix that strays from the line between
+ * its kept neighbours by more than a tolerance, and the peaks of a channel such as speed or
+ * lean angle can be kept on top so the ride's graphs keep their highs.
+ *
+ * Both mark the fixes to keep in a flag array, so they can be combined.
+ */
+public final class TrackSimplifier {
+
+    private TrackSimplifier() {}
+
+    /**
+     * Marks the fixes that keep the path within tolerance of the original, always the first and
+     * last. Iterative, so the depth of a long ride can't overflow the stack.
+     *
+     * @param tolerance In metres.
+     * @param keep Set for each fix kept; flags already set are left set.
+     * @return The number of fixes newly marked.
+     */
+    public static int simplify(double[] latitude, double[] longitude, int count,
+                               double tolerance, boolean[] keep) {
+        if ( count <= 0 ) {
+            return 0;
+        }
+
+        int marked = mark(keep, 0) + mark(keep, count - 1);
+        if ( count <= 2 ) {
+            return marked;
+        }
+
+        // Metres on a plane tangent at the start; a ride is small enough for it to be flat
+        double metresPerDegree = Math.toRadians(Geodesy.EARTH_RADIUS);
+        double lonScale = metresPerDegree * Math.cos(Math.toRadians(latitude[0]));
+        double toleranceSquared = tolerance * tolerance;
+
+        // Spans still to split, pushed as first and last index
+        int[] stack = new int[64];
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = count - 1;
+
+        while ( top > 0 ) {
+            int last = stack[--top];
+            int first = stack[--top];
+
+            double x0 = longitude[first] * lonScale;
+            double y0 = latitude[first] * metresPerDegree;
+            double dx = longitude[last] * lonScale - x0;
+            double dy = latitude[last] * metresPerDegree - y0;
+            double lengthSquared = dx * dx + dy * dy;
+
+            int farthest = -1;
+            double farthestSquared = toleranceSquared;
+            for (int i = first + 1; i < last; i++) {
+                double px = longitude[i] * lonScale - x0;
+                double py = latitude[i] * metresPerDegree - y0;
+
+                // Distance to the segment, or to its start if it has no length
+                double t = lengthSquared > 0 ? (px * dx + py * dy) / lengthSquared : 0;
+                t = Math.max(0, Math.min(1, t));
+                double ex = px - t * dx;
+                double ey = py - t * dy;
+                double distanceSquared = ex * ex + ey * ey;
+
+                if ( distanceSquared > farthestSquared ) {
+                    farthestSquared = distanceSquared;
+                    farthest = i;
+                }
+            }
+
+            if ( farthest < 0 ) {
+                continue;
+            }
+            marked += mark(keep, farthest);
+
+            if ( top + 4 > stack.length ) {
+                int[] grown = new int[stack.length * 2];
+                System.arraycopy(stack, 0, grown, 0, top);
+                stack = grown;
+            }
+            if ( farthest - first > 1 ) {
+                stack[top++] = first;
+                stack[top++] = farthest;
+            }
+            if ( last - farthest > 1 ) {
+                stack[top++] = farthest;
+                stack[top++] = last;
+            }
+        }
+
+        return marked;
+    }
+
+    /**
+     * Marks the fix with the highest value in each window of time, so that the ride's peak and
+     * the shape of the channel around it survive. NaN values are never peaks.
+     *
+     * @param time Epoch milliseconds, ascending.
+     * @param windowMillis Length of each window from the ride's first fix.
+     * @param absolute Whether to compare magnitudes, as for a lean either way.
+     * @param keep Set for each fix kept; flags already set are left set.
+     * @return The number of fixes newly marked.
+     */
+    public static int keepPeaks(long[] time, double[] values, int count, long windowMillis,
+                                boolean absolute, boolean[] keep) {
+        if ( windowMillis <= 0 ) {
+            throw new IllegalArgumentException("Window must be positive: " + windowMillis);
+        }
+
+        int marked = 0;
+        int peak = -1;
+        double peakValue = 0;
+        long windowEnd = count > 0 ? time[0] + windowMillis : 0;
+
+        for (int i = 0; i < count; i++) {
+            if ( time[i] >= windowEnd ) {
+                if ( peak >= 0 ) {
+                    marked += mark(keep, peak);
+                }
+                peak = -1;
+                // Windows without fixes are skipped rather than stepped through
+                windowEnd += ((time[i] - windowEnd) / windowMillis + 1) * windowMillis;
+            }
+
+            double value = absolute ? Math.abs(values[i]) : values[i];
+            if ( !Double.isNaN(value) && (peak < 0 || value > peakValue) ) {
+                peak = i;
+                peakValue = value;
+            }
+        }
+
+        if ( peak >= 0 ) {
+            marked += mark(keep, peak);
+        }
+        return marked;
+    }
+
+    private static int mark(boolean[] keep, int index) {
+        if ( keep[index] ) {
+            return 0;
+        }
+        keep[index] = true;
+        return 1;
+    }
+}
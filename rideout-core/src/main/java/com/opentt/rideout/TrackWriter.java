@@ -0,0 +1,32 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Writes the fixes of a track, in time order, one at a time. Closing the writer finishes the
+ * file; a writer that isn't closed leaves it incomplete.
+ *
+ * @see TrackReader
+ */
+public interface TrackWriter extends Closeable {
+
+    /** Writes a fix. Missing values are NaN, as a TrackReader leaves them. */
+    void write(TrackPoint point) throws IOException;
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+public class ColumnarRideTest extends TestCase {
+
+    /* Several blocks and a part block */
+    private static final int FIXES = 1000;
+
+    private static final long START_TIME = 1430000000000L;
+
+    private final RideSample[] samples = new RideSample[FIXES];
+    private byte[] encoded;
+    private ColumnarRideReader reader;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        SyntheticRideGenerator generator = new SyntheticRideGenerator(
+                SyntheticRideGenerator.Profile.TRACK, 10.0, FIXES, START_TIME, 1);
+        ColumnarRideWriter writer = new ColumnarRideWriter(START_TIME);
+
+        for (int i = 0; i < FIXES; i++) {
+            samples[i] = new RideSample();
+            assertTrue(generator.next(samples[i]));
+            if ( i % 10 == 0 ) {
+                samples[i].speed = RideSummaryAccumulator.MISSING;
+            }
+            if ( i % 7 == 0 ) {
+                samples[i].altitude = Double.NaN; // Stored as null
+            }
+            writer.add(samples[i]);
+        }
+
+        for (int i = 0; i < FIXES; i++) {
+            writer.imu().putLong(ColumnarRide.IMU_ELAPSED_NANOS, i * 5000000L);
+            writer.imu().putLong(ColumnarRide.IMU_SENSOR_TYPE, 4);
+            writer.imu().putDouble(ColumnarRide.IMU_X, 0.0123);
+            writer.imu().putDouble(ColumnarRide.IMU_Z, -9.81);
+            writer.imu().endRow();
+        }
+        writer.setEndTime(START_TIME + FIXES * 100L);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long bytes = writer.writeTo(out);
+        assertEquals(out.size(), bytes);
+        encoded = out.toByteArray();
+        reader = new ColumnarRideReader(ByteBuffer.wrap(encoded));
+    }
+
+    public void testReadsInOrder() {
+        assertEquals(START_TIME, reader.getStartTime());
+        assertEquals(START_TIME + FIXES * 100L, reader.getEndTime());
+        assertEquals(FIXES, reader.rows().getCount());
+
+        TrackPoint point = new TrackPoint();
+        for (int i = 0; i < FIXES; i++) {
+            reader.read(i, point);
+            assertSample(samples[i], point);
+        }
+    }
+
+    public void testReadsAnyRow() {
+        TrackPoint point = new TrackPoint();
+        Random random = new Random(1);
+
+        for (int i = FIXES - 1; i >= 0; i--) {
+            reader.read(i, point);
+            assertSample(samples[i], point);
+        }
+        for (int i = 0; i < FIXES; i++) {
+            int row = random.nextInt(FIXES);
+            reader.read(row, point);
+            assertSample(samples[row], point);
+        }
+    }
+
+    public void testImuChannels() {
+        ColumnarRideReader.Table imu = reader.imu();
+
+        assertEquals(FIXES, imu.getCount());
+        assertEquals(999 * 5000000L, imu.getLong(999, ColumnarRide.IMU_ELAPSED_NANOS));
+        assertEquals(4, imu.getLong(500, ColumnarRide.IMU_SENSOR_TYPE));
+        assertEquals(0.012, imu.getDouble(3, ColumnarRide.IMU_X), 1e-9);
+        assertTrue(imu.isNull(3, ColumnarRide.IMU_Y));
+        assertTrue(Double.isNaN(imu.getDouble(3, ColumnarRide.IMU_Y)));
+        assertEquals(-9.81, imu.getDouble(3, ColumnarRide.IMU_Z), 1e-9);
+    }
+
+    public void testRejectsTruncatedRide() {
+        // As a copy cut short leaves it: every header whole, the last block not
+        ByteBuffer truncated = ByteBuffer.wrap(Arrays.copyOf(encoded, encoded.length - 5));
+
+        try {
+            new ColumnarRideReader(truncated);
+            fail("Read a truncated ride");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().startsWith("Truncated"));
+        }
+    }
+
+    /* Equal to within half a quantum of each column */
+    private static void assertSample(RideSample sample, TrackPoint point) {
+        assertEquals(sample.timeStamp, point.time);
+        assertEquals(sample.elapsedNanos, point.elapsedNanos);
+        assertEquals(sample.latitude, point.latitude, 0.5e-7);
+        assertEquals(sample.longitude, point.longitude, 0.5e-7);
+        assertEquals(sample.bearing, point.bearing, 0.05);
+
+        if ( Double.isNaN(sample.altitude) ) {
+            assertTrue(Double.isNaN(point.altitude));
+        } else {
+            assertEquals(sample.altitude, point.altitude, 0.05);
+        }
+
+        if ( sample.speed == RideSummaryAccumulator.MISSING ) {
+            assertTrue(Double.isNaN(point.speed));
+        } else {
+            assertEquals(sample.speed, point.speed, 0.005);
+        }
+    }
+}
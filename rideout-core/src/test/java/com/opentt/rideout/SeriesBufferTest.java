@@ -0,0 +1,76 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+import junit.framework.TestCase;
+
+public class SeriesBufferTest extends TestCase {
+
+    public void testFindsRangeBySearch() {
+        SeriesBuffer buffer = new SeriesBuffer(2);
+        for (int i = 0; i < 100; i++) {
+            buffer.append(i * 10, i);
+        }
+
+        assertEquals(100, buffer.size());
+        assertEquals(0, buffer.lowerBound(-5));
+        assertEquals(3, buffer.lowerBound(30));
+        assertEquals(4, buffer.lowerBound(31));
+        assertEquals(100, buffer.lowerBound(5000));
+
+        assertEquals(3, buffer.nearest(34));
+        assertEquals(4, buffer.nearest(36));
+        assertEquals(99, buffer.nearest(5000));
+    }
+
+    public void testRejectsXGoingBack() {
+        SeriesBuffer buffer = new SeriesBuffer(4);
+        buffer.append(1, 1);
+        try {
+            buffer.append(0, 1);
+            fail("Appended a point before the last");
+        } catch (IllegalArgumentException expected) {
+        }
+
+        try {
+            new SeriesBuffer(new double[]{0, 2, 1}, new double[]{0, 0, 0}, 3);
+            fail("Wrapped a series going back");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testProjectsSegmentsAndGaps() {
+        SeriesBuffer buffer = new SeriesBuffer(new double[]{0, 1, 2, 3},
+                new double[]{0, 10, Double.NaN, 5}, 4);
+        assertEquals(0.0, buffer.getLowestY());
+        assertEquals(10.0, buffer.getHighestY());
+
+        float[] lines = new float[SeriesBuffer.lineLength(0, 4)];
+        int written = buffer.project(0, 4, 0, 3, 0, 10, 100, 50, 300, 100, lines);
+
+        // Only the first segment; the NaN leaves a gap either side
+        assertEquals(4, written);
+        assertEquals(100f, lines[0]);
+        assertEquals(150f, lines[1]);
+        assertEquals(200f, lines[2]);
+        assertEquals(50f, lines[3]);
+
+        buffer.clear();
+        assertEquals(0, buffer.size());
+        assertEquals(0.0, buffer.getHighestY());
+    }
+}
@@ -0,0 +1,131 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+public class SeriesDecimatorTest extends TestCase {
+
+    /* An hour at 10 Hz */
+    private static final int FIXES = 36000;
+    private static final int BUDGET = 1000;
+
+    private static final long START_TIME = 1430000000000L;
+
+    private final double[] distance = new double[FIXES];
+    private final double[] leanAngle = new double[FIXES];
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        SyntheticRideGenerator generator = new SyntheticRideGenerator(
+                SyntheticRideGenerator.Profile.TOURING, 10.0, FIXES, START_TIME, 1);
+        RideSample sample = new RideSample();
+        double lat = 0;
+        double lon = 0;
+        for (int i = 0; i < FIXES; i++) {
+            assertTrue(generator.next(sample));
+            distance[i] = i == 0 ? 0 : distance[i - 1] +
+                    Geodesy.haversine(lat, lon, sample.latitude, sample.longitude);
+            lat = sample.latitude;
+            lon = sample.longitude;
+            leanAngle[i] = sample.leanAngle;
+        }
+    }
+
+    public void testPyramidMatchesScan() {
+        Random random = new Random(7);
+        double[] values = new double[1000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i % 97 == 0 ? Double.NaN : random.nextGaussian();
+        }
+        MinMaxPyramid pyramid = new MinMaxPyramid(values, values.length);
+
+        for (int run = 0; run < 2000; run++) {
+            int from = random.nextInt(values.length);
+            int to = from + 1 + random.nextInt(values.length - from);
+
+            int min = -1;
+            int max = -1;
+            for (int i = from; i < to; i++) {
+                if ( !Double.isNaN(values[i]) ) {
+                    if ( min < 0 || values[i] < values[min] ) {
+                        min = i;
+                    }
+                    if ( max < 0 || values[i] > values[max] ) {
+                        max = i;
+                    }
+                }
+            }
+            if ( min < 0 ) {
+                continue;
+            }
+            assertEquals(values[min], values[pyramid.indexOfMin(from, to)]);
+            assertEquals(values[max], values[pyramid.indexOfMax(from, to)]);
+        }
+    }
+
+    public void testKeepsEndsAndPeaksWithinBudget() {
+        MinMaxPyramid pyramid = new MinMaxPyramid(leanAngle, FIXES);
+        int[] selected = new int[BUDGET + 2];
+
+        int count = SeriesDecimator.decimate(distance, leanAngle, pyramid, 0, FIXES, BUDGET,
+                selected);
+
+        assertTrue("Selected " + count, count >= BUDGET - 2 && count <= BUDGET + 2);
+        assertEquals(0, selected[0]);
+        assertEquals(FIXES - 1, selected[count - 1]);
+        for (int i = 1; i < count; i++) {
+            assertTrue(selected[i] > selected[i - 1]);
+        }
+        assertTrue(contains(selected, count, pyramid.indexOfMax(0, FIXES)));
+        assertTrue(contains(selected, count, pyramid.indexOfMin(0, FIXES)));
+    }
+
+    public void testRedecimatesVisibleRange() {
+        MinMaxPyramid pyramid = new MinMaxPyramid(leanAngle, FIXES);
+        int[] selected = new int[BUDGET + 2];
+
+        // A zoomed in window still has its own peaks
+        int from = 12000;
+        int to = 15000;
+        int count = SeriesDecimator.decimate(distance, leanAngle, pyramid, from, to, BUDGET,
+                selected);
+
+        assertEquals(from, selected[0]);
+        assertEquals(to - 1, selected[count - 1]);
+        assertTrue(contains(selected, count, pyramid.indexOfMax(from, to)));
+
+        // Fewer points than the budget are all kept
+        assertEquals(500, SeriesDecimator.decimate(distance, leanAngle, pyramid, 100, 600,
+                BUDGET, selected));
+        assertEquals(100, selected[0]);
+        assertEquals(599, selected[499]);
+    }
+
+    private static boolean contains(int[] selected, int count, int index) {
+        for (int i = 0; i < count; i++) {
+            if ( selected[i] == index ) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+import junit.framework.TestCase;
+
+public class TrackOdometerTest extends TestCase {
+
+    /* Ten minutes at 10 Hz */
+    private static final int FIXES = 6000;
+
+    private static final long START_TIME = 1430000000000L;
+
+    private final long[] time = new long[FIXES];
+    private final double[] latitude = new double[FIXES];
+    private final double[] longitude = new double[FIXES];
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        SyntheticRideGenerator generator = new SyntheticRideGenerator(
+                SyntheticRideGenerator.Profile.TOURING, 10.0, FIXES, START_TIME, 1);
+        RideSample sample = new RideSample();
+        for (int i = 0; i < FIXES; i++) {
+            assertTrue(generator.next(sample));
+            time[i] = sample.timeStamp;
+            latitude[i] = sample.latitude;
+            longitude[i] = sample.longitude;
+        }
+    }
+
+    public void testMatchesSummaryDistance() {
+        RideSummaryAccumulator summary = new RideSummaryAccumulator();
+        TrackOdometer odometer = new TrackOdometer();
+        double distance = 0;
+
+        for (int i = 0; i < FIXES; i++) {
+            summary.add(time[i], latitude[i], longitude[i], RideSummaryAccumulator.MISSING,
+                    RideSummaryAccumulator.MISSING, 0);
+            odometer.add(time[i], latitude[i], longitude[i]);
+            if ( i > 0 ) {
+                distance += Geodesy.haversine(latitude[i - 1], longitude[i - 1], latitude[i],
+                        longitude[i]);
+            }
+            assertEquals(distance, odometer.getDistance());
+        }
+
+        assertEquals(summary.getDistance(), odometer.getDistance());
+        assertEquals(summary.getDuration(), odometer.getElapsed());
+    }
+
+    public void testResumesWhereItLeftOff() {
+        double[] distances = new double[FIXES];
+        long[] elapsed = new long[FIXES];
+        new TrackOdometer().addAll(time, latitude, longitude, FIXES, distances, elapsed);
+
+        // Picked up halfway from what was stored, as the writer does after a restart
+        int half = FIXES / 2;
+        TrackOdometer resumed = new TrackOdometer();
+        resumed.resume(time[half], latitude[half], longitude[half], distances[half],
+                elapsed[half]);
+        for (int i = half + 1; i < FIXES; i++) {
+            resumed.add(time[i], latitude[i], longitude[i]);
+            assertEquals(distances[i], resumed.getDistance());
+            assertEquals(elapsed[i], resumed.getElapsed());
+        }
+        assertEquals(time[FIXES - 1] - time[0], resumed.getElapsed());
+    }
+
+    public void testStandingStillAddsNothing() {
+        TrackOdometer odometer = new TrackOdometer();
+        odometer.add(START_TIME, 51.5, -0.12);
+        odometer.add(START_TIME + 100, 51.5, -0.12);
+        assertEquals(0.0, odometer.getDistance());
+        assertEquals(100, odometer.getElapsed());
+
+        odometer.reset();
+        assertFalse(odometer.isStarted());
+        assertEquals(0.0, odometer.getDistance());
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+public class TrackPyramidTest extends TestCase {
+
+    /* An hour at 10 Hz */
+    private static final int FIXES = 36000;
+
+    private static final long START_TIME = 1430000000000L;
+
+    private final double[] latitude = new double[FIXES];
+    private final double[] longitude = new double[FIXES];
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        SyntheticRideGenerator generator = new SyntheticRideGenerator(
+                SyntheticRideGenerator.Profile.TOURING, 10.0, FIXES, START_TIME, 1);
+        RideSample sample = new RideSample();
+        for (int i = 0; i < FIXES; i++) {
+            assertTrue(generator.next(sample));
+            latitude[i] = sample.latitude;
+            longitude[i] = sample.longitude;
+        }
+    }
+
+    public void testLevelsShrinkAndKeepEnds() {
+        byte[][] levels = TrackPyramid.build(latitude, longitude, FIXES);
+        assertEquals(TrackPyramid.TOLERANCES.length, levels.length);
+
+        int previous = FIXES;
+        for (byte[] level : levels) {
+            double[] points = TrackPyramid.decode(level);
+            int count = points.length / 2;
+            assertEquals(count, TrackPyramid.countPoints(level));
+            assertTrue("Level of " + count + " after " + previous, count <= previous);
+            previous = count;
+
+            assertEquals(latitude[0], points[0], 1e-7);
+            assertEquals(longitude[0], points[1], 1e-7);
+            assertEquals(latitude[FIXES - 1], points[points.length - 2], 1e-7);
+            assertEquals(longitude[FIXES - 1], points[points.length - 1], 1e-7);
+        }
+        assertTrue("Finest level of " + TrackPyramid.countPoints(levels[0]),
+                TrackPyramid.countPoints(levels[0]) < FIXES / 4);
+    }
+
+    public void testEncodeRoundTrip() {
+        double[] points = TrackPyramid.decode(TrackPyramid.encode(latitude, longitude, FIXES));
+
+        assertEquals(FIXES * 2, points.length);
+        for (int i = 0; i < FIXES; i++) {
+            assertEquals(latitude[i], points[2 * i], 1e-7);
+            assertEquals(longitude[i], points[2 * i + 1], 1e-7);
+        }
+    }
+
+    public void testTruncatedLevelThrows() {
+        byte[] level = TrackPyramid.encode(latitude, longitude, 10);
+        try {
+            TrackPyramid.decode(Arrays.copyOf(level, level.length - 1));
+            fail("Decoded a truncated level");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testLevelFollowsZoom() {
+        // Streets show the finest level, a country the coarsest
+        assertEquals(0, TrackPyramid.levelForZoom(19, 51.5));
+        assertEquals(TrackPyramid.TOLERANCES.length - 1, TrackPyramid.levelForZoom(5, 51.5));
+
+        int previous = Integer.MAX_VALUE;
+        for (int zoom = 0; zoom <= 21; zoom++) {
+            int level = TrackPyramid.levelForZoom(zoom, 51.5);
+            assertTrue("Level " + level + " at zoom " + zoom, level <= previous);
+            assertTrue(TrackPyramid.TOLERANCES[level] <= TrackPyramid.metresPerPixel(zoom, 51.5)
+                    || level == 0);
+            previous = level;
+        }
+    }
+}
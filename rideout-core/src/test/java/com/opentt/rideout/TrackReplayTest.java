@@ -0,0 +1,126 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+import junit.framework.TestCase;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+public class TrackReplayTest extends TestCase {
+
+    /* The GGA of the second epoch comes after its RMC */
+    private static final String NMEA =
+            "$GPGGA,123519,4807.038,N,01131.000,E,1,08,0.9,545.4,M,46.9,M,,*47\n" +
+            "$GPRMC,123519,A,4807.038,N,01131.000,E,022.4,084.4,230394,003.1,W*6A\n" +
+            "$GPRMC,123520,A,4807.038,S,01131.000,W,022.4,084.4,230394,003.1,W*6F\n" +
+            "$GPGGA,123520,4807.038,N,01131.000,E,1,08,0.9,546.4,M,46.9,M,,*4E\n" +
+            "$GPRMC,123521,A,4807.038,N,01131.000,E,022.4,084.4,230394,003.1,W*00\n";
+
+    public void testNmea() throws Exception {
+        TrackReader reader = new NmeaTrackReader(new StringReader(NMEA));
+        TrackPoint point = new TrackPoint();
+
+        assertTrue(reader.next(point));
+        assertEquals(764426119000L, point.time);
+        assertEquals(48.1173, point.latitude, 1e-9);
+        assertEquals(11.516667, point.longitude, 1e-6);
+        assertEquals(545.4, point.altitude);
+        assertEquals(22.4 * 1852 / 3600, point.speed, 1e-9);
+
+        assertTrue(reader.next(point));
+        assertEquals(-48.1173, point.latitude, 1e-9);
+        assertEquals(546.4, point.altitude);
+
+        // The last sentence has a bad checksum
+        assertFalse(reader.next(point));
+    }
+
+    public void testReplayInterleavesByTime() throws Exception {
+        String csv = "timestamp,latitude,longitude,speed,elapsed_nanos\n" +
+                "1000,51.5,-0.12,-1,1000000000\n" +
+                "2000,51.6,-0.13,5,2000000000\n";
+        String imu = "elapsed_nanos,sensor_type,x,y,z\n" +
+                "500000000,4,0,0,1\n" +
+                "1000000000,4,0,0,2\n" +
+                "1500000000,4,0,0,3\n";
+
+        final List<String> events = new ArrayList<>();
+        TrackReplay replay = new TrackReplay(new CsvTrackReader(new StringReader(csv)),
+                new ImuLogReader(new StringReader(imu)), TrackReplay.AS_FAST_AS_POSSIBLE,
+                new TrackReplay.Output() {
+                    @Override
+                    public void onFix(TrackPoint point) {
+                        events.add("fix " + point.elapsedNanos + " " + point.speed);
+                    }
+
+                    @Override
+                    public void onReading(int sensorType, long nanos, float x, float y, float z) {
+                        events.add("imu " + nanos);
+                    }
+                });
+        replay.run();
+
+        // A fix goes before a reading at the same time; a negative speed is missing
+        assertEquals("[imu 500000000, fix 1000000000 NaN, imu 1000000000, imu 1500000000, " +
+                "fix 2000000000 5.0]", events.toString());
+        assertEquals(2000000000L, replay.getPositionNanos());
+    }
+
+    /** Pushes an hour of 1 Hz fixes and 200 Hz lean readings through the merger */
+    public void testReplayHourOfReadings() throws Exception {
+        StringBuilder csv = new StringBuilder("timestamp,latitude,longitude,elapsed_nanos\n");
+        StringBuilder imu = new StringBuilder("elapsed_nanos,sensor_type,x,y,z\n");
+        for (int s = 0; s < 3600; s++) {
+            csv.append(s * 1000L).append(",51.5,").append(-0.12 + s * 1e-5).append(',')
+                    .append(s * 1000000000L).append('\n');
+            for (int i = 0; i < 200; i++) {
+                imu.append(s * 1000000000L + i * 5000000L).append(",4,0.1,0.2,0.3\n");
+            }
+        }
+
+        final int[] merged = new int[1];
+        final ImuLocationMerger merger = new ImuLocationMerger(ImuLocationMerger.AXES,
+                new ImuLocationMerger.Output() {
+                    @Override
+                    public void onMerged(long sequence, long fixNanos,
+                                         ImuLocationMerger.Window window) {
+                        merged[0]++;
+                    }
+                });
+
+        TrackReplay replay = new TrackReplay(new CsvTrackReader(new StringReader(csv.toString())),
+                new ImuLogReader(new StringReader(imu.toString())),
+                TrackReplay.AS_FAST_AS_POSSIBLE, new TrackReplay.Output() {
+                    @Override
+                    public void onFix(TrackPoint point) {
+                        merger.addFix(point.elapsedNanos);
+                    }
+
+                    @Override
+                    public void onReading(int sensorType, long nanos, float x, float y, float z) {
+                        merger.addReading(0, nanos, x);
+                    }
+                });
+        replay.run();
+        merger.flush();
+
+        assertEquals(3600, merged[0]);
+        assertEquals(3600 * 200, replay.getReadingsReplayed());
+    }
+}
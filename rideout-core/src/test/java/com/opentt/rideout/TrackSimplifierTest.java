@@ -0,0 +1,139 @@
+/**
+ * Copyright 2015 Edmund Higham. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.opentt.rideout;
+
+import junit.framework.TestCase;
+
+public class TrackSimplifierTest extends TestCase {
+
+    /* An hour at 10 Hz */
+    private static final int FIXES = 36000;
+
+    private static final long START_TIME = 1430000000000L;
+    private static final double TOLERANCE = 2.0;
+
+    private final double[] latitude = new double[FIXES];
+    private final double[] longitude = new double[FIXES];
+    private final double[] speed = new double[FIXES];
+    private final double[] leanAngle = new double[FIXES];
+    private final long[] time = new long[FIXES];
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        SyntheticRideGenerator generator = new SyntheticRideGenerator(
+                SyntheticRideGenerator.Profile.TOURING, 10.0, FIXES, START_TIME, 1);
+        RideSample sample = new RideSample();
+        for (int i = 0; i < FIXES; i++) {
+            assertTrue(generator.next(sample));
+            latitude[i] = sample.latitude;
+            longitude[i] = sample.longitude;
+            speed[i] = sample.speed;
+            leanAngle[i] = sample.leanAngle;
+            time[i] = sample.timeStamp;
+        }
+    }
+
+    public void testDroppedFixesStayWithinTolerance() {
+        boolean[] keep = new boolean[FIXES];
+        int kept = TrackSimplifier.simplify(latitude, longitude, FIXES, TOLERANCE, keep);
+
+        assertTrue(keep[0]);
+        assertTrue(keep[FIXES - 1]);
+        assertTrue("Kept " + kept, kept < FIXES / 10);
+
+        int previous = 0;
+        for (int i = 1; i < FIXES; i++) {
+            if ( keep[i] ) {
+                for (int j = previous + 1; j < i; j++) {
+                    double distance = Math.min(
+                            Geodesy.haversine(latitude[j], longitude[j],
+                                    latitude[previous], longitude[previous]),
+                            distanceToSegment(j, previous, i));
+                    assertTrue("Fix " + j + " is " + distance + "m off", distance <= TOLERANCE);
+                }
+                previous = i;
+            }
+        }
+    }
+
+    public void testStraightLineKeepsEnds() {
+        double[] lat = new double[100];
+        double[] lon = new double[100];
+        for (int i = 0; i < lat.length; i++) {
+            lat[i] = 51.5 + i * 1e-5;
+            lon[i] = -0.12;
+        }
+
+        boolean[] keep = new boolean[lat.length];
+        assertEquals(2, TrackSimplifier.simplify(lat, lon, lat.length, TOLERANCE, keep));
+        assertTrue(keep[0]);
+        assertTrue(keep[lat.length - 1]);
+    }
+
+    public void testKeepsPeakOfEveryWindow() {
+        boolean[] keep = new boolean[FIXES];
+        int kept = TrackSimplifier.keepPeaks(time, leanAngle, FIXES, 10000, true, keep);
+
+        // One for each window with a fix in it; the ride has gaps
+        int windows = 0;
+        long window = -1;
+        for (int i = 0; i < FIXES; i++) {
+            if ( (time[i] - time[0]) / 10000 != window ) {
+                window = (time[i] - time[0]) / 10000;
+                windows++;
+            }
+        }
+        assertEquals(windows, kept);
+
+        int peak = 0;
+        for (int i = 1; i < FIXES; i++) {
+            if ( Math.abs(leanAngle[i]) > Math.abs(leanAngle[peak]) ) {
+                peak = i;
+            }
+        }
+        assertTrue(keep[peak]);
+
+        // Already kept fixes aren't counted again
+        assertEquals(0, TrackSimplifier.keepPeaks(time, leanAngle, FIXES, 10000, true, keep));
+    }
+
+    public void testPeaksSkipNaN() {
+        long[] times = {0, 100, 200, 300};
+        double[] values = {Double.NaN, 3, Double.NaN, 1};
+        boolean[] keep = new boolean[times.length];
+
+        assertEquals(1, TrackSimplifier.keepPeaks(times, values, times.length, 1000, false,
+                keep));
+        assertTrue(keep[1]);
+    }
+
+    /* On the local plane, as the simplifier measures it */
+    private double distanceToSegment(int point, int first, int last) {
+        double metresPerDegree = Math.toRadians(Geodesy.EARTH_RADIUS);
+        double lonScale = metresPerDegree * Math.cos(Math.toRadians(latitude[0]));
+        double dx = (longitude[last] - longitude[first]) * lonScale;
+        double dy = (latitude[last] - latitude[first]) * metresPerDegree;
+        double px = (longitude[point] - longitude[first]) * lonScale;
+        double py = (latitude[point] - latitude[first]) * metresPerDegree;
+        double lengthSquared = dx * dx + dy * dy;
+        double t = lengthSquared > 0 ?
+                Math.max(0, Math.min(1, (px * dx + py * dy) / lengthSquared)) : 0;
+        return Math.hypot(px - t * dx, py - t * dy);
+    }
+}